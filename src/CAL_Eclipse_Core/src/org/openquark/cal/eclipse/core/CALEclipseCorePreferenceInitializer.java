@@ -60,6 +60,15 @@ public class CALEclipseCorePreferenceInitializer extends AbstractPreferenceIniti
         // Enable the cal builder
         defaultOptionsMap.put(CoreOptionIDs.CORE_CAL_BUILD_ENABLE, CoreOptionIDs.ENABLED); 
         
+        // Write generated files through the workspace unless direct output is turned on.
+        defaultOptionsMap.put(CoreOptionIDs.CORE_CAL_BUILD_DIRECT_OUTPUT, CoreOptionIDs.DISABLED); 
+        
+        // Write generated files for each module as separate files unless archived output is turned on.
+        defaultOptionsMap.put(CoreOptionIDs.CORE_CAL_BUILD_ARCHIVED_OUTPUT, CoreOptionIDs.DISABLED); 
+        
+        // Cache up to 32MB of module sources and source models.
+        defaultOptionsMap.put(CoreOptionIDs.CORE_CAL_SOURCE_CACHE_SIZE, String.valueOf(CALModelManager.DEFAULT_SOURCE_CACHE_SIZE_MB));
+        
         // Should be set by CompilerOptions.
         final int maxProblemsPerUnit = 100;
         defaultOptionsMap.put(CoreOptionIDs.COMPILER_PB_MAX_PER_UNIT, String.valueOf(maxProblemsPerUnit)); 
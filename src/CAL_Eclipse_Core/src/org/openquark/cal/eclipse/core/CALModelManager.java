@@ -18,9 +18,13 @@
  */
 package org.openquark.cal.eclipse.core;
 
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.lang.reflect.Method;
 import java.net.MalformedURLException;
 import java.net.URI;
 import java.net.URL;
@@ -42,6 +46,11 @@ import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
 import java.util.WeakHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 
 import org.eclipse.core.resources.IContainer;
 import org.eclipse.core.resources.IFile;
@@ -78,6 +87,7 @@ import org.eclipse.jdt.core.JavaModelException;
 import org.openquark.cal.compiler.CodeAnalyser;
 import org.openquark.cal.compiler.CompilerMessageLogger;
 import org.openquark.cal.compiler.FunctionalAgent;
+import org.openquark.cal.compiler.MessageLogger;
 import org.openquark.cal.compiler.ModuleContainer;
 import org.openquark.cal.compiler.ModuleName;
 import org.openquark.cal.compiler.ModuleSourceDefinition;
@@ -90,8 +100,11 @@ import org.openquark.cal.compiler.SourceModel;
 import org.openquark.cal.compiler.SourceModelUtilities;
 import org.openquark.cal.compiler.TypeChecker;
 import org.openquark.cal.compiler.SourceModel.ModuleDefn;
+import org.openquark.cal.eclipse.core.builder.CALBuilder;
 import org.openquark.cal.eclipse.core.builder.CALResourceContainerFactory;
 import org.openquark.cal.eclipse.core.builder.ICALResourceContainer;
+import org.openquark.cal.eclipse.core.builder.JarCALSourceIndex;
+import org.openquark.cal.eclipse.core.builder.ProjectBuildState;
 import org.openquark.cal.eclipse.core.util.Messages;
 import org.openquark.cal.eclipse.core.util.Util;
 import org.openquark.cal.machine.Module;
@@ -102,6 +115,7 @@ import org.openquark.cal.metadata.CALFeatureMetadata;
 import org.openquark.cal.metadata.FunctionalAgentMetadata;
 import org.openquark.cal.metadata.MetadataManager;
 import org.openquark.cal.metadata.ScopedEntityMetadata;
+import org.openquark.cal.module.Cal.Core.CAL_Prelude;
 import org.openquark.cal.runtime.MachineType;
 import org.openquark.cal.runtime.ResourceAccess;
 import org.openquark.cal.services.CALFeatureName;
@@ -181,6 +195,7 @@ public class CALModelManager {
     private final ProgramResourceRepository resourceRepository;
     private final ProgramModelManager programModelManager;
     private final MetadataManager metadataManager;
+    private final EclipseMetadataStore metadataStore;
     // Note: look at the input folders..
     
     private final Set<MetadataChangeListener> metadataChangeListeners = new HashSet<MetadataChangeListener>();
@@ -213,20 +228,52 @@ public class CALModelManager {
     private Map<IJavaProject, EclipseModuleSourceDefinitionGroup> projectToSourceDefinitionGroupMap = null;
     private EclipseModuleSourceDefinitionGroup globalModuleSourceDefinitionGroup = null;
 
+    /** 
+     * Map from input folder to the CAL sources in the folder, in input folder order.  
+     * Populated by scanning the input folders, and kept up to date from resource deltas.  Null until the first scan. 
+     */
+    private Map<ICALResourceContainer, Set<IStorage>> containerToSourcesMap = null;
+    
+    /** Map from CAL source to its module source definition, so that definitions are reused when the sources are updated from a delta. */
+    private final Map<IStorage, ModuleSourceDefinition> storageToSourceDefinitionMap = new HashMap<IStorage, ModuleSourceDefinition>();
+
     private final CALResourceContainerFactory containerFactory;
     
     private final Map<IJavaProject, ICALResourceContainer[]> projectToResourceContainers = 
         new WeakHashMap<IJavaProject, ICALResourceContainer[]>();
     
+    /** The default memory budget for the module source cache, in megabytes. */
+    static final int DEFAULT_SOURCE_CACHE_SIZE_MB = 32;
+    
     /**
-     * Used to cache the source string of a module.
+     * Used to cache the source string and source model of a module.
      */
-    private final Map<ModuleName, String> moduleNameToSource = new WeakHashMap<ModuleName, String>();
+    private final ModuleSourceCache sourceCache = new ModuleSourceCache(DEFAULT_SOURCE_CACHE_SIZE_MB * 1024L * 1024L);
+    
+    /** 
+     * Map from module name to the parse of the module's source model in progress, if any, for parses which don't ignore errors.
+     * Threads requesting the source model for a module which is being parsed wait for that parse rather than starting another,
+     * while different modules are parsed in parallel.
+     */
+    private final ConcurrentMap<ModuleName, SourceModelParse> moduleNameToSourceModelParseMap = new ConcurrentHashMap<ModuleName, SourceModelParse>();
+    
+    /** 
+     * Map from module name to the parse of the module's source model in progress, if any, for parses which ignore errors.
+     * These are kept apart from the other parses, since they can return a different source model for the same source.
+     */
+    private final ConcurrentMap<ModuleName, SourceModelParse> moduleNameToErrorTolerantSourceModelParseMap = new ConcurrentHashMap<ModuleName, SourceModelParse>();
+    
     /**
-     * Used to cache the source model of a module. 
+     * Map from project name to the state recorded by the last build of that project.
+     * States for projects which haven't been built in this session are restored from the snapshots written on save.
      */
-    private final Map<ModuleName, ModuleDefn> moduleNameToSourceModel = 
-            new WeakHashMap<ModuleName, ModuleDefn>();   
+    private final Map<String, ProjectBuildState> projectNameToBuildStateMap = new HashMap<String, ProjectBuildState>();
+    
+    /** The names of projects for which the build state is known, ie. it has been restored or set in this session. */
+    private final Set<String> buildStateKnownProjectNames = new HashSet<String>();
+    
+    /** The name of the folder in the plugin state location in which build state snapshots are written. */
+    private static final String BUILD_STATE_FOLDER_NAME = "buildState"; //$NON-NLS-1$
     
     
     
@@ -244,15 +291,31 @@ public class CALModelManager {
              * TODOEL: Placeholder
              * See DeltaProcessingState.resourceChanged().
              */
+            switch (event.getType()) {
+                case IResourceChangeEvent.PRE_BUILD:
+                    CALBuilder.buildStarting();
+                    break;
+                    
+                case IResourceChangeEvent.POST_BUILD:
+                    CALBuilder.buildFinished();
+                    break;
+                    
+                default:
+                    break;
+            }
         }
     };
     
     /**
      * this resource change listener listens for changes to the classpath and removes that project
      * from the input containers cache.
+     * It also clears the classloaders' caches of classes not found if the classpath, output folders or libraries of a 
+     * java project change, eg. when a java build writes class files.
      */
     private final IResourceChangeListener classpathChangeListener = new IResourceChangeListener() {
         public void resourceChanged(IResourceChangeEvent event) {
+            // Whether classes may have been added to or removed from the classpath of a java project.
+            final boolean[] classesChanged = {false};
             try {
                 event.getDelta().accept(new IResourceDeltaVisitor() {
                     public boolean visit(IResourceDelta delta) throws CoreException {
@@ -265,8 +328,12 @@ public class CALModelManager {
                                 for (final IResourceDelta child : children) {
                                     if (child.getResource().getName().equals(".classpath")) {
                                         projectToResourceContainers.remove(javaProject);
+                                        classesChanged[0] = true;
                                     }
                                 }
+                                if (!classesChanged[0] && isClasspathContentChanged(javaProject, delta)) {
+                                    classesChanged[0] = true;
+                                }
                             }
                         }
                         return false;
@@ -275,6 +342,10 @@ public class CALModelManager {
             } catch (CoreException e) {
                 Util.log(e, "Error searching through project for changes to classpath");
             }
+            
+            if (classesChanged[0]) {
+                clearClassLookupCaches();
+            }
         }  
     };
     
@@ -314,11 +385,24 @@ public class CALModelManager {
          */
         public void saving(ISaveContext context) throws CoreException {
             /*
-             * Placeholder.
-             * 
-             * Update per-project info.
-             * Save external lib timestamps.
+             * TODOEL: Save external lib timestamps.
              */
+            switch (context.getKind()) {
+                case ISaveContext.FULL_SAVE:
+                    // Ask for the changes made before the next activation, so that the model can be brought up to date.
+                    context.needDelta();
+                    saveBuildStates(null);
+                    JarCALSourceIndex.save();
+                    break;
+                    
+                case ISaveContext.PROJECT_SAVE:
+                    saveBuildStates(context.getProject());
+                    break;
+                    
+                default:
+                    // Snapshot -- nothing to do.
+                    break;
+            }
         }
     }
     
@@ -369,15 +453,104 @@ public class CALModelManager {
      *   <li> Iterate through direct and indirect dependee projects, in the order returned by computeProjectOrder().
      *      Ask the classloader for each in turn for the class, return the first one returned.
      * </ol>
+     * <p>
+     * Classes are defined under a lock for the class name rather than a lock on the classloader, so that different classes
+     *  can be loaded on different threads at the same time.  The lock is only held while a classloader looks on its own
+     *  classpath, and never while asking the parent or another project's classloader, since projects' classloaders may
+     *  consult each other in either order.
+     * If the classloader can't be registered with the VM as parallel capable (eg. on Java 5 and 6), the VM locks the classloader
+     *  while loading classes through it, so classes are loaded under the lock on the classloader instead.
+     * Since foreign function resolution asks for many classes which don't exist, the names of classes which are not found
+     *  are remembered (up to a limit), so that the parent and dependee classloaders are not asked again.
+     * The classloader which defined each class found in a dependee project is also remembered, so that the class is found
+     *  again without walking the dependee projects.
+     * These caches are cleared by CALModelManager.clearClassLoader(), and by CALModelManager.clearClassLookupCaches() when
+     *  the classpath or the output folders of a java project change.
+     * <p>
+     * Resources are found using an index of the packages in the jars on the classpath, so that getResource() and getResources()
+     *  only look in the jars which could contain a resource.  The index is discarded along with the other caches, since the
+     *  jars may have changed.
      * @author Edward Lam
      */
     private static class ProjectClassLoader extends URLClassLoader {
         
         private static final URL[] EMPTY_URL_ARRAY = new URL[0];
         
+        /** The maximum number of class names to remember as not found, for each classloader. */
+        private static final int MAX_ABSENT_CLASS_NAMES = 4096;
+        
+        /**
+         * Whether the VM was told that it need not lock the classloader when loading classes through it.
+         * If not, classes are loaded while holding the lock on the classloader, as the VM does when it loads classes itself.
+         */
+        private static final boolean PARALLEL_CAPABLE;
+        
+        static {
+            // Java 7 and later: tell the VM that it need not lock the classloader when loading classes through it.
+            // registerAsParallelCapable() doesn't exist in earlier versions, and may not be accessible in later ones.
+            boolean registered;
+            try {
+                Method registerMethod = ClassLoader.class.getDeclaredMethod("registerAsParallelCapable"); //$NON-NLS-1$
+                registerMethod.setAccessible(true);
+                registered = Boolean.TRUE.equals(registerMethod.invoke(null));
+            } catch (Exception e) {
+                // Not available.
+                registered = false;
+            }
+            PARALLEL_CAPABLE = registered;
+        }
+        
+        /** The project for which this classloader loads classes. */
+        private final IProject project;
+        
         /** (List of IJavaProject) The java projects which are direct or indirect dependees of the project, plus the project itself. */
         private final List<IJavaProject> dependeeJavaProjects;
         
+        /** 
+         * Map from class name to the lock to hold while this classloader looks for the class with that name on its own classpath.
+         * Entries are removed when the search is over, so this only holds the names of classes being looked for.
+         */
+        private final ConcurrentMap<String, Object> classNameToLockMap = new ConcurrentHashMap<String, Object>();
+        
+        /** Map from the name of a class found in a dependee project to the classloader for that project. */
+        private final ConcurrentMap<String, ProjectClassLoader> classNameToOwnerMap = new ConcurrentHashMap<String, ProjectClassLoader>();
+        
+        /** The names of classes not found by loadClass(), ie. not found by the parent, the dependee projects, or this classloader. */
+        private final AbsentClassNameSet absentClassNames = new AbsentClassNameSet();
+        
+        /** The names of classes not found on the classpath of this classloader itself. */
+        private final AbsentClassNameSet locallyAbsentClassNames = new AbsentClassNameSet();
+        
+        /** The index of the resources on the classpath of this classloader itself. */
+        private final ClasspathResourceIndex resourceIndex;
+        
+        /**
+         * A bounded set of class names, from which the least recently added name is dropped when the set is full.
+         */
+        private static final class AbsentClassNameSet {
+            /** The names in the set, least recently added first.  Guarded by this. */
+            private final Map<String, Boolean> nameMap = new LinkedHashMap<String, Boolean>() {
+                private static final long serialVersionUID = -3640283811826342185L;
+
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+                    return size() > MAX_ABSENT_CLASS_NAMES;
+                }
+            };
+            
+            synchronized boolean contains(String name) {
+                return nameMap.containsKey(name);
+            }
+            
+            synchronized void add(String name) {
+                nameMap.put(name, Boolean.TRUE);
+            }
+            
+            synchronized void clear() {
+                nameMap.clear();
+            }
+        }
+        
         /**
          * Factory method for this class.
          * 
@@ -424,7 +597,7 @@ public class CALModelManager {
             final URL[] urls = urlList.toArray(EMPTY_URL_ARRAY);
             return AccessController.doPrivileged(new PrivilegedAction<ProjectClassLoader>() {
                 public ProjectClassLoader run() {
-                    return new ProjectClassLoader(dependeeJavaProjects, urls, parent);
+                    return new ProjectClassLoader(project, dependeeJavaProjects, urls, parent);
                 }
             });
         }
@@ -433,13 +606,16 @@ public class CALModelManager {
          * Constructor for a ProjectClassLoader.
          * Private - use factory method to instantiate.
          * 
+         * @param project the project for which the classes should be loaded.
          * @param dependeeJavaProjects (List of JavaProject) the JavaProjects on which the project depends, directly or indirectly.
          * @param urls the urls for the elements of the project's classpath.
          * @param parent the classloader to serve as the parent of this classloader
          */
-        private ProjectClassLoader(List<IJavaProject> dependeeJavaProjects, URL[] urls, ClassLoader parent) {
+        private ProjectClassLoader(IProject project, List<IJavaProject> dependeeJavaProjects, URL[] urls, ClassLoader parent) {
             super(urls, parent);
+            this.project = project;
             this.dependeeJavaProjects = dependeeJavaProjects;
+            this.resourceIndex = new ClasspathResourceIndex(urls);
         }
         
         /**
@@ -489,56 +665,102 @@ public class CALModelManager {
             
         }
 
+        /**
+         * @param name the name of a class.
+         * @return the lock to hold while looking for the class with that name on the classpath of this classloader.
+         *   The lock should be released with releaseLoadingLock().
+         *   If the classloader isn't parallel capable, this is the classloader itself, which the VM locks while loading classes.
+         */
+        private Object getLoadingLock(String name) {
+            if (!PARALLEL_CAPABLE) {
+                return this;
+            }
+            Object newLock = new Object();
+            Object lock = classNameToLockMap.putIfAbsent(name, newLock);
+            return lock == null ? newLock : lock;
+        }
+        
+        /**
+         * Forget the lock for a class name, so that the lock map only holds the names of classes being looked for.
+         * A thread which still holds the lock afterwards only races with a thread holding a newer lock if neither found
+         *  the class loaded, in which case defining the class twice is caught in findClassLocally().
+         * @param name the name of a class.
+         * @param lock the lock returned by getLoadingLock() for the name.
+         */
+        private void releaseLoadingLock(String name, Object lock) {
+            if (lock != this) {
+                classNameToLockMap.remove(name, lock);
+            }
+        }
+        
+        /**
+         * Clear the remembered names of classes which were not found, the classloaders for classes found in dependee projects,
+         *  and the index of the resources on the classpath.
+         */
+        void clearLookupCaches() {
+            absentClassNames.clear();
+            locallyAbsentClassNames.clear();
+            classNameToOwnerMap.clear();
+            resourceIndex.reset();
+        }
+        
         /**
          * {@inheritDoc}
          * Override to respect the implementation as described in the class comment.
          */
         @Override
-        protected synchronized Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+        protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+            if (!PARALLEL_CAPABLE) {
+                // The VM holds the lock on the classloader when it loads classes through it.  Do the same, so that locks are
+                //  always taken in the same order.
+                synchronized (this) {
+                    return loadClassUnlocked(name, resolve);
+                }
+            }
+            return loadClassUnlocked(name, resolve);
+        }
+        
+        /**
+         * Load a class, as loadClass(), but without holding the lock on this classloader.
+         * @param name the name of the class.
+         * @param resolve whether to resolve the class.
+         * @return the class.
+         * @throws ClassNotFoundException if the class was not found.
+         */
+        private Class<?> loadClassUnlocked(String name, boolean resolve) throws ClassNotFoundException {
+            
+            // No lock of this classloader is needed here if it is parallel capable: the parent and dependee classloaders are
+            //  consulted without holding it, and findClassLocally() serializes the definition of each class by the classloader defining it.
             
             // First, check if the class has already been loaded
             Class<?> c = findLoadedClass(name);
+            
             if (c == null) {
+                // Check if the class was found in a dependee project before.
+                ProjectClassLoader ownerClassLoader = classNameToOwnerMap.get(name);
+                if (ownerClassLoader != null) {
+                    c = ownerClassLoader.findLoadedClass(name);
+                }
+            }
+            
+            if (c == null) {
+                // Check if the class wasn't found before.
+                if (absentClassNames.contains(name)) {
+                    throw new ClassNotFoundException(name);
+                }
+                
                 try {
                     // Check the parent first.
                     c = getParent().loadClass(name);
-                
+                    
                 } catch (ClassNotFoundException e) {
                     
-                    // Look in dependee projects.
-                    for (final IJavaProject javaProject : dependeeJavaProjects) {
-                        
-                        // Have to cast in order to gain visibility for method findClass().
-                        ProjectClassLoader dependeeClassLoader = (ProjectClassLoader)CALModelManager.getCALModelManager().getClassLoader(javaProject.getProject());
-                        
-                        try {
-                            /*
-                             * Call findClass() instead of loadClass()
-                             * However, call findLoadedClass() first (since findClass() doesn't check whether the class is already loaded).
-                             * - loadClass() will perform the search on its parents and dependees before asking itself.
-                             * - findClass() will just search the urls in the classloader itself.
-                             * 
-                             * Note that there is still a small amount of inefficiency here, since some classpath elements may exist in multiple places.  
-                             *   eg. P1 depends on P2, but both P1 and P2 have an entry on their classpath for foo.jar.  
-                             *       foo.jar will end up in the lookup list for each classloader.
-                             */
-                            c = dependeeClassLoader.findLoadedClass(name);
-                            if (c == null) {
-                                c = dependeeClassLoader.findClass(name);
-                            }
-                            
-                        } catch (ClassNotFoundException e2) {
-                            // didn't find it in this project's classloader.
-                            continue;
-                        }
-                        
-                        // Found it in this project's classloader.
-                        break;
-                    }                                                                                        
+                    // Look in dependee projects.  The project itself is among the dependee projects.
+                    c = findClassInDependees(name);
                     
-                    // If still not found, then invoke findClass() in this loader.
                     if (c == null) {
-                        c = findClass(name);
+                        absentClassNames.add(name);
+                        throw new ClassNotFoundException(name);
                     }
                 }
             }
@@ -549,6 +771,119 @@ public class CALModelManager {
             return c;
         }
         
+        /**
+         * Look for a class in the classloaders for the dependee projects, in project order.
+         * @param name the name of the class.
+         * @return the class, or null if the class was not found.
+         */
+        private Class<?> findClassInDependees(String name) {
+            for (final IJavaProject javaProject : dependeeJavaProjects) {
+                
+                // Have to cast in order to gain visibility for method findClassLocally().
+                IProject dependeeProject = javaProject.getProject();
+                ProjectClassLoader dependeeClassLoader = dependeeProject.equals(project) ? 
+                        this : (ProjectClassLoader)CALModelManager.getCALModelManager().getClassLoader(dependeeProject);
+                
+                if (dependeeClassLoader == null) {
+                    continue;
+                }
+                
+                /*
+                 * Note that there is still a small amount of inefficiency here, since some classpath elements may exist in multiple places.  
+                 *   eg. P1 depends on P2, but both P1 and P2 have an entry on their classpath for foo.jar.  
+                 *       foo.jar will end up in the lookup list for each classloader.
+                 */
+                Class<?> c = dependeeClassLoader.findClassLocally(name);
+                if (c != null) {
+                    // Found it in this project's classloader.
+                    if (dependeeClassLoader != this) {
+                        classNameToOwnerMap.put(name, dependeeClassLoader);
+                    }
+                    return c;
+                }
+            }
+            
+            // If not found, then invoke findClass() in this loader.
+            // This can only happen if the project itself isn't a java project.
+            return findClassLocally(name);
+        }
+        
+        /**
+         * Look for a class on the classpath of this classloader itself, without consulting the parent or dependee classloaders.
+         * 
+         * This calls findLoadedClass() before findClass(), since findClass() doesn't check whether the class is already loaded.
+         * - loadClass() will perform the search on its parents and dependees before asking itself.
+         * - findClass() will just search the urls in the classloader itself.
+         * 
+         * @param name the name of the class.
+         * @return the class, or null if the class was not found.
+         */
+        private Class<?> findClassLocally(String name) {
+            Class<?> c = findLoadedClass(name);
+            if (c != null) {
+                return c;
+            }
+            if (locallyAbsentClassNames.contains(name)) {
+                return null;
+            }
+            
+            // Hold the lock for the class name (or for the classloader, if it isn't parallel capable), in case the class is being
+            //  loaded by this classloader on another thread.
+            // Defining the class may load its superclasses through this classloader, but the class hierarchy is acyclic,
+            //  so the locks for different names are always taken in the same order.
+            Object lock = getLoadingLock(name);
+            try {
+                synchronized (lock) {
+                    c = findLoadedClass(name);
+                    if (c != null) {
+                        return c;
+                    }
+                    try {
+                        return findClass(name);
+                        
+                    } catch (ClassNotFoundException e) {
+                        // didn't find it in this project's classloader.
+                        locallyAbsentClassNames.add(name);
+                        return null;
+                        
+                    } catch (LinkageError e) {
+                        // Defined on another thread which was holding an older lock for the name.
+                        c = findLoadedClass(name);
+                        if (c == null) {
+                            throw e;
+                        }
+                        return c;
+                    }
+                }
+            } finally {
+                releaseLoadingLock(name, lock);
+            }
+        }
+        
+        /**
+         * {@inheritDoc}
+         * Override to use the resource index.
+         */
+        @Override
+        public URL findResource(String name) {
+            if (!resourceIndex.isUsable()) {
+                return super.findResource(name);
+            }
+            return resourceIndex.findResource(name);
+        }
+        
+        /**
+         * {@inheritDoc}
+         * Override to use the resource index.
+         */
+        @Override
+        public Enumeration<URL> findResources(String name) throws IOException {
+            if (!resourceIndex.isUsable()) {
+                return super.findResources(name);
+            }
+            return resourceIndex.findResources(name);
+        }
+        
         /**
          * {@inheritDoc}
          * Override to respect the implementation as described in the class comment.
@@ -628,7 +963,8 @@ public class CALModelManager {
         this.programModelManager = new ProgramModelManager(programManager);
         this.resourceRepository = programManager.getProgramResourceRepository();
         
-        metadataManager = new MetadataManager (new EclipseMetadataStore ());
+        metadataStore = new EclipseMetadataStore ();
+        metadataManager = new MetadataManager (metadataStore);
 
         containerFactory = new CALResourceContainerFactory(machineType);
         
@@ -669,7 +1005,7 @@ public class CALModelManager {
                     }
                 }
                 
-                updateSourceDefinitionInfo();
+                updateSourceDefinitionInfo(delta);
             }
 
         }, IResourceChangeEvent.POST_CHANGE);
@@ -738,6 +1074,9 @@ public class CALModelManager {
             pluginConfiguration = new PluginConfiguration();
             pluginConfiguration.startup();
             
+            sourceCache.setMaxCost(getSourceCacheSize());
+            sourceCache.pin(CAL_Prelude.MODULE_NAME);
+            
             final IWorkspace workspace = ResourcesPlugin.getWorkspace();
             workspace.addResourceChangeListener(this.deltaState, IResourceChangeEvent.PRE_BUILD | IResourceChangeEvent.POST_BUILD | IResourceChangeEvent.POST_CHANGE
                     | IResourceChangeEvent.PRE_DELETE | IResourceChangeEvent.PRE_CLOSE);
@@ -793,6 +1132,9 @@ public class CALModelManager {
         workspace.removeResourceChangeListener(this.deltaState);
         workspace.removeResourceChangeListener(classpathChangeListener);
         workspace.removeSaveParticipant(calEclipseCorePlugin);
+        
+        SourceModelPrefetchJob.cancelPrefetch();
+        metadataStore.flushPendingWrites();
 
         // wait for the initialization job to finish
         try {
@@ -866,6 +1208,130 @@ public class CALModelManager {
         return msdg;
     }
     
+    /**
+     * Get the state recorded by the last build of a project.
+     * If the project hasn't been built in this session, the state is restored from the snapshot written on the last save, if any.
+     * 
+     * @param project the project.
+     * @return the last built state for the project, or null if there is none.
+     */
+    public ProjectBuildState getLastBuiltState(IProject project) {
+        String projectName = project.getName();
+        synchronized (projectNameToBuildStateMap) {
+            if (buildStateKnownProjectNames.contains(projectName)) {
+                return projectNameToBuildStateMap.get(projectName);
+            }
+        }
+        
+        // Read outside of the lock.
+        ProjectBuildState restoredState = readBuildState(project);
+        
+        synchronized (projectNameToBuildStateMap) {
+            // Don't clobber a state set in the meantime.
+            if (buildStateKnownProjectNames.add(projectName) && restoredState != null) {
+                projectNameToBuildStateMap.put(projectName, restoredState);
+            }
+            return projectNameToBuildStateMap.get(projectName);
+        }
+    }
+    
+    /**
+     * Set the state recorded by the last build of a project.
+     * @param project the project.
+     * @param state the state, or null to clear the state (forcing a full build next time).
+     */
+    public void setLastBuiltState(IProject project, ProjectBuildState state) {
+        String projectName = project.getName();
+        synchronized (projectNameToBuildStateMap) {
+            buildStateKnownProjectNames.add(projectName);
+            if (state == null) {
+                projectNameToBuildStateMap.remove(projectName);
+            } else {
+                projectNameToBuildStateMap.put(projectName, state);
+            }
+        }
+    }
+    
+    /**
+     * @param projectName the name of a project.
+     * @return the file in which the build state snapshot for the project is written.
+     */
+    private static File getBuildStateFile(String projectName) {
+        return CALEclipseCorePlugin.getDefault().getStateLocation().append(BUILD_STATE_FOLDER_NAME).append(projectName + ".state").toFile(); //$NON-NLS-1$
+    }
+    
+    /**
+     * Read the build state snapshot for a project.
+     * @param project the project.
+     * @return the restored state, or null if there is no (valid) snapshot.
+     */
+    private ProjectBuildState readBuildState(IProject project) {
+        File stateFile = getBuildStateFile(project.getName());
+        if (!stateFile.exists()) {
+            return null;
+        }
+        
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(stateFile)));
+            return ProjectBuildState.read(in, project.getName(), getModuleSourceDefinitionGroup(project));
+        
+        } catch (IOException e) {
+            Util.log(e, "Error reading build state for " + project.getName()); //$NON-NLS-1$
+            return null;
+        
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // Nothing to do.
+                }
+            }
+        }
+    }
+    
+    /**
+     * Write build state snapshots for projects whose state is known in this session.
+     * Snapshots for projects whose state was cleared are deleted, so that they are fully built next time.
+     * 
+     * @param project the project whose state should be saved, or null to save the state for all projects.
+     */
+    private void saveBuildStates(IProject project) {
+        Map<String, ProjectBuildState> statesToSave = new HashMap<String, ProjectBuildState>();
+        synchronized (projectNameToBuildStateMap) {
+            for (final String projectName : buildStateKnownProjectNames) {
+                if (project == null || project.getName().equals(projectName)) {
+                    statesToSave.put(projectName, projectNameToBuildStateMap.get(projectName));
+                }
+            }
+        }
+        
+        File stateFolder = CALEclipseCorePlugin.getDefault().getStateLocation().append(BUILD_STATE_FOLDER_NAME).toFile();
+        stateFolder.mkdirs();
+        
+        IWorkspaceRoot workspaceRoot = ResourcesPlugin.getWorkspace().getRoot();
+        for (final Map.Entry<String, ProjectBuildState> entry : statesToSave.entrySet()) {
+            String projectName = entry.getKey();
+            ProjectBuildState state = entry.getValue();
+            File stateFile = getBuildStateFile(projectName);
+            
+            if (state == null || !workspaceRoot.getProject(projectName).isAccessible()) {
+                stateFile.delete();
+                continue;
+            }
+            
+            try {
+                state.write(stateFile);
+            
+            } catch (IOException e) {
+                // Don't leave the previous snapshot, as it no longer matches the project's markers.
+                Util.log(e, "Error saving build state for " + projectName); //$NON-NLS-1$
+                stateFile.delete();
+            }
+        }
+    }
+    
     /** 
      * @param moduleName the module name to get the ModuleSourceDefinition for.
      * @return The ModuleSourceDefinition for the module with the given name or null if not found.
@@ -878,46 +1344,180 @@ public class CALModelManager {
         return null;
     }
 
-    public SourceModel.ModuleDefn getModuleSourceModel(ModuleName moduleName, boolean ignoreErrors, CompilerMessageLogger logger){
-        SourceModel.ModuleDefn sourceModel;
-        // read the cache
-        synchronized(moduleNameToSourceModel){
-            sourceModel = moduleNameToSourceModel.get(moduleName);
-            if (sourceModel != null){
-                // In the cache so leave early
-                return sourceModel;
+    /**
+     * A parse of a module's source model, run on the thread which first requested the source model.
+     */
+    private static class SourceModelParse extends FutureTask<SourceModel.ModuleDefn> {
+        /** The modification stamp of the module source when the parse was requested. */
+        final long stamp;
+        
+        /** The logger to which the parser logs its messages, so that they can be passed on to each thread which waits for the parse. */
+        private final CompilerMessageLogger parseLogger;
+
+        SourceModelParse(long stamp, Callable<SourceModel.ModuleDefn> parser, CompilerMessageLogger parseLogger) {
+            super(parser);
+            this.stamp = stamp;
+            this.parseLogger = parseLogger;
+        }
+        
+        /**
+         * Wait for the parse to finish, and log its messages.
+         * @param logger the logger to which to log the messages from the parse.  May be null.
+         * @return the source model, or null if the module has no source.
+         */
+        SourceModel.ModuleDefn getSourceModel(CompilerMessageLogger logger) {
+            SourceModel.ModuleDefn sourceModel = getSourceModel();
+            if (logger != null) {
+                logger.logMessages(parseLogger);
             }
+            return sourceModel;
+        }
+        
+        /**
+         * Wait for the parse to finish, even if interrupted.
+         * @return the source model, or null if the module has no source.
+         */
+        SourceModel.ModuleDefn getSourceModel() {
+            boolean interrupted = false;
+            try {
+                while (true) {
+                    try {
+                        return get();
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException)cause;
+                }
+                if (cause instanceof Error) {
+                    throw (Error)cause;
+                }
+                throw new IllegalStateException(cause);
+            } finally {
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+    
+    /**
+     * Get the source model for a module.
+     * If the module is being parsed on another thread with the same ignoreErrors setting, this waits for that parse.
+     *   The messages from the parse are logged to each waiting thread's logger.
+     * 
+     * @param moduleName the name of the module.
+     * @param ignoreErrors whether to return a source model even if there were parse errors.
+     * @param logger the logger to which to log parse messages.
+     * @return the source model for the module, or null if the module has no source.
+     */
+    public SourceModel.ModuleDefn getModuleSourceModel(final ModuleName moduleName, final boolean ignoreErrors, final CompilerMessageLogger logger){
+        // read the cache
+        final long stamp = getSourceStamp(moduleName);
+        SourceModel.ModuleDefn sourceModel = sourceCache.getSourceModel(moduleName, stamp);
+        if (sourceModel != null){
+            // In the cache so leave early
+            return sourceModel;
+        }
 
-            // not in the cache so get it the slow way
-            String moduleSource = getModuleSource(moduleName);
-            if (moduleSource.length() == 0){
-                return null;
+        // not in the cache so get it the slow way
+        final CompilerMessageLogger parseLogger = new MessageLogger();
+        SourceModelParse parse = new SourceModelParse(stamp, new Callable<SourceModel.ModuleDefn>() {
+            public SourceModel.ModuleDefn call() {
+                String moduleSource = getModuleSource(moduleName);
+                if (moduleSource.length() == 0){
+                    return null;
+                }
+                SourceModel.ModuleDefn parsedSourceModel = SourceModelUtilities.TextParsing.parseModuleDefnIntoSourceModel(moduleSource, ignoreErrors, parseLogger);
+                // updated the cache
+                if (stamp != IResource.NULL_STAMP) {
+                    sourceCache.putSourceModel(moduleName, stamp, moduleSource, parsedSourceModel);
+                }
+                return parsedSourceModel;
             }
-            sourceModel = SourceModelUtilities.TextParsing.parseModuleDefnIntoSourceModel(moduleSource, ignoreErrors, logger);
-            // updated the cache
-            moduleNameToSourceModel.put(moduleName, sourceModel); 
+        }, parseLogger);
+        
+        // Wait for any parse of the same source, with the same ignoreErrors setting, which is already in progress.
+        ConcurrentMap<ModuleName, SourceModelParse> parseMap = ignoreErrors ? moduleNameToErrorTolerantSourceModelParseMap : moduleNameToSourceModelParseMap;
+        SourceModelParse parseInProgress = parseMap.putIfAbsent(moduleName, parse);
+        if (parseInProgress != null && parseInProgress.stamp == stamp) {
+            return parseInProgress.getSourceModel(logger);
+        }
+        
+        // Otherwise parse on this thread.
+        // If a parse of an older version of the source is in progress, don't make other threads wait for this one.
+        try {
+            parse.run();
+        } finally {
+            parseMap.remove(moduleName, parse);
+        }
+        return parse.getSourceModel(logger);
+    }
+
+    /**
+     * Cache a source model parsed elsewhere (eg. by an editor) for a module, so that it doesn't have to be parsed again.
+     * The source model is only cached if the given source is the module's current source.
+     * 
+     * @param moduleName the name of the module.
+     * @param source the source text from which the model was parsed.
+     * @param sourceModel the source model, which must have been parsed without errors.
+     */
+    public void putModuleSourceModel(ModuleName moduleName, String source, SourceModel.ModuleDefn sourceModel) {
+        long stamp = getSourceStamp(moduleName);
+        if (stamp != IResource.NULL_STAMP && sourceCache.getSourceModel(moduleName, stamp) == null && source.equals(getModuleSource(moduleName))) {
+            sourceCache.putSourceModel(moduleName, stamp, source, sourceModel);
         }
-        return sourceModel;
     }
 
     public String getModuleSource(ModuleName moduleName){
-        String source;
         // check the cache
-        synchronized(moduleNameToSource){
-            source = moduleNameToSource.get(moduleName);
-            if (source != null){
-                // in the cache so leave early
-                return source;
-            }
+        long stamp = getSourceStamp(moduleName);
+        String source = sourceCache.getSource(moduleName, stamp);
+        if (source != null){
+            // in the cache so leave early
+            return source;
+        }
 
-            // no in the cache so get it the slow way.
-            source = ModuleContainer.readModuleSource(getModuleSourceDefinition(moduleName));
-            // update the cache
-            moduleNameToSource.put(moduleName, source);
+        // no in the cache so get it the slow way.
+        source = ModuleContainer.readModuleSource(getModuleSourceDefinition(moduleName));
+        // update the cache
+        if (stamp != IResource.NULL_STAMP) {
+            sourceCache.putSource(moduleName, stamp, source);
         }
         return source;
     }
     
+    /**
+     * @param moduleName the name of a module.
+     * @return the modification stamp of the module's source, or IResource.NULL_STAMP if the source doesn't exist.
+     * For a module in a workspace file, this is the file's modification stamp, which changes whenever the file changes.
+     * For a module in a jar, this is the jar's timestamp.
+     */
+    private long getSourceStamp(ModuleName moduleName) {
+        IStorage storage = getInputSourceFile(moduleName);
+        if (storage instanceof IFile) {
+            return ((IFile)storage).getModificationStamp();
+        }
+        ModuleSourceDefinition sourceDefinition = getModuleSourceDefinition(moduleName);
+        return sourceDefinition == null ? IResource.NULL_STAMP : sourceDefinition.getTimeStamp();
+    }
+    
+    /**
+     * @return the memory budget for the module source cache, in bytes.
+     */
+    private long getSourceCacheSize() {
+        int megabytes = DEFAULT_SOURCE_CACHE_SIZE_MB;
+        try {
+            megabytes = Integer.parseInt(getOption(CoreOptionIDs.CORE_CAL_SOURCE_CACHE_SIZE));
+        } catch (NumberFormatException e) {
+            // Use the default.
+        }
+        return megabytes * 1024L * 1024L;
+    }
+    
     /**
      * @return the names of modules currently in the model.
      * Note that if the model is in the process of being populated this info may get quickly out of date.
@@ -1082,6 +1682,13 @@ public class CALModelManager {
         }
     }
     
+    /**
+     * @return the projects in the workspace, in the order in which they are built.
+     */
+    public synchronized IProject[] getProjectBuildOrder() {
+        return projectOrder.projects.clone();
+    }
+    
     /**
      * @param iProject the project for which a classloader should be obtained.
      * @return the classloader to use to load classes for that project.
@@ -1121,13 +1728,60 @@ public class CALModelManager {
 
         boolean removeProjectsWhileIterating = false;
         for (final IProject ithProject : projects) {
-            if (ithProject == iProject) {
+            if (ithProject.equals(iProject)) {
                 removeProjectsWhileIterating = true;
             }
             
             if (removeProjectsWhileIterating) {
-                projectNameToClassloaderCacheMap.remove(iProject.getName());
+                projectNameToClassloaderCacheMap.remove(ithProject.getName());
+            }
+        }
+        
+        // The remaining classloaders may have remembered classes as not found, which can now be found.
+        clearClassLookupCaches();
+    }
+    
+    /**
+     * Clear the names of classes which the cached classloaders remember as not found, the classloaders they remember
+     *  as having defined classes, and their indices of the resources in the jars on their classpaths.
+     * This should be called when classes may have been added to or removed from the classpath of a java project.
+     */
+    public synchronized void clearClassLookupCaches() {
+        for (final ClassLoader classLoader : projectNameToClassloaderCacheMap.values()) {
+            ((ProjectClassLoader)classLoader).clearLookupCaches();
+        }
+    }
+    
+    /**
+     * @param javaProject a java project.
+     * @param projectDelta the resource delta for the project.
+     * @return whether the delta includes changes to the output folders or the libraries of the project, 
+     *   ie. whether classes may have been added to or removed from the project's classpath.
+     */
+    private static boolean isClasspathContentChanged(IJavaProject javaProject, IResourceDelta projectDelta) {
+        IPath projectPath = javaProject.getProject().getFullPath();
+        try {
+            List<IPath> paths = new ArrayList<IPath>();
+            paths.add(javaProject.getOutputLocation());
+            for (final IClasspathEntry entry : javaProject.getRawClasspath()) {
+                if (entry.getOutputLocation() != null) {
+                    paths.add(entry.getOutputLocation());
+                }
+                if (entry.getEntryKind() == IClasspathEntry.CPE_LIBRARY) {
+                    paths.add(entry.getPath());
+                }
             }
+            
+            for (final IPath path : paths) {
+                if (projectPath.isPrefixOf(path) && projectDelta.findMember(path.removeFirstSegments(1)) != null) {
+                    return true;
+                }
+            }
+            return false;
+            
+        } catch (JavaModelException e) {
+            // Can't tell.
+            return true;
         }
     }
     
@@ -1368,17 +2022,249 @@ public class CALModelManager {
     }
 
     /**
-     * Update the class members related to module source definitions.
+     * Update the class members related to module source definitions, rescanning all input folders for CAL sources.
      */
     private void updateSourceDefinitionInfo() {
         
-        this.moduleNameToSourceFileInfoMap.clear();
-        this.invalidResourceNameMap.clear();
+        Map<ICALResourceContainer, Set<IStorage>> containerToSourcesMap = new LinkedHashMap<ICALResourceContainer, Set<IStorage>>();
+        for (final ICALResourceContainer inputContainer : getInputFolders()) {
+            // Copy, since the set may be cached by the container.
+            containerToSourcesMap.put(inputContainer, new LinkedHashSet<IStorage>(inputContainer.getCALSources()));     // ~slow
+        }
+        this.containerToSourcesMap = containerToSourcesMap;
+        
+        // Jar timestamps may have changed, so don't reuse any source definitions.
+        this.storageToSourceDefinitionMap.clear();
         
-        ICALResourceContainer[] inputSourceContainers = getInputFolders();
+        rebuildSourceDefinitionInfo();
+    }
+    
+    /**
+     * Update the class members related to module source definitions from a resource delta.
+     * <p>
+     * Added and removed source files (including files which are moved or renamed) are applied to the sources known 
+     * for their input folders, and the source definition groups are only rebuilt for projects whose sources have changed.
+     * The input folders are only rescanned if the delta may change the input folders themselves, 
+     * eg. if a classpath, a project or a jar changes, or a CAL folder is added or removed.
+     * 
+     * @param delta the resource delta.
+     */
+    private void updateSourceDefinitionInfo(IResourceDelta delta) {
+        if (containerToSourcesMap == null) {
+            updateSourceDefinitionInfo();
+            return;
+        }
+        
+        SourceDeltaVisitor visitor = new SourceDeltaVisitor(containerToSourcesMap.keySet());
+        try {
+            delta.accept(visitor);
+        } catch (CoreException e) {
+            Util.log(e, "Error processing resource delta for CAL sources"); //$NON-NLS-1$
+            visitor.rescanRequired = true;
+        }
+        
+        // Modules whose source has changed should be re-read.
+        for (final IFile changedFile : visitor.changedSourceFiles) {
+            ModuleName moduleName = Util.getModuleNameFromStorage(changedFile);
+            if (moduleName != null) {
+                clearSourceCaches(moduleName);
+            }
+        }
+        
+        if (visitor.rescanRequired) {
+            // The cached input folders for these projects may be out of date.
+            for (final IProject project : visitor.projectsWithChangedInputFolders) {
+                projectToResourceContainers.remove(JavaCore.create(project));
+            }
+            updateSourceDefinitionInfo();
+            return;
+        }
+        
+        if (visitor.addedSourceFiles.isEmpty() && visitor.removedSourceFiles.isEmpty()) {
+            return;
+        }
+        
+        for (final Map.Entry<IFile, ICALResourceContainer> entry : visitor.removedSourceFiles.entrySet()) {
+            containerToSourcesMap.get(entry.getValue()).remove(entry.getKey());
+            storageToSourceDefinitionMap.remove(entry.getKey());
+        }
+        for (final Map.Entry<IFile, ICALResourceContainer> entry : visitor.addedSourceFiles.entrySet()) {
+            containerToSourcesMap.get(entry.getValue()).add(entry.getKey());
+        }
+        
+        rebuildSourceDefinitionInfo();
+    }
+    
+    /**
+     * @return true if the module source cache has reached its memory budget.
+     */
+    boolean isSourceCacheFull() {
+        return sourceCache.isFull();
+    }
+    
+    /**
+     * Clear the cached source and source model for a module.
+     * @param moduleName the name of the module.
+     */
+    private void clearSourceCaches(ModuleName moduleName) {
+        sourceCache.remove(moduleName);
+    }
+    
+    /**
+     * Visits a resource delta to find the CAL source files added to, removed from or changed in the known input folders,
+     * and whether the input folders must be rescanned.
+     */
+    private static class SourceDeltaVisitor implements IResourceDeltaVisitor {
+        
+        /** Bitmask representing flags on a file delta signifying that the file's contents may have changed. */
+        private static final int contentChangeFlags = IResourceDelta.CONTENT | IResourceDelta.REPLACED | IResourceDelta.ENCODING;
+        
+        /** Map from the path of a writable input folder to the input folder. */
+        private final Map<IPath, ICALResourceContainer> pathToWritableContainerMap = new HashMap<IPath, ICALResourceContainer>();
+        
+        /** Map from the path of a jar input folder to the input folder. */
+        private final Map<IPath, ICALResourceContainer> pathToJarContainerMap = new HashMap<IPath, ICALResourceContainer>();
+        
+        /** Map from source file added to a known input folder to the input folder. */
+        final Map<IFile, ICALResourceContainer> addedSourceFiles = new LinkedHashMap<IFile, ICALResourceContainer>();
+        
+        /** Map from source file removed from a known input folder to the input folder. */
+        final Map<IFile, ICALResourceContainer> removedSourceFiles = new LinkedHashMap<IFile, ICALResourceContainer>();
+        
+        /** The source files whose contents have changed. */
+        final Set<IFile> changedSourceFiles = new HashSet<IFile>();
+        
+        /** The projects whose input folders may have changed. */
+        final Set<IProject> projectsWithChangedInputFolders = new HashSet<IProject>();
+        
+        /** Whether the input folders must be rescanned. */
+        boolean rescanRequired = false;
+        
+        /**
+         * Constructor for a SourceDeltaVisitor.
+         * @param inputContainers the known input folders.
+         */
+        SourceDeltaVisitor(Set<ICALResourceContainer> inputContainers) {
+            for (final ICALResourceContainer inputContainer : inputContainers) {
+                if (inputContainer.isWritable()) {
+                    pathToWritableContainerMap.put(inputContainer.getPath(), inputContainer);
+                } else {
+                    pathToJarContainerMap.put(inputContainer.getPath(), inputContainer);
+                }
+            }
+        }
+        
+        /**
+         * {@inheritDoc}
+         */
+        public boolean visit(IResourceDelta delta) {
+            IResource resource = delta.getResource();
+            int kind = delta.getKind();
+            
+            switch (resource.getType()) {
+                case IResource.ROOT:
+                    return true;
+                
+                case IResource.PROJECT:
+                    // A project which is added, removed, opened or closed, or whose natures change, may change the input folders.
+                    if ((kind & projectDependencyKindChangeFlags) != 0 || (delta.getFlags() & projectDependencyResourceChangeFlags) != 0) {
+                        inputFoldersChanged((IProject)resource);
+                        return false;
+                    }
+                    return true;
+                
+                case IResource.FOLDER:
+                {
+                    IPath path = resource.getFullPath();
+                    if (kind == IResourceDelta.ADDED && resource.getName().equals(CALSourcePathMapper.SCRIPTS_BASE_FOLDER) 
+                            && !pathToWritableContainerMap.containsKey(path)) {
+                        // A CAL folder which may be a new input folder.
+                        inputFoldersChanged(resource.getProject());
+                        return false;
+                    }
+                    if (kind == IResourceDelta.REMOVED && pathToWritableContainerMap.containsKey(path)) {
+                        inputFoldersChanged(resource.getProject());
+                        return false;
+                    }
+                    
+                    // Don't bother looking at derived folders such as the lecc_runtime folder.
+                    return kind == IResourceDelta.REMOVED || !resource.isDerived();
+                }
+                
+                case IResource.FILE:
+                {
+                    IFile file = (IFile)resource;
+                    IPath path = file.getFullPath();
+                    
+                    if (pathToJarContainerMap.containsKey(path) || 
+                            (file.getParent().getType() == IResource.PROJECT && file.getName().equals(".classpath"))) {
+                        inputFoldersChanged(file.getProject());
+                        
+                    } else if (CALSourcePathMapper.CAL_FILE_EXTENSION.equals(file.getFileExtension())) {
+                        ICALResourceContainer inputContainer = getInputContainer(path);
+                        if (inputContainer == null) {
+                            // Not in a known input folder.
+                            break;
+                        }
+                        
+                        if (kind == IResourceDelta.ADDED) {
+                            // As for FolderCALResourceContainer.getCALSources(), only include files in package fragments.
+                            if (JavaCore.create(file.getParent()) instanceof IPackageFragment) {
+                                addedSourceFiles.put(file, inputContainer);
+                            }
+                        
+                        } else if (kind == IResourceDelta.REMOVED) {
+                            removedSourceFiles.put(file, inputContainer);
+                            changedSourceFiles.add(file);
+                        
+                        } else if ((delta.getFlags() & contentChangeFlags) != 0) {
+                            changedSourceFiles.add(file);
+                        }
+                    }
+                    break;
+                }
+                
+                default:
+                    break;
+            }
+            return false;
+        }
+        
+        /**
+         * @param filePath the full path of a file.
+         * @return the known writable input folder containing the file, or null if none.
+         */
+        private ICALResourceContainer getInputContainer(IPath filePath) {
+            for (IPath path = filePath.removeLastSegments(1); path.segmentCount() > 0; path = path.removeLastSegments(1)) {
+                ICALResourceContainer inputContainer = pathToWritableContainerMap.get(path);
+                if (inputContainer != null) {
+                    return inputContainer;
+                }
+            }
+            return null;
+        }
+        
+        /**
+         * Note that the input folders for a project may have changed, so that the input folders must be rescanned.
+         * @param project the project.
+         */
+        private void inputFoldersChanged(IProject project) {
+            projectsWithChangedInputFolders.add(project);
+            rescanRequired = true;
+        }
+    }
+    
+    /**
+     * Rebuild the module source definition groups and the module source info from the sources known for each input folder.
+     * Source definition groups are only replaced for projects whose sources have changed.
+     */
+    private void rebuildSourceDefinitionInfo() {
         
         Map<ModuleName, ModuleSourceDefinition> moduleSourceMap = new LinkedHashMap<ModuleName, ModuleSourceDefinition>();
         Map<ModuleName, ModuleSourceDefinition> writableSourceMap = new LinkedHashMap<ModuleName, ModuleSourceDefinition>();
+        Map<ModuleName, Pair<ICALResourceContainer, IStorage>> newModuleNameToSourceFileInfoMap = 
+            new HashMap<ModuleName, Pair<ICALResourceContainer, IStorage>>();
+        Map<IStorage, ModuleSourceDefinition> newStorageToSourceDefinitionMap = new HashMap<IStorage, ModuleSourceDefinition>();
 
         List<IStorage> duplicatedMemberFileList = new ArrayList<IStorage>();
         
@@ -1388,13 +2274,14 @@ public class CALModelManager {
         // contains only the writable sources for the project
         Map<IJavaProject, List<ModuleSourceDefinition>> projectToWritableModuleSourcesMap = new HashMap<IJavaProject, List<ModuleSourceDefinition>>();
     
-        for (final ICALResourceContainer inputContainer : inputSourceContainers) {
+        this.invalidResourceNameMap.clear();
+        
+        for (final Map.Entry<ICALResourceContainer, Set<IStorage>> containerEntry : containerToSourcesMap.entrySet()) {
+            ICALResourceContainer inputContainer = containerEntry.getKey();
             IPackageFragmentRoot packageRoot = inputContainer.getPackageRoot();
             IJavaProject javaProject = packageRoot.getJavaProject();
             
-            Set<IStorage> sourceFiles = inputContainer.getCALSources();         // ~slow
-
-            for (final IStorage memberStorage : sourceFiles) {
+            for (final IStorage memberStorage : containerEntry.getValue()) {
                 
                 ModuleName moduleName = Util.getModuleNameFromStorage(memberStorage);
                 if (moduleName == null) {
@@ -1411,21 +2298,25 @@ public class CALModelManager {
                     continue;
                 }
 
-                moduleNameToSourceFileInfoMap.put(moduleName, new Pair<ICALResourceContainer, IStorage>(inputContainer, memberStorage));
+                newModuleNameToSourceFileInfoMap.put(moduleName, new Pair<ICALResourceContainer, IStorage>(inputContainer, memberStorage));
                 
                 // Check for duplicates.
                 if (moduleSourceMap.containsKey(moduleName)) {
                     duplicatedMemberFileList.add(memberStorage);
 
                 } else {
-                    // Add the module source definition.
-                    ModuleSourceDefinition moduleSourceDefinition;
+                    // Add the module source definition, reusing the existing definition if any.
+                    ModuleSourceDefinition moduleSourceDefinition = storageToSourceDefinitionMap.get(memberStorage);
                 
-                    if (inputContainer.isWritable()) {
-                        moduleSourceDefinition = new EclipseFileModuleSourceDefinition(moduleName, (IFile)memberStorage);
-                    } else {
-                        moduleSourceDefinition = new EclipseStorageModuleSourceDefinition(moduleName, memberStorage, inputContainer.getTimeStamp());
+                    if (moduleSourceDefinition == null) {
+                        if (inputContainer.isWritable()) {
+                            moduleSourceDefinition = new EclipseFileModuleSourceDefinition(moduleName, (IFile)memberStorage);
+                        } else {
+                            moduleSourceDefinition = new EclipseStorageModuleSourceDefinition(moduleName, memberStorage, inputContainer.getTimeStamp());
+                        }
                     }
+                    newStorageToSourceDefinitionMap.put(memberStorage, moduleSourceDefinition);
+                    
                     // add to global map
                     moduleSourceMap.put(moduleName, moduleSourceDefinition);
                     if (inputContainer.isWritable()) {
@@ -1453,14 +2344,37 @@ public class CALModelManager {
             }
         }
         
+        this.storageToSourceDefinitionMap.clear();
+        this.storageToSourceDefinitionMap.putAll(newStorageToSourceDefinitionMap);
+        
+        // Apply the changes to the module source info.
+        synchronized (moduleNameToSourceFileInfoMap) {
+            moduleNameToSourceFileInfoMap.keySet().retainAll(newModuleNameToSourceFileInfoMap.keySet());
+            moduleNameToSourceFileInfoMap.putAll(newModuleNameToSourceFileInfoMap);
+        }
+        
         IStorage[] duplicateSourceFiles = duplicatedMemberFileList.toArray(new IStorage[duplicatedMemberFileList.size()]);
         
         // For each project with a cal nature, create a module source definition from the cal files in its input folder.
         this.duplicateSourceFiles = duplicateSourceFiles;
-        this.projectToSourceDefinitionGroupMap = new HashMap<IJavaProject, EclipseModuleSourceDefinitionGroup>();
+        
+        Map<IJavaProject, EclipseModuleSourceDefinitionGroup> oldProjectToSourceDefinitionGroupMap = this.projectToSourceDefinitionGroupMap;
+        Map<IJavaProject, EclipseModuleSourceDefinitionGroup> newProjectToSourceDefinitionGroupMap = new HashMap<IJavaProject, EclipseModuleSourceDefinitionGroup>();
+        boolean anyGroupChanged = oldProjectToSourceDefinitionGroupMap == null || 
+                                  oldProjectToSourceDefinitionGroupMap.size() != projectToAllModuleSourcesMap.size();
+        
         for (final Map.Entry<IJavaProject, List<ModuleSourceDefinition>> entry : projectToAllModuleSourcesMap.entrySet()) {
             IJavaProject javaProject = entry.getKey();
             List<ModuleSourceDefinition> projectSourcesList = entry.getValue();
+            
+            // Keep the existing group if the project's sources haven't changed.
+            EclipseModuleSourceDefinitionGroup oldGroup = oldProjectToSourceDefinitionGroupMap == null ? null : oldProjectToSourceDefinitionGroupMap.get(javaProject);
+            if (oldGroup != null && hasSameSources(oldGroup, projectSourcesList)) {
+                newProjectToSourceDefinitionGroupMap.put(javaProject, oldGroup);
+                continue;
+            }
+            anyGroupChanged = true;
+            
             ModuleSourceDefinition[] projectDefnArray = projectSourcesList.toArray(new ModuleSourceDefinition[projectSourcesList.size()]);
             
             List<ModuleSourceDefinition> writableSourcesList = projectToWritableModuleSourcesMap.get(javaProject);
@@ -1471,14 +2385,17 @@ public class CALModelManager {
             
             // Clear the source model caches. 
             for (int i = 0; i < projectDefnArray.length; ++i) {
-                final ModuleName moduleName = projectDefnArray[i].getModuleName();
-                moduleNameToSource.remove(moduleName);
-                moduleNameToSourceModel.remove(moduleName);   
+                clearSourceCaches(projectDefnArray[i].getModuleName());
             }
             
-            projectToSourceDefinitionGroupMap.put(javaProject, 
+            newProjectToSourceDefinitionGroupMap.put(javaProject, 
                     new EclipseModuleSourceDefinitionGroup(projectDefnArray, writableDefnArray));
         }
+        this.projectToSourceDefinitionGroupMap = newProjectToSourceDefinitionGroupMap;
+        
+        if (!anyGroupChanged && globalModuleSourceDefinitionGroup != null) {
+            return;
+        }
         
         // Create the global ModuleSourceDefinitionGroup.
         ModuleSourceDefinition[] moduleSourceDefinitionArray = 
@@ -1489,6 +2406,23 @@ public class CALModelManager {
                 new EclipseModuleSourceDefinitionGroup(moduleSourceDefinitionArray, writableSourceDefinitionArray);
     }
     
+    /**
+     * @param group a module source definition group.
+     * @param sources module source definitions.
+     * @return whether the group consists of the given module source definitions, in the same order.
+     */
+    private static boolean hasSameSources(ModuleSourceDefinitionGroup group, List<ModuleSourceDefinition> sources) {
+        if (group.getNModules() != sources.size()) {
+            return false;
+        }
+        for (int i = 0, nModules = sources.size(); i < nModules; i++) {
+            if (group.getModuleSource(i) != sources.get(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
     /**
      * @param moduleName the name of a module.
      * @return the module's source file, or null if the module's source file could not be found in the workspace.
@@ -0,0 +1,402 @@
+/*******************************************************************************
+ * Copyright (c) 2007 Business Objects Software Limited and others.
+ * All rights reserved.
+ * This file is made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Business Objects Software Limited - initial API and implementation
+ *******************************************************************************/
+
+/*
+ * ClasspathResourceIndex.java
+ * Created: Oct 17, 2007
+ */
+package org.openquark.cal.eclipse.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.StringTokenizer;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+
+import org.eclipse.core.runtime.IStatus;
+import org.openquark.cal.eclipse.core.util.Util;
+
+
+/**
+ * An index of the resources on a classpath, used to find resources without searching every element of the classpath.
+ * <p>
+ * The index is built the first time it is used, by reading the entries of each jar on the classpath once.
+ * For each package (ie. the directory part of a resource name), the index holds the jars which contain resources in that package,
+ *   so that a lookup only checks the jars which could contain the resource.
+ * Folders on the classpath (eg. output folders) are not indexed, since their contents change as projects are built.
+ *   Instead, a lookup checks for the resource's file in each folder.  As with URLClassLoader, urls ending in '/' are
+ *   folders, even if they don't exist yet.
+ * The jars named by the Class-Path attribute of the manifest of a jar on the classpath are indexed too.
+ * <p>
+ * The index is rebuilt if a jar which didn't exist when it was built is added.  It is not updated if the jars change,
+ *   but it is discarded by reset(), and rebuilt the next time it is used.
+ * If any element of the classpath is not a local file or folder, the index can't be used, and isUsable() returns false.
+ */
+final class ClasspathResourceIndex {
+
+    /**
+     * An element of the classpath.
+     */
+    private static abstract class Element {
+        /** The position of the element on the classpath. */
+        final int position;
+
+        Element(int position) {
+            this.position = position;
+        }
+
+        /**
+         * @param name the name of a resource, with '/' separators.
+         * @return the url for the resource in this element, or null if the element doesn't contain the resource.
+         */
+        abstract URL findResource(String name);
+    }
+
+    /**
+     * A folder on the classpath.
+     */
+    private static final class FolderElement extends Element {
+        private final File folder;
+
+        FolderElement(int position, File folder) {
+            super(position);
+            this.folder = folder;
+        }
+
+        @Override
+        URL findResource(String name) {
+            File file = new File(folder, name.replace('/', File.separatorChar));
+            if (!file.exists()) {
+                return null;
+            }
+            try {
+                return file.toURI().toURL();
+            } catch (MalformedURLException e) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * A jar on the classpath.
+     */
+    private static final class JarElement extends Element {
+        /** The url for the root of the jar, of the form jar:url!/ */
+        private final URL rootURL;
+
+        /** The names of the entries in the jar. */
+        private final Set<String> entryNames;
+
+        JarElement(int position, URL rootURL, Set<String> entryNames) {
+            super(position);
+            this.rootURL = rootURL;
+            this.entryNames = entryNames;
+        }
+
+        @Override
+        URL findResource(String name) {
+            if (!entryNames.contains(name)) {
+                return null;
+            }
+            try {
+                // Encode the name as a url path, as URLClassLoader does.
+                return new URL(rootURL, new URI(null, null, name, null).getRawPath());
+            } catch (MalformedURLException e) {
+                return null;
+            } catch (URISyntaxException e) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * The index of the classpath, as it was when it was built.
+     * An index is not modified once it is built, so lookups don't need to lock.
+     */
+    private static final class Index {
+
+        /** Whether every element of the classpath could be indexed. */
+        final boolean usable;
+
+        /** The folders on the classpath, in classpath order. */
+        final List<Element> folderElements = new ArrayList<Element>();
+
+        /** Map from package name (eg. "org/openquark/cal/") to the jars containing resources in that package, in classpath order. */
+        final Map<String, List<Element>> packageToJarElementsMap = new HashMap<String, List<Element>>();
+
+        /** The jars on the classpath which didn't exist when the index was built. */
+        final List<File> missingJarFiles = new ArrayList<File>();
+
+        /**
+         * Build the index.
+         * As with URLClassLoader, the jars named by the Class-Path attribute of a jar's manifest are searched right after the jar.
+         * @param urls the elements of the classpath.
+         */
+        Index(URL[] urls) {
+            boolean indexed = true;
+            Set<String> visitedURLs = new HashSet<String>();
+            LinkedList<URL> pendingURLs = new LinkedList<URL>(Arrays.asList(urls));
+            int position = 0;
+
+            while (!pendingURLs.isEmpty() && indexed) {
+                URL url = pendingURLs.removeFirst();
+                if (!visitedURLs.add(url.toExternalForm())) {
+                    continue;
+                }
+
+                File file = getFile(url);
+                if (file == null) {
+                    // Not a local file.
+                    indexed = false;
+
+                } else if (url.getPath().endsWith("/") || file.isDirectory()) { //$NON-NLS-1$
+                    // URLClassLoader treats urls ending in '/' as folders, whether or not they exist yet.
+                    folderElements.add(new FolderElement(position++, file));
+
+                } else if (file.isFile()) {
+                    List<URL> classPathURLs = indexJar(position++, url, file);
+                    if (classPathURLs == null) {
+                        indexed = false;
+                    } else {
+                        pendingURLs.addAll(0, classPathURLs);
+                    }
+
+                } else {
+                    // The jar doesn't exist yet, and doesn't contain anything.
+                    missingJarFiles.add(file);
+                }
+            }
+
+            this.usable = indexed;
+            if (!usable) {
+                folderElements.clear();
+                packageToJarElementsMap.clear();
+                missingJarFiles.clear();
+            }
+        }
+
+        /**
+         * @return true if a jar which didn't exist when the index was built exists now.
+         */
+        boolean isMissingJarAdded() {
+            for (final File file : missingJarFiles) {
+                if (file.isFile()) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Add the entries in a jar to the index.
+         * @param position the position of the jar on the classpath.
+         * @param url the url of the jar.
+         * @param file the jar file.
+         * @return the urls named by the Class-Path attribute of the jar's manifest, or null if the jar couldn't be read.
+         */
+        private List<URL> indexJar(int position, URL url, File file) {
+            Set<String> entryNames = new HashSet<String>();
+            Set<String> packageNames = new HashSet<String>();
+            List<URL> classPathURLs = new ArrayList<URL>();
+            try {
+                JarFile jarFile = new JarFile(file);
+                try {
+                    for (Enumeration<JarEntry> entries = jarFile.entries(); entries.hasMoreElements(); ) {
+                        String entryName = entries.nextElement().getName();
+                        entryNames.add(entryName);
+                        packageNames.add(getPackageName(entryName));
+                    }
+
+                    Manifest manifest = jarFile.getManifest();
+                    String classPath = manifest == null ? null : manifest.getMainAttributes().getValue(Attributes.Name.CLASS_PATH);
+                    if (classPath != null) {
+                        for (StringTokenizer tokenizer = new StringTokenizer(classPath); tokenizer.hasMoreTokens(); ) {
+                            try {
+                                classPathURLs.add(new URL(url, tokenizer.nextToken()));
+                            } catch (MalformedURLException e) {
+                                // Ignored, as by URLClassLoader.
+                            }
+                        }
+                    }
+                } finally {
+                    jarFile.close();
+                }
+
+                JarElement jarElement = new JarElement(position, new URL("jar:" + url.toExternalForm() + "!/"), entryNames); //$NON-NLS-1$ //$NON-NLS-2$
+                for (final String packageName : packageNames) {
+                    List<Element> jarElements = packageToJarElementsMap.get(packageName);
+                    if (jarElements == null) {
+                        jarElements = new ArrayList<Element>(1);
+                        packageToJarElementsMap.put(packageName, jarElements);
+                    }
+                    jarElements.add(jarElement);
+                }
+                return classPathURLs;
+
+            } catch (IOException e) {
+                // Can't read the jar.  Fall back to letting the classloader search the classpath.
+                Util.log(e, "Unable to index jar: " + file, IStatus.INFO); //$NON-NLS-1$
+                return null;
+            }
+        }
+    }
+
+    /** The elements of the classpath. */
+    private final URL[] urls;
+
+    /** The index, or null if it hasn't been built. */
+    private volatile Index index = null;
+
+    /**
+     * Constructor for a ClasspathResourceIndex.
+     * @param urls the elements of the classpath, as given to the URLClassLoader.
+     */
+    ClasspathResourceIndex(URL[] urls) {
+        this.urls = urls.clone();
+    }
+
+    /**
+     * Discard the index, so that it is rebuilt the next time it is used.
+     * This should be called when the jars on the classpath may have changed.
+     */
+    void reset() {
+        index = null;
+    }
+
+    /**
+     * @return true if the index can be used to find resources on the classpath.
+     *   If false, resources must be found by searching the classpath.
+     */
+    boolean isUsable() {
+        return getIndex().usable;
+    }
+
+    /**
+     * @param name the name of a resource, with '/' separators.
+     * @return the url for the first occurrence of the resource on the classpath, or null if the resource isn't on the classpath.
+     */
+    URL findResource(String name) {
+        for (final Element element : getCandidateElements(name)) {
+            URL url = element.findResource(name);
+            if (url != null) {
+                return url;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param name the name of a resource, with '/' separators.
+     * @return the urls for the occurrences of the resource on the classpath, in classpath order.
+     */
+    Enumeration<URL> findResources(String name) {
+        List<URL> resourceURLs = new ArrayList<URL>();
+        for (final Element element : getCandidateElements(name)) {
+            URL url = element.findResource(name);
+            if (url != null) {
+                resourceURLs.add(url);
+            }
+        }
+        return Collections.enumeration(resourceURLs);
+    }
+
+    /**
+     * @param name the name of a resource, with '/' separators.
+     * @return the elements which could contain the resource, in classpath order.
+     */
+    private List<Element> getCandidateElements(String name) {
+        Index currentIndex = getIndex();
+        List<Element> folderElements = currentIndex.folderElements;
+
+        List<Element> jarElements = currentIndex.packageToJarElementsMap.get(getPackageName(name));
+        if (jarElements == null) {
+            return folderElements;
+        }
+        if (folderElements.isEmpty()) {
+            return jarElements;
+        }
+
+        // Merge the jars with the folders, in classpath order.
+        List<Element> candidateElements = new ArrayList<Element>(jarElements.size() + folderElements.size());
+        int jarIndex = 0;
+        int folderIndex = 0;
+        while (jarIndex < jarElements.size() || folderIndex < folderElements.size()) {
+            if (folderIndex == folderElements.size() ||
+                    (jarIndex < jarElements.size() && jarElements.get(jarIndex).position < folderElements.get(folderIndex).position)) {
+                candidateElements.add(jarElements.get(jarIndex++));
+            } else {
+                candidateElements.add(folderElements.get(folderIndex++));
+            }
+        }
+        return candidateElements;
+    }
+
+    /**
+     * @return the index, built if it hasn't been built, or rebuilt if a jar which was missing has been added.
+     */
+    private Index getIndex() {
+        Index currentIndex = index;
+        if (currentIndex == null || currentIndex.isMissingJarAdded()) {
+            synchronized (this) {
+                currentIndex = index;
+                if (currentIndex == null || currentIndex.isMissingJarAdded()) {
+                    currentIndex = new Index(urls);
+                    index = currentIndex;
+                }
+            }
+        }
+        return currentIndex;
+    }
+
+    /**
+     * @param name the name of a resource, with '/' separators.
+     * @return the name of the package containing the resource, with a trailing '/', or the empty string for the root package.
+     *   A directory (eg. "org/openquark/") is in the package containing the directory (eg. "org/").
+     */
+    private static String getPackageName(String name) {
+        int lastSlashIndex = name.lastIndexOf('/', name.length() - 2);
+        return name.substring(0, lastSlashIndex + 1);
+    }
+
+    /**
+     * @param url a url.
+     * @return the local file for the url, or null if the url is not a file url.
+     */
+    private static File getFile(URL url) {
+        if (!"file".equals(url.getProtocol())) { //$NON-NLS-1$
+            return null;
+        }
+        try {
+            return new File(url.toURI());
+        } catch (URISyntaxException e) {
+            // eg. a url created with File.toURL(), which doesn't encode spaces.
+            return new File(url.getPath());
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+}
@@ -36,6 +36,30 @@ public class CoreOptionIDs {
      */
     public static final String CORE_CAL_BUILD_ENABLE = PLUGIN_ID + ".builder.enable"; //$NON-NLS-1$
 
+    /**
+     * Possible  configurable option ID.
+     * Enables writing of generated files (eg. lecc_runtime class files) by the CAL builder directly to the file system, 
+     *   rather than through the workspace.  The workspace is refreshed once at the end of each build.
+     * @see CALEclipseCorePreferenceInitializer#initializeDefaultPreferences()
+     */
+    public static final String CORE_CAL_BUILD_DIRECT_OUTPUT = PLUGIN_ID + ".builder.directOutput"; //$NON-NLS-1$
+
+    /**
+     * Possible  configurable option ID.
+     * Enables writing of the files generated for each module by the CAL builder to a single archive file,
+     *   rather than to separate files in the module's lecc_runtime folder.
+     * @see CALEclipseCorePreferenceInitializer#initializeDefaultPreferences()
+     */
+    public static final String CORE_CAL_BUILD_ARCHIVED_OUTPUT = PLUGIN_ID + ".builder.archivedOutput"; //$NON-NLS-1$
+
+    /**
+     * Possible  configurable option ID.
+     * The memory budget, in megabytes, for the cache of module source text and source models.
+     * Takes effect when the plug-in is started.
+     * @see CALEclipseCorePreferenceInitializer#initializeDefaultPreferences()
+     */
+    public static final String CORE_CAL_SOURCE_CACHE_SIZE = PLUGIN_ID + ".model.sourceCacheSize"; //$NON-NLS-1$
+
     
     /**
      * The identifier for the Java builder
@@ -18,7 +18,11 @@ package org.openquark.cal.eclipse.core;
 
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.util.LinkedList;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.eclipse.core.resources.IResource;
 import org.eclipse.core.resources.IWorkspace;
@@ -31,6 +35,7 @@ import org.eclipse.core.runtime.IStatus;
 import org.eclipse.core.runtime.OperationCanceledException;
 import org.eclipse.core.runtime.Status;
 import org.openquark.cal.compiler.CompilerMessageLogger;
+import org.openquark.cal.eclipse.core.builder.BuildReport;
 import org.openquark.cal.machine.AsynchronousFileWriter;
 import org.openquark.cal.machine.ProgramResourceLocator;
 import org.openquark.cal.machine.ProgramResourceRepository;
@@ -40,6 +45,12 @@ import org.openquark.cal.machine.ProgramResourceRepository;
 /**
  * An AsynchronousFileWriter which writes files within an Eclipse workspace.
  * Based on the BasicAsynchronousFileWriter by Bo Ilic.
+ * <p>
+ * Files are added to a lock-free queue, so that compiler threads adding files don't wait for files being written.
+ * Files are taken from the queue and written in batches, each batch in a single workspace operation.
+ * The writer job writes batches in the background.  If the files pending take more memory than the budget allows, 
+ *   the thread adding a file also writes files until the files pending take half the budget.
+ * The budget is a fraction of the free heap, and is recomputed when it is exceeded.
  * 
  * @author Edward Lam
  */
@@ -48,8 +59,8 @@ public class EclipseAsynchronousFileWriter extends AsynchronousFileWriter {
     /** The workspace job which will actually do the writing of the files. */
     private final WriterJob writerJob = new WriterJob();
 
-    /** The list of files to write out to disk */
-    private final LinkedList<FileData> filesToWrite;              // TODOEL: Probably better to use LinkedQueue from concurrent.
+    /** The queue of files to write out to disk */
+    private final Queue<FileData> filesToWrite;
     
     /** whether this ClassFileWriter will continue to accept new class files to write */
     volatile private boolean acceptFiles;
@@ -58,13 +69,32 @@ public class EclipseAsynchronousFileWriter extends AsynchronousFileWriter {
      * total number of bytes that this AsynchronousFileWriter has outstanding to commit to disk. 
      * This field is designed to limit the amount of memory that the AsynchronousFileWriter can use.    
      */
-    private long bytesPending; 
+    private final AtomicLong bytesPending = new AtomicLong(); 
+    
+    /** The number of files added which have not yet been written, including files being written. */
+    private final AtomicInteger filesPending = new AtomicInteger();
     
     /**
      * the maximum number of bytes that this AsynchronousFileWriter will allow to have pending for
-     * asynchronous saving. Beyond this, the call to addFilesToWrite will block.
+     * asynchronous saving. Beyond this, the call to addFilesToWrite will write files before returning.
+     * Recomputed from the free heap by computeBytesBudget() when exceeded.
      */
-    private static final long MAX_BYTES_FOR_ASYNCHRONOUS_SAVING = 3000000L; //3MB max
+    private volatile long bytesBudget = computeBytesBudget();
+    
+    /** The smallest budget for the bytes pending, regardless of how little of the heap is free. */
+    private static final long MIN_BYTES_FOR_ASYNCHRONOUS_SAVING = 3000000L; //3MB min
+    
+    /** The largest budget for the bytes pending, regardless of how much of the heap is free. */
+    private static final long MAX_BYTES_FOR_ASYNCHRONOUS_SAVING = 64000000L; //64MB max
+    
+    /** The budget for the bytes pending is the free heap divided by this. */
+    private static final int FREE_HEAP_DIVISOR = 8;
+    
+    /** The maximum number of files which the writer job writes in a single workspace operation. */
+    private static final int MAX_FILES_PER_BATCH = 256;
+    
+    /** The maximum time, in milliseconds, for which the writer job waits for files before checking whether it was canceled. */
+    private static final long WRITER_WAIT_TIME = 500;
     
     /** If true, then calculate some statistics for BasicAsynchronousFileWriter and dump to the console. */
     private static final boolean DEBUG = false;
@@ -76,12 +106,18 @@ public class EclipseAsynchronousFileWriter extends AsynchronousFileWriter {
     private long maxBytesPending;
     
     /** Whether the file writer thread has been started. */
-    private boolean started = false;
+    private final AtomicBoolean started = new AtomicBoolean(false);
 
     /** Whether the file writer thread has been stopped.
-     * Set to false by a call to waitForFilesToBeWritten. */
+     * Set to true by a call to waitForFilesToBeWritten. */
     private volatile boolean jobStopped = false;
     
+    /** 
+     * The lock on which the writer job waits for files to be added, 
+     * and on which waitForFilesToBeWritten() waits for files being written to be written. 
+     */
+    private final Object writerLock = new Object();
+    
     /** The repository for program resources. */
     private final ProgramResourceRepository resourceRepository;
     
@@ -90,7 +126,7 @@ public class EclipseAsynchronousFileWriter extends AsynchronousFileWriter {
      * Note that using a workspace job allows resource change notification batching to happen
      *   for work which happens on a separate thread.
      *   
-     * A WriterJob continuously writes files from the queue (filesToWrite) until it finds that the queue is empty,
+     * A WriterJob continuously writes batches of files from the queue (filesToWrite) until it finds that the queue is empty,
      * at which time it goes into a wait state.
      * It is roused from its wait state by calling unWait(), at which time it either:
      * 1) resumes continuously writing files from the queue, if acceptFiles is true.  Or,
@@ -118,7 +154,7 @@ public class EclipseAsynchronousFileWriter extends AsynchronousFileWriter {
                 monitor.beginTask("Writing files", IProgressMonitor.UNKNOWN);
             }
             
-            while (acceptFiles) {
+            while (acceptFiles && !jobStopped) {
                 writeFiles(monitor);
             }
             
@@ -137,19 +173,24 @@ public class EclipseAsynchronousFileWriter extends AsynchronousFileWriter {
         }
         
         /**
-         * Write files until canceled.
+         * Write batches of files until canceled, or until there are no files to write and no more files will be accepted.
          * @param monitor the monitor, or null for no monitor.
          */
-        private void writeFiles(IProgressMonitor monitor) {
+        private void writeFiles(final IProgressMonitor monitor) {
             
-            AsynchronousFileWriter.FileData fileToWrite;
-            while (!jobStopped && (fileToWrite = getFileToWrite(monitor)) != null) {
+            while (!jobStopped && waitForFilesToWrite(monitor)) {
                 if (monitor != null && monitor.isCanceled()) {
                     // We can safely bail out here.  Handled by the Job manager.
                     throw new OperationCanceledException();
                 }
                 
-                writeFile(fileToWrite, monitor);
+                writeUntilDone(new WriteController() {
+                    private int nFilesLeftInBatch = MAX_FILES_PER_BATCH;
+                    
+                    public boolean shouldContinueWriting() {
+                        return !jobStopped && nFilesLeftInBatch-- > 0;
+                    }
+                }, false, monitor);
             }
         }
         
@@ -157,9 +198,10 @@ public class EclipseAsynchronousFileWriter extends AsynchronousFileWriter {
          * If at any time this job runs out of files to write, it will go into a waiting state.
          * Calling this method rouses it.
          */
-        public synchronized void unWait() {
-            // Use a synchronized instance method so that the calling thread becomes the owner of this job's lock.
-            notify();
+        public void unWait() {
+            synchronized (writerLock) {
+                writerLock.notifyAll();
+            }
         }
     }
     
@@ -186,7 +228,16 @@ public class EclipseAsynchronousFileWriter extends AsynchronousFileWriter {
         }
         
         acceptFiles = true;
-        filesToWrite = new LinkedList<FileData>();        
+        filesToWrite = new ConcurrentLinkedQueue<FileData>();        
+    }
+    
+    /**
+     * @return the budget for the bytes pending, based on the amount of the heap which is currently free.
+     */
+    private static long computeBytesBudget() {
+        Runtime runtime = Runtime.getRuntime();
+        long freeHeap = runtime.maxMemory() - (runtime.totalMemory() - runtime.freeMemory());
+        return Math.max(MIN_BYTES_FOR_ASYNCHRONOUS_SAVING, Math.min(MAX_BYTES_FOR_ASYNCHRONOUS_SAVING, freeHeap / FREE_HEAP_DIVISOR));
     }
     
     /**
@@ -212,22 +263,21 @@ public class EclipseAsynchronousFileWriter extends AsynchronousFileWriter {
             throw new IllegalStateException();
         }
         
-        synchronized (filesToWrite) {
-            bytesPending += fileData.getSize();    
-            filesToWrite.add(fileData);
-            
-            if (DEBUG) {
-                if (bytesPending > maxBytesPending) {
-                    maxBytesPending = bytesPending;
-                }
-                int nFiles = filesToWrite.size();
-                if (nFiles > maxFilesPending) {
-                    maxFilesPending = nFiles;
-                }
+        long newBytesPending = bytesPending.addAndGet(fileData.getSize());
+        int newFilesPending = filesPending.incrementAndGet();
+        filesToWrite.add(fileData);
+        
+        if (DEBUG) {
+            // Not synchronized -- the statistics are approximate if files are added on several threads.
+            if (newBytesPending > maxBytesPending) {
+                maxBytesPending = newBytesPending;
+            }
+            if (newFilesPending > maxFilesPending) {
+                maxFilesPending = newFilesPending;
             }
         }
 
-        if (!started) {
+        if (started.compareAndSet(false, true)) {
             // TODOEL: We should limit the rule to those files which can actually be written (ie. files in the project).
             // writerJob.setRule(modifyRule());
             
@@ -237,7 +287,6 @@ public class EclipseAsynchronousFileWriter extends AsynchronousFileWriter {
             
             // Start the job.
             writerJob.schedule();
-            started = true;
         }
 
         // Note: this only works because the job's progress monitor doesn't know how much work it will be doing in the end.
@@ -245,11 +294,21 @@ public class EclipseAsynchronousFileWriter extends AsynchronousFileWriter {
         // pre-calculated per written file from inside the writer thread.
         
         // Don't overload the file-writing cache.
-        writeUntilDone(new WriteController() {
-            public boolean shouldContinueWriting() {
-                return bytesPending > MAX_BYTES_FOR_ASYNCHRONOUS_SAVING;
+        if (newBytesPending > bytesBudget) {
+            // The free heap may have changed since the budget was computed.
+            long budget = computeBytesBudget();
+            bytesBudget = budget;
+            
+            if (bytesPending.get() > budget) {
+                // Write files until half the budget is used, so that the next few files can be added without writing.
+                final long targetBytesPending = budget / 2;
+                writeUntilDone(new WriteController() {
+                    public boolean shouldContinueWriting() {
+                        return bytesPending.get() > targetBytesPending;
+                    }
+                }, true, null);
             }
-        });
+        }
 
         writerJob.unWait();
     }
@@ -265,84 +324,107 @@ public class EclipseAsynchronousFileWriter extends AsynchronousFileWriter {
         //  Any errors reported while writing files will be reported by Eclipse rather than as a compiler error.
         //  If the builder thread runs out of things to do, the UI will show that the writer thread is still writing.
         jobStopped = true;
+        writerJob.unWait();
         
         // Assume responsibility for writing from the job.
         writeUntilDone(new WriteController() {
             public boolean shouldContinueWriting() {
-                synchronized (filesToWrite) {
-                    return !filesToWrite.isEmpty();
-                }
+                return true;
             }
-        });
+        }, true, null);
+        
+        // Wait for any files being written by other threads.
+        synchronized (writerLock) {
+            while (filesPending.get() > 0) {
+                writerLock.wait(WRITER_WAIT_TIME);
+            }
+        }
     }
 
     /**
      * While allowed by the write controller, take the first file from the write queue and write it to the program
-     *  resource repository, and repeat.
+     *  resource repository, and repeat until the queue is empty.
+     * The files are written in a single workspace operation.
      * @param writeController the write controller which controls whether writing should continue.
+     * @param holdsUpCompiler whether the caller is a compiling thread, so that the time spent writing should be recorded in the
+     *   build report.  False for the writer job, which writes in the background.
+     * @param monitor the monitor, or null for no monitor.
      */
-    private void writeUntilDone(final WriteController writeController) {
-        IWorkspace workspace = ResourcesPlugin.getWorkspace();
+    private void writeUntilDone(final WriteController writeController, boolean holdsUpCompiler, final IProgressMonitor monitor) {
+        final IWorkspace workspace = ResourcesPlugin.getWorkspace();
+        long writeStartTime = System.nanoTime();
         
         // Wrap in a workspace runnable so that resource change events are batched.
-        try {
-            workspace.run(new IWorkspaceRunnable() {
-                public void run(IProgressMonitor monitor) throws CoreException {
-                    while (writeController.shouldContinueWriting()) {
-                        synchronized (filesToWrite) {
-                            AsynchronousFileWriter.FileData fileToWrite = filesToWrite.removeFirst();
-                            bytesPending -= fileToWrite.getSize();
-                            writeFile(fileToWrite, null);
-                        }
+        // Files are only taken from the queue once the runnable holds the rule, 
+        //  so that files are never held by a thread which is waiting for the rule.
+        final IWorkspaceRunnable writeRunnable = new IWorkspaceRunnable() {
+            public void run(IProgressMonitor runnableMonitor) throws CoreException {
+                AsynchronousFileWriter.FileData fileToWrite;
+                while (writeController.shouldContinueWriting() && (fileToWrite = filesToWrite.poll()) != null) {
+                    try {
+                        writeFile(fileToWrite, monitor);
+                    } finally {
+                        fileWritten(fileToWrite);
                     }
                 }
-            }, workspace.getRoot(), IResource.NONE, null);
+            }
+        };
+        
+        try {
+            workspace.run(writeRunnable, workspace.getRoot(), IResource.NONE, null);
         
         } catch (CoreException e) {
             // The operation failed for some reason.
             e.printStackTrace();
         }
+        
+        if (holdsUpCompiler) {
+            BuildReport.addActivePhaseTime(BuildReport.PHASE_WRITE_FILES, System.nanoTime() - writeStartTime);
+        }
     }
     
-    private AsynchronousFileWriter.FileData getFileToWrite(IProgressMonitor monitor) {
-        // Block until a file is available and we're still accepting files.  When woken up the code will
-        // continue only if a new object has been added to the list or acceptFiles has been set to false.
-        boolean filesToWriteIsEmpty;
-        synchronized (filesToWrite) {
-            filesToWriteIsEmpty = filesToWrite.isEmpty();
-        }
-        while (filesToWriteIsEmpty && acceptFiles) {
-            
-            if (monitor != null && monitor.isCanceled()) {
-                // We can safely bail out here.  Handled by the Job manager.
-                throw new OperationCanceledException();
-            }
-            
-            try {
-                wait();
-            } catch (InterruptedException e) {
-                // This is unexpected, but won't cause any problems.
-                // We'll just loop around and check the list and acceptFiles flag again.
-            }
-            synchronized (filesToWrite) {
-                filesToWriteIsEmpty = filesToWrite.isEmpty();
+    /**
+     * Block until a file is available to write, or no more files will be accepted.
+     * @param monitor the monitor, or null for no monitor.
+     * @return true if there may be files to write, false if there are no files to write and no more files will be accepted.
+     */
+    private boolean waitForFilesToWrite(IProgressMonitor monitor) {
+        // When woken up the code will continue only if a new object has been added to the queue 
+        // or acceptFiles has been set to false.
+        synchronized (writerLock) {
+            while (filesToWrite.isEmpty() && acceptFiles && !jobStopped) {
+                
+                if (monitor != null && monitor.isCanceled()) {
+                    // We can safely bail out here.  Handled by the Job manager.
+                    throw new OperationCanceledException();
+                }
+                
+                try {
+                    writerLock.wait(WRITER_WAIT_TIME);
+                } catch (InterruptedException e) {
+                    // This is unexpected, but won't cause any problems.
+                    // We'll just loop around and check the queue and acceptFiles flag again.
+                }
             }
         }
         
-        // Return the first file if one is available
-        synchronized (filesToWrite) {
-            if (!filesToWrite.isEmpty()) {
-                AsynchronousFileWriter.FileData fileToWrite = filesToWrite.removeFirst();
-                bytesPending -= fileToWrite.getSize();
-                return fileToWrite;
+        return !filesToWrite.isEmpty();
+    }
+    
+    /**
+     * Account for a file which was taken from the queue and written (or failed to be written).
+     * @param fileData the file.
+     */
+    private void fileWritten(AsynchronousFileWriter.FileData fileData) {
+        bytesPending.addAndGet(-fileData.getSize());
+        if (filesPending.decrementAndGet() == 0) {
+            synchronized (writerLock) {
+                writerLock.notifyAll();
             }
         }
-        
-        return null;
     }
     
     private void writeFile(AsynchronousFileWriter.FileData fileData, IProgressMonitor monitor) {
-        
         ProgramResourceLocator.File fileLocator = fileData.getFileLocator();
         
         try {
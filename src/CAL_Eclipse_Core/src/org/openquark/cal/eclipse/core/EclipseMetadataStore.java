@@ -24,21 +24,33 @@ import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import org.eclipse.core.resources.IContainer;
 import org.eclipse.core.resources.IFile;
 import org.eclipse.core.resources.IFolder;
+import org.eclipse.core.resources.IResource;
 import org.eclipse.core.resources.IStorage;
+import org.eclipse.core.resources.IWorkspace;
+import org.eclipse.core.resources.IWorkspaceRunnable;
+import org.eclipse.core.resources.ResourcesPlugin;
 import org.eclipse.core.runtime.CoreException;
 import org.eclipse.core.runtime.IPath;
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.IStatus;
+import org.eclipse.core.runtime.MultiStatus;
 import org.eclipse.core.runtime.Path;
+import org.eclipse.core.runtime.jobs.Job;
 import org.eclipse.jdt.core.IPackageFragmentRoot;
 import org.openquark.cal.compiler.ModuleName;
 import org.openquark.cal.eclipse.core.builder.ICALResourceContainer;
+import org.openquark.cal.eclipse.core.util.Messages;
 import org.openquark.cal.eclipse.core.util.Util;
 import org.openquark.cal.metadata.MetadataPathMapper;
 import org.openquark.cal.metadata.MetadataStore;
@@ -53,11 +65,131 @@ import org.openquark.cal.services.ResourcePath.FilePath;
 
 
 /**
+ * Metadata which has been read is cached, keyed by resource name and the modification stamp of the file from which it was read,
+ *   so that repeated reads (eg. by hovers) don't go to the file system.
+ * Metadata which is written without a status is held until a short time after the last write, and then all pending metadata
+ *   is written in a single workspace operation, so that bulk edits produce a single resource delta.
+ *   Reads return pending metadata until it has been written.
+ *   If such metadata can't be written, there is no caller to tell, so the failure is logged.
+ * Metadata which is written with a status is written to its file when the stream is closed, and a failure to write
+ *   it is added to the status.
+ * 
  * @author rcameron
- *
  */
 final class EclipseMetadataStore implements MetadataStore {
 
+    /** The maximum total size of the cached metadata, in bytes. */
+    private static final long MAX_CACHED_BYTES = 4L * 1024L * 1024L;
+
+    /** The time, in milliseconds, to wait after a write for further writes before writing the pending metadata. */
+    private static final long WRITE_DELAY = 250;
+
+    /**
+     * The contents of a metadata file, as last read from or written to the file.
+     */
+    private static final class CacheEntry {
+        /** The file. */
+        final IFile file;
+
+        /** The modification stamp of the file when the contents were read or written. */
+        final long stamp;
+
+        /** The contents of the file. */
+        final byte[] data;
+
+        CacheEntry(IFile file, long stamp, byte[] data) {
+            this.file = file;
+            this.stamp = stamp;
+            this.data = data;
+        }
+    }
+
+    /**
+     * Metadata waiting to be written to its file.
+     */
+    private static final class PendingWrite {
+        /** The name of the metadata resource. */
+        final ResourceName resourceName;
+
+        /** The file to which the metadata will be written. */
+        final IFile file;
+
+        /** The metadata. */
+        final byte[] data;
+
+        /** The status to which to add any failure to write the metadata, or null if none. */
+        final Status status;
+
+        PendingWrite(ResourceName resourceName, IFile file, byte[] data, Status status) {
+            this.resourceName = resourceName;
+            this.file = file;
+            this.data = data;
+            this.status = status;
+        }
+
+        /**
+         * Write the metadata to the file, creating the file and its folders if necessary.
+         * @throws CoreException if the file could not be written.
+         */
+        void write() throws CoreException {
+            ByteArrayInputStream byteArrayInputStream = new ByteArrayInputStream (data);
+            if (file.exists()) {
+                file.setContents(byteArrayInputStream, true, false, null);
+            } else {
+                IContainer parent = file.getParent();
+                if (parent instanceof IFolder) {
+                    Util.createFolder((IFolder)parent, true, false, null);
+                }
+                file.create(byteArrayInputStream, true, null);
+            }
+        }
+    }
+
+    /**
+     * A job which writes the pending metadata.
+     */
+    private final class WriteJob extends Job {
+
+        WriteJob() {
+            super(Messages.metadataWrite_jobName);
+            setSystem(true);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        protected IStatus run(IProgressMonitor monitor) {
+            try {
+                writePendingMetadata(monitor);
+            } catch (CoreException e) {
+                // The metadata was written without a status, so the failure can only be logged.
+                Util.log(e, "Failed to save metadata files");
+            }
+            return org.eclipse.core.runtime.Status.OK_STATUS;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public boolean belongsTo(Object family) {
+            return CALEclipseCorePlugin.PLUGIN_ID.equals(family);
+        }
+    }
+
+    /** Map from resource name to the cached metadata, in order of access (least recently used first).  Guarded by this. */
+    private final Map<ResourceName, CacheEntry> resourceNameToCacheEntryMap = new LinkedHashMap<ResourceName, CacheEntry>(16, 0.75f, true);
+
+    /** The total size of the cached metadata, in bytes.  Guarded by this. */
+    private long cachedBytes = 0;
+
+    /** Map from resource name to the metadata waiting to be written, in the order written.  Guarded by this. */
+    private final Map<ResourceName, PendingWrite> resourceNameToPendingWriteMap = new LinkedHashMap<ResourceName, PendingWrite>();
+
+    /** The job which writes the pending metadata. */
+    private final WriteJob writeJob = new WriteJob();
+
     /* (non-Javadoc)
      * @see org.openquark.cal.metadata.MetadataStore#getMetadataResourceNamesForAllLocales(org.openquark.cal.services.CALFeatureName)
      */
@@ -109,15 +241,103 @@ final class EclipseMetadataStore implements MetadataStore {
 
         if (storage != null /*&& storage.exists()*/) {
             try {
+                if (storage instanceof IFile) {
+                    byte[] data = getContents (resourceName, (IFile) storage);
+                    return data == null ? null : new ByteArrayInputStream (data);
+                }
                 return storage.getContents();
             } catch (CoreException e) {
                 Util.log(e, "Failed to load metadata file");
+            } catch (IOException e) {
+                Util.log(e, "Failed to load metadata file");
             }
         }
 
         return null;
     }
     
+    /**
+     * Method getContents
+     * 
+     * @param resourceName
+     * @param file the file which holds the metadata for the resource.
+     * 
+     * @return Returns the metadata for the given resource -- pending, cached, or read from the file -- or null if there is none.
+     * @throws CoreException
+     * @throws IOException
+     */
+    private byte[] getContents (ResourceName resourceName, IFile file) throws CoreException, IOException {
+        synchronized (this) {
+            PendingWrite pendingWrite = resourceNameToPendingWriteMap.get (resourceName);
+            if (pendingWrite != null && pendingWrite.file.equals (file)) {
+                return pendingWrite.data;
+            }
+        }
+        
+        // Get the stamp before reading, so that if the file changes while it's being read, the entry will be stale.
+        long stamp = file.getModificationStamp ();
+        if (stamp == IResource.NULL_STAMP) {
+            // The file doesn't exist -- there is no metadata for this resource.
+            return null;
+        }
+        
+        synchronized (this) {
+            CacheEntry entry = resourceNameToCacheEntryMap.get (resourceName);
+            if (entry != null && entry.stamp == stamp && entry.file.equals (file)) {
+                return entry.data;
+            }
+        }
+        
+        byte[] data = readContents (file);
+        synchronized (this) {
+            putCacheEntry (resourceName, new CacheEntry (file, stamp, data));
+        }
+        return data;
+    }
+    
+    /**
+     * Method readContents
+     * 
+     * @param file
+     * 
+     * @return Returns the contents of the given file
+     * @throws CoreException
+     * @throws IOException
+     */
+    private static byte[] readContents (IFile file) throws CoreException, IOException {
+        InputStream inputStream = file.getContents ();
+        try {
+            ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream ();
+            byte[] buffer = new byte[4096];
+            for (int nRead = inputStream.read (buffer); nRead >= 0; nRead = inputStream.read (buffer)) {
+                byteArrayOutputStream.write (buffer, 0, nRead);
+            }
+            return byteArrayOutputStream.toByteArray ();
+        } finally {
+            inputStream.close ();
+        }
+    }
+    
+    /**
+     * Cache the metadata for a resource, replacing any cached metadata, and evict the least recently used metadata
+     * if the cache is over its budget.  The caller must hold the lock on this store.
+     * 
+     * @param resourceName
+     * @param entry
+     */
+    private void putCacheEntry (ResourceName resourceName, CacheEntry entry) {
+        CacheEntry oldEntry = resourceNameToCacheEntryMap.put (resourceName, entry);
+        if (oldEntry != null) {
+            cachedBytes -= oldEntry.data.length;
+        }
+        cachedBytes += entry.data.length;
+        
+        for (Iterator<CacheEntry> it = resourceNameToCacheEntryMap.values ().iterator (); it.hasNext () && cachedBytes > MAX_CACHED_BYTES; ) {
+            cachedBytes -= it.next ().data.length;
+            it.remove ();
+        }
+    }
+    
     /**
      * Method findFile
      * 
@@ -136,8 +356,15 @@ final class EclipseMetadataStore implements MetadataStore {
         
         ICALResourceContainer container = CALModelManager.getCALModelManager().getInputSourceFileContainer(
                 calFeatureName.toModuleName());
+        if (container == null) {
+            return null;
+        }
         
         IPackageFragmentRoot root = container.getPackageRoot();
+        if (!(root.getResource() instanceof IContainer)) {
+            // eg. a jar.
+            return null;
+        }
         return ((IContainer) root.getResource()).
                 getFile(getMetadataResourcePath (resourceName));
     }
@@ -191,12 +418,16 @@ final class EclipseMetadataStore implements MetadataStore {
     /* (non-Javadoc)
      * Only gets an output stream if the resource is a file.
      * Returns null if the resource is a jar entry
+     * If a status is given, the data is written to the file when the stream is closed, and a failure to write the file is
+     *   added to the status.
+     * Otherwise the data is written shortly after the stream is closed, along with any other metadata written in the meantime,
+     *   and a failure to write the file is logged.
      * @see org.openquark.cal.services.ResourceStore#getOutputStream(org.openquark.cal.services.ResourceName, org.openquark.cal.services.Status)
      */
-    public OutputStream getOutputStream (final ResourceName resourceName, Status status) {
+    public OutputStream getOutputStream (final ResourceName resourceName, final Status status) {
         IStorage storage = findFile (resourceName);
         
-        if (storage == null || (storage instanceof IFile)) {
+        if (!(storage instanceof IFile)) {
             return null;
         }
         final IFile file = (IFile) storage;
@@ -208,31 +439,125 @@ final class EclipseMetadataStore implements MetadataStore {
             public void close () throws IOException {
                 super.close ();
                 
-                // now we can write the data to the real file...
-                byte[] data = byteArrayOutputStream.toByteArray ();
-                
-                ByteArrayInputStream byteArrayInputStream = new ByteArrayInputStream (data);
-                
-                try {
-                    if (file.exists()) {
-                        file.setContents(byteArrayInputStream, true, false, null);
-                    } else {
-                        IFolder parent = (IFolder) file.getParent();
-                        Util.createFolder(parent, true, false, null);
-                        file.create(byteArrayInputStream, true, null);
-                    }
-                } catch (CoreException e) {
-                    e.printStackTrace();
-                    
-                    throw new IOException (e.getLocalizedMessage ());
-                } finally {
-                    byteArrayInputStream.close ();
+                // now we can write the data to the real file, or queue it to be written...
+                PendingWrite pendingWrite = new PendingWrite (resourceName, file, byteArrayOutputStream.toByteArray (), status);
+                if (status != null) {
+                    writeNow (pendingWrite);
+                } else {
+                    addPendingWrite (pendingWrite);
                 }
             }
         };
         
         return outputStream;
     }
+    
+    /**
+     * Queue metadata to be written, replacing any metadata already waiting to be written for the same resource.
+     * 
+     * @param pendingWrite
+     */
+    private void addPendingWrite (PendingWrite pendingWrite) {
+        synchronized (this) {
+            resourceNameToPendingWriteMap.put (pendingWrite.resourceName, pendingWrite);
+        }
+        // Rescheduling delays the write until no more metadata has been written for a while.
+        writeJob.cancel ();
+        writeJob.schedule (WRITE_DELAY);
+    }
+    
+    /**
+     * Write metadata now, replacing any metadata waiting to be written for the same resource.
+     * A failure to write the metadata is added to the status given with it.
+     * 
+     * @param pendingWrite
+     */
+    private void writeNow (PendingWrite pendingWrite) {
+        synchronized (this) {
+            resourceNameToPendingWriteMap.put (pendingWrite.resourceName, pendingWrite);
+        }
+        try {
+            writeMetadata (Collections.singletonList (pendingWrite), null);
+        } catch (CoreException e) {
+            // The failure has been added to the status given with the metadata.
+        }
+    }
+    
+    /**
+     * Write any pending metadata now, rather than waiting for the write job.
+     */
+    void flushPendingWrites () {
+        writeJob.cancel ();
+        try {
+            writePendingMetadata (null);
+        } catch (CoreException e) {
+            Util.log (e, "Failed to save metadata files");
+        }
+    }
+    
+    /**
+     * Write the pending metadata in a single workspace operation.
+     * 
+     * @param monitor
+     * @throws CoreException if any file could not be written.  The status holds a child status for each such file.
+     */
+    private void writePendingMetadata (IProgressMonitor monitor) throws CoreException {
+        final List<PendingWrite> pendingWrites;
+        synchronized (this) {
+            if (resourceNameToPendingWriteMap.isEmpty ()) {
+                return;
+            }
+            pendingWrites = new ArrayList<PendingWrite> (resourceNameToPendingWriteMap.values ());
+        }
+        writeMetadata (pendingWrites, monitor);
+    }
+    
+    /**
+     * Write metadata in a single workspace operation.
+     * A failure to write a file is added to the status given with its metadata, if any, and the other files are still written.
+     * 
+     * @param pendingWrites the metadata to write.
+     * @param monitor
+     * @throws CoreException if any file could not be written.  The status holds a child status for each such file.
+     */
+    private void writeMetadata (final List<PendingWrite> pendingWrites, IProgressMonitor monitor) throws CoreException {
+        final MultiStatus failures = new MultiStatus (CALEclipseCorePlugin.PLUGIN_ID, IStatus.OK, Messages.metadataWrite_someFailed, null);
+        
+        IWorkspace workspace = ResourcesPlugin.getWorkspace ();
+        workspace.run (new IWorkspaceRunnable () {
+            public void run (IProgressMonitor monitor) throws CoreException {
+                for (final PendingWrite pendingWrite : pendingWrites) {
+                    boolean written = false;
+                    try {
+                        pendingWrite.write ();
+                        written = true;
+                    } catch (CoreException e) {
+                        String message = Messages.bind (Messages.metadataWrite_failed, pendingWrite.file.getFullPath ());
+                        failures.add (new org.eclipse.core.runtime.Status (IStatus.ERROR, CALEclipseCorePlugin.PLUGIN_ID, IStatus.OK, message, e));
+                        if (pendingWrite.status != null) {
+                            pendingWrite.status.add (new Status (Status.Severity.ERROR, message, e));
+                        }
+                    }
+                    
+                    synchronized (EclipseMetadataStore.this) {
+                        // The pending metadata stays visible to readers until the file has been written,
+                        // unless it was replaced by a later write in the meantime.
+                        if (resourceNameToPendingWriteMap.get (pendingWrite.resourceName) == pendingWrite) {
+                            resourceNameToPendingWriteMap.remove (pendingWrite.resourceName);
+                        }
+                        if (written) {
+                            putCacheEntry (pendingWrite.resourceName,
+                                    new CacheEntry (pendingWrite.file, pendingWrite.file.getModificationStamp (), pendingWrite.data));
+                        }
+                    }
+                }
+            }
+        }, workspace.getRoot (), 0, monitor);
+        
+        if (!failures.isOK ()) {
+            throw new CoreException (failures);
+        }
+    }
 
     /* (non-Javadoc)
      * @see org.openquark.cal.services.ResourceStore#getResourceIterator()
@@ -18,10 +18,24 @@ package org.openquark.cal.eclipse.core;
 
 import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
+import org.eclipse.core.resources.IContainer;
 import org.eclipse.core.resources.IFile;
 import org.eclipse.core.resources.IFolder;
 import org.eclipse.core.resources.IProject;
@@ -31,6 +45,7 @@ import org.eclipse.core.resources.IWorkspace;
 import org.eclipse.core.resources.IWorkspaceRunnable;
 import org.eclipse.core.resources.ResourcesPlugin;
 import org.eclipse.core.runtime.CoreException;
+import org.eclipse.core.runtime.IPath;
 import org.eclipse.core.runtime.IProgressMonitor;
 import org.eclipse.core.runtime.IStatus;
 import org.eclipse.jdt.core.IJavaProject;
@@ -43,6 +58,7 @@ import org.openquark.cal.machine.AsynchronousFileWriter;
 import org.openquark.cal.machine.ProgramResourceLocator;
 import org.openquark.cal.machine.ProgramResourceRepository;
 import org.openquark.cal.runtime.MachineType;
+import org.openquark.cal.services.ResourcePath;
 
 
 /*
@@ -61,6 +77,18 @@ import org.openquark.cal.runtime.MachineType;
  * A repository of program resources in the eclipse environment.
  * 
  * This class grabs resources out of the lecc_runtime directory
+ * <p>
+ * If direct output is enabled (CoreOptionIDs.CORE_CAL_BUILD_DIRECT_OUTPUT), files are written, deleted and read 
+ *   directly in the file system, rather than through the workspace.  This avoids taking the workspace lock, 
+ *   updating the resource tree and sending a resource delta for each generated file.
+ *   The folders containing the files are refreshed in a single operation by refreshDirectOutput() at the end of the build.
+ * <p>
+ * If archived output is enabled (CoreOptionIDs.CORE_CAL_BUILD_ARCHIVED_OUTPUT), the files generated for each module are written
+ *   to a single ModuleResourceArchive next to the module's folder, rather than as separate files in the folder.
+ *   Loading a module then opens one file, rather than one for each generated file.
+ *   The archives are revalidated by buildStarting() and closed by buildFinished(), so that each archive's table of contents
+ *   is checked against its file once per build, and the file is kept open while the module's files are read or written.
+ *   Files are still read from the module's folder if they aren't in the archive (eg. if written before archived output was enabled).
  * 
  * @author Edward Lam
  */
@@ -71,6 +99,30 @@ public class EclipseProgramResourcePathRepository implements ProgramResourceRepo
      *   just as .java files can be specified as having .class file output to a bin/ folder.
      */
     
+    /** The size of the buffer used to copy a file's contents to the file system when direct output is enabled. */
+    private static final int DIRECT_OUTPUT_BUFFER_SIZE = 8192;
+    
+    /** 
+     * The containers in which files were written or deleted directly in the file system since the last refresh.
+     * Used as a concurrent set -- the values are ignored.
+     */
+    private static final ConcurrentMap<IContainer, Boolean> containersToRefresh = new ConcurrentHashMap<IContainer, Boolean>();
+    
+    /** The extension of the archive file which holds a module's files if archived output is enabled. */
+    private static final String ARCHIVE_FILE_EXTENSION = ".archive"; //$NON-NLS-1$
+    
+    /** 
+     * Map from archive file to the archive, for the archives which have been used.
+     * An archive is removed when it is deleted, or when the output folder containing it is cleaned.
+     */
+    private static final ConcurrentMap<File, ModuleResourceArchive> fileToArchiveMap = new ConcurrentHashMap<File, ModuleResourceArchive>();
+    
+    /** 
+     * Map from module name to the archive for the module's files, for the modules whose archives have been used in the current build.
+     * Cleared at the start of each build, in case a module's folder has changed.
+     */
+    private static final ConcurrentMap<ModuleName, ModuleResourceArchive> moduleNameToArchiveMap = new ConcurrentHashMap<ModuleName, ModuleResourceArchive>();
+    
     
     /**
      * @return a provider for a program resource finder associated with the workspace.
@@ -96,14 +148,289 @@ public class EclipseProgramResourcePathRepository implements ProgramResourceRepo
         return ResourcesPlugin.getWorkspace();
     }
     
+    /**
+     * @return true if program resources should be written directly to the file system.
+     */
+    private static boolean isDirectOutputEnabled() {
+        return CoreOptionIDs.ENABLED.equals(CALEclipseCorePlugin.getOption(CoreOptionIDs.CORE_CAL_BUILD_DIRECT_OUTPUT));
+    }
+    
+    /**
+     * @return true if the program resources for each module should be written to a single archive.
+     */
+    private static boolean isArchivedOutputEnabled() {
+        return CoreOptionIDs.ENABLED.equals(CALEclipseCorePlugin.getOption(CoreOptionIDs.CORE_CAL_BUILD_ARCHIVED_OUTPUT));
+    }
+    
+    /**
+     * @param moduleName the name of a module.
+     * @return the folder for the module's program resources, or null if the module's resources are in a jar.
+     */
+    private IFolder getModuleFolder(ModuleName moduleName) {
+        return getIFolder(new ProgramResourceLocator.Folder(moduleName, ResourcePath.EMPTY_PATH));
+    }
+    
+    /**
+     * Make each archive check that its file wasn't changed outside the build before it is next used.
+     * This is called by the builder at the start of each build.
+     */
+    public static void buildStarting() {
+        moduleNameToArchiveMap.clear();
+        ModuleResourceArchive.revalidateAll();
+    }
+    
+    /**
+     * Close the archives opened during the build, so that their files can be deleted or replaced by others.
+     * This is called by the builder at the end of each build.
+     */
+    public static void buildFinished() {
+        for (final ModuleResourceArchive archive : fileToArchiveMap.values()) {
+            archive.close();
+        }
+    }
+    
+    /**
+     * @param moduleName the name of a module.
+     * @return the archive for the module's program resources, or null if archived output isn't enabled, 
+     *   the module's resources are in a jar, or the module's folder has no local location.
+     */
+    private ModuleResourceArchive getArchive(ModuleName moduleName) {
+        if (!isArchivedOutputEnabled()) {
+            return null;
+        }
+        ModuleResourceArchive archive = moduleNameToArchiveMap.get(moduleName);
+        if (archive == null) {
+            IFolder moduleFolder = getModuleFolder(moduleName);
+            archive = moduleFolder == null ? null : getArchive(moduleFolder);
+            if (archive != null) {
+                moduleNameToArchiveMap.put(moduleName, archive);
+            }
+        }
+        return archive;
+    }
+    
+    /**
+     * @param moduleFolder the folder for a module's program resources.
+     * @return the archive for the module's program resources, or null if the folder has no local location.
+     */
+    private static ModuleResourceArchive getArchive(IFolder moduleFolder) {
+        File localFolder = getLocalFile(moduleFolder);
+        if (localFolder == null) {
+            return null;
+        }
+        File archiveFile = new File(localFolder.getParentFile(), localFolder.getName() + ARCHIVE_FILE_EXTENSION);
+        
+        // The archive checks that its table of contents is still valid for the file when it is first used in each build.
+        ModuleResourceArchive archive = fileToArchiveMap.get(archiveFile);
+        if (archive == null) {
+            ModuleResourceArchive newArchive = new ModuleResourceArchive(archiveFile);
+            archive = fileToArchiveMap.putIfAbsent(archiveFile, newArchive);
+            if (archive == null) {
+                archive = newArchive;
+            }
+        }
+        return archive;
+    }
+    
+    /**
+     * Delete the archive holding a module's program resources, if any.
+     * This is called by the builder when a module is removed, since the archive can't be found from the module name once
+     *   the module's source is gone.
+     * @param moduleFolder the folder for the module's program resources.
+     */
+    public static void deleteArchive(IFolder moduleFolder) {
+        ModuleResourceArchive archive = getArchive(moduleFolder);
+        if (archive == null) {
+            return;
+        }
+        if (archive.getFile().exists()) {
+            if (!archive.delete()) {
+                Util.log(null, "Couldn't delete " + archive.getFile(), IStatus.WARNING); //$NON-NLS-1$
+            }
+            containersToRefresh.put(moduleFolder.getParent(), Boolean.TRUE);
+        }
+        // The archive is kept -- it is empty now, and is the one used if the module is added again.
+    }
+    
+    /**
+     * Close and forget the archives in an output folder.
+     * This is called by the builder when it cleans an output folder, before the archives are deleted through the workspace.
+     * @param outputFolder the output folder.
+     */
+    public static void discardArchives(IContainer outputFolder) {
+        File localFolder = getLocalFile(outputFolder);
+        if (localFolder == null) {
+            return;
+        }
+        String folderPath = localFolder.getPath() + File.separator;
+        for (final File archiveFile : fileToArchiveMap.keySet()) {
+            if (archiveFile.getPath().startsWith(folderPath)) {
+                ModuleResourceArchive archive = fileToArchiveMap.remove(archiveFile);
+                if (archive != null) {
+                    archive.close();
+                    moduleNameToArchiveMap.values().remove(archive);
+                }
+            }
+        }
+    }
+    
+    /**
+     * @param resourceLocator the locator for a file or folder.
+     * @return the name of the file or folder in its module's archive, ie. its path relative to the module's folder, 
+     *   with '/' separators.  The empty string for the module's folder.
+     */
+    private static String getArchivedName(ProgramResourceLocator resourceLocator) {
+        StringBuilder sb = new StringBuilder();
+        for (final String pathElement : resourceLocator.getModuleRelativePath().getPathElements()) {
+            if (sb.length() > 0) {
+                sb.append('/');
+            }
+            sb.append(pathElement);
+        }
+        return sb.toString();
+    }
+    
+    /**
+     * @param file a file in a module's folder.
+     * @param archivedName the name of the file in the module's archive.
+     * @return the container holding the module's folder and archive.
+     */
+    private static IContainer getArchiveParent(IFile file, String archivedName) {
+        // The file's parent, then one more for each folder between the module's folder and the file.
+        IContainer container = file.getParent();
+        for (int i = archivedName.indexOf('/'); i >= 0; i = archivedName.indexOf('/', i + 1)) {
+            container = container.getParent();
+        }
+        return container.getParent();
+    }
+    
+    /**
+     * @param fileLocator the locator for a file.
+     * @return the archive holding the file, or null if archived output isn't enabled, or the archive doesn't hold the file.
+     */
+    private ModuleResourceArchive getArchiveContaining(ProgramResourceLocator.File fileLocator) {
+        ModuleResourceArchive archive = getArchive(fileLocator.getModuleName());
+        try {
+            if (archive != null && archive.contains(getArchivedName(fileLocator))) {
+                return archive;
+            }
+        } catch (IOException e) {
+            Util.log(e, "Unable to read " + archive.getFile()); //$NON-NLS-1$
+        }
+        return null;
+    }
+    
+    /**
+     * @param resource a resource in the workspace.
+     * @return the file or folder in the file system for the resource, or null if the resource has no local location.
+     */
+    private static File getLocalFile(IResource resource) {
+        IPath location = resource.getLocation();
+        return location == null ? null : location.toFile();
+    }
+    
+    /**
+     * Refresh the containers in which files have been written or deleted directly in the file system, 
+     *   so that the workspace is in sync with the file system.
+     * This is called by the builder at the end of each build.
+     * @param monitor the progress monitor, or null for no monitor.
+     * @throws CoreException if a container could not be refreshed.
+     */
+    public static void refreshDirectOutput(IProgressMonitor monitor) throws CoreException {
+        if (containersToRefresh.isEmpty()) {
+            return;
+        }
+        
+        // The containers to refresh.  Folders which were created directly in the file system aren't in the workspace yet,
+        //  so refresh the closest ancestor which is.
+        Set<IContainer> containers = new LinkedHashSet<IContainer>();
+        for (final IContainer container : containersToRefresh.keySet()) {
+            containersToRefresh.remove(container);
+            
+            IContainer existingContainer = container;
+            while (!existingContainer.exists() && existingContainer.getParent() != null) {
+                existingContainer = existingContainer.getParent();
+            }
+            containers.add(existingContainer);
+        }
+        
+        // Refresh each subtree once -- skip containers within other containers to refresh.
+        final List<IContainer> rootContainers = new ArrayList<IContainer>();
+        for (final IContainer container : containers) {
+            boolean isWithinOtherContainer = false;
+            for (IContainer parent = container.getParent(); parent != null; parent = parent.getParent()) {
+                if (containers.contains(parent)) {
+                    isWithinOtherContainer = true;
+                    break;
+                }
+            }
+            if (!isWithinOtherContainer) {
+                rootContainers.add(container);
+            }
+        }
+        
+        final IWorkspaceRunnable refreshRunnable = new IWorkspaceRunnable() {
+            public void run(IProgressMonitor runnableMonitor) throws CoreException {
+                for (final IContainer container : rootContainers) {
+                    container.refreshLocal(IResource.DEPTH_INFINITE, null);
+                }
+            }
+        };
+        getWorkspace().run(refreshRunnable, getWorkspace().getRoot(), IResource.NONE, monitor);
+    }
+    
+    /**
+     * Write a file directly to the file system, creating its parent folders if necessary.
+     * @param file the file to write.
+     * @param contents the contents of the file.
+     * @throws IOException if the file could not be written.
+     */
+    private static void writeDirect(File file, InputStream contents) throws IOException {
+        File parentFolder = file.getParentFile();
+        if (parentFolder != null && !parentFolder.isDirectory() && !parentFolder.mkdirs() && !parentFolder.isDirectory()) {
+            throw new IOException("Unable to create folder: " + parentFolder); //$NON-NLS-1$
+        }
+        
+        FileOutputStream outputStream = new FileOutputStream(file);
+        try {
+            FileChannel outputChannel = outputStream.getChannel();
+            ReadableByteChannel inputChannel = Channels.newChannel(contents);
+            ByteBuffer buffer = ByteBuffer.allocate(DIRECT_OUTPUT_BUFFER_SIZE);
+            while (inputChannel.read(buffer) != -1) {
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    outputChannel.write(buffer);
+                }
+                buffer.clear();
+            }
+        } finally {
+            outputStream.close();
+        }
+    }
+    
     /**
      * {@inheritDoc}
      */
     public InputStream getContents(ProgramResourceLocator.File fileLocator) throws IOException {
+        ModuleResourceArchive archive = getArchive(fileLocator.getModuleName());
+        if (archive != null) {
+            InputStream archivedContents = archive.getContents(getArchivedName(fileLocator));
+            if (archivedContents != null) {
+                return archivedContents;
+            }
+        }
+        
         IStorage inputFile = getProgramResource(fileLocator);
         if (inputFile == null) {
             return null;
         }
+        if (inputFile instanceof IFile && isDirectOutputEnabled()) {
+            // The file may have been written directly, and not yet be in sync with the workspace.
+            File localFile = getLocalFile((IFile)inputFile);
+            if (localFile != null && localFile.isFile()) {
+                return new FileInputStream(localFile);
+            }
+        }
         try {
             return inputFile.getContents();
         } catch (CoreException e) {
@@ -120,21 +447,39 @@ public class EclipseProgramResourcePathRepository implements ProgramResourceRepo
         IStorage output = getProgramResource(fileLocator);
         if (output instanceof IFile) {
             // Handle null source.
-            if (source == null) {
-                source = new ByteArrayInputStream(new byte[0]);
+            final InputStream contents = (source == null) ? new ByteArrayInputStream(new byte[0]) : source;
+            final IFile outputFile = (IFile) output;
+            
+            ModuleResourceArchive archive = getArchive(fileLocator.getModuleName());
+            if (archive != null) {
+                // The archive is written directly -- the workspace is refreshed at the end of the build.
+                String archivedName = getArchivedName(fileLocator);
+                archive.put(archivedName, contents);
+                containersToRefresh.put(getArchiveParent(outputFile, archivedName), Boolean.TRUE);
+                return;
             }
-            IFile outputFile = (IFile) output;
+            
+            if (isDirectOutputEnabled()) {
+                File localFile = getLocalFile(outputFile);
+                if (localFile != null) {
+                    // No need for the workspace lock -- the workspace is refreshed at the end of the build.
+                    writeDirect(localFile, contents);
+                    containersToRefresh.put(outputFile.getParent(), Boolean.TRUE);
+                    return;
+                }
+            }
+            
             try {
                 if (outputFile.exists()) {
                     // source, force, keepHistory, progressMonitor
-                    outputFile.setContents(source, true, false, null);
+                    outputFile.setContents(contents, true, false, null);
                 } else {
                     // walk up the parent folders and ensure they all exist
                     IFolder folder = (IFolder) outputFile.getParent();
                     EclipseFileResourceHelper.ensureFolderExists(folder);
 
                     // source, force, monitor
-                    outputFile.create(source, true, null);
+                    outputFile.create(contents, true, null);
                 }
             
             } catch (CoreException e) {
@@ -150,8 +495,22 @@ public class EclipseProgramResourcePathRepository implements ProgramResourceRepo
      * If the specified folder is in a jar file, then this request is ignored 
      */
     public void ensureFolderExists(ProgramResourceLocator.Folder folderLocator) throws IOException {
-        IFolder folder = getIFolder(folderLocator);
+        final IFolder folder = getIFolder(folderLocator);
         if (folder != null) {
+            if (isArchivedOutputEnabled() && getLocalFile(folder) != null) {
+                // Files are written to the module's archive, which is created when the first file is written.
+                return;
+            }
+            if (isDirectOutputEnabled()) {
+                File localFolder = getLocalFile(folder);
+                if (localFolder != null) {
+                    if (!localFolder.isDirectory() && !localFolder.mkdirs() && !localFolder.isDirectory()) {
+                        throw new IOException("Unable to create folder: " + localFolder); //$NON-NLS-1$
+                    }
+                    containersToRefresh.put(folder, Boolean.TRUE);
+                    return;
+                }
+            }
             EclipseFileResourceHelper.ensureFolderExists(folder);
         } else {
             Util.log(new Exception(), "Attempt to create a folder in a jar file: " + folderLocator, IStatus.WARNING);
@@ -162,9 +521,15 @@ public class EclipseProgramResourcePathRepository implements ProgramResourceRepo
      * {@inheritDoc}
      */
     public void delete(ProgramResourceLocator resourceLocator) throws IOException {
-        IResource resourceToDelete = getIResource(resourceLocator);
+        deleteArchived(resourceLocator);
         
-        if (resourceToDelete != null) {
+        final IResource resourceToDelete = getIResource(resourceLocator);
+        
+        if (resourceToDelete != null && !resourceToDelete.exists() && (isDirectOutputEnabled() || isArchivedOutputEnabled())) {
+            // The resource may have been written directly, and not yet be in the workspace.
+            deleteDirect(resourceToDelete);
+            
+        } else if (resourceToDelete != null) {
             try {
                 // force, progressMonitor
                 resourceToDelete.delete(true, null);
@@ -175,6 +540,78 @@ public class EclipseProgramResourcePathRepository implements ProgramResourceRepo
         }
     }
 
+    /**
+     * If archived output is enabled, remove a file from its module's archive, or delete the archive for a folder.
+     * @param resourceLocator the locator for the file or folder.
+     */
+    private void deleteArchived(ProgramResourceLocator resourceLocator) {
+        if (!isArchivedOutputEnabled()) {
+            return;
+        }
+        IFolder moduleFolder = getModuleFolder(resourceLocator.getModuleName());
+        ModuleResourceArchive archive = moduleFolder == null ? null : getArchive(moduleFolder);
+        if (archive == null) {
+            return;
+        }
+        
+        String archivedName = getArchivedName(resourceLocator);
+        if (resourceLocator instanceof ProgramResourceLocator.File) {
+            try {
+                archive.remove(archivedName);
+            } catch (IOException e) {
+                Util.log(e, "Couldn't delete " + resourceLocator); //$NON-NLS-1$
+            }
+            
+        } else if (archivedName.length() > 0) {
+            // A folder within the module's folder: remove the files under the folder.
+            try {
+                String folderPrefix = archivedName + '/';
+                for (final String name : archive.getNames()) {
+                    if (name.startsWith(folderPrefix)) {
+                        archive.remove(name);
+                    }
+                }
+            } catch (IOException e) {
+                Util.log(e, "Couldn't delete " + resourceLocator); //$NON-NLS-1$
+            }
+            
+        } else {
+            // The module's folder.
+            if (!archive.delete()) {
+                Util.log(null, "Couldn't delete " + archive.getFile(), IStatus.WARNING); //$NON-NLS-1$
+            }
+        }
+        containersToRefresh.put(moduleFolder.getParent(), Boolean.TRUE);
+    }
+    
+    /**
+     * Delete a resource which isn't in the workspace directly from the file system.
+     * @param resource the resource.
+     */
+    private static void deleteDirect(IResource resource) {
+        File localFile = getLocalFile(resource);
+        if (localFile != null && localFile.exists()) {
+            deleteLocalFile(localFile);
+            containersToRefresh.put(resource.getParent(), Boolean.TRUE);
+        }
+    }
+    
+    /**
+     * Delete a file or folder from the file system, including the contents of a folder.
+     * @param file the file or folder.
+     */
+    private static void deleteLocalFile(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (final File child : children) {
+                deleteLocalFile(child);
+            }
+        }
+        if (!file.delete()) {
+            Util.log(null, "Couldn't delete " + file, IStatus.WARNING); //$NON-NLS-1$
+        }
+    }
+    
     /**
      * may return null if resourceLocator points to somewhere in a jar
      * @param resourceLocator
@@ -202,9 +639,14 @@ public class EclipseProgramResourcePathRepository implements ProgramResourceRepo
             getWorkspace().run(new IWorkspaceRunnable() {
 
                 public void run(IProgressMonitor monitor) throws CoreException {
+                    boolean bypassWorkspace = isDirectOutputEnabled() || isArchivedOutputEnabled();
                     for (final ProgramResourceLocator resourceLocator : resourceLocators) {
+                        deleteArchived(resourceLocator);
+                        
                         IResource resource = getIResource(resourceLocator);
-                        if (resource != null) {
+                        if (resource != null && !resource.exists() && bypassWorkspace) {
+                            deleteDirect(resource);
+                        } else if (resource != null) {
                             resource.delete(true, null);
                         }
                     }
@@ -224,25 +666,62 @@ public class EclipseProgramResourcePathRepository implements ProgramResourceRepo
         
         if (resourceLocator instanceof ProgramResourceLocator.File) {
             ProgramResourceLocator.File fileLocator = (ProgramResourceLocator.File) resourceLocator;
+            if (getArchiveContaining(fileLocator) != null) {
+                return true;
+            }
             IStorage storage = getProgramResource(fileLocator);
             if (storage == null) {
                 return false;
             } else {
-                return storage instanceof JarEntryFile || ((IFile) storage).exists();
+                return storage instanceof JarEntryFile || ((IFile) storage).exists() || existsDirect((IFile) storage);
             }
         } else {
             ProgramResourceLocator.Folder folderLocator = (ProgramResourceLocator.Folder) resourceLocator;
             IFolder folder = getIFolder(folderLocator);
-            return folder != null && folder.exists();
+            return folder != null && (folder.exists() || existsDirect(folder));
         }
     }
+    
+    /**
+     * @param resource a resource which isn't in the workspace.
+     * @return true if direct output is enabled, and the resource exists in the file system.
+     */
+    private static boolean existsDirect(IResource resource) {
+        if (!isDirectOutputEnabled()) {
+            return false;
+        }
+        File localFile = getLocalFile(resource);
+        return localFile != null && localFile.exists();
+    }
 
     /**
      * {@inheritDoc}
      */
     public long lastModified(ProgramResourceLocator resourceLocator) {
+        if (resourceLocator instanceof ProgramResourceLocator.File) {
+            ProgramResourceLocator.File fileLocator = (ProgramResourceLocator.File) resourceLocator;
+            ModuleResourceArchive archive = getArchive(fileLocator.getModuleName());
+            if (archive != null) {
+                try {
+                    // 0 if the file isn't in the archive.
+                    long timeStamp = archive.getTimeStamp(getArchivedName(fileLocator));
+                    if (timeStamp != 0) {
+                        return timeStamp;
+                    }
+                } catch (IOException e) {
+                    Util.log(e, "Unable to read " + archive.getFile()); //$NON-NLS-1$
+                }
+            }
+        }
+        
         IResource resource = getIResource(resourceLocator);
-        if (resource != null) {
+        if (resource != null && (isDirectOutputEnabled() || (!resource.exists() && isArchivedOutputEnabled()))) {
+            // The resource may have been written directly, and not yet be in the workspace, 
+            //  or be in the workspace with the time stamp from before it was written.
+            File localFile = getLocalFile(resource);
+            return localFile == null ? 0 : localFile.lastModified();
+            
+        } else if (resource != null) {
             return resource.getLocalTimeStamp();
         } else {
             // ADE warning...slow!
@@ -258,6 +737,71 @@ public class EclipseProgramResourcePathRepository implements ProgramResourceRepo
      * {@inheritDoc}
      */
     public ProgramResourceLocator[] getMembers(ProgramResourceLocator.Folder folder) {
+        ProgramResourceLocator[] members = getFolderMembers(folder);
+        if (!isArchivedOutputEnabled()) {
+            return members;
+        }
+        
+        // Add the files in the module's archive.
+        ModuleResourceArchive archive = getArchive(folder.getModuleName());
+        List<String> archivedNames;
+        try {
+            archivedNames = archive == null ? null : archive.getNames();
+        } catch (IOException e) {
+            Util.log(e, "Unable to read " + archive.getFile()); //$NON-NLS-1$
+            archivedNames = null;
+        }
+        if (archivedNames == null || archivedNames.isEmpty()) {
+            return members;
+        }
+        
+        // The archived names are paths relative to the module's folder.  
+        // Add the files directly in the folder, and the folders containing the files further down.
+        String folderName = getArchivedName(folder);
+        String folderPrefix = folderName.length() == 0 ? "" : folderName + '/'; //$NON-NLS-1$
+        Map<String, ProgramResourceLocator> nameToMemberMap = new LinkedHashMap<String, ProgramResourceLocator>();
+        for (final String archivedName : archivedNames) {
+            if (!archivedName.startsWith(folderPrefix)) {
+                continue;
+            }
+            String relativeName = archivedName.substring(folderPrefix.length());
+            int slashIndex = relativeName.indexOf('/');
+            if (slashIndex < 0) {
+                nameToMemberMap.put(relativeName, folder.extendFile(relativeName));
+            } else {
+                String subfolderName = relativeName.substring(0, slashIndex);
+                if (!nameToMemberMap.containsKey(subfolderName)) {
+                    nameToMemberMap.put(subfolderName, folder.extendFolder(subfolderName));
+                }
+            }
+        }
+        if (nameToMemberMap.isEmpty()) {
+            return members;
+        }
+        if (members != null) {
+            for (final ProgramResourceLocator member : members) {
+                if (!nameToMemberMap.containsKey(member.getName())) {
+                    nameToMemberMap.put(member.getName(), member);
+                }
+            }
+        }
+        return nameToMemberMap.values().toArray(new ProgramResourceLocator[nameToMemberMap.size()]);
+    }
+    
+    /**
+     * @param folder the locator for a folder.
+     * @return locators for the files and folders in the folder, not including any archived files, or null if the folder doesn't exist.
+     */
+    private ProgramResourceLocator[] getFolderMembers(ProgramResourceLocator.Folder folder) {
+        
+        if (isDirectOutputEnabled() || isArchivedOutputEnabled()) {
+            // The folder's contents may have been written directly, and not yet be in the workspace.
+            IFolder iFolder = getIFolder(folder);
+            File localFolder = iFolder == null ? null : getLocalFile(iFolder);
+            if (localFolder != null) {
+                return getMembersDirect(folder, localFolder);
+            }
+        }
         
         IResource[] resources;
         try {
@@ -292,10 +836,37 @@ public class EclipseProgramResourcePathRepository implements ProgramResourceRepo
         return folderFileLocators;
     }
 
+    /**
+     * @param folder the locator for a folder.
+     * @param localFolder the folder in the file system.
+     * @return locators for the members of the folder in the file system, or null if the folder doesn't exist.
+     */
+    private static ProgramResourceLocator[] getMembersDirect(ProgramResourceLocator.Folder folder, File localFolder) {
+        File[] files = localFolder.listFiles();
+        if (files == null) {
+            return null;
+        }
+        
+        ProgramResourceLocator[] folderFileLocators = new ProgramResourceLocator[files.length];
+        for (int i = 0; i < files.length; i++) {
+            File ithFile = files[i];
+            if (ithFile.isDirectory()) {
+                folderFileLocators[i] = folder.extendFolder(ithFile.getName());
+            } else {
+                folderFileLocators[i] = folder.extendFile(ithFile.getName());
+            }
+        }
+        return folderFileLocators;
+    }
+    
     /**
      * {@inheritDoc}
      */
     public File getFile(ProgramResourceLocator resourceLocator) {
+        if (resourceLocator instanceof ProgramResourceLocator.File && getArchiveContaining((ProgramResourceLocator.File)resourceLocator) != null) {
+            // Archived files don't have a file of their own.
+            return null;
+        }
         IResource resource = getIResource(resourceLocator);
         if (resource != null) {
             return new File(resource.getLocation().toOSString());
@@ -373,6 +944,15 @@ public class EclipseProgramResourcePathRepository implements ProgramResourceRepo
      * {@inheritDoc}
      */
     public long getSize(ProgramResourceLocator.File fileLocator) {
+        ModuleResourceArchive archive = getArchiveContaining(fileLocator);
+        if (archive != null) {
+            try {
+                return archive.getSize(getArchivedName(fileLocator));
+            } catch (IOException e) {
+                Util.log(e, "Unable to read " + archive.getFile()); //$NON-NLS-1$
+            }
+        }
+        
         /*
          * IFile doesn't provide a direct way to find the length of a file.
          * So first convert to a File, and get the length of that.
@@ -409,6 +989,11 @@ public class EclipseProgramResourcePathRepository implements ProgramResourceRepo
      * {@inheritDoc}
      */
     public String getDebugInfo(org.openquark.cal.machine.ProgramResourceLocator.File fileLocator) {
+        ModuleResourceArchive archive = getArchiveContaining(fileLocator);
+        if (archive != null) {
+            return "from archive: " + archive.getFile().getName(); //$NON-NLS-1$
+        }
+
         IStorage inputFile = getProgramResource(fileLocator);
         if (inputFile == null) {
             return null;
@@ -0,0 +1,623 @@
+/*******************************************************************************
+ * Copyright (c) 2007 Business Objects Software Limited and others.
+ * All rights reserved.
+ * This file is made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Business Objects Software Limited - initial API and implementation
+ *******************************************************************************/
+
+/*
+ * ModuleResourceArchive.java
+ * Created: Oct 17, 2007
+ */
+package org.openquark.cal.eclipse.core;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.eclipse.core.runtime.IStatus;
+import org.openquark.cal.eclipse.core.util.Util;
+
+
+/**
+ * A single file holding the program resources generated for a module, used instead of a folder of small files.
+ * <p>
+ * The archive starts with a header, followed by a sequence of records.  Each record holds the name, time stamp and contents
+ *   of a resource, or marks a resource as removed.  A later record for a name replaces any earlier record.
+ * Writing a resource appends a record, so a module's resources can be written one at a time as they are generated.
+ * When the space taken by replaced records is larger than the space taken by current records, the archive is compacted.
+ * Contents are compressed if that makes them smaller.
+ * <p>
+ * The table of contents (the name, position and size of each current resource) is built when the archive is first read,
+ *   by reading the record headers.  It is trusted until revalidateAll() is called (at the start of each build), after which
+ *   the next operation checks once that the length and time stamp of the file haven't been changed by something else,
+ *   eg. if the archive was deleted or replaced outside of the workspace.
+ * <p>
+ * The file is opened by the first operation which reads or writes a resource, and kept open for the operations which follow,
+ *   so that loading or writing a module's resources opens the file once.  It is closed by close() (at the end of each build),
+ *   and before the archive is deleted or compacted, since deleting or replacing a file fails on Windows while it is open.
+ */
+final class ModuleResourceArchive {
+
+    /** The first four bytes of an archive: "CALA". */
+    private static final int MAGIC = 0x43414C41;
+
+    /** The version of the archive format. */
+    private static final int VERSION = 2;
+
+    /** The size of the archive header: the magic number and the version. */
+    private static final int HEADER_SIZE = 8;
+
+    /** The size of a record header, other than the name: the name length, time stamp, stored length and size. */
+    private static final int RECORD_HEADER_SIZE = 2 + 8 + 4 + 4;
+
+    /** The stored length recorded for a resource which was removed. */
+    private static final int REMOVED_LENGTH = -1;
+
+    /** The minimum number of bytes of replaced records before the archive is compacted. */
+    private static final long MIN_GARBAGE_FOR_COMPACTION = 65536;
+
+    /** The character set used for resource names. */
+    private static final String NAME_CHARSET = "UTF-8"; //$NON-NLS-1$
+
+    /** Incremented by revalidateAll().  Archives validated in an earlier generation are checked again before they are used. */
+    private static volatile long generation = 0;
+
+    /**
+     * The position and size of a resource in the archive.
+     */
+    private static final class Entry {
+        /** The position of the stored contents in the archive. */
+        final long offset;
+
+        /** The size of the stored contents, in bytes.  Less than the size of the resource if the contents are compressed. */
+        final int storedLength;
+
+        /** The size of the resource, in bytes. */
+        final int size;
+
+        /** The time at which the resource was written. */
+        final long timeStamp;
+
+        /** The size of the record holding the resource, in bytes. */
+        final long recordSize;
+
+        Entry(long offset, int storedLength, int size, long timeStamp, long recordSize) {
+            this.offset = offset;
+            this.storedLength = storedLength;
+            this.size = size;
+            this.timeStamp = timeStamp;
+            this.recordSize = recordSize;
+        }
+
+        /**
+         * @return true if the stored contents are compressed.
+         */
+        boolean isCompressed() {
+            return storedLength != size;
+        }
+    }
+
+    /** The archive file. */
+    private final File file;
+
+    /** Map from resource name to entry, in the order in which the resources were first written, or null if not yet read.  Guarded by this. */
+    private Map<String, Entry> nameToEntryMap = null;
+
+    /** The number of bytes taken by records which were replaced by later records.  Guarded by this. */
+    private long garbageSize = 0;
+
+    /** The length of the archive file, as read or written by this object.  0 if the file doesn't exist or isn't an archive.  Guarded by this. */
+    private long fileLength = 0;
+
+    /** The time stamp of the archive file when the table of contents was last validated.  Guarded by this. */
+    private long validatedLastModified = 0;
+
+    /** Whether this object has written to the file since the table of contents was last validated.  Guarded by this. */
+    private boolean writtenSinceValidation = false;
+
+    /** The generation in which the table of contents was last validated.  Guarded by this. */
+    private long validatedGeneration = -1;
+
+    /** The open archive file, or null if the file isn't open.  Guarded by this. */
+    private RandomAccessFile openFile = null;
+
+    /** Whether the open archive file was opened for writing.  Guarded by this. */
+    private boolean openForWriting = false;
+
+    /**
+     * Constructor for a ModuleResourceArchive.
+     * @param file the archive file.  The file does not need to exist.
+     */
+    ModuleResourceArchive(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Make every archive check, the next time it is used, that its file hasn't been changed by something else.
+     * This is called at the start of each build.
+     */
+    static synchronized void revalidateAll() {
+        generation++;
+    }
+
+    /**
+     * @return the archive file.
+     */
+    File getFile() {
+        return file;
+    }
+
+    /**
+     * @param name the name of a resource.
+     * @return true if the archive contains the resource.
+     * @throws IOException if the archive could not be read.
+     */
+    synchronized boolean contains(String name) throws IOException {
+        return getNameToEntryMap().containsKey(name);
+    }
+
+    /**
+     * @return the names of the resources in the archive.
+     * @throws IOException if the archive could not be read.
+     */
+    synchronized List<String> getNames() throws IOException {
+        return new ArrayList<String>(getNameToEntryMap().keySet());
+    }
+
+    /**
+     * @param name the name of a resource.
+     * @return the time at which the resource was written, or 0 if the archive doesn't contain the resource.
+     * @throws IOException if the archive could not be read.
+     */
+    synchronized long getTimeStamp(String name) throws IOException {
+        Entry entry = getNameToEntryMap().get(name);
+        return entry == null ? 0 : entry.timeStamp;
+    }
+
+    /**
+     * @param name the name of a resource.
+     * @return the size of the resource, in bytes, or 0 if the archive doesn't contain the resource.
+     * @throws IOException if the archive could not be read.
+     */
+    synchronized long getSize(String name) throws IOException {
+        Entry entry = getNameToEntryMap().get(name);
+        return entry == null ? 0 : entry.size;
+    }
+
+    /**
+     * @param name the name of a resource.
+     * @return a stream on the contents of the resource, or null if the archive doesn't contain the resource.
+     * @throws IOException if the archive could not be read.
+     */
+    synchronized InputStream getContents(String name) throws IOException {
+        Entry entry = getNameToEntryMap().get(name);
+        if (entry == null) {
+            return null;
+        }
+
+        byte[] storedContents = new byte[entry.storedLength];
+        readFully(getOpenFile(false).getChannel(), entry.offset, storedContents);
+        if (!entry.isCompressed()) {
+            return new ByteArrayInputStream(storedContents);
+        }
+
+        Inflater inflater = new Inflater();
+        try {
+            byte[] contents = new byte[entry.size];
+            inflater.setInput(storedContents);
+            int nInflated = 0;
+            while (nInflated < contents.length && !inflater.finished()) {
+                int n = inflater.inflate(contents, nInflated, contents.length - nInflated);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                nInflated += n;
+            }
+            if (nInflated != contents.length) {
+                throw new IOException("Corrupt entry " + name + " in " + file); //$NON-NLS-1$ //$NON-NLS-2$
+            }
+            return new ByteArrayInputStream(contents);
+
+        } catch (DataFormatException e) {
+            throw (IOException)new IOException("Corrupt entry " + name + " in " + file).initCause(e); //$NON-NLS-1$ //$NON-NLS-2$
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * Write a resource to the archive, replacing any resource with the same name.
+     * @param name the name of the resource.
+     * @param contents the contents of the resource.
+     * @throws IOException if the archive could not be written.
+     */
+    synchronized void put(String name, InputStream contents) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        for (int nRead = contents.read(buffer); nRead != -1; nRead = contents.read(buffer)) {
+            bytes.write(buffer, 0, nRead);
+        }
+        byte[] uncompressedContents = bytes.toByteArray();
+        appendRecord(name, compress(uncompressedContents), uncompressedContents.length, System.currentTimeMillis());
+    }
+
+    /**
+     * Remove a resource from the archive.
+     * @param name the name of the resource.
+     * @throws IOException if the archive could not be written.
+     */
+    synchronized void remove(String name) throws IOException {
+        if (getNameToEntryMap().containsKey(name)) {
+            appendRecord(name, null, 0, System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * Delete the archive file, removing all resources.
+     * @return true if the archive file was deleted, or didn't exist.
+     */
+    synchronized boolean delete() {
+        close();
+        nameToEntryMap = new LinkedHashMap<String, Entry>();
+        garbageSize = 0;
+        boolean deleted = !file.exists() || file.delete();
+        fileLength = deleted ? 0 : file.length();
+        recordValidation();
+        return deleted;
+    }
+
+    /**
+     * Close the archive file, if it is open.  It is opened again by the next operation which needs it.
+     */
+    synchronized void close() {
+        if (openFile == null) {
+            return;
+        }
+        try {
+            openFile.close();
+        } catch (IOException e) {
+            Util.log(e, "Unable to close " + file); //$NON-NLS-1$
+        }
+        openFile = null;
+        openForWriting = false;
+    }
+
+    /**
+     * @return the map from resource name to entry, reading the table of contents if it hasn't been read,
+     *   or if the archive file was changed by something else since the table of contents was last validated.
+     * @throws IOException if the archive could not be read.
+     */
+    private Map<String, Entry> getNameToEntryMap() throws IOException {
+        if (nameToEntryMap == null) {
+            readTableOfContents();
+
+        } else if (validatedGeneration != generation) {
+            // The time stamp only tells whether something else changed the file if this object hasn't changed it since.
+            boolean changed = file.length() != fileLength || (!writtenSinceValidation && file.lastModified() != validatedLastModified);
+            if (changed) {
+                close();
+                readTableOfContents();
+            } else {
+                recordValidation();
+            }
+        }
+        return nameToEntryMap;
+    }
+
+    /**
+     * Remember that the table of contents describes the archive file as it is now.
+     */
+    private void recordValidation() {
+        validatedLastModified = file.lastModified();
+        writtenSinceValidation = false;
+        validatedGeneration = generation;
+    }
+
+    /**
+     * @param forWriting whether the file will be written.  If so, the file and its folder are created if they don't exist.
+     * @return the archive file, opened if it isn't open.
+     * @throws IOException if the file could not be opened.
+     */
+    private RandomAccessFile getOpenFile(boolean forWriting) throws IOException {
+        if (openFile != null && (openForWriting || !forWriting)) {
+            return openFile;
+        }
+        close();
+
+        if (forWriting) {
+            File parentFolder = file.getParentFile();
+            if (parentFolder != null && !parentFolder.isDirectory() && !parentFolder.mkdirs() && !parentFolder.isDirectory()) {
+                throw new IOException("Unable to create folder: " + parentFolder); //$NON-NLS-1$
+            }
+        }
+        openFile = new RandomAccessFile(file, forWriting ? "rw" : "r"); //$NON-NLS-1$ //$NON-NLS-2$
+        openForWriting = forWriting;
+        return openFile;
+    }
+
+    /**
+     * Read the table of contents from the record headers.
+     * If the archive ends with an incomplete record (eg. if a write was interrupted), the incomplete record is removed.
+     * If the file isn't an archive in this format, the archive is treated as empty, and the file is replaced when
+     *   a resource is written.
+     * @throws IOException if the archive could not be read.
+     */
+    private void readTableOfContents() throws IOException {
+        nameToEntryMap = new LinkedHashMap<String, Entry>();
+        garbageSize = 0;
+        fileLength = 0;
+        recordValidation();
+        if (!file.exists()) {
+            return;
+        }
+
+        long actualLength = file.length();
+        long validLength = HEADER_SIZE;
+        DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (actualLength < HEADER_SIZE || input.readInt() != MAGIC || input.readInt() != VERSION) {
+                // eg. an archive written by an earlier version.  It only holds generated files, which will be generated again.
+                Util.log(null, "Discarding the contents of " + file + ", which is not a module resource archive in the current format", IStatus.INFO); //$NON-NLS-1$ //$NON-NLS-2$
+                return;
+            }
+
+            long position = HEADER_SIZE;
+            try {
+                while (position < actualLength) {
+                    long recordStart = position;
+                    byte[] nameBytes = new byte[input.readUnsignedShort()];
+                    input.readFully(nameBytes);
+                    long timeStamp = input.readLong();
+                    int storedLength = input.readInt();
+                    int size = input.readInt();
+                    long offset = recordStart + RECORD_HEADER_SIZE + nameBytes.length;
+                    position = offset;
+                    if (storedLength != REMOVED_LENGTH) {
+                        if (storedLength < 0 || size < 0 || offset + storedLength > actualLength) {
+                            // An incomplete record -- the contents run past the end of the file.
+                            break;
+                        }
+                        skipFully(input, storedLength);
+                        position += storedLength;
+                    }
+                    addEntry(new String(nameBytes, NAME_CHARSET), offset, storedLength, size, timeStamp, position - recordStart);
+                    validLength = position;
+                }
+            } catch (EOFException e) {
+                // An incomplete record.
+            }
+        } finally {
+            input.close();
+        }
+
+        if (validLength < actualLength) {
+            // Remove the incomplete record, so that records appended later can be read.
+            getOpenFile(true).setLength(validLength);
+        }
+        fileLength = validLength;
+        recordValidation();
+    }
+
+    /**
+     * Skip bytes in a stream.
+     * @param input the stream.
+     * @param nBytes the number of bytes to skip.
+     * @throws IOException if the stream could not be read, or ends before the bytes are skipped.
+     */
+    private static void skipFully(DataInputStream input, int nBytes) throws IOException {
+        while (nBytes > 0) {
+            int nSkipped = input.skipBytes(nBytes);
+            if (nSkipped <= 0) {
+                throw new EOFException();
+            }
+            nBytes -= nSkipped;
+        }
+    }
+
+    /**
+     * Read bytes from a channel.
+     * @param channel the channel.
+     * @param position the position of the first byte to read.
+     * @param bytes the array to fill with the bytes read.
+     * @throws IOException if the channel could not be read, or ends before the bytes are read.
+     */
+    private static void readFully(FileChannel channel, long position, byte[] bytes) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException();
+            }
+        }
+    }
+
+    /**
+     * @param contents the contents of a resource.
+     * @return the compressed contents, or the contents themselves if compressing them doesn't make them smaller.
+     */
+    private static byte[] compress(byte[] contents) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(contents);
+            deflater.finish();
+
+            // Only a smaller result is kept, so the output never needs to be larger than the contents.
+            byte[] buffer = new byte[contents.length];
+            int nDeflated = 0;
+            while (!deflater.finished() && nDeflated < buffer.length) {
+                nDeflated += deflater.deflate(buffer, nDeflated, buffer.length - nDeflated);
+            }
+            if (!deflater.finished() || nDeflated >= contents.length) {
+                return contents;
+            }
+            byte[] compressedContents = new byte[nDeflated];
+            System.arraycopy(buffer, 0, compressedContents, 0, nDeflated);
+            return compressedContents;
+
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Update the table of contents for a record.
+     * @param name the name of the resource.
+     * @param offset the position of the stored contents.
+     * @param storedLength the size of the stored contents, or REMOVED_LENGTH if the record marks the resource as removed.
+     * @param size the size of the resource.
+     * @param timeStamp the time at which the record was written.
+     * @param recordSize the size of the record.
+     */
+    private void addEntry(String name, long offset, int storedLength, int size, long timeStamp, long recordSize) {
+        Entry oldEntry = (storedLength == REMOVED_LENGTH) ? nameToEntryMap.remove(name) :
+                                                            nameToEntryMap.put(name, new Entry(offset, storedLength, size, timeStamp, recordSize));
+        if (oldEntry != null) {
+            garbageSize += oldEntry.recordSize;
+        }
+        if (storedLength == REMOVED_LENGTH) {
+            garbageSize += recordSize;
+        }
+    }
+
+    /**
+     * Append a record to the archive, and compact the archive if too much of it is taken by replaced records.
+     * @param name the name of the resource.
+     * @param storedContents the stored contents of the resource, or null to mark the resource as removed.
+     * @param size the size of the resource.
+     * @param timeStamp the time at which the resource was written.
+     * @throws IOException if the archive could not be written.
+     */
+    private void appendRecord(String name, byte[] storedContents, int size, long timeStamp) throws IOException {
+        Map<String, Entry> nameToEntryMap = getNameToEntryMap();
+
+        RandomAccessFile archiveFile = getOpenFile(true);
+        writtenSinceValidation = true;
+        long recordStart = fileLength;
+        if (recordStart < HEADER_SIZE) {
+            // A new archive, or a file which isn't an archive in this format.
+            archiveFile.setLength(0);
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).putInt(VERSION).flip();
+            archiveFile.getChannel().write(header, 0);
+            recordStart = HEADER_SIZE;
+            fileLength = HEADER_SIZE;
+        }
+
+        byte[] record = makeRecord(name, storedContents, size, timeStamp);
+        ByteBuffer recordBuffer = ByteBuffer.wrap(record);
+        while (recordBuffer.hasRemaining()) {
+            archiveFile.getChannel().write(recordBuffer, recordStart + recordBuffer.position());
+        }
+        fileLength = recordStart + record.length;
+
+        int storedLength = storedContents == null ? REMOVED_LENGTH : storedContents.length;
+        addEntry(name, recordStart + record.length - Math.max(storedLength, 0), storedLength, size, timeStamp, record.length);
+
+        if (garbageSize > MIN_GARBAGE_FOR_COMPACTION && garbageSize > fileLength - garbageSize) {
+            compact(nameToEntryMap);
+        }
+    }
+
+    /**
+     * @param name the name of a resource.
+     * @param storedContents the stored contents of the resource, or null to mark the resource as removed.
+     * @param size the size of the resource.
+     * @param timeStamp the time at which the resource was written.
+     * @return the bytes of the record for the resource.
+     * @throws IOException if the name is too long.
+     */
+    private static byte[] makeRecord(String name, byte[] storedContents, int size, long timeStamp) throws IOException {
+        byte[] nameBytes = name.getBytes(NAME_CHARSET);
+        if (nameBytes.length > 0xFFFF) {
+            throw new IOException("Resource name too long: " + name); //$NON-NLS-1$
+        }
+        int storedLength = storedContents == null ? 0 : storedContents.length;
+        ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + nameBytes.length + storedLength);
+        record.putShort((short)nameBytes.length);
+        record.put(nameBytes);
+        record.putLong(timeStamp);
+        record.putInt(storedContents == null ? REMOVED_LENGTH : storedContents.length);
+        record.putInt(size);
+        if (storedContents != null) {
+            record.put(storedContents);
+        }
+        return record.array();
+    }
+
+    /**
+     * Rewrite the archive with only the current records.
+     * The archive is written to a temporary file, which then replaces the archive.
+     * @param nameToEntryMap the table of contents.
+     * @throws IOException if the archive could not be written.
+     */
+    private void compact(Map<String, Entry> nameToEntryMap) throws IOException {
+        File compactedFile = new File(file.getPath() + ".tmp"); //$NON-NLS-1$
+        Map<String, Entry> compactedNameToEntryMap = new LinkedHashMap<String, Entry>();
+
+        FileChannel oldChannel = getOpenFile(false).getChannel();
+        FileOutputStream outputStream = new FileOutputStream(compactedFile);
+        long compactedLength;
+        try {
+            FileChannel channel = outputStream.getChannel();
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).putInt(VERSION).flip();
+            channel.write(header);
+
+            for (final Map.Entry<String, Entry> mapEntry : nameToEntryMap.entrySet()) {
+                Entry entry = mapEntry.getValue();
+                byte[] storedContents = new byte[entry.storedLength];
+                readFully(oldChannel, entry.offset, storedContents);
+
+                long recordStart = channel.position();
+                byte[] record = makeRecord(mapEntry.getKey(), storedContents, entry.size, entry.timeStamp);
+                ByteBuffer recordBuffer = ByteBuffer.wrap(record);
+                while (recordBuffer.hasRemaining()) {
+                    channel.write(recordBuffer);
+                }
+                compactedNameToEntryMap.put(mapEntry.getKey(), new Entry(recordStart + record.length - storedContents.length,
+                        storedContents.length, entry.size, entry.timeStamp, record.length));
+            }
+            compactedLength = channel.position();
+        } finally {
+            // Both files must be closed before the old archive can be replaced on some platforms.
+            close();
+            outputStream.close();
+        }
+
+        if (!file.delete()) {
+            // Leave the old archive in place -- it is still valid.
+            compactedFile.delete();
+            return;
+        }
+        if (!compactedFile.renameTo(file)) {
+            // The resources are lost, and the table of contents will be read again from the (missing) archive.
+            this.nameToEntryMap = null;
+            throw new IOException("Unable to replace " + file + " with " + compactedFile); //$NON-NLS-1$ //$NON-NLS-2$
+        }
+        this.nameToEntryMap = compactedNameToEntryMap;
+        this.garbageSize = 0;
+        this.fileLength = compactedLength;
+        recordValidation();
+    }
+}
@@ -0,0 +1,222 @@
+/*******************************************************************************
+ * Copyright (c) 2007 Business Objects Software Limited and others.
+ * All rights reserved.
+ * This file is made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Business Objects Software Limited - initial API and implementation
+ *******************************************************************************/
+
+/*
+ * ModuleSourceCache.java
+ * Created: Oct 17, 2007
+ */
+package org.openquark.cal.eclipse.core;
+
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.openquark.cal.compiler.ModuleName;
+import org.openquark.cal.compiler.SourceModel;
+
+
+/**
+ * A cache of module source text and source models, with a memory budget.
+ * <p>
+ * Each entry records the modification stamp of the module's source at the time the source was read.
+ * An entry is only returned if it was read from a source with the requested stamp, so a stale entry is never returned.
+ * <p>
+ * When the estimated size of the entries exceeds the budget, the least recently used entries are evicted.
+ * Pinned modules (eg. the Prelude, which is needed by almost everything) are never evicted.
+ */
+final class ModuleSourceCache {
+
+    /** The estimated number of bytes used for each character of module source. */
+    private static final int BYTES_PER_SOURCE_CHAR = 2;
+
+    /**
+     * The estimated number of bytes used by a source model for each character of the module source.
+     * This is a rough estimate -- source models are typically many times the size of the source text.
+     */
+    private static final int SOURCE_MODEL_BYTES_PER_SOURCE_CHAR = 20;
+
+    /**
+     * An entry in the cache.
+     */
+    private static final class Entry {
+        /** The modification stamp of the module source from which the entry was read. */
+        final long stamp;
+
+        /** The source text. */
+        final String source;
+
+        /** The source model, or null if the source hasn't been parsed. */
+        SourceModel.ModuleDefn sourceModel;
+
+        Entry(long stamp, String source) {
+            this.stamp = stamp;
+            this.source = source;
+        }
+
+        /**
+         * @return the estimated number of bytes used by the entry.
+         */
+        long getCost() {
+            int bytesPerChar = BYTES_PER_SOURCE_CHAR + (sourceModel == null ? 0 : SOURCE_MODEL_BYTES_PER_SOURCE_CHAR);
+            return (long)source.length() * bytesPerChar;
+        }
+    }
+
+    /** Map from module name to its entry, in order of access (least recently used first).  Guarded by this. */
+    private final Map<ModuleName, Entry> moduleNameToEntryMap = new LinkedHashMap<ModuleName, Entry>(16, 0.75f, true);
+
+    /** The names of the modules which are never evicted.  Guarded by this. */
+    private final Set<ModuleName> pinnedModuleNames = new HashSet<ModuleName>();
+
+    /** The maximum estimated size of the entries, in bytes.  Guarded by this. */
+    private long maxCost;
+
+    /** The estimated size of the entries, in bytes.  Guarded by this. */
+    private long totalCost = 0;
+
+    /**
+     * Constructor for a ModuleSourceCache.
+     * @param maxCost the maximum estimated size of the cached entries, in bytes.
+     */
+    ModuleSourceCache(long maxCost) {
+        this.maxCost = maxCost;
+    }
+
+    /**
+     * Set the memory budget, evicting entries if necessary.
+     * @param maxCost the maximum estimated size of the cached entries, in bytes.
+     */
+    synchronized void setMaxCost(long maxCost) {
+        this.maxCost = maxCost;
+        evictIfNecessary();
+    }
+
+    /**
+     * @return true if the estimated size of the entries has reached the memory budget.
+     */
+    synchronized boolean isFull() {
+        return totalCost >= maxCost;
+    }
+
+    /**
+     * Ensure that a module is never evicted from the cache.
+     * @param moduleName the name of the module.
+     */
+    synchronized void pin(ModuleName moduleName) {
+        pinnedModuleNames.add(moduleName);
+    }
+
+    /**
+     * @param moduleName the name of a module.
+     * @param stamp the current modification stamp of the module's source.
+     * @return the cached source text for the module, or null if the source isn't cached for the given stamp.
+     */
+    synchronized String getSource(ModuleName moduleName, long stamp) {
+        Entry entry = getEntry(moduleName, stamp);
+        return entry == null ? null : entry.source;
+    }
+
+    /**
+     * @param moduleName the name of a module.
+     * @param stamp the current modification stamp of the module's source.
+     * @return the cached source model for the module, or null if the source model isn't cached for the given stamp.
+     */
+    synchronized SourceModel.ModuleDefn getSourceModel(ModuleName moduleName, long stamp) {
+        Entry entry = getEntry(moduleName, stamp);
+        return entry == null ? null : entry.sourceModel;
+    }
+
+    /**
+     * Cache the source text for a module.
+     * @param moduleName the name of the module.
+     * @param stamp the modification stamp of the source from which the text was read.
+     * @param source the source text.
+     */
+    synchronized void putSource(ModuleName moduleName, long stamp, String source) {
+        Entry entry = getEntry(moduleName, stamp);
+        if (entry == null || !entry.source.equals(source)) {
+            putEntry(moduleName, new Entry(stamp, source));
+        }
+    }
+
+    /**
+     * Cache the source model for a module.
+     * @param moduleName the name of the module.
+     * @param stamp the modification stamp of the source from which the model was parsed.
+     * @param source the source text from which the model was parsed.
+     * @param sourceModel the source model.
+     */
+    synchronized void putSourceModel(ModuleName moduleName, long stamp, String source, SourceModel.ModuleDefn sourceModel) {
+        Entry entry = new Entry(stamp, source);
+        entry.sourceModel = sourceModel;
+        putEntry(moduleName, entry);
+    }
+
+    /**
+     * Remove any cached source and source model for a module.
+     * @param moduleName the name of the module.
+     */
+    synchronized void remove(ModuleName moduleName) {
+        Entry entry = moduleNameToEntryMap.remove(moduleName);
+        if (entry != null) {
+            totalCost -= entry.getCost();
+        }
+    }
+
+    /**
+     * Remove all entries.
+     */
+    synchronized void clear() {
+        moduleNameToEntryMap.clear();
+        totalCost = 0;
+    }
+
+    /**
+     * @param moduleName the name of a module.
+     * @param stamp the current modification stamp of the module's source.
+     * @return the entry for the module, or null if there is no entry for the given stamp.  Any stale entry is removed.
+     */
+    private Entry getEntry(ModuleName moduleName, long stamp) {
+        Entry entry = moduleNameToEntryMap.get(moduleName);
+        if (entry != null && entry.stamp != stamp) {
+            remove(moduleName);
+            return null;
+        }
+        return entry;
+    }
+
+    /**
+     * Add an entry, replacing any existing entry for the module, and evict entries if necessary.
+     * @param moduleName the name of the module.
+     * @param entry the entry.
+     */
+    private void putEntry(ModuleName moduleName, Entry entry) {
+        remove(moduleName);
+        moduleNameToEntryMap.put(moduleName, entry);
+        totalCost += entry.getCost();
+        evictIfNecessary();
+    }
+
+    /**
+     * Evict the least recently used unpinned entries until the entries fit within the budget.
+     */
+    private void evictIfNecessary() {
+        for (Iterator<Map.Entry<ModuleName, Entry>> it = moduleNameToEntryMap.entrySet().iterator(); it.hasNext() && totalCost > maxCost; ) {
+            Map.Entry<ModuleName, Entry> mapEntry = it.next();
+            if (!pinnedModuleNames.contains(mapEntry.getKey())) {
+                totalCost -= mapEntry.getValue().getCost();
+                it.remove();
+            }
+        }
+    }
+}
@@ -0,0 +1,199 @@
+/*******************************************************************************
+ * Copyright (c) 2007 Business Objects Software Limited and others.
+ * All rights reserved.
+ * This file is made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Business Objects Software Limited - initial API and implementation
+ *******************************************************************************/
+
+/*
+ * SourceModelPrefetchJob.java
+ * Created: Oct 17, 2007
+ */
+package org.openquark.cal.eclipse.core;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.core.resources.IProject;
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.IStatus;
+import org.eclipse.core.runtime.Status;
+import org.eclipse.core.runtime.jobs.Job;
+import org.openquark.cal.compiler.MessageLogger;
+import org.openquark.cal.compiler.ModuleName;
+import org.openquark.cal.compiler.ModuleSourceDefinitionGroup;
+import org.openquark.cal.eclipse.core.util.Messages;
+import org.openquark.cal.eclipse.core.util.Util;
+
+
+/**
+ * A background job which parses the source models of the writable modules in the workspace, so that the source models
+ *   are already cached when they are needed by search, refactoring, hover etc.
+ * <p>
+ * The job is scheduled when a build finishes, and cancelled when a build starts.
+ * Modules are parsed on a pool of low priority threads.  The job waits while user jobs are running,
+ *   and stops when the source cache is full, since parsing more modules would only evict the modules already parsed.
+ */
+public final class SourceModelPrefetchJob extends Job {
+
+    /** The time, in milliseconds, to wait after a build before starting to parse. */
+    private static final long SCHEDULE_DELAY = 1000;
+
+    /** The time, in milliseconds, to wait before checking again whether user jobs are running. */
+    private static final long USER_JOB_POLL_INTERVAL = 200;
+
+    /** The scheduled or running prefetch job, if any.  Guarded by SourceModelPrefetchJob.class. */
+    private static SourceModelPrefetchJob currentJob = null;
+
+    /**
+     * Thread factory for the worker threads.
+     * Worker threads are low priority daemon threads, so that they don't compete with the UI or prevent shutdown.
+     */
+    private static final ThreadFactory workerThreadFactory = new ThreadFactory() {
+        private int threadNumber = 0;
+
+        public synchronized Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "CAL Source Model Prefetch " + (++threadNumber)); //$NON-NLS-1$
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        }
+    };
+
+    /**
+     * Private constructor.  Use schedulePrefetch().
+     */
+    private SourceModelPrefetchJob() {
+        super(Messages.prefetch_jobName);
+        setSystem(true);
+        setPriority(Job.DECORATE);
+    }
+
+    /**
+     * Schedule a prefetch of the source models of all writable modules, cancelling any prefetch already in progress.
+     */
+    public static synchronized void schedulePrefetch() {
+        if (currentJob != null) {
+            currentJob.cancel();
+        }
+        currentJob = new SourceModelPrefetchJob();
+        currentJob.schedule(SCHEDULE_DELAY);
+    }
+
+    /**
+     * Cancel any scheduled or running prefetch.
+     */
+    public static synchronized void cancelPrefetch() {
+        if (currentJob != null) {
+            currentJob.cancel();
+            currentJob = null;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected IStatus run(final IProgressMonitor monitor) {
+        final CALModelManager modelManager = CALModelManager.getCALModelManager();
+
+        // The writable modules, in project build order.
+        Set<ModuleName> moduleNames = new LinkedHashSet<ModuleName>();
+        for (final IProject project : modelManager.getProjectBuildOrder()) {
+            if (Util.getCalProject(project) == null) {
+                continue;
+            }
+            ModuleSourceDefinitionGroup writableSubGroup = modelManager.getModuleSourceDefinitionGroup(project).getWritableSubGroup();
+            for (int i = 0, nModules = writableSubGroup.getNModules(); i < nModules; i++) {
+                moduleNames.add(writableSubGroup.getModuleSource(i).getModuleName());
+            }
+        }
+
+        monitor.beginTask(Messages.prefetch_jobName, moduleNames.size());
+
+        int nThreads = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+        ExecutorService executor = Executors.newFixedThreadPool(nThreads, workerThreadFactory);
+        try {
+            List<Runnable> tasks = new ArrayList<Runnable>(moduleNames.size());
+            for (final ModuleName moduleName : moduleNames) {
+                tasks.add(new Runnable() {
+                    public void run() {
+                        if (monitor.isCanceled() || !waitForUserJobs(monitor) || modelManager.isSourceCacheFull()) {
+                            return;
+                        }
+                        // Errors are not of interest here -- they are reported by the builder.
+                        modelManager.getModuleSourceModel(moduleName, false, new MessageLogger());
+                        monitor.worked(1);
+                    }
+                });
+            }
+            for (final Runnable task : tasks) {
+                executor.execute(task);
+            }
+            executor.shutdown();
+
+            while (!executor.awaitTermination(USER_JOB_POLL_INTERVAL, TimeUnit.MILLISECONDS)) {
+                if (monitor.isCanceled()) {
+                    executor.shutdownNow();
+                }
+            }
+
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+
+        } finally {
+            executor.shutdownNow();
+            monitor.done();
+
+            synchronized (SourceModelPrefetchJob.class) {
+                if (currentJob == this) {
+                    currentJob = null;
+                }
+            }
+        }
+
+        return monitor.isCanceled() ? Status.CANCEL_STATUS : Status.OK_STATUS;
+    }
+
+    /**
+     * Wait while any user jobs are running.
+     * @param monitor the progress monitor for this job.
+     * @return false if this job was cancelled or interrupted while waiting, true otherwise.
+     */
+    private static boolean waitForUserJobs(IProgressMonitor monitor) {
+        while (isUserJobRunning()) {
+            if (monitor.isCanceled()) {
+                return false;
+            }
+            try {
+                Thread.sleep(USER_JOB_POLL_INTERVAL);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return true if any user jobs are running.
+     */
+    private static boolean isUserJobRunning() {
+        for (final Job job : Job.getJobManager().find(null)) {
+            if (job.isUser() && job.getState() == Job.RUNNING) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
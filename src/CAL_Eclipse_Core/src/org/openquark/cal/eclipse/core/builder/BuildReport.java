@@ -0,0 +1,308 @@
+/*******************************************************************************
+ * Copyright (c) 2007 Business Objects Software Limited and others.
+ * All rights reserved.
+ * This file is made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Business Objects Software Limited - initial API and implementation
+ *******************************************************************************/
+
+/*
+ * BuildReport.java
+ * Created: Oct 17, 2007
+ */
+package org.openquark.cal.eclipse.core.builder;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.openquark.cal.compiler.ModuleName;
+
+
+/**
+ * The timings recorded during a single run of the CAL builder on a project.
+ * <p>
+ * Times are recorded for each phase of the build, and for each module compiled during the build.
+ * Module times are broken down by the module status reported by the compiler: the time before the first status
+ *   is reported for a module is counted as parsing and type checking, and the time between statuses is counted
+ *   against the earlier status (eg. generating code).
+ * <p>
+ * Reports for recent builds are available from BuildReportHistory.
+ *
+ * @see BuildReportHistory
+ */
+public final class BuildReport {
+
+    /** The phase in which the build is set up. */
+    public static final String PHASE_PRE_BUILD = "Pre-build"; //$NON-NLS-1$
+
+    /** The phase in which resource deltas are analyzed to determine what to compile. */
+    public static final String PHASE_DELTA_ANALYSIS = "Delta analysis"; //$NON-NLS-1$
+
+    /** The phase in which modules are compiled.  Includes writing files. */
+    public static final String PHASE_COMPILE = "Compile"; //$NON-NLS-1$
+
+    /** The time spent writing compiled files on the build thread.  Part of the compile phase. */
+    public static final String PHASE_WRITE_FILES = "Writing files"; //$NON-NLS-1$
+
+    /** The phase in which problem markers are updated.  Part of the post-build phase. */
+    public static final String PHASE_PROBLEM_MARKERS = "Updating problem markers"; //$NON-NLS-1$
+
+    /** The phase in which files written directly to the file system are refreshed into the workspace.  Part of the post-build phase. */
+    public static final String PHASE_REFRESH_OUTPUT = "Refreshing generated files"; //$NON-NLS-1$
+
+    /** The phase in which the results of the build are recorded. */
+    public static final String PHASE_POST_BUILD = "Post-build"; //$NON-NLS-1$
+
+    /** The module phase before the compiler reports any status for the module. */
+    public static final String MODULE_PHASE_PARSE_AND_TYPE_CHECK = "Parse and type check"; //$NON-NLS-1$
+
+    /** A full build. */
+    public static final String KIND_FULL = "Full"; //$NON-NLS-1$
+
+    /** An incremental build. */
+    public static final String KIND_INCREMENTAL = "Incremental"; //$NON-NLS-1$
+
+    /** The first build in a session, resuming from the state saved by the last session. */
+    public static final String KIND_RESUME = "Resume"; //$NON-NLS-1$
+
+    /** The report for the build in progress, if any. */
+    private static volatile BuildReport activeReport;
+
+    /** The name of the project which was built. */
+    private final String projectName;
+
+    /** The time at which the build started, as from System.currentTimeMillis(). */
+    private final long startTime;
+
+    /** The value of System.nanoTime() when the build started. */
+    private final long startNanos;
+
+    /** The kind of build.  One of the KIND_ constants. */
+    private String buildKind = KIND_INCREMENTAL;
+
+    /** The duration of the build in nanoseconds, or -1 if the build hasn't finished. */
+    private long totalNanos = -1;
+
+    /** Map from phase to the time spent in the phase, in nanoseconds. */
+    private final Map<String, Long> phaseNanosMap = new LinkedHashMap<String, Long>();
+
+    /** Map from module name to map from module phase to the time spent in the phase, in nanoseconds. */
+    private final Map<ModuleName, Map<String, Long>> moduleToPhaseNanosMap = new LinkedHashMap<ModuleName, Map<String, Long>>();
+
+    /** Map from module name to the last status reported for the module. */
+    private final Map<ModuleName, String> moduleToLastStatusMap = new HashMap<ModuleName, String>();
+
+    /** Map from module name to the time at which the last status was reported for the module. */
+    private final Map<ModuleName, Long> moduleToLastStatusNanosMap = new HashMap<ModuleName, Long>();
+
+    /** The time at which the last module status was reported, or at which compilation started. */
+    private long lastModuleStatusNanos;
+
+    /**
+     * Constructor for a BuildReport.
+     * @param projectName the name of the project being built.
+     */
+    BuildReport(String projectName) {
+        this.projectName = projectName;
+        this.startTime = System.currentTimeMillis();
+        this.startNanos = System.nanoTime();
+        this.lastModuleStatusNanos = startNanos;
+    }
+
+    /**
+     * Set the report for the build in progress.  Times reported via addActivePhaseTime() are recorded against this report.
+     * @param report the report, or null if no build is in progress.
+     */
+    static void setActiveReport(BuildReport report) {
+        activeReport = report;
+    }
+
+    /**
+     * Add to the time spent in a phase of the build in progress, if any.
+     * @param phase the phase.
+     * @param nanos the time to add, in nanoseconds.
+     */
+    public static void addActivePhaseTime(String phase, long nanos) {
+        BuildReport report = activeReport;
+        if (report != null) {
+            report.addPhaseTime(phase, nanos);
+        }
+    }
+
+    /**
+     * @param buildKind the kind of build.  One of the KIND_ constants.
+     */
+    synchronized void setBuildKind(String buildKind) {
+        this.buildKind = buildKind;
+    }
+
+    /**
+     * Add to the time spent in a phase.
+     * @param phase the phase.
+     * @param nanos the time to add, in nanoseconds.
+     */
+    synchronized void addPhaseTime(String phase, long nanos) {
+        addTime(phaseNanosMap, phase, nanos);
+    }
+
+    /**
+     * Notify the report that compilation is starting.
+     */
+    synchronized void compileStarting() {
+        lastModuleStatusNanos = System.nanoTime();
+    }
+
+    /**
+     * Notify the report that the compiler reported a status for a module.
+     * @param moduleName the name of the module.
+     * @param status a description of the status.
+     */
+    synchronized void moduleStatusReported(ModuleName moduleName, String status) {
+        long now = System.nanoTime();
+
+        Map<String, Long> phaseNanosForModule = moduleToPhaseNanosMap.get(moduleName);
+        if (phaseNanosForModule == null) {
+            phaseNanosForModule = new LinkedHashMap<String, Long>();
+            moduleToPhaseNanosMap.put(moduleName, phaseNanosForModule);
+        }
+
+        String lastStatus = moduleToLastStatusMap.get(moduleName);
+        if (lastStatus == null) {
+            addTime(phaseNanosForModule, MODULE_PHASE_PARSE_AND_TYPE_CHECK, now - lastModuleStatusNanos);
+        } else {
+            addTime(phaseNanosForModule, lastStatus, now - moduleToLastStatusNanosMap.get(moduleName).longValue());
+        }
+
+        moduleToLastStatusMap.put(moduleName, status);
+        moduleToLastStatusNanosMap.put(moduleName, Long.valueOf(now));
+        lastModuleStatusNanos = now;
+    }
+
+    /**
+     * Notify the report that the build has finished.
+     */
+    synchronized void finish() {
+        totalNanos = System.nanoTime() - startNanos;
+        moduleToLastStatusMap.clear();
+        moduleToLastStatusNanosMap.clear();
+    }
+
+    /**
+     * @param nanosMap a map from phase to time in nanoseconds.
+     * @param phase the phase.
+     * @param nanos the time to add to the phase.
+     */
+    private static void addTime(Map<String, Long> nanosMap, String phase, long nanos) {
+        Long oldNanos = nanosMap.get(phase);
+        nanosMap.put(phase, Long.valueOf(oldNanos == null ? nanos : oldNanos.longValue() + nanos));
+    }
+
+    /**
+     * @param nanosMap a map from phase to time in nanoseconds.
+     * @return a map from phase to time in milliseconds.
+     */
+    private static Map<String, Long> toMillisMap(Map<String, Long> nanosMap) {
+        Map<String, Long> millisMap = new LinkedHashMap<String, Long>();
+        for (final Map.Entry<String, Long> entry : nanosMap.entrySet()) {
+            millisMap.put(entry.getKey(), Long.valueOf(entry.getValue().longValue() / 1000000));
+        }
+        return millisMap;
+    }
+
+    /**
+     * @return the name of the project which was built.
+     */
+    public String getProjectName() {
+        return projectName;
+    }
+
+    /**
+     * @return the kind of build.  One of the KIND_ constants.
+     */
+    public synchronized String getBuildKind() {
+        return buildKind;
+    }
+
+    /**
+     * @return the time at which the build started, as from System.currentTimeMillis().
+     */
+    public long getStartTime() {
+        return startTime;
+    }
+
+    /**
+     * @return the duration of the build in milliseconds, or -1 if the build hasn't finished.
+     */
+    public synchronized long getTotalTime() {
+        return totalNanos < 0 ? -1 : totalNanos / 1000000;
+    }
+
+    /**
+     * @return map from phase to the time spent in the phase in milliseconds, for the phases which took place.
+     * Note that some phases are part of other phases (eg. PHASE_PROBLEM_MARKERS is part of PHASE_POST_BUILD).
+     */
+    public synchronized Map<String, Long> getPhaseTimes() {
+        return toMillisMap(phaseNanosMap);
+    }
+
+    /**
+     * @return map from module name to the total time spent compiling the module in milliseconds,
+     * for the modules for which the compiler reported a status.
+     */
+    public synchronized Map<ModuleName, Long> getModuleTimes() {
+        Map<ModuleName, Long> moduleTimeMap = new LinkedHashMap<ModuleName, Long>();
+        for (final Map.Entry<ModuleName, Map<String, Long>> entry : moduleToPhaseNanosMap.entrySet()) {
+            long moduleNanos = 0;
+            for (final Long phaseNanos : entry.getValue().values()) {
+                moduleNanos += phaseNanos.longValue();
+            }
+            moduleTimeMap.put(entry.getKey(), Long.valueOf(moduleNanos / 1000000));
+        }
+        return moduleTimeMap;
+    }
+
+    /**
+     * @param moduleName the name of a module.
+     * @return map from module phase to the time spent in the phase in milliseconds.  Empty if the module wasn't compiled.
+     */
+    public synchronized Map<String, Long> getModulePhaseTimes(ModuleName moduleName) {
+        Map<String, Long> phaseNanosForModule = moduleToPhaseNanosMap.get(moduleName);
+        if (phaseNanosForModule == null) {
+            return Collections.emptyMap();
+        }
+        return toMillisMap(phaseNanosForModule);
+    }
+
+    /**
+     * @param maxModules the maximum number of modules to return.
+     * @return the names of the modules which took longest to compile, slowest first.
+     */
+    public List<ModuleName> getSlowestModules(int maxModules) {
+        final Map<ModuleName, Long> moduleTimeMap = getModuleTimes();
+
+        List<ModuleName> moduleNames = new ArrayList<ModuleName>(moduleTimeMap.keySet());
+        Collections.sort(moduleNames, new Comparator<ModuleName>() {
+            public int compare(ModuleName moduleName1, ModuleName moduleName2) {
+                return moduleTimeMap.get(moduleName2).compareTo(moduleTimeMap.get(moduleName1));
+            }
+        });
+
+        return moduleNames.size() > maxModules ? new ArrayList<ModuleName>(moduleNames.subList(0, maxModules)) : moduleNames;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString() {
+        return "BuildReport: " + projectName + " (" + getBuildKind() + ") " + getTotalTime() + "ms " + getPhaseTimes(); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$
+    }
+}
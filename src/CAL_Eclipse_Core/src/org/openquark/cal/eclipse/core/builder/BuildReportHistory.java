@@ -0,0 +1,112 @@
+/*******************************************************************************
+ * Copyright (c) 2007 Business Objects Software Limited and others.
+ * All rights reserved.
+ * This file is made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Business Objects Software Limited - initial API and implementation
+ *******************************************************************************/
+
+/*
+ * BuildReportHistory.java
+ * Created: Oct 17, 2007
+ */
+package org.openquark.cal.eclipse.core.builder;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+
+/**
+ * Keeps the reports for the most recent runs of the CAL builder.
+ *
+ * @see BuildReport
+ */
+public final class BuildReportHistory {
+
+    /**
+     * Notified when a build finishes.
+     */
+    public interface Listener {
+        /**
+         * Called when a build finishes.  May be called on any thread.
+         * @param report the report for the build.
+         */
+        public void buildReportAdded(BuildReport report);
+    }
+
+    /** The maximum number of reports to keep. */
+    public static final int MAX_REPORTS = 20;
+
+    /** The reports for the most recent builds, most recent first.  Guarded by itself. */
+    private static final LinkedList<BuildReport> reports = new LinkedList<BuildReport>();
+
+    /** The listeners to notify when a build finishes.  Guarded by itself. */
+    private static final List<Listener> listeners = new ArrayList<Listener>();
+
+    /*
+     * Not intended to be instantiated.
+     */
+    private BuildReportHistory() {
+    }
+
+    /**
+     * @return the reports for the most recent builds, most recent first.
+     */
+    public static List<BuildReport> getReports() {
+        synchronized (reports) {
+            return new ArrayList<BuildReport>(reports);
+        }
+    }
+
+    /**
+     * Discard all reports.
+     */
+    public static void clear() {
+        synchronized (reports) {
+            reports.clear();
+        }
+    }
+
+    /**
+     * @param listener a listener to notify when a build finishes.
+     */
+    public static void addListener(Listener listener) {
+        synchronized (listeners) {
+            listeners.add(listener);
+        }
+    }
+
+    /**
+     * @param listener a listener which should no longer be notified when a build finishes.
+     */
+    public static void removeListener(Listener listener) {
+        synchronized (listeners) {
+            listeners.remove(listener);
+        }
+    }
+
+    /**
+     * Add the report for a finished build, discarding the oldest report if necessary.
+     * @param report the report.
+     */
+    static void addReport(BuildReport report) {
+        synchronized (reports) {
+            reports.addFirst(report);
+            while (reports.size() > MAX_REPORTS) {
+                reports.removeLast();
+            }
+        }
+
+        final List<Listener> listenersCopy;
+        synchronized (listeners) {
+            listenersCopy = new ArrayList<Listener>(listeners);
+        }
+        for (final Listener listener : listenersCopy) {
+            listener.buildReportAdded(report);
+        }
+    }
+}
@@ -29,6 +29,7 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
@@ -44,9 +45,7 @@ import org.eclipse.core.resources.IResourceDelta;
 import org.eclipse.core.resources.IResourceDeltaVisitor;
 import org.eclipse.core.resources.IResourceVisitor;
 import org.eclipse.core.resources.IStorage;
-import org.eclipse.core.resources.IWorkspaceRunnable;
 import org.eclipse.core.resources.IncrementalProjectBuilder;
-import org.eclipse.core.resources.ResourcesPlugin;
 import org.eclipse.core.runtime.CoreException;
 import org.eclipse.core.runtime.IPath;
 import org.eclipse.core.runtime.IProgressMonitor;
@@ -59,6 +58,7 @@ import org.openquark.cal.compiler.MessageKind;
 import org.openquark.cal.compiler.MessageLogger;
 import org.openquark.cal.compiler.ModuleContainer;
 import org.openquark.cal.compiler.ModuleName;
+import org.openquark.cal.compiler.ModuleSourceDefinition;
 import org.openquark.cal.compiler.ModuleSourceDefinitionGroup;
 import org.openquark.cal.compiler.ModuleTypeInfo;
 import org.openquark.cal.compiler.QualifiedName;
@@ -77,6 +77,8 @@ import org.openquark.cal.eclipse.core.CALModelManager;
 import org.openquark.cal.eclipse.core.CALModelMarker;
 import org.openquark.cal.eclipse.core.CoreOptionIDs;
 import org.openquark.cal.eclipse.core.EclipseModuleSourceDefinitionGroup;
+import org.openquark.cal.eclipse.core.EclipseProgramResourcePathRepository;
+import org.openquark.cal.eclipse.core.SourceModelPrefetchJob;
 import org.openquark.cal.eclipse.core.CALModelManager.SourceManagerFactory;
 import org.openquark.cal.eclipse.core.util.Messages;
 import org.openquark.cal.eclipse.core.util.Util;
@@ -86,7 +88,6 @@ import org.openquark.cal.services.FileSystemResourceHelper;
 import org.openquark.cal.services.ProgramModelManager;
 import org.openquark.cal.services.ResourcePath;
 import org.openquark.util.Pair;
-import org.openquark.util.UnsafeCast;
 
 
 /**
@@ -121,6 +122,12 @@ public class CALBuilder extends IncrementalProjectBuilder {
      * It is null if clean() is called, or if never built.
      * */
     private ProjectBuildState lastState;
+    
+    /** The timings for the build in progress, or null if the builder isn't building. */
+    private BuildReport buildReport;
+    
+    /** Whether any CAL project has been built in the current build iteration. */
+    private static volatile boolean builtInThisIteration = false;
 
     /**
      * List of listeners of modules that have been compiled.
@@ -295,11 +302,19 @@ public class CALBuilder extends IncrementalProjectBuilder {
         private final Set/*ModuleName*/<ModuleName> loadedModuleNames = new HashSet<ModuleName>();
         
         private final IProgressMonitor progressMonitor;
+        
+        /** The report in which to record module timings, or null to not record timings. */
+        private final BuildReport buildReport;
 
-        BuildStatusListener(IProgressMonitor progressMonitor) {
+        BuildStatusListener(IProgressMonitor progressMonitor, BuildReport buildReport) {
             progressMonitor = Util.monitorFor(progressMonitor);
             this.progressMonitor = progressMonitor;
+            this.buildReport = buildReport;
             progressMonitor.beginTask("", TICKS_PER_MONITOR);
+            
+            if (buildReport != null) {
+                buildReport.compileStarting();
+            }
         }
         
         /**
@@ -317,6 +332,9 @@ public class CALBuilder extends IncrementalProjectBuilder {
          */
         public void setModuleStatus(StatusListener.Status.Module moduleStatus, ModuleName moduleName) {
             checkAbort();
+            if (buildReport != null) {
+                buildReport.moduleStatusReported(moduleName, moduleStatus.toString());
+            }
             if (moduleStatus == StatusListener.SM_LOADED) {
                 progressMonitor.subTask("Loaded module " + moduleName);
                 loadedModuleNames.add(moduleName);
@@ -341,7 +359,7 @@ public class CALBuilder extends IncrementalProjectBuilder {
          * @return (Set of ModuleName) the names of modules for which SM_LOADED module status events have been received by this listener.
          */
         public Set/*ModuleName*/<ModuleName> getLoadedModuleNames() {
-            return loadedModuleNames;
+            return new HashSet<ModuleName>(loadedModuleNames);
         }
         
         /**
@@ -369,6 +387,10 @@ public class CALBuilder extends IncrementalProjectBuilder {
      */
     public static void buildStarting() {
         // build is about to start
+        // Don't compete with the build for the source models.
+        SourceModelPrefetchJob.cancelPrefetch();
+        builtInThisIteration = false;
+        EclipseProgramResourcePathRepository.buildStarting();
     }
 
     /**
@@ -376,10 +398,14 @@ public class CALBuilder extends IncrementalProjectBuilder {
      * This hook is invoked during POST_AUTO_BUILD notification
      */
     public static void buildFinished() {
-        /*
-         * TODOEL: Not yet called.
-         */
         GlobalBuildState.resetProblemCounters();
+        EclipseProgramResourcePathRepository.buildFinished();
+        
+        // Parse the source models of the built modules in the background, so that they are ready for search, refactoring, etc.
+        if (builtInThisIteration) {
+            builtInThisIteration = false;
+            SourceModelPrefetchJob.schedulePrefetch();
+        }
     }
 
     /**
@@ -399,6 +425,16 @@ public class CALBuilder extends IncrementalProjectBuilder {
         return CoreOptionIDs.ENABLED.equals(CALEclipseCorePlugin.getOption(CoreOptionIDs.CORE_CAL_BUILD_ENABLE));
     }
     
+    /**
+     * @param project a project.
+     * @return true if the project hasn't been built in this session, and its next build will resume from the state saved by the last session.
+     * In this case, the problem markers from the last session are still valid, and will be updated by the build as necessary.
+     */
+    public static boolean willResumeFromSavedState(IProject project) {
+        ProjectBuildState lastBuiltState = CALModelManager.getCALModelManager().getLastBuiltState(project);
+        return lastBuiltState != null && lastBuiltState.isRestored();
+    }
+    
     /**
      * {@inheritDoc}
      */
@@ -426,18 +462,38 @@ public class CALBuilder extends IncrementalProjectBuilder {
         
         monitor.beginTask("", TICKS_PER_MONITOR);
         
+        buildReport = new BuildReport(currentProject.getName());
+        BuildReport.setActiveReport(buildReport);
+        builtInThisIteration = true;
+        
+        if (lastState == null) {
+            // This builder hasn't built the project in this session.  Try to pick up the state saved by the last session.
+            lastState = CALModelManager.getCALModelManager().getLastBuiltState(currentProject);
+        }
+        
         boolean ok = false;
         try {
             Util.checkCanceled(monitor);
             if (isWorthBuilding()) {
-                if (kind == FULL_BUILD) {
+                if (lastState != null && lastState.isRestored() && kind != CLEAN_BUILD) {
+                    // The first build since startup, with a saved state to resume from.
+                    buildReport.setBuildKind(BuildReport.KIND_RESUME);
+                    resumeBuild(getSubMonitor(monitor, 1.0));
+                
+                } else if (kind == FULL_BUILD) {
+                    buildReport.setBuildKind(BuildReport.KIND_FULL);
                     buildAll(getSubMonitor(monitor, 1.0));
                 
                 } else {
+                    long findDeltasStartTime = System.nanoTime();
                     Set<IResourceDelta> deltas = findDeltas(currentProject, getSubMonitor(monitor, 0.2));
+                    buildReport.addPhaseTime(BuildReport.PHASE_DELTA_ANALYSIS, System.nanoTime() - findDeltasStartTime);
+                    
                     if (deltas == null) {
+                        buildReport.setBuildKind(BuildReport.KIND_FULL);
                         buildAll(getSubMonitor(monitor, 0.8));
                     } else {
+                        buildReport.setBuildKind(BuildReport.KIND_INCREMENTAL);
                         buildDeltas(deltas, getSubMonitor(monitor, 0.8));
                     }
                 }
@@ -456,6 +512,13 @@ public class CALBuilder extends IncrementalProjectBuilder {
             
             monitor.done();
             cleanup();
+            
+            buildReport.finish();
+            BuildReport.setActiveReport(null);
+            if (ok) {
+                BuildReportHistory.addReport(buildReport);
+            }
+            buildReport = null;
         }
         IProject[] requiredProjects = getRequiredProjects(currentProject, true);
         if (DEBUG) {
@@ -469,12 +532,14 @@ public class CALBuilder extends IncrementalProjectBuilder {
      * @param monitor the tracking monitor.
      */
     private void preBuild(IProgressMonitor monitor) {
+        long preBuildStartTime = System.nanoTime();
         Util.checkCanceled(monitor);
         monitor.subTask(Messages.build_preparingBuild);
 //        if (DEBUG && lastState != null) {
 //            System.out.println("Clearing last state : " + lastState); //$NON-NLS-1$
 //        }
 //        clearLastState(); // clear the previously built state so if the build fails, a full build will occur next time
+        buildReport.addPhaseTime(BuildReport.PHASE_PRE_BUILD, System.nanoTime() - preBuildStartTime);
     }
     
     /**
@@ -483,10 +548,15 @@ public class CALBuilder extends IncrementalProjectBuilder {
      * @param updatedInputFiles (List of IResource) the files which were updated (loaded or otherwise changed) during this build.
      * ie. the resource delta was IResourceDelta.CHANGED (not ADDED or REMOVED).
      * If null, all resources in the project are taken as changed.
+     * @param importGraph the import graph for the project's modules after the build, or null if not known.
+     * @param interfaceFingerprintMap map from module name to interface fingerprint for the project's modules after the build,
+     *   or null if these should be computed from the program.
      * @param monitor the tracking monitor.
      */
-    private void postBuild(CompilerMessageLogger logger, List<IFile> updatedInputFiles, IProgressMonitor monitor) {
+    private void postBuild(CompilerMessageLogger logger, List<IFile> updatedInputFiles, ModuleImportGraph importGraph,
+            Map<ModuleName, String> interfaceFingerprintMap, IProgressMonitor monitor) {
 
+        long postBuildStartTime = System.nanoTime();
         monitor.beginTask("", TICKS_PER_MONITOR);
         
         try {
@@ -496,11 +566,22 @@ public class CALBuilder extends IncrementalProjectBuilder {
             }
             
             // Update the problem markers from the logger.
+            long problemMarkersStartTime = System.nanoTime();
             updateProblemMarkers(updatedInputFiles, logger);
+            buildReport.addPhaseTime(BuildReport.PHASE_PROBLEM_MARKERS, System.nanoTime() - problemMarkersStartTime);
             
             // Log internal errors from the logger;
             logInternalErrors(logger);
             
+            // Bring any files written directly to the file system into the workspace.
+            long refreshStartTime = System.nanoTime();
+            try {
+                EclipseProgramResourcePathRepository.refreshDirectOutput(null);
+            } catch (CoreException e) {
+                Util.log(e, "Unable to refresh the generated files for project: " + getProject().getName()); //$NON-NLS-1$
+            }
+            buildReport.addPhaseTime(BuildReport.PHASE_REFRESH_OUTPUT, System.nanoTime() - refreshStartTime);
+            
             // mark output folders as derived.
             IFolder[] outputFolders = getOutputFolders();
             for (final IFolder folder : outputFolders) {
@@ -518,10 +599,12 @@ public class CALBuilder extends IncrementalProjectBuilder {
             }
             
             // Record the new build state.
-            this.lastState = new ProjectBuildState(this);
+            this.lastState = new ProjectBuildState(this, importGraph, interfaceFingerprintMap, lastState);
+            CALModelManager.getCALModelManager().setLastBuiltState(getProject(), lastState);
 
         } finally {
             monitor.done();
+            buildReport.addPhaseTime(BuildReport.PHASE_POST_BUILD, System.nanoTime() - postBuildStartTime);
         }
     }
     
@@ -531,57 +614,77 @@ public class CALBuilder extends IncrementalProjectBuilder {
      * @author Greg McClement
      */
     private static class MessageLoggerWithNoDuplicates extends MessageLogger{
+        
         /**
-         * @param range1 first range to compare
-         * @param range2 second range to compare
-         * @return true if the given source range cover the same positions
+         * The key by which logged messages are compared.
+         * Two messages are the same if their source ranges cover the same positions (or are both null),
+         *   and their string representations (which include the severity and the message text) are equal.
          */
-        public boolean same(SourceRange range1, SourceRange range2){
-            if (SourcePosition.compareByPosition.compare(range1.getStartSourcePosition(), range2.getStartSourcePosition()) != 0){
-                return false;
-            }
-            
-            if (SourcePosition.compareByPosition.compare(range1.getEndSourcePosition(), range2.getEndSourcePosition()) != 0){
-                return false;
-            }
+        private static final class MessageKey {
+            private final boolean hasSourceRange;
+            private final int startLine;
+            private final int startColumn;
+            private final int endLine;
+            private final int endColumn;
+            private final String messageString;
             
-            return true;
-        }
-
-        private boolean same(CompilerMessage m1, CompilerMessage m2){
-            if (m1.getSourceRange() != null && m2.getSourceRange() != null){
-                if (!same(m1.getSourceRange(), m2.getSourceRange())){
-                    return false;
+            MessageKey(CompilerMessage message) {
+                SourceRange sourceRange = message.getSourceRange();
+                if (sourceRange != null) {
+                    SourcePosition startPosition = sourceRange.getStartSourcePosition();
+                    SourcePosition endPosition = sourceRange.getEndSourcePosition();
+                    
+                    this.hasSourceRange = true;
+                    this.startLine = startPosition.getLine();
+                    this.startColumn = startPosition.getColumn();
+                    this.endLine = endPosition.getLine();
+                    this.endColumn = endPosition.getColumn();
+                } else {
+                    this.hasSourceRange = false;
+                    this.startLine = 0;
+                    this.startColumn = 0;
+                    this.endLine = 0;
+                    this.endColumn = 0;
                 }
+                this.messageString = message.toString();
             }
-            else{
-                if (m1.getSourceRange() == null && m2.getSourceRange() == null){
-                }
-                else{
-                    // on is null and the other isn't
+            
+            /**
+             * {@inheritDoc}
+             */
+            @Override
+            public boolean equals(Object obj) {
+                if (!(obj instanceof MessageKey)) {
                     return false;
                 }
+                MessageKey other = (MessageKey)obj;
+                return hasSourceRange == other.hasSourceRange &&
+                       startLine == other.startLine && startColumn == other.startColumn &&
+                       endLine == other.endLine && endColumn == other.endColumn &&
+                       messageString.equals(other.messageString);
             }
             
-            if (!m1.toString().equals(m2.toString())){
-                return false;
+            /**
+             * {@inheritDoc}
+             */
+            @Override
+            public int hashCode() {
+                int result = messageString.hashCode();
+                result = 31 * result + startLine;
+                result = 31 * result + startColumn;
+                result = 31 * result + endLine;
+                result = 31 * result + endColumn;
+                return hasSourceRange ? result : ~result;
             }
-            
-            return true;
         }
         
-        private boolean alreadyLogged(CompilerMessage passedInMessage) {
-            for (final CompilerMessage message : getCompilerMessages()) {
-                if (same(passedInMessage, message)) {
-                    return true;
-                }
-            }
-            return false;
-        }
+        /** The keys of the messages logged so far, so that duplicates can be found without scanning the logged messages. */
+        private final Set<MessageKey> loggedMessageKeys = new HashSet<MessageKey>();
         
         @Override
         public void logMessage(CompilerMessage compilerMessage) {
-            if (alreadyLogged(compilerMessage)){
+            // Record the key first, as logging the message may throw (eg. if the maximum number of errors is exceeded).
+            if (!loggedMessageKeys.add(new MessageKey(compilerMessage))){
                 return;
             }
             super.logMessage(compilerMessage);
@@ -693,15 +796,17 @@ public class CALBuilder extends IncrementalProjectBuilder {
         CALModelManager modelManager = CALModelManager.getCALModelManager();
 
         /*
-         * Delete problem markers.
+         * Markers are gathered into the reconciler, which then updates the existing markers in a single workspace operation.
+         * Markers on the updated resources which are not re-added are deleted.
          */
+        ProblemMarkerReconciler markerReconciler = new ProblemMarkerReconciler(CALModelMarker.CAL_MODEL_PROBLEM_MARKER);
         
         final HashSet<ModuleName> wasCompiled = new HashSet<ModuleName>();
         if (updatedInputFiles == null) {
-            removeProblemsFor(getProject());
+            markerReconciler.replaceMarkersOn(getProject());
         } else {
             for (final IFile resource : updatedInputFiles) {
-                removeProblemsFor(resource);
+                markerReconciler.replaceMarkersOn(resource);
                 ModuleName moduleName = modelManager.getModuleName(resource);
                 if (moduleName != null) {
                     wasCompiled.add(moduleName);
@@ -709,6 +814,9 @@ public class CALBuilder extends IncrementalProjectBuilder {
             }
         }
         
+        // Map from file to its source text, so that each file is only read once.
+        Map<IFile, String> fileToSourceTextMap = new HashMap<IFile, String>();
+        
         /*
          * Add new problem markers.
          */
@@ -764,15 +872,14 @@ public class CALBuilder extends IncrementalProjectBuilder {
                 }
             }
             
-            // Assign to final var so that it can be acccessed by the runnable.
             // we only care about updating markers if this is a file, not a jar entry
             if (! (markerResourceTemp instanceof IFile)) {
-                return;
+                continue;
             }
             final IFile markerResource = (IFile) markerResourceTemp;
             
-            // Construct the attribute map then create the marker with the attributes.
-            try {
+            // Construct the attribute map then add the marker with the attributes.
+            {
                 // The attributes for the marker.
                 final Map<String, Object> attributeMap = new HashMap<String, Object>();
 
@@ -798,32 +905,11 @@ public class CALBuilder extends IncrementalProjectBuilder {
                 if (sourceRange != null) {
 
                     // Get the source text.
-                    // Note: SLOW.
-                    ByteArrayOutputStream baos = new ByteArrayOutputStream(4096);
-                    InputStream contents = null;
-                    try {
-                        contents = (markerResource).getContents();
-                        FileSystemResourceHelper.transferData(contents, baos);
-                    } catch (CoreException e) {
-                        e.printStackTrace();
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    } finally {
-                        try {
-                            baos.close();
-                        } catch (IOException e) {
-                            e.printStackTrace();
-                        }
-
-                        if (contents != null) {
-                            try {
-                                contents.close();
-                            } catch (IOException e) {
-                                e.printStackTrace();
-                            }
-                        }
+                    String sourceText = fileToSourceTextMap.get(markerResource);
+                    if (sourceText == null) {
+                        sourceText = getSourceText(markerResource);
+                        fileToSourceTextMap.put(markerResource, sourceText);
                     }
-                    String sourceText = new String(baos.toByteArray());         // TODOEL: converted using platform charset.
 
                     SourcePosition startSourcePosition = sourceRange.getStartSourcePosition();
                     if (startSourcePosition.getLine() != 0){
@@ -884,13 +970,8 @@ public class CALBuilder extends IncrementalProjectBuilder {
                     }
                 }
 
-                // Post the marker (unless it's a duplicate)
-                postMarkerIfNonDuplicate(markerResource, attributeMap);
-
-            } catch (CoreException e) {
-                // TODOEL Auto-generated catch block
-                // Project or marker doesn't exist.
-                Util.log(e, e.getMessage());
+                // Add the marker (unless it's a duplicate)
+                markerReconciler.addMarker(markerResource, attributeMap);
             }
             
             /*
@@ -906,23 +987,11 @@ public class CALBuilder extends IncrementalProjectBuilder {
             
                 final IFile duplicateSourceFile = (IFile)duplicateIStorage;
                 if (duplicateSourceFile.getProject() == project) {
-                    // Batch marker creation with updates so that only 1 resource change is broadcast.
-                    try {
-                        ResourcesPlugin.getWorkspace().run(new IWorkspaceRunnable() {
-                            public void run(IProgressMonitor monitor) throws CoreException {
-                                IMarker marker = duplicateSourceFile.createMarker(CALModelMarker.CAL_MODEL_PROBLEM_MARKER);
-                                
-                                marker.setAttribute(IMarker.MESSAGE, "Source file " + duplicateSourceFile.getName() + " already exists.");
-                                marker.setAttribute(IMarker.SEVERITY, IMarker.SEVERITY_ERROR);
-                                
-                            }
-                        }, null);
-                        
-                    } catch (CoreException e) {
-                        // TODOEL Auto-generated catch block
-                        // Project or marker doesn't exist.
-                        e.printStackTrace();
-                    }
+                    Map<String, Object> attributeMap = new HashMap<String, Object>();
+                    attributeMap.put(IMarker.MESSAGE, "Source file " + duplicateSourceFile.getName() + " already exists.");
+                    attributeMap.put(IMarker.SEVERITY, Integer.valueOf(IMarker.SEVERITY_ERROR));
+                    
+                    markerReconciler.addMarker(duplicateSourceFile, attributeMap);
                 }
             }
         }
@@ -935,21 +1004,64 @@ public class CALBuilder extends IncrementalProjectBuilder {
                 for (Pair<IStorage, IPackageFragmentRoot> invalidResourceInfo : resourcesWithInvalidNames) {
                     IStorage iStorage = invalidResourceInfo.fst();
                     String message = "Resource name does not correspond to a module name: " + iStorage.getFullPath().toString();
-                    attachErrorMarkerToStorage(iStorage, invalidResourceInfo.snd(), message);
+                    attachErrorMarkerToStorage(markerReconciler, iStorage, invalidResourceInfo.snd(), message);
                 }
             }
         }
 
+        // Apply the changes to the markers.  Only one resource change is broadcast.
+        try {
+            markerReconciler.reconcile();
+        } catch (CoreException e) {
+            // Project or marker doesn't exist.
+            Util.log(e, e.getMessage());
+        }
+
         notify(wasCompiled);
     }
     
+    /**
+     * Get the text of a file.
+     * Note: SLOW.
+     * @param file the file to read.
+     * @return the text of the file, or the text read up to the point of failure if there was a problem reading it.
+     */
+    private static String getSourceText(IFile file) {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(4096);
+        InputStream contents = null;
+        try {
+            contents = file.getContents();
+            FileSystemResourceHelper.transferData(contents, baos);
+        } catch (CoreException e) {
+            e.printStackTrace();
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            try {
+                baos.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+
+            if (contents != null) {
+                try {
+                    contents.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+        return new String(baos.toByteArray());         // TODOEL: converted using platform charset.
+    }
+    
     /**
      * Attach an error marker to the given IStorage
+     * @param markerReconciler the reconciler to which the marker should be added.
      * @param iStorage the IStorage to which the marker should be attached.
      * @param packageRoot the package fragment root associated with iStorage.
      * @param message the message associated with the marker.
      */
-    private void attachErrorMarkerToStorage(IStorage iStorage, IPackageFragmentRoot packageRoot, String message) {
+    private void attachErrorMarkerToStorage(ProblemMarkerReconciler markerReconciler, IStorage iStorage, IPackageFragmentRoot packageRoot, String message) {
 
         // Determine the associated resource.
         IResource markerResource;
@@ -972,48 +1084,9 @@ public class CALBuilder extends IncrementalProjectBuilder {
         attributeMap.put(IMarker.MESSAGE, message);
         attributeMap.put(IMarker.SEVERITY, Integer.valueOf(IMarker.SEVERITY_ERROR));
 
-        try {
-            CALBuilder.postMarkerIfNonDuplicate(markerResource, attributeMap);
-        } catch (CoreException e) {
-            Util.log(e, "Exception posting marker to resource " + markerResource);
-        }
-
+        markerReconciler.addMarker(markerResource, attributeMap);
     }
     
-    /**
-     * Post the given marker, unless there is already a marker which contains the attributes in the attribute map.
-     * The marker can have other attributes as well, for instance if the user has marked it as important -- these will be ignored.
-     * 
-     * @param markerResource the resource on which the marker will be created.
-     * @param attributeMap the attribute names and values the marker will have.
-     * @throws CoreException if there is a problem creating the marker or accessing its attributes.
-     */
-    private static void postMarkerIfNonDuplicate(final IResource markerResource, final Map<String, Object> attributeMap) throws CoreException {
-        IMarker[] existingMarkers = markerResource.findMarkers(CALModelMarker.CAL_MODEL_PROBLEM_MARKER, false, IResource.DEPTH_ZERO);
-
-        boolean markerExists = false;
-        for (final IMarker existingMarker : existingMarkers) {
-            // Check whether there is a marker with the same attributes.
-            // The marker can have other attributes as well, for instance if the user has marked it as important.
-            if (markerHasAttributes(existingMarker, attributeMap)) {
-                markerExists = true;
-                break;
-            }
-        }
-
-        // Post the marker.
-        if (!markerExists) {
-            // Batch marker creation with updates so that only 1 resource change is broadcast.
-            ResourcesPlugin.getWorkspace().run(new IWorkspaceRunnable() {
-                public void run(IProgressMonitor monitor) throws CoreException {
-
-                    IMarker marker = markerResource.createMarker(CALModelMarker.CAL_MODEL_PROBLEM_MARKER);
-                    marker.setAttributes(attributeMap);
-                }
-            }, null);
-        }
-
-    }
     /** 
      * Strings (in resource bundle) which correspond to internal errors - case insensitive
      * Used by logInternalErrors()
@@ -1066,48 +1139,6 @@ public class CALBuilder extends IncrementalProjectBuilder {
             }
         }
     }
-
-    /**
-     * Return whether a marker has the attributes in a provided attribute map.
-     * @param marker the marker to consider
-     * @param attributeMap the attribute map to consider
-     * @return whether the marker has the attributes in the attribute map.
-     * False if any attribute values differ.  Note that the marker is allowed to have more attributes than provided in the map.
-     * @throws CoreException if there was a problem getting the value of the attribute from either of the markers.
-     */
-    private static boolean markerHasAttributes(IMarker marker, Map<String, Object> attributeMap) throws CoreException {
-
-        Map<String, Object> markerAttributeMap = UnsafeCast.unsafeCast(marker.getAttributes());  // attribute value - string, integer, boolean, or null
-        
-        // Check for too many attributes.
-        if (markerAttributeMap.size() > attributeMap.size()) {
-            return false;
-        }
-        
-        // Check for different attribute values.
-        for (final Map.Entry<String, Object> mapEntry : markerAttributeMap.entrySet()) {
-            Object value1 = mapEntry.getValue();
-            Object value2 = attributeMap.get(mapEntry.getKey());
-            
-            if (value1 == null) {
-                if (value2 != null) {
-                    return false;
-                } else {
-                    // both null
-                }
-            
-            } else {
-                if (value2 == null || !value1.equals(value2)) {
-                    return false;
-                } else {
-                    // same value
-                }
-            }
-        }
-        
-        // They're the same.
-        return true;
-    }
     
     /**
      * @return CompilationOptions to use when compiling modules from this builder.
@@ -1119,6 +1150,68 @@ public class CALBuilder extends IncrementalProjectBuilder {
         return compilationOptions;
     }
     
+    
+    /**
+     * Compile the modules which the filter says must be compiled, in dependency order.
+     * <p>
+     * The modules which must be compiled whatever the interfaces of their imports are compiled in a single pass.
+     *   If this changed the interface of any module, the modules which depend on it are compiled in a second pass.
+     *   These are not filtered further, so at most two passes are made, however deep the import graph.
+     * 
+     * @param programModelManager the program model manager into which modules will be compiled.
+     * @param definitionGroup the group containing the modules to compile.
+     * @param importGraph the import graph for the modules in the group.
+     * @param moduleNames the names of the candidate modules.
+     * @param interfaceChangeFilter the filter which decides which of the modules must be compiled.
+     * @param logger the logger to which compiler messages should be logged.
+     * @param monitor the monitor to check for cancellation.
+     */
+    private void compileInDependencyOrder(ProgramModelManager programModelManager, ModuleSourceDefinitionGroup definitionGroup,
+            ModuleImportGraph importGraph, Collection<ModuleName> moduleNames, InterfaceChangeFilter interfaceChangeFilter, 
+            CompilerMessageLogger logger, IProgressMonitor monitor) {
+        
+        ProgramModelManager.CompilationOptions compilationOptions = getCompilationOptions();
+        
+        Set<ModuleName> firstPassModuleNames = new LinkedHashSet<ModuleName>();
+        for (final ModuleName moduleName : moduleNames) {
+            if (interfaceChangeFilter.shouldCompile(moduleName)) {
+                firstPassModuleNames.add(moduleName);
+            }
+        }
+        if (firstPassModuleNames.isEmpty()) {
+            return;
+        }
+        
+        programModelManager.makeModules(importGraph.getCompilationOrder(firstPassModuleNames), definitionGroup, logger, compilationOptions);
+        for (final ModuleName moduleName : firstPassModuleNames) {
+            interfaceChangeFilter.moduleCompiled(moduleName);
+        }
+        
+        // The modules which import a module whose interface changed, and everything which depends on them.
+        // This includes first pass modules which depend on them, as these were compiled against their old interfaces.
+        Set<ModuleName> changedInterfaceImporterNames = new HashSet<ModuleName>();
+        for (final ModuleName moduleName : moduleNames) {
+            if (!firstPassModuleNames.contains(moduleName) && interfaceChangeFilter.shouldCompile(moduleName)) {
+                changedInterfaceImporterNames.add(moduleName);
+            }
+        }
+        Set<ModuleName> secondPassModuleNames = new LinkedHashSet<ModuleName>();
+        for (final ModuleName affectedModuleName : importGraph.getAffectedModules(changedInterfaceImporterNames)) {
+            if (moduleNames.contains(affectedModuleName)) {
+                secondPassModuleNames.add(affectedModuleName);
+            }
+        }
+        if (secondPassModuleNames.isEmpty()) {
+            return;
+        }
+        
+        Util.checkCanceled(monitor);
+        programModelManager.makeModules(importGraph.getCompilationOrder(secondPassModuleNames), definitionGroup, logger, compilationOptions);
+        for (final ModuleName moduleName : secondPassModuleNames) {
+            interfaceChangeFilter.moduleCompiled(moduleName);
+        }
+    }
+    
     /**
      * Build everything for the current project.
      */
@@ -1150,6 +1243,7 @@ public class CALBuilder extends IncrementalProjectBuilder {
 
             EclipseModuleSourceDefinitionGroup sourceDefinitionGroup = getModuleSourceDefinitionGroup();
             CompilerMessageLogger logger = getNewMessageLogger();
+            ModuleImportGraph importGraph = null;
             
             if (sourceDefinitionGroup != null) {
                 
@@ -1157,13 +1251,24 @@ public class CALBuilder extends IncrementalProjectBuilder {
                 
                 ProgramModelManager programModelManager = modelManager.getProgramModelManager();
                 
-                BuildStatusListener buildStatusListener = new BuildStatusListener(getSubMonitor(monitor, 0.7));
+                // Record the imports, for use by subsequent incremental builds.
+                // Only modules which changed since the last build need to be rescanned.
+                if (lastState != null && lastState.getImportGraph() != null) {
+                    importGraph = new ModuleImportGraph(lastState.getImportGraph());
+                    importGraph.update(sourceDefinitionGroup);
+                } else {
+                    importGraph = new ModuleImportGraph(sourceDefinitionGroup);
+                }
+                
+                long compileStartTime = System.nanoTime();
+                BuildStatusListener buildStatusListener = new BuildStatusListener(getSubMonitor(monitor, 0.7), buildReport);
                 programModelManager.addStatusListener(buildStatusListener);
                 try {
                     // Compile all modules in the program model manager.
                     programModelManager.compile(sourceDefinitionGroup, logger, false, null, getCompilationOptions());
                 } finally {
                     programModelManager.removeStatusListener(buildStatusListener);
+                    buildReport.addPhaseTime(BuildReport.PHASE_COMPILE, System.nanoTime() - compileStartTime);
                 }
                 
                 buildStatusListener.done();
@@ -1172,7 +1277,77 @@ public class CALBuilder extends IncrementalProjectBuilder {
                 // No source definition group.
             }
             
-            postBuild(logger, null, getSubMonitor(monitor, 0.2));
+            postBuild(logger, null, importGraph, null, getSubMonitor(monitor, 0.2));
+        
+        } finally {
+            monitor.done();
+        }
+    }
+    
+    /**
+     * Build the current project for the first time in this session, resuming from the state saved by the last session.
+     * <p>
+     * The program is brought up to date with a dirty-only compile, which loads modules whose compiled output is up to date
+     *   rather than compiling them.  Problem markers are persistent, so only the markers for modules which changed since
+     *   the state was saved (and the modules which import them), and for modules which the compile loaded, are updated.
+     */
+    private void resumeBuild(IProgressMonitor monitor) {
+        monitor.beginTask("", TICKS_PER_MONITOR);
+        try {
+            preBuild(getSubMonitor(monitor, 0.1));
+            
+            EclipseModuleSourceDefinitionGroup sourceDefinitionGroup = getModuleSourceDefinitionGroup();
+            if (sourceDefinitionGroup == null) {
+                buildAll(getSubMonitor(monitor, 0.9));
+                return;
+            }
+            ModuleSourceDefinitionGroup writableSubGroup = sourceDefinitionGroup.getWritableSubGroup();
+            
+            // Validate the saved state against the current sources, and bring a copy of its import graph up to date.
+            // The saved state is left alone, in case the build does not complete.
+            long deltaAnalysisStartTime = System.nanoTime();
+            Set<ModuleName> changedModuleNames = lastState.getChangedModules(writableSubGroup);
+            ModuleImportGraph importGraph = new ModuleImportGraph(lastState.getImportGraph());
+            for (final ModuleName changedModuleName : changedModuleNames) {
+                ModuleSourceDefinition sourceDefinition = writableSubGroup.getModuleSource(changedModuleName);
+                if (sourceDefinition == null) {
+                    importGraph.removeModule(changedModuleName);
+                } else {
+                    importGraph.scanModule(sourceDefinition);
+                }
+            }
+            buildReport.addPhaseTime(BuildReport.PHASE_DELTA_ANALYSIS, System.nanoTime() - deltaAnalysisStartTime);
+            
+            aboutToCompile(getProject().getName(), monitor);
+            
+            CompilerMessageLogger logger = getNewMessageLogger();
+            ProgramModelManager programModelManager = CALModelManager.getCALModelManager().getProgramModelManager();
+            long compileStartTime = System.nanoTime();
+            BuildStatusListener buildStatusListener = new BuildStatusListener(getSubMonitor(monitor, 0.7), buildReport);
+            programModelManager.addStatusListener(buildStatusListener);
+            try {
+                programModelManager.compile(sourceDefinitionGroup, logger, true, null, getCompilationOptions());
+            } finally {
+                programModelManager.removeStatusListener(buildStatusListener);
+                buildReport.addPhaseTime(BuildReport.PHASE_COMPILE, System.nanoTime() - compileStartTime);
+            }
+            buildStatusListener.done();
+            
+            // Update markers for the changed modules and the modules which import them, which may have failed to compile,
+            //  and for the modules which were loaded.  The compile may also recompile modules whose source didn't change,
+            //  eg. if their compiled output is missing or a module from a dependee project changed.
+            Set<ModuleName> updatedModuleNames = new LinkedHashSet<ModuleName>(importGraph.getAffectedModules(changedModuleNames));
+            updatedModuleNames.addAll(buildStatusListener.getLoadedModuleNames());
+            
+            List<IFile> updatedInputFiles = new ArrayList<IFile>();
+            for (final ModuleName updatedModuleName : updatedModuleNames) {
+                IStorage inputSourceFile = CALModelManager.getCALModelManager().getInputSourceFile(updatedModuleName);
+                if (inputSourceFile instanceof IFile) {
+                    updatedInputFiles.add((IFile)inputSourceFile);
+                }
+            }
+            
+            postBuild(logger, updatedInputFiles, importGraph, null, getSubMonitor(monitor, 0.2));
         
         } finally {
             monitor.done();
@@ -1211,6 +1386,7 @@ public class CALBuilder extends IncrementalProjectBuilder {
         try {
             // JavaBuilder goes through the IncrementalImageBuilder.
             preBuild(getSubMonitor(monitor, 0.1));
+            long deltaAnalysisStartTime = System.nanoTime();
             
             IProject project = getProject();
             CALModelManager modelManager = CALModelManager.getCALModelManager();
@@ -1243,6 +1419,7 @@ public class CALBuilder extends IncrementalProjectBuilder {
             // Remove cal resources for removed cal files.
             
             boolean badnessHasOccurred = false;
+            Set<ModuleName> removedModuleNames = new HashSet<ModuleName>();
             for (final IFile removedInputFile : removedInputFiles) {
                 
                 ModuleName moduleName = Util.getModuleNameFromStorage(removedInputFile);
@@ -1250,6 +1427,7 @@ public class CALBuilder extends IncrementalProjectBuilder {
                     // the storage name doesn't correspond to a module name
                     continue;
                 }
+                removedModuleNames.add(moduleName);
 
                 // figure out which resource folder must be deleted
                 // must do this now, while we can still locate the resource
@@ -1274,6 +1452,9 @@ public class CALBuilder extends IncrementalProjectBuilder {
                         // force, progressMonitor
                         resourceFolder.delete(true, null);
                     }
+                    if (resourceFolder != null) {
+                        EclipseProgramResourcePathRepository.deleteArchive(resourceFolder);
+                    }
                 } catch (CoreException e) {
                     Util.log(new IOException().initCause(e), "Couldn't delete " + resourceFolder);
                     badnessHasOccurred = true;
@@ -1295,28 +1476,68 @@ public class CALBuilder extends IncrementalProjectBuilder {
             getAffectedModuleSourceFiles(addedInputFiles, writableSubGroup, namesOfModulesToCompileList);
             getAffectedModuleSourceFiles(changedInputFiles, writableSubGroup, namesOfModulesToCompileList);
             
+            // Bring a copy of the last build's import graph up to date.
+            // The copy is recorded in the build state by postBuild(), so the last state is unchanged if the build does not complete.
+            ModuleImportGraph importGraph;
+            if (lastState == null || lastState.getImportGraph() == null) {
+                importGraph = new ModuleImportGraph(definitionGroup);
+            } else {
+                importGraph = new ModuleImportGraph(lastState.getImportGraph());
+                for (final ModuleName removedModuleName : removedModuleNames) {
+                    importGraph.removeModule(removedModuleName);
+                }
+                for (final ModuleName moduleName : namesOfModulesToCompileList) {
+                    importGraph.scanModule(writableSubGroup.getModuleSource(moduleName));
+                }
+            }
+            
+            // Work out which modules have changed.
+            // Modules whose source changed, or which aren't in the program (eg. because they failed to compile last time), must be compiled.
+            Set<ModuleName> changedModuleNames = new HashSet<ModuleName>(namesOfModulesToCompileList);
+            for (int i = 0, nModules = writableSubGroup.getNModules(); i < nModules; i++) {
+                ModuleName moduleName = writableSubGroup.getModuleSource(i).getModuleName();
+                if (!programModelManager.hasModuleInProgram(moduleName)) {
+                    changedModuleNames.add(moduleName);
+                }
+            }
+            
+            // Modules which import removed modules, or modules from dependee projects whose interface changed, must also be compiled.
+            Set<ModuleName> changedImportNames = new HashSet<ModuleName>(removedModuleNames);
+            if (lastState != null) {
+                changedImportNames.addAll(lastState.getChangedDependeeModules(programModelManager));
+            }
+            
+            // The candidates for compilation are the changed modules and the modules which depend on them.
+            // Of these, importers are only compiled if the interface of an imported module actually changed.
+            Set<ModuleName> allChangedModuleNames = new HashSet<ModuleName>(changedModuleNames);
+            allChangedModuleNames.addAll(changedImportNames);
+            Set<ModuleName> affectedModuleNames = new LinkedHashSet<ModuleName>();
+            for (final ModuleName affectedModuleName : importGraph.getAffectedModules(allChangedModuleNames)) {
+                if (writableSubGroup.getModuleSource(affectedModuleName) != null) {
+                    affectedModuleNames.add(affectedModuleName);
+                }
+            }
+            
+            Map<ModuleName, String> interfaceFingerprintMap = 
+                (lastState != null) ? lastState.getInterfaceFingerprintMap() : new HashMap<ModuleName, String>();
+            InterfaceChangeFilter interfaceChangeFilter = 
+                new InterfaceChangeFilter(programModelManager, importGraph, interfaceFingerprintMap, changedModuleNames, changedImportNames);
+            
+            buildReport.addPhaseTime(BuildReport.PHASE_DELTA_ANALYSIS, System.nanoTime() - deltaAnalysisStartTime);
+            
             aboutToCompile(getProject().getName(), monitor);
             
             CompilerMessageLogger logger = getNewMessageLogger();
-            BuildStatusListener buildStatusListener = new BuildStatusListener(getSubMonitor(monitor, 0.7));
+            long compileStartTime = System.nanoTime();
+            BuildStatusListener buildStatusListener = new BuildStatusListener(getSubMonitor(monitor, 0.7), buildReport);
             programModelManager.addStatusListener(buildStatusListener);
             try {
-                ProgramModelManager.CompilationOptions compilationOptions = getCompilationOptions();
-                if (!namesOfModulesToCompileList.isEmpty()) {
-                    /*
-                     * TODOEL: Don't compile twice.
-                     *   We should be able to perform the dirty computation ourselves (ie. which modules depend on the modules with deltas).
-                     */
-                    // Compile modules with deltas.
-                    ModuleName[] namesOfModulesToCompile = namesOfModulesToCompileList.toArray(new ModuleName[namesOfModulesToCompileList.size()]);
-                    programModelManager.makeModules(namesOfModulesToCompile, definitionGroup, logger, compilationOptions);
-                }
-                
-                // Still need to recompile dirty, since dependee modules may have changed.
-                programModelManager.compile(definitionGroup, logger, true, buildStatusListener, compilationOptions);
+                // Compile the affected modules in dependency order.
+                compileInDependencyOrder(programModelManager, definitionGroup, importGraph, affectedModuleNames, interfaceChangeFilter, logger, monitor);
                 
             } finally {
                 programModelManager.removeStatusListener(buildStatusListener);
+                buildReport.addPhaseTime(BuildReport.PHASE_COMPILE, System.nanoTime() - compileStartTime);
             }
 
             // Work out which cal files which were compiled.
@@ -1336,7 +1557,7 @@ public class CALBuilder extends IncrementalProjectBuilder {
             
             List<IFile> updatedInputFilesList = new ArrayList<IFile>(updatedInputFiles);
             
-            postBuild(logger, updatedInputFilesList, getSubMonitor(monitor, 0.2));
+            postBuild(logger, updatedInputFilesList, importGraph, interfaceFingerprintMap, getSubMonitor(monitor, 0.2));
 
         } finally {
             monitor.done();
@@ -1467,6 +1688,9 @@ public class CALBuilder extends IncrementalProjectBuilder {
                     continue;
                 }
                 
+                // The module resource archives in the folder are deleted with the folder's members.
+                EclipseProgramResourcePathRepository.discardArchives(outputFolder);
+                
                 IResource[] members = outputFolder.members();
                 for (final IResource member : members) {
                     if (!member.isDerived()) {
@@ -1498,7 +1722,7 @@ public class CALBuilder extends IncrementalProjectBuilder {
 
     private void clearLastState() {
         lastState = null;
-//        JavaModelManager.getJavaModelManager().setLastBuiltState(currentProject, null);
+        CALModelManager.getCALModelManager().setLastBuiltState(getProject(), null);
     }
 
     /**
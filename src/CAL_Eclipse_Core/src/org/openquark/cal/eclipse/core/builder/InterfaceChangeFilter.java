@@ -0,0 +1,276 @@
+/*******************************************************************************
+ * Copyright (c) 2007 Business Objects Software Limited and others.
+ * All rights reserved.
+ * This file is made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Business Objects Software Limited - initial API and implementation
+ *******************************************************************************/
+
+/*
+ * InterfaceChangeFilter.java
+ * Created: Oct 17, 2007
+ */
+package org.openquark.cal.eclipse.core.builder;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.openquark.cal.compiler.ClassInstance;
+import org.openquark.cal.compiler.ClassMethod;
+import org.openquark.cal.compiler.DataConstructor;
+import org.openquark.cal.compiler.ForeignFunctionInfo;
+import org.openquark.cal.compiler.ForeignTypeInfo;
+import org.openquark.cal.compiler.Function;
+import org.openquark.cal.compiler.ModuleName;
+import org.openquark.cal.compiler.ModuleTypeInfo;
+import org.openquark.cal.compiler.QualifiedName;
+import org.openquark.cal.compiler.Scope;
+import org.openquark.cal.compiler.TypeClass;
+import org.openquark.cal.compiler.TypeConstructor;
+import org.openquark.cal.compiler.UnableToResolveForeignEntityException;
+import org.openquark.cal.machine.MachineFunction;
+import org.openquark.cal.machine.Module;
+import org.openquark.cal.services.ProgramModelManager;
+
+
+/**
+ * Decides which of a set of candidate modules must be recompiled during an incremental build.
+ * <p>
+ * A module must be recompiled if its source changed, if it isn't in the program, or if it imports a module whose
+ *   interface changed.  The interface of a module is summarized by a fingerprint of its non-private entities
+ *   (function types and argument strictness, literal values, aliases and foreign implementations, type and data constructors,
+ *   type classes and class instances), including
+ *   everything on which the code generated for importing modules depends.  An edit which leaves the fingerprint unchanged
+ *   (eg. to whitespace, CALDoc, or the body of a function) therefore does not cause the modules which import the
+ *   edited module to be recompiled.
+ * <p>
+ * Candidates must be presented in dependency order, ie. a module's imports must be compiled (and reported via
+ *   moduleCompiled()) before shouldCompile() is called for the module.
+ */
+class InterfaceChangeFilter {
+
+    /** The program model manager into which modules are compiled. */
+    private final ProgramModelManager programModelManager;
+
+    /** The import graph for the modules. */
+    private final ModuleImportGraph importGraph;
+
+    /** Map from module name to its interface fingerprint. Updated as modules are compiled. */
+    private final Map<ModuleName, String> interfaceFingerprintMap;
+
+    /** The names of the modules which must be recompiled. */
+    private final Set<ModuleName> modulesToCompile;
+
+    /**
+     * Constructor for an InterfaceChangeFilter.
+     * @param programModelManager the program model manager into which modules are compiled.
+     * @param importGraph the import graph for the modules.
+     * @param interfaceFingerprintMap map from module name to its interface fingerprint as of the last build.
+     *   This map will be updated with the fingerprints of modules as they are compiled.
+     * @param changedModuleNames the names of modules whose source changed.  These will always be compiled.
+     * @param changedImportNames the names of modules which are not candidates, but whose interface may have changed
+     *   (eg. removed modules, or modules from dependee projects).  Modules which import these will be compiled.
+     */
+    InterfaceChangeFilter(ProgramModelManager programModelManager, ModuleImportGraph importGraph, Map<ModuleName, String> interfaceFingerprintMap,
+            Collection<ModuleName> changedModuleNames, Collection<ModuleName> changedImportNames) {
+        this.programModelManager = programModelManager;
+        this.importGraph = importGraph;
+        this.interfaceFingerprintMap = interfaceFingerprintMap;
+        this.modulesToCompile = new HashSet<ModuleName>(changedModuleNames);
+
+        for (final ModuleName changedImportName : changedImportNames) {
+            modulesToCompile.addAll(importGraph.getImportingModules(changedImportName));
+        }
+    }
+
+    /**
+     * @param moduleName the name of a candidate module.
+     * @return whether the module must be compiled.
+     */
+    boolean shouldCompile(ModuleName moduleName) {
+        return modulesToCompile.contains(moduleName) || !programModelManager.hasModuleInProgram(moduleName);
+    }
+
+    /**
+     * Notify the filter that a module was compiled (successfully or not).
+     * If the interface of the module changed, the modules which import it must also be compiled.
+     *
+     * @param moduleName the name of the module.
+     */
+    void moduleCompiled(ModuleName moduleName) {
+        String newFingerprint = computeFingerprint(programModelManager, moduleName);
+        String oldFingerprint = (newFingerprint == null) ? interfaceFingerprintMap.remove(moduleName) : interfaceFingerprintMap.put(moduleName, newFingerprint);
+
+        if (newFingerprint == null || !newFingerprint.equals(oldFingerprint)) {
+            modulesToCompile.addAll(importGraph.getImportingModules(moduleName));
+        }
+    }
+
+    /**
+     * Compute a fingerprint for the interface of a module.
+     * Two versions of a module with the same fingerprint can be used interchangeably by the modules which import it.
+     * <p>
+     * If some part of the interface can't be determined (eg. a foreign type whose Java class can't be resolved),
+     *   null is returned, so that the interface is treated as changed and the importing modules are recompiled.
+     *
+     * @param programModelManager the program model manager containing the module.
+     * @param moduleName the name of the module.
+     * @return the fingerprint, or null if the module is not in the program or its interface can't be determined.
+     */
+    static String computeFingerprint(ProgramModelManager programModelManager, ModuleName moduleName) {
+        Module module = programModelManager.getModule(moduleName);
+        if (module == null) {
+            return null;
+        }
+        ModuleTypeInfo moduleTypeInfo = module.getModuleTypeInfo();
+        if (moduleTypeInfo == null) {
+            return null;
+        }
+
+        List<String> entries = new ArrayList<String>();
+
+        for (int i = 0, nFunctions = moduleTypeInfo.getNFunctions(); i < nFunctions; i++) {
+            Function function = moduleTypeInfo.getNthFunction(i);
+            if (function.getScope() == Scope.PRIVATE) {
+                continue;
+            }
+            // Callers in other modules are generated for the function's arity, and evaluate its strict arguments before the call.
+            MachineFunction machineFunction = module.getFunction(function.getName());
+            if (machineFunction == null) {
+                return null;
+            }
+            StringBuilder functionEntry = new StringBuilder("function " + function.getName() + " " + function.getScope() + " " + 
+                    function.getNArgumentNames() + " " + getStrictnessString(machineFunction.getParameterStrictness()) + " :: " + function.getTypeExpr());
+
+            // References to literals and aliases are replaced by the literal value or the aliased function in the calling code.
+            Object literalValue = machineFunction.getLiteralValue();
+            if (literalValue != null) {
+                functionEntry.append(" literal ").append(literalValue.getClass().getName()).append(' ').append(literalValue);
+            }
+            QualifiedName aliasOf = machineFunction.getAliasOf();
+            if (aliasOf != null) {
+                functionEntry.append(" alias ").append(aliasOf);
+            }
+
+            // Calls to a foreign function may be generated as direct calls to its Java implementation.
+            ForeignFunctionInfo foreignFunctionInfo = function.getForeignFunctionInfo();
+            if (foreignFunctionInfo instanceof ForeignFunctionInfo.Invocation) {
+                try {
+                    functionEntry.append(" foreign ").append(((ForeignFunctionInfo.Invocation)foreignFunctionInfo).getJavaProxy());
+                } catch (UnableToResolveForeignEntityException e) {
+                    return null;
+                }
+            } else if (foreignFunctionInfo != null) {
+                functionEntry.append(" foreign ").append(foreignFunctionInfo);
+            }
+            entries.add(functionEntry.toString());
+        }
+
+        for (int i = 0, nTypeConstructors = moduleTypeInfo.getNTypeConstructors(); i < nTypeConstructors; i++) {
+            TypeConstructor typeConstructor = moduleTypeInfo.getNthTypeConstructor(i);
+            if (typeConstructor.getScope() == Scope.PRIVATE) {
+                continue;
+            }
+            StringBuilder typeEntry = new StringBuilder("type " + typeConstructor.getName() + " " + typeConstructor.getScope() + " " + 
+                    typeConstructor.getTypeArity() + " :: " + typeConstructor.getKindExpr());
+
+            // Code which uses a foreign type depends on the Java class which implements it, and on whether the implementation is visible.
+            ForeignTypeInfo foreignTypeInfo = typeConstructor.getForeignTypeInfo();
+            if (foreignTypeInfo != null) {
+                try {
+                    typeEntry.append(" foreign ").append(foreignTypeInfo.getForeignType().getName());
+                } catch (UnableToResolveForeignEntityException e) {
+                    return null;
+                }
+                typeEntry.append(' ').append(foreignTypeInfo.getImplementationVisibility());
+            }
+            entries.add(typeEntry.toString());
+
+            for (int j = 0, nDataConstructors = typeConstructor.getNDataConstructors(); j < nDataConstructors; j++) {
+                DataConstructor dataConstructor = typeConstructor.getNthDataConstructor(j);
+                if (dataConstructor.getScope() == Scope.PRIVATE) {
+                    continue;
+                }
+                StringBuilder entry = new StringBuilder("dataConstructor " + dataConstructor.getName() + " " + dataConstructor.getScope() + " " + j);
+                for (int k = 0, nArgs = dataConstructor.getNArgumentNames(); k < nArgs; k++) {
+                    entry.append(' ').append(dataConstructor.isArgStrict(k) ? "!" : "").append(dataConstructor.getNthFieldName(k));
+                }
+                entry.append(" :: ").append(dataConstructor.getTypeExpr());
+                entries.add(entry.toString());
+            }
+        }
+
+        for (int i = 0, nTypeClasses = moduleTypeInfo.getNTypeClasses(); i < nTypeClasses; i++) {
+            TypeClass typeClass = moduleTypeInfo.getNthTypeClass(i);
+            if (typeClass.getScope() == Scope.PRIVATE) {
+                continue;
+            }
+            StringBuilder entry = new StringBuilder("class " + typeClass.getName() + " " + typeClass.getScope());
+            for (int j = 0, nParentClasses = typeClass.getNParentClasses(); j < nParentClasses; j++) {
+                entry.append(' ').append(typeClass.getNthParentClass(j).getName());
+            }
+            entries.add(entry.toString());
+
+            for (int j = 0, nClassMethods = typeClass.getNClassMethods(); j < nClassMethods; j++) {
+                ClassMethod classMethod = typeClass.getNthClassMethod(j);
+                // Instances which don't define the method use the default, if any.
+                entries.add("classMethod " + classMethod.getName() + " " + classMethod.getScope() + " " + j + " " + 
+                        classMethod.getDefaultClassMethodName() + " :: " + classMethod.getTypeExpr());
+            }
+        }
+
+        // Instances are visible wherever the module is imported, regardless of scope.
+        for (int i = 0, nClassInstances = moduleTypeInfo.getNClassInstances(); i < nClassInstances; i++) {
+            ClassInstance classInstance = moduleTypeInfo.getNthClassInstance(i);
+            entries.add("instance " + classInstance.getName() + " " + classInstance.getInstanceStyle());
+        }
+
+        // The order in which entities are declared doesn't matter.
+        Collections.sort(entries);
+
+        try {
+            MessageDigest digest = MessageDigest.getInstance("MD5");
+            for (final String entry : entries) {
+                digest.update(entry.getBytes("UTF-8"));
+                digest.update((byte)'\n');
+            }
+
+            StringBuilder fingerprint = new StringBuilder();
+            for (final byte b : digest.digest()) {
+                fingerprint.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return fingerprint.toString();
+
+        } catch (NoSuchAlgorithmException e) {
+            // Fall through.
+        } catch (UnsupportedEncodingException e) {
+            // Fall through.
+        }
+
+        // No digest available.  Use the entries themselves.
+        return entries.toString();
+    }
+
+    /**
+     * @param strictness the strictness of each of a function's parameters.
+     * @return a string with a '!' for each strict parameter and a '.' for each lazy one.
+     */
+    private static String getStrictnessString(boolean[] strictness) {
+        StringBuilder sb = new StringBuilder(strictness.length);
+        for (final boolean strict : strictness) {
+            sb.append(strict ? '!' : '.');
+        }
+        return sb.toString();
+    }
+}
@@ -17,7 +17,10 @@
  */
 package org.openquark.cal.eclipse.core.builder;
 
+import java.io.File;
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 
 import org.eclipse.core.resources.IFolder;
@@ -69,6 +72,19 @@ class JarCALResourceContainer implements ICALResourceContainer {
 
     private void initCache() {
         cachedCalSources = new HashSet<IStorage>();
+        
+        // If the jar hasn't changed since it was last indexed, create the storages from the index instead of walking the jar.
+        File jarFile = getJarFile();
+        JarCALSourceIndex index = JarCALSourceIndex.getInstance();
+        List<String> calEntryNames = (jarFile != null) ? index.getCALEntryNames(jarFile) : null;
+        if (calEntryNames != null) {
+            for (final String calEntryName : calEntryNames) {
+                cachedCalSources.add(new JarEntryStorage(jarFile, calEntryName));
+            }
+            return;
+        }
+        
+        List<String> foundEntryNames = new ArrayList<String>();
         try {
             for (final IJavaElement child : root.getChildren()) {
                 if (child instanceof IPackageFragment) {
@@ -77,13 +93,32 @@ class JarCALResourceContainer implements ICALResourceContainer {
                             && frag.exists()
                             && frag.getElementName().startsWith(
                                     CALSourcePathMapper.SCRIPTS_BASE_FOLDER)) {
-                        internalGetSources(frag);
+                        internalGetSources(frag, foundEntryNames);
                     }
                 }
             }
         } catch (JavaModelException e) {
             Util.log(e, "Error getting CAL sources for " + root);
+            return;
         }
+        
+        if (jarFile != null) {
+            // Use the same kind of storage as when the sources are found from the index.
+            cachedCalSources.clear();
+            for (final String foundEntryName : foundEntryNames) {
+                cachedCalSources.add(new JarEntryStorage(jarFile, foundEntryName));
+            }
+            index.putCALEntryNames(jarFile, foundEntryNames);
+        }
+    }
+    
+    /**
+     * @return the jar file in the file system, or null if it isn't known.
+     */
+    private File getJarFile() {
+        IResource resource = root.getResource();
+        IPath location = (resource != null) ? resource.getLocation() : root.getPath();
+        return (location != null) ? location.toFile() : null;
     }
 
     /**
@@ -91,14 +126,16 @@ class JarCALResourceContainer implements ICALResourceContainer {
      * Looks for files that end in the cal extension (.cal).
      * If a file is found, it is added to the cached set.
      * @param fragment
+     * @param foundEntryNames the names of the jar entries for the files found, eg. "CAL/Cal/Core/Prelude.cal", are added to this list.
      */
-    private void internalGetSources(IPackageFragment fragment) {
+    private void internalGetSources(IPackageFragment fragment, List<String> foundEntryNames) {
         try {
             Object[] nonJavaChildren = fragment.getNonJavaResources();
             for (final Object child : nonJavaChildren) {
                 if (child instanceof IStorage) {
                     if (((IStorage) child).getName().endsWith(CAL_EXTENSION)) {
                         cachedCalSources.add((IStorage) child);
+                        foundEntryNames.add(fragment.getElementName().replace('.', '/') + '/' + ((IStorage) child).getName());
                     }
                 }
             }
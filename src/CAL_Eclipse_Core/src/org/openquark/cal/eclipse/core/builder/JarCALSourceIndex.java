@@ -0,0 +1,242 @@
+/*******************************************************************************
+ * Copyright (c) 2007 Business Objects Software Limited and others.
+ * All rights reserved.
+ * This file is made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Business Objects Software Limited - initial API and implementation
+ *******************************************************************************/
+
+/*
+ * JarCALSourceIndex.java
+ * Created: Oct 17, 2007
+ */
+package org.openquark.cal.eclipse.core.builder;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.openquark.cal.eclipse.core.CALEclipseCorePlugin;
+import org.openquark.cal.eclipse.core.util.Util;
+
+
+/**
+ * A persistent index of the CAL source entries in jars, so that the CAL sources in a jar which hasn't changed
+ *   can be found without walking the jar's package fragments through the Java model.
+ * <p>
+ * Each jar is indexed by its path in the file system.  The index for a jar is only returned if the jar's
+ *   time stamp and length are the same as when the jar was indexed.
+ * The index is read from the plugin state location the first time it is used, and written when the workspace is saved.
+ *
+ * @see JarCALResourceContainer
+ */
+public final class JarCALSourceIndex {
+
+    /** The name of the file in the plugin state location in which the index is written. */
+    private static final String INDEX_FILE_NAME = "jarCALSources.index"; //$NON-NLS-1$
+
+    /** The version of the format written by save().  Increment when the format changes. */
+    private static final int INDEX_VERSION = 1;
+
+    /** The index, or null if it hasn't been read yet.  Guarded by JarCALSourceIndex.class. */
+    private static JarCALSourceIndex instance = null;
+
+    /**
+     * The indexed CAL source entries in a jar.
+     */
+    private static final class Entry {
+        /** The time stamp of the jar when it was indexed. */
+        final long timeStamp;
+
+        /** The length of the jar when it was indexed. */
+        final long length;
+
+        /** The names of the CAL source entries in the jar, eg. "CAL/Cal/Core/Prelude.cal". */
+        final List<String> calEntryNames;
+
+        Entry(long timeStamp, long length, List<String> calEntryNames) {
+            this.timeStamp = timeStamp;
+            this.length = length;
+            this.calEntryNames = calEntryNames;
+        }
+    }
+
+    /** Map from the absolute path of a jar to its indexed entries.  Guarded by this. */
+    private final Map<String, Entry> jarPathToEntryMap = new HashMap<String, Entry>();
+
+    /** Whether the index has changed since it was read.  Guarded by this. */
+    private boolean changed = false;
+
+    /**
+     * Private constructor.  Use getInstance().
+     */
+    private JarCALSourceIndex() {
+    }
+
+    /**
+     * @return the index, reading it from the plugin state location if it hasn't been read yet.
+     */
+    static synchronized JarCALSourceIndex getInstance() {
+        if (instance == null) {
+            instance = new JarCALSourceIndex();
+            instance.read();
+        }
+        return instance;
+    }
+
+    /**
+     * Write the index to the plugin state location, if it has been used and has changed.
+     */
+    public static void save() {
+        JarCALSourceIndex index;
+        synchronized (JarCALSourceIndex.class) {
+            index = instance;
+        }
+        if (index != null) {
+            index.write();
+        }
+    }
+
+    /**
+     * @param jarFile a jar.
+     * @return the names of the CAL source entries in the jar, or null if the jar isn't indexed or has changed since it was indexed.
+     */
+    synchronized List<String> getCALEntryNames(File jarFile) {
+        Entry entry = jarPathToEntryMap.get(jarFile.getAbsolutePath());
+        if (entry == null || entry.timeStamp != jarFile.lastModified() || entry.length != jarFile.length()) {
+            return null;
+        }
+        return entry.calEntryNames;
+    }
+
+    /**
+     * Index the CAL source entries in a jar, replacing any existing index for the jar.
+     * @param jarFile a jar.
+     * @param calEntryNames the names of the CAL source entries in the jar, eg. "CAL/Cal/Core/Prelude.cal".
+     */
+    synchronized void putCALEntryNames(File jarFile, List<String> calEntryNames) {
+        long timeStamp = jarFile.lastModified();
+        if (timeStamp == 0) {
+            // The jar doesn't exist, or can't be read.
+            return;
+        }
+        Entry entry = new Entry(timeStamp, jarFile.length(), Collections.unmodifiableList(new ArrayList<String>(calEntryNames)));
+        jarPathToEntryMap.put(jarFile.getAbsolutePath(), entry);
+        changed = true;
+    }
+
+    /**
+     * @return the file in which the index is written.
+     */
+    private static File getIndexFile() {
+        return CALEclipseCorePlugin.getDefault().getStateLocation().append(INDEX_FILE_NAME).toFile();
+    }
+
+    /**
+     * Read the index from the plugin state location.  If there is no (valid) index, the index is left empty.
+     */
+    private synchronized void read() {
+        File indexFile = getIndexFile();
+        if (!indexFile.exists()) {
+            return;
+        }
+
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+            if (in.readInt() != INDEX_VERSION) {
+                return;
+            }
+            for (int i = 0, nJars = in.readInt(); i < nJars; i++) {
+                String jarPath = in.readUTF();
+                long timeStamp = in.readLong();
+                long length = in.readLong();
+                int nEntries = in.readInt();
+                List<String> calEntryNames = new ArrayList<String>(nEntries);
+                for (int j = 0; j < nEntries; j++) {
+                    calEntryNames.add(in.readUTF());
+                }
+                jarPathToEntryMap.put(jarPath, new Entry(timeStamp, length, Collections.unmodifiableList(calEntryNames)));
+            }
+
+        } catch (IOException e) {
+            Util.log(e, "Error reading CAL source index for jars"); //$NON-NLS-1$
+            jarPathToEntryMap.clear();
+
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // Nothing to do.
+                }
+            }
+        }
+    }
+
+    /**
+     * Write the index to the plugin state location, if it has changed.
+     * Entries for jars which no longer exist are dropped.
+     */
+    private synchronized void write() {
+        if (!changed) {
+            return;
+        }
+        for (Iterator<String> it = jarPathToEntryMap.keySet().iterator(); it.hasNext(); ) {
+            if (!new File(it.next()).isFile()) {
+                it.remove();
+            }
+        }
+
+        // Write to a temporary file which then replaces the index file, so that a failed or interrupted write
+        //  never leaves a truncated index behind.
+        File indexFile = getIndexFile();
+        File tempFile = new File(indexFile.getPath() + ".tmp"); //$NON-NLS-1$
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+            try {
+                out.writeInt(INDEX_VERSION);
+                out.writeInt(jarPathToEntryMap.size());
+                for (final Map.Entry<String, Entry> mapEntry : jarPathToEntryMap.entrySet()) {
+                    Entry entry = mapEntry.getValue();
+                    out.writeUTF(mapEntry.getKey());
+                    out.writeLong(entry.timeStamp);
+                    out.writeLong(entry.length);
+                    out.writeInt(entry.calEntryNames.size());
+                    for (final String calEntryName : entry.calEntryNames) {
+                        out.writeUTF(calEntryName);
+                    }
+                }
+            } finally {
+                // Closing flushes the buffered output, so it may fail too.
+                out.close();
+            }
+            
+            // renameTo() fails on some platforms if the target exists.
+            if (!tempFile.renameTo(indexFile) && !(indexFile.delete() && tempFile.renameTo(indexFile))) {
+                throw new IOException("Unable to rename " + tempFile + " to " + indexFile); //$NON-NLS-1$ //$NON-NLS-2$
+            }
+            
+            // Only mark the index as saved once it has replaced the index file.
+            changed = false;
+
+        } catch (IOException e) {
+            Util.log(e, "Error saving CAL source index for jars"); //$NON-NLS-1$
+            tempFile.delete();
+        }
+    }
+}
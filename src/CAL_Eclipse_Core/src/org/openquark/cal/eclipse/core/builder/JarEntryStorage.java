@@ -0,0 +1,147 @@
+/*******************************************************************************
+ * Copyright (c) 2007 Business Objects Software Limited and others.
+ * All rights reserved.
+ * This file is made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Business Objects Software Limited - initial API and implementation
+ *******************************************************************************/
+
+/*
+ * JarEntryStorage.java
+ * Created: Oct 17, 2007
+ */
+package org.openquark.cal.eclipse.core.builder;
+
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import org.eclipse.core.resources.IStorage;
+import org.eclipse.core.runtime.CoreException;
+import org.eclipse.core.runtime.IPath;
+import org.eclipse.core.runtime.IStatus;
+import org.eclipse.core.runtime.Path;
+import org.eclipse.core.runtime.PlatformObject;
+import org.eclipse.core.runtime.Status;
+import org.openquark.cal.eclipse.core.CALEclipseCorePlugin;
+
+
+/**
+ * A read-only storage for an entry in a jar.
+ * <p>
+ * This is used for the CAL sources in jars, instead of JDT's JarEntryFile, whose constructor changed in Eclipse 3.4.
+ * It can be created from the name of the entry alone, so the CAL sources in a jar can be created from the JarCALSourceIndex
+ *   without opening the jar.  The jar is only opened when the contents are read.
+ * As for JarEntryFile, the full path is the path of the entry within the jar, eg. "CAL/Cal/Core/Prelude.cal".
+ *
+ * @see JarCALResourceContainer
+ */
+final class JarEntryStorage extends PlatformObject implements IStorage {
+
+    /** The jar in the file system. */
+    private final File jarFile;
+
+    /** The name of the entry in the jar, eg. "CAL/Cal/Core/Prelude.cal". */
+    private final String entryName;
+
+    /**
+     * Constructor for a JarEntryStorage.
+     * @param jarFile the jar in the file system.
+     * @param entryName the name of the entry in the jar, eg. "CAL/Cal/Core/Prelude.cal".
+     */
+    JarEntryStorage(File jarFile, String entryName) {
+        if (jarFile == null || entryName == null) {
+            throw new NullPointerException();
+        }
+        this.jarFile = jarFile;
+        this.entryName = entryName;
+    }
+
+    /**
+     * {@inheritDoc}
+     * The jar is closed when the stream is closed.
+     */
+    public InputStream getContents() throws CoreException {
+        try {
+            final ZipFile zipFile = new ZipFile(jarFile);
+            ZipEntry zipEntry = zipFile.getEntry(entryName);
+            if (zipEntry == null) {
+                zipFile.close();
+                throw new CoreException(new Status(IStatus.ERROR, CALEclipseCorePlugin.PLUGIN_ID, IStatus.ERROR,
+                        "Entry not found: " + this, null)); //$NON-NLS-1$
+            }
+            return new FilterInputStream(zipFile.getInputStream(zipEntry)) {
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        zipFile.close();
+                    }
+                }
+            };
+
+        } catch (IOException e) {
+            throw new CoreException(new Status(IStatus.ERROR, CALEclipseCorePlugin.PLUGIN_ID, IStatus.ERROR,
+                    "Error reading " + this, e)); //$NON-NLS-1$
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public IPath getFullPath() {
+        return new Path(entryName);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public String getName() {
+        return entryName.substring(entryName.lastIndexOf('/') + 1);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public boolean isReadOnly() {
+        return true;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean equals(Object obj) {
+        if (obj == null || obj.getClass() != getClass()) {
+            return false;
+        }
+        JarEntryStorage otherStorage = (JarEntryStorage)obj;
+        return jarFile.equals(otherStorage.jarFile) && entryName.equals(otherStorage.entryName);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int hashCode() {
+        int result = 17;
+        result = 37 * jarFile.hashCode() + result;
+        result = 37 * entryName.hashCode() + result;
+        return result;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString() {
+        return jarFile + "!/" + entryName; //$NON-NLS-1$
+    }
+}
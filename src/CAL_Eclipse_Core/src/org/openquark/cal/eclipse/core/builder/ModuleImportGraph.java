@@ -0,0 +1,457 @@
+/*******************************************************************************
+ * Copyright (c) 2007 Business Objects Software Limited and others.
+ * All rights reserved.
+ * This file is made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Business Objects Software Limited - initial API and implementation
+ *******************************************************************************/
+
+/*
+ * ModuleImportGraph.java
+ * Created: Oct 17, 2007
+ */
+package org.openquark.cal.eclipse.core.builder;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.openquark.cal.compiler.ModuleContainer;
+import org.openquark.cal.compiler.ModuleName;
+import org.openquark.cal.compiler.ModuleSourceDefinition;
+import org.openquark.cal.compiler.ModuleSourceDefinitionGroup;
+
+
+/**
+ * The import graph for the modules in a module source definition group.
+ * <p>
+ * Imports are found by a lightweight scan of the module header, which is much cheaper than
+ * parsing the module into a source model.  Only the imports which refer to modules in the graph
+ * are considered when computing topological levels -- other modules (eg. from dependee projects)
+ * are assumed to be compiled already.
+ */
+public class ModuleImportGraph {
+
+    /** Map from module name to the names of the modules it imports, in declaration order. */
+    private final Map<ModuleName, Set<ModuleName>> moduleToImportsMap = new LinkedHashMap<ModuleName, Set<ModuleName>>();
+
+    /** Map from module name to the names of the modules in the graph which import it. The reverse of moduleToImportsMap. */
+    private final Map<ModuleName, Set<ModuleName>> moduleToImportersMap = new HashMap<ModuleName, Set<ModuleName>>();
+
+    /** Map from module name to the time stamp of the source from which its imports were scanned, for modules whose time stamp is known. */
+    private final Map<ModuleName, Long> moduleToTimeStampMap = new HashMap<ModuleName, Long>();
+
+    /**
+     * Constructor for an empty ModuleImportGraph.
+     */
+    public ModuleImportGraph() {
+    }
+
+    /**
+     * Constructor for a ModuleImportGraph.
+     * @param definitionGroup the group whose modules should be scanned for imports.
+     */
+    public ModuleImportGraph(ModuleSourceDefinitionGroup definitionGroup) {
+        for (int i = 0, nModules = definitionGroup.getNModules(); i < nModules; i++) {
+            scanModule(definitionGroup.getModuleSource(i));
+        }
+    }
+
+    /**
+     * Copy constructor for a ModuleImportGraph.
+     * Changes to the copy do not affect the original, so a build can update a copy of the last build's graph and
+     *   discard it if the build does not complete.
+     * @param other the graph to copy.
+     */
+    public ModuleImportGraph(ModuleImportGraph other) {
+        for (final Map.Entry<ModuleName, Set<ModuleName>> entry : other.moduleToImportsMap.entrySet()) {
+            setImports(entry.getKey(), entry.getValue());
+        }
+        moduleToTimeStampMap.putAll(other.moduleToTimeStampMap);
+    }
+
+    /**
+     * Record the imports for a module, replacing any imports previously recorded.
+     * The module's time stamp is forgotten, so it will be rescanned by the next call to update().
+     * @param moduleName the name of the module.
+     * @param importedModuleNames the names of the modules imported by the module.
+     */
+    public void setImports(ModuleName moduleName, Collection<ModuleName> importedModuleNames) {
+        moduleToTimeStampMap.remove(moduleName);
+        removeImporter(moduleName, moduleToImportsMap.put(moduleName, new LinkedHashSet<ModuleName>(importedModuleNames)));
+
+        for (final ModuleName importedModuleName : importedModuleNames) {
+            Set<ModuleName> importers = moduleToImportersMap.get(importedModuleName);
+            if (importers == null) {
+                importers = new HashSet<ModuleName>();
+                moduleToImportersMap.put(importedModuleName, importers);
+            }
+            importers.add(moduleName);
+        }
+    }
+
+    /**
+     * Record the imports for a module, as scanned from a source with the given time stamp.
+     * @param moduleName the name of the module.
+     * @param importedModuleNames the names of the modules imported by the module.
+     * @param timeStamp the time stamp of the source from which the imports were scanned.
+     */
+    public void setImports(ModuleName moduleName, Collection<ModuleName> importedModuleNames, long timeStamp) {
+        setImports(moduleName, importedModuleNames);
+        moduleToTimeStampMap.put(moduleName, Long.valueOf(timeStamp));
+    }
+
+    /**
+     * Scan a module's source for its imports, and record them.
+     * @param sourceDefinition the source definition for the module.
+     */
+    public void scanModule(ModuleSourceDefinition sourceDefinition) {
+        // Get the time stamp first, so that a change made during the scan is picked up by the next update().
+        long timeStamp = sourceDefinition.getTimeStamp();
+        setImports(sourceDefinition.getModuleName(), scanImports(sourceDefinition), timeStamp);
+    }
+
+    /**
+     * Bring the graph up to date with the modules in a group.
+     * Only modules whose source time stamp differs from the one recorded when they were scanned are rescanned.
+     * Modules which are no longer in the group are removed.
+     *
+     * @param definitionGroup the group whose modules the graph should contain.
+     */
+    public void update(ModuleSourceDefinitionGroup definitionGroup) {
+        Set<ModuleName> removedModuleNames = new HashSet<ModuleName>(moduleToImportsMap.keySet());
+        for (int i = 0, nModules = definitionGroup.getNModules(); i < nModules; i++) {
+            ModuleSourceDefinition sourceDefinition = definitionGroup.getModuleSource(i);
+            ModuleName moduleName = sourceDefinition.getModuleName();
+            removedModuleNames.remove(moduleName);
+
+            Long recordedTimeStamp = moduleToTimeStampMap.get(moduleName);
+            if (recordedTimeStamp == null || recordedTimeStamp.longValue() != sourceDefinition.getTimeStamp()) {
+                scanModule(sourceDefinition);
+            }
+        }
+        for (final ModuleName removedModuleName : removedModuleNames) {
+            removeModule(removedModuleName);
+        }
+    }
+
+    /**
+     * Remove a module from the graph.
+     * Modules which import the removed module still record the import.
+     * @param moduleName the name of the module to remove.
+     */
+    public void removeModule(ModuleName moduleName) {
+        moduleToTimeStampMap.remove(moduleName);
+        removeImporter(moduleName, moduleToImportsMap.remove(moduleName));
+    }
+
+    /**
+     * Remove a module from the reverse index entries of the modules it imports.
+     * @param importerName the name of the importing module.
+     * @param importedModuleNames the names of the modules it imports.  May be null.
+     */
+    private void removeImporter(ModuleName importerName, Set<ModuleName> importedModuleNames) {
+        if (importedModuleNames == null) {
+            return;
+        }
+        for (final ModuleName importedModuleName : importedModuleNames) {
+            Set<ModuleName> importers = moduleToImportersMap.get(importedModuleName);
+            if (importers != null) {
+                importers.remove(importerName);
+                if (importers.isEmpty()) {
+                    moduleToImportersMap.remove(importedModuleName);
+                }
+            }
+        }
+    }
+
+    /**
+     * @param moduleName the name of a module.
+     * @return whether the module is in the graph.
+     */
+    public boolean containsModule(ModuleName moduleName) {
+        return moduleToImportsMap.containsKey(moduleName);
+    }
+
+    /**
+     * @return the names of the modules in the graph.
+     */
+    public Set<ModuleName> getModuleNames() {
+        return Collections.unmodifiableSet(moduleToImportsMap.keySet());
+    }
+
+    /**
+     * @param moduleName the name of a module.
+     * @return the names of the modules imported by the given module, or an empty set if the module is not in the graph.
+     */
+    public Set<ModuleName> getImportedModules(ModuleName moduleName) {
+        Set<ModuleName> importedModules = moduleToImportsMap.get(moduleName);
+        if (importedModules == null) {
+            return Collections.emptySet();
+        }
+        return Collections.unmodifiableSet(importedModules);
+    }
+
+    /**
+     * @param moduleName the name of a module.  This module need not be in the graph.
+     * @return the names of the modules in the graph which import the given module.
+     */
+    public Set<ModuleName> getImportingModules(ModuleName moduleName) {
+        Set<ModuleName> importers = moduleToImportersMap.get(moduleName);
+        if (importers == null) {
+            return Collections.emptySet();
+        }
+        return Collections.unmodifiableSet(importers);
+    }
+
+    /**
+     * Get the modules affected by changes to the given modules.
+     * These are the given modules which are in the graph, plus all modules in the graph which import them, directly or indirectly.
+     *
+     * @param changedModuleNames the names of the changed modules.  These need not be in the graph.
+     * @return the names of the affected modules.
+     */
+    public Set<ModuleName> getAffectedModules(Collection<ModuleName> changedModuleNames) {
+        Set<ModuleName> affectedModules = new LinkedHashSet<ModuleName>();
+
+        List<ModuleName> modulesToVisit = new ArrayList<ModuleName>(changedModuleNames);
+        Set<ModuleName> visitedModules = new HashSet<ModuleName>();
+        while (!modulesToVisit.isEmpty()) {
+            ModuleName moduleName = modulesToVisit.remove(modulesToVisit.size() - 1);
+            if (!visitedModules.add(moduleName)) {
+                continue;
+            }
+            if (containsModule(moduleName)) {
+                affectedModules.add(moduleName);
+            }
+            modulesToVisit.addAll(getImportingModules(moduleName));
+        }
+
+        return affectedModules;
+    }
+
+    /**
+     * Partition the given modules into levels, such that modules in a level only import modules from earlier levels
+     *   (or modules which are not in the given collection).
+     * Modules in the same level are therefore independent of each other, and can be compiled concurrently.
+     * <p>
+     * Modules which take part in an import cycle (or which import such modules) can't be placed in a level.
+     * These are added to the given set instead, and should be left to the compiler, which will report the cycle.
+     *
+     * @param moduleNames the names of the modules to partition.
+     * @param unplacedModuleNames the set to which to add the names of modules which could not be placed in a level.
+     * @return the levels, in dependency order.
+     */
+    public List<List<ModuleName>> getTopologicalLevels(Collection<ModuleName> moduleNames, Set<ModuleName> unplacedModuleNames) {
+        Set<ModuleName> remaining = new LinkedHashSet<ModuleName>(moduleNames);
+
+        // Map from module name to the number of imports not yet placed in a level.
+        Map<ModuleName, Integer> unplacedImportCountMap = new HashMap<ModuleName, Integer>();
+
+        // Map from module name to the modules in the collection which import it.
+        Map<ModuleName, List<ModuleName>> importerMap = new HashMap<ModuleName, List<ModuleName>>();
+
+        for (final ModuleName moduleName : remaining) {
+            int unplacedImportCount = 0;
+            for (final ModuleName importedModuleName : getImportedModules(moduleName)) {
+                if (remaining.contains(importedModuleName) && !importedModuleName.equals(moduleName)) {
+                    unplacedImportCount++;
+
+                    List<ModuleName> importers = importerMap.get(importedModuleName);
+                    if (importers == null) {
+                        importers = new ArrayList<ModuleName>();
+                        importerMap.put(importedModuleName, importers);
+                    }
+                    importers.add(moduleName);
+                }
+            }
+            unplacedImportCountMap.put(moduleName, Integer.valueOf(unplacedImportCount));
+        }
+
+        List<List<ModuleName>> levels = new ArrayList<List<ModuleName>>();
+
+        // The first level consists of modules without imports in the collection.
+        List<ModuleName> currentLevel = new ArrayList<ModuleName>();
+        for (final ModuleName moduleName : remaining) {
+            if (unplacedImportCountMap.get(moduleName).intValue() == 0) {
+                currentLevel.add(moduleName);
+            }
+        }
+
+        while (!currentLevel.isEmpty()) {
+            levels.add(currentLevel);
+            remaining.removeAll(currentLevel);
+
+            List<ModuleName> nextLevel = new ArrayList<ModuleName>();
+            for (final ModuleName placedModuleName : currentLevel) {
+                List<ModuleName> importers = importerMap.get(placedModuleName);
+                if (importers == null) {
+                    continue;
+                }
+                for (final ModuleName importer : importers) {
+                    int unplacedImportCount = unplacedImportCountMap.get(importer).intValue() - 1;
+                    unplacedImportCountMap.put(importer, Integer.valueOf(unplacedImportCount));
+                    if (unplacedImportCount == 0) {
+                        nextLevel.add(importer);
+                    }
+                }
+            }
+            currentLevel = nextLevel;
+        }
+
+        // Anything left over is in or depends on a cycle.
+        unplacedModuleNames.addAll(remaining);
+
+        return levels;
+    }
+
+    /**
+     * @param moduleNames the names of some modules.
+     * @return the modules, ordered so that each module comes after the modules it imports, where possible.
+     *   Modules in or depending on a cycle come last.
+     */
+    public ModuleName[] getCompilationOrder(Collection<ModuleName> moduleNames) {
+        Set<ModuleName> unplacedModuleNames = new LinkedHashSet<ModuleName>();
+        List<ModuleName> orderedModuleNames = new ArrayList<ModuleName>(moduleNames.size());
+        for (final List<ModuleName> level : getTopologicalLevels(moduleNames, unplacedModuleNames)) {
+            orderedModuleNames.addAll(level);
+        }
+        orderedModuleNames.addAll(unplacedModuleNames);
+        return orderedModuleNames.toArray(new ModuleName[orderedModuleNames.size()]);
+    }
+
+    /**
+     * Scan the header of a module for its imports.
+     * @param sourceDefinition the source definition for the module.
+     * @return the names of the modules imported by the module, in declaration order.
+     */
+    static Set<ModuleName> scanImports(ModuleSourceDefinition sourceDefinition) {
+        String source = ModuleContainer.readModuleSource(sourceDefinition);
+        if (source == null) {
+            return Collections.emptySet();
+        }
+        return scanImports(source);
+    }
+
+    /**
+     * Scan the header of a module for its imports.
+     * <p>
+     * The header consists of the module declaration, followed by the import declarations.
+     * Scanning stops at the first top-level declaration which is not an import (eg. a friend declaration),
+     * so the rest of the module text is never looked at.
+     *
+     * @param source the text of the module.
+     * @return the names of the modules imported by the module, in declaration order.
+     */
+    static Set<ModuleName> scanImports(String source) {
+        Set<ModuleName> importedModules = new LinkedHashSet<ModuleName>();
+        HeaderScanner scanner = new HeaderScanner(source);
+
+        // "module" ModuleName ";"
+        if (!"module".equals(scanner.nextToken())) {
+            return importedModules;
+        }
+        scanner.skipPast(';');
+
+        while ("import".equals(scanner.nextToken())) {
+            ModuleName importedModuleName = ModuleName.maybeMake(scanner.nextToken());
+            if (importedModuleName != null) {
+                importedModules.add(importedModuleName);
+            }
+            // Skip any using clause.
+            scanner.skipPast(';');
+        }
+
+        return importedModules;
+    }
+
+    /**
+     * A minimal tokenizer for the header of a CAL module.
+     * Tokens are either (possibly hierarchical) identifiers, or single non-whitespace characters.
+     * Comments are skipped.
+     */
+    private static class HeaderScanner {
+        private final String source;
+        private int pos = 0;
+
+        HeaderScanner(String source) {
+            this.source = source;
+        }
+
+        /**
+         * Skip whitespace and comments.
+         */
+        private void skipWhitespaceAndComments() {
+            int length = source.length();
+            while (pos < length) {
+                char c = source.charAt(pos);
+                if (Character.isWhitespace(c)) {
+                    pos++;
+
+                } else if (c == '/' && pos + 1 < length && source.charAt(pos + 1) == '/') {
+                    int endOfLine = source.indexOf('\n', pos);
+                    pos = (endOfLine < 0) ? length : endOfLine + 1;
+
+                } else if (c == '/' && pos + 1 < length && source.charAt(pos + 1) == '*') {
+                    int endOfComment = source.indexOf("*/", pos + 2);
+                    pos = (endOfComment < 0) ? length : endOfComment + 2;
+
+                } else {
+                    return;
+                }
+            }
+        }
+
+        /**
+         * @return the next token, or null if the end of the source was reached.
+         */
+        String nextToken() {
+            skipWhitespaceAndComments();
+            if (pos >= source.length()) {
+                return null;
+            }
+
+            int start = pos;
+            if (!Character.isJavaIdentifierStart(source.charAt(pos))) {
+                pos++;
+                return source.substring(start, pos);
+            }
+
+            // An identifier, possibly hierarchical (eg. Cal.Core.Prelude).
+            while (pos < source.length()) {
+                char c = source.charAt(pos);
+                if (Character.isJavaIdentifierPart(c)) {
+                    pos++;
+                } else if (c == '.' && pos + 1 < source.length() && Character.isJavaIdentifierStart(source.charAt(pos + 1))) {
+                    pos++;
+                } else {
+                    break;
+                }
+            }
+            return source.substring(start, pos);
+        }
+
+        /**
+         * Advance past the next occurrence of the given character, ignoring occurrences in comments.
+         * @param terminator the character to skip past.
+         */
+        void skipPast(char terminator) {
+            String terminatorString = String.valueOf(terminator);
+            for (String token = nextToken(); token != null; token = nextToken()) {
+                if (token.equals(terminatorString)) {
+                    return;
+                }
+            }
+        }
+    }
+}
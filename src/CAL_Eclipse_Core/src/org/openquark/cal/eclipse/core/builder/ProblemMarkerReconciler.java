@@ -0,0 +1,238 @@
+/*******************************************************************************
+ * Copyright (c) 2007 Business Objects Software Limited and others.
+ * All rights reserved.
+ * This file is made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Business Objects Software Limited - initial API and implementation
+ *******************************************************************************/
+
+/*
+ * ProblemMarkerReconciler.java
+ * Created: Oct 17, 2007
+ */
+package org.openquark.cal.eclipse.core.builder;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.eclipse.core.resources.IMarker;
+import org.eclipse.core.resources.IResource;
+import org.eclipse.core.resources.IWorkspace;
+import org.eclipse.core.resources.IWorkspaceRunnable;
+import org.eclipse.core.resources.ResourcesPlugin;
+import org.eclipse.core.runtime.CoreException;
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.openquark.util.UnsafeCast;
+
+
+/**
+ * Gathers the problem markers which should exist after a build, and brings the markers on the resources up to date
+ *   in a single workspace operation.
+ * <p>
+ * Markers are compared with the markers which already exist, so that only the difference is applied:
+ *   markers which already exist are left alone, new markers are created, and (for the resources being replaced)
+ *   markers which no longer apply are deleted.  This means that a single resource delta is broadcast for the build,
+ *   and markers which haven't changed aren't removed and recreated.
+ */
+class ProblemMarkerReconciler {
+
+    /** The type of the markers being reconciled. */
+    private final String markerType;
+
+    /**
+     * The resources whose existing markers (including markers on their members) should be replaced.
+     * Existing markers on these resources which aren't added to the reconciler are deleted.
+     */
+    private final Set<IResource> resourcesToReplace = new LinkedHashSet<IResource>();
+
+    /** Map from resource to the attributes of the markers which should exist on that resource. */
+    private final Map<IResource, List<Map<String, Object>>> resourceToMarkerAttributesMap = new LinkedHashMap<IResource, List<Map<String, Object>>>();
+
+    /**
+     * Constructor for a ProblemMarkerReconciler.
+     * @param markerType the type of the markers to reconcile.
+     */
+    ProblemMarkerReconciler(String markerType) {
+        this.markerType = markerType;
+    }
+
+    /**
+     * Replace the markers on the given resource (and its members) with those added to this reconciler.
+     * @param resource the resource whose markers should be replaced.
+     */
+    void replaceMarkersOn(IResource resource) {
+        resourcesToReplace.add(resource);
+    }
+
+    /**
+     * Add a marker which should exist after reconciliation.
+     * If an identical marker has already been added, this has no effect.
+     *
+     * @param resource the resource on which the marker should exist.
+     * @param attributeMap the attribute names and values the marker should have.
+     */
+    void addMarker(IResource resource, Map<String, Object> attributeMap) {
+        List<Map<String, Object>> markerAttributesList = resourceToMarkerAttributesMap.get(resource);
+        if (markerAttributesList == null) {
+            markerAttributesList = new ArrayList<Map<String, Object>>();
+            resourceToMarkerAttributesMap.put(resource, markerAttributesList);
+        }
+        if (!markerAttributesList.contains(attributeMap)) {
+            markerAttributesList.add(attributeMap);
+        }
+    }
+
+    /**
+     * Apply the difference between the existing markers and the added markers, in a single workspace operation.
+     * @throws CoreException if there was a problem accessing or modifying the markers.
+     */
+    void reconcile() throws CoreException {
+        IWorkspace workspace = ResourcesPlugin.getWorkspace();
+        workspace.run(new IWorkspaceRunnable() {
+            public void run(IProgressMonitor monitor) throws CoreException {
+                reconcileMarkers();
+            }
+        }, null, IWorkspace.AVOID_UPDATE, null);
+    }
+
+    /**
+     * Apply the difference between the existing markers and the added markers.
+     * @throws CoreException if there was a problem accessing or modifying the markers.
+     */
+    private void reconcileMarkers() throws CoreException {
+
+        // Map from resource to its existing markers.
+        Map<IResource, List<IMarker>> existingMarkersMap = new HashMap<IResource, List<IMarker>>();
+
+        // The existing markers which aren't wanted any more.
+        Set<IMarker> markersToDelete = new LinkedHashSet<IMarker>();
+
+        for (final IResource resource : resourcesToReplace) {
+            if (!resource.exists()) {
+                continue;
+            }
+            for (final IMarker marker : resource.findMarkers(markerType, false, IResource.DEPTH_INFINITE)) {
+                getExistingMarkers(existingMarkersMap, marker.getResource()).add(marker);
+                markersToDelete.add(marker);
+            }
+        }
+
+        for (final Map.Entry<IResource, List<Map<String, Object>>> entry : resourceToMarkerAttributesMap.entrySet()) {
+            IResource resource = entry.getKey();
+            if (!resource.exists()) {
+                continue;
+            }
+
+            List<IMarker> existingMarkers = existingMarkersMap.get(resource);
+            if (existingMarkers == null) {
+                // Not being replaced -- markers are only added to the resource, and only if they don't already exist.
+                existingMarkers = getExistingMarkers(existingMarkersMap, resource);
+                for (final IMarker marker : resource.findMarkers(markerType, false, IResource.DEPTH_ZERO)) {
+                    existingMarkers.add(marker);
+                }
+            }
+
+            // Index the existing markers by message, so that each new marker is only compared with likely matches.
+            Map<Object, List<IMarker>> messageToExistingMarkersMap = new HashMap<Object, List<IMarker>>();
+            for (final IMarker existingMarker : existingMarkers) {
+                Object message = existingMarker.getAttribute(IMarker.MESSAGE);
+                List<IMarker> markersWithMessage = messageToExistingMarkersMap.get(message);
+                if (markersWithMessage == null) {
+                    markersWithMessage = new ArrayList<IMarker>();
+                    messageToExistingMarkersMap.put(message, markersWithMessage);
+                }
+                markersWithMessage.add(existingMarker);
+            }
+
+            for (final Map<String, Object> attributeMap : entry.getValue()) {
+                IMarker matchingMarker = null;
+                List<IMarker> candidateMarkers = messageToExistingMarkersMap.get(attributeMap.get(IMarker.MESSAGE));
+                if (candidateMarkers != null) {
+                    for (final IMarker candidateMarker : candidateMarkers) {
+                        if (markerHasAttributes(candidateMarker, attributeMap)) {
+                            matchingMarker = candidateMarker;
+                            break;
+                        }
+                    }
+                }
+
+                if (matchingMarker != null) {
+                    // Keep the existing marker.  Each existing marker can only match one new marker.
+                    candidateMarkers.remove(matchingMarker);
+                    markersToDelete.remove(matchingMarker);
+                } else {
+                    IMarker marker = resource.createMarker(markerType);
+                    marker.setAttributes(attributeMap);
+                }
+            }
+        }
+
+        for (final IMarker marker : markersToDelete) {
+            marker.delete();
+        }
+    }
+
+    /**
+     * @param existingMarkersMap map from resource to its existing markers.
+     * @param resource a resource.
+     * @return the list of existing markers for the resource, created if necessary.
+     */
+    private static List<IMarker> getExistingMarkers(Map<IResource, List<IMarker>> existingMarkersMap, IResource resource) {
+        List<IMarker> existingMarkers = existingMarkersMap.get(resource);
+        if (existingMarkers == null) {
+            existingMarkers = new ArrayList<IMarker>();
+            existingMarkersMap.put(resource, existingMarkers);
+        }
+        return existingMarkers;
+    }
+
+    /**
+     * Return whether a marker has the attributes in a provided attribute map.
+     * @param marker the marker to consider
+     * @param attributeMap the attribute map to consider
+     * @return whether the marker has the attributes in the attribute map.
+     * False if any attribute values differ.  Note that the marker is allowed to have more attributes than provided in the map.
+     * @throws CoreException if there was a problem getting the value of the attribute from either of the markers.
+     */
+    static boolean markerHasAttributes(IMarker marker, Map<String, Object> attributeMap) throws CoreException {
+
+        Map<String, Object> markerAttributeMap = UnsafeCast.unsafeCast(marker.getAttributes());  // attribute value - string, integer, boolean, or null
+
+        // Check for too many attributes.
+        if (markerAttributeMap.size() > attributeMap.size()) {
+            return false;
+        }
+
+        // Check for different attribute values.
+        for (final Map.Entry<String, Object> mapEntry : markerAttributeMap.entrySet()) {
+            Object value1 = mapEntry.getValue();
+            Object value2 = attributeMap.get(mapEntry.getKey());
+
+            if (value1 == null) {
+                if (value2 != null) {
+                    return false;
+                } else {
+                    // both null
+                }
+
+            } else {
+                if (value2 == null || !value1.equals(value2)) {
+                    return false;
+                } else {
+                    // same value
+                }
+            }
+        }
+
+        // They're the same.
+        return true;
+    }
+}
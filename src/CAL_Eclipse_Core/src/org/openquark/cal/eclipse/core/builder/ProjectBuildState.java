@@ -17,7 +17,28 @@
 
 package org.openquark.cal.eclipse.core.builder;
 
+import java.io.BufferedOutputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.openquark.cal.compiler.ModuleName;
+import org.openquark.cal.compiler.ModuleSourceDefinition;
+import org.openquark.cal.compiler.ModuleSourceDefinitionGroup;
+import org.openquark.cal.compiler.ModuleTypeInfo;
+import org.openquark.cal.eclipse.core.CALModelManager;
 import org.openquark.cal.eclipse.core.EclipseModuleSourceDefinitionGroup;
+import org.openquark.cal.services.ProgramModelManager;
 
 
 /**
@@ -29,13 +50,225 @@ public class ProjectBuildState {
     private final String projectName;
     private final EclipseModuleSourceDefinitionGroup moduleSourceDefinitionGroup;
     
+    /** The import graph for the modules in the project's module source definition group, or null if not known. */
+    private final ModuleImportGraph importGraph;
+    
+    /** 
+     * Map from the name of each module imported by the project's writable modules from a dependee project,
+     *   to its type info at the time the state was recorded.
+     * The type info is replaced when a module is recompiled, so a different (or collected) type info means that the module may have changed.
+     */
+    private final Map<ModuleName, WeakReference<ModuleTypeInfo>> dependeeModuleTypeInfoMap = new HashMap<ModuleName, WeakReference<ModuleTypeInfo>>();
+    
+    /** 
+     * Map from module name to the fingerprint of its interface, for the project's writable modules and the dependee modules they import.
+     * @see InterfaceChangeFilter#computeFingerprint(ProgramModelManager, ModuleName)
+     */
+    private final Map<ModuleName, String> interfaceFingerprintMap = new HashMap<ModuleName, String>();
+    
+    /** Map from module name to the time stamp of its source, for the project's writable modules. */
+    private final Map<ModuleName, Long> moduleTimeStampMap = new HashMap<ModuleName, Long>();
+    
+    /** Whether this state was read from a saved snapshot, rather than recorded by a build in this session. */
+    private final boolean restored;
+    
+    /** The version of the format written by write().  Increment when the format changes. */
+    private static final int SNAPSHOT_VERSION = 1;
+    
     
     /**
      * @param calBuilder the calBuilder for which the build state should be captured.
+     * @param importGraph the import graph for the modules in the project's module source definition group, or null if not known.
+     * @param writableModuleFingerprintMap map from module name to interface fingerprint for the project's writable modules,
+     *   or null to compute the fingerprints from the program.  Entries for other modules are ignored.
+     * @param previousState the state recorded by the previous build, or null if none.
      */
-    ProjectBuildState(CALBuilder calBuilder) {
+    ProjectBuildState(CALBuilder calBuilder, ModuleImportGraph importGraph, Map<ModuleName, String> writableModuleFingerprintMap, ProjectBuildState previousState) {
         this.projectName = calBuilder.getProject().getName();
         this.moduleSourceDefinitionGroup = calBuilder.getModuleSourceDefinitionGroup();
+        this.importGraph = importGraph;
+        this.restored = false;
+        
+        if (importGraph == null || moduleSourceDefinitionGroup == null) {
+            return;
+        }
+        
+        ProgramModelManager programModelManager = CALModelManager.getCALModelManager().getProgramModelManager();
+        
+        ModuleSourceDefinitionGroup writableSubGroup = moduleSourceDefinitionGroup.getWritableSubGroup();
+        for (int i = 0, nModules = writableSubGroup.getNModules(); i < nModules; i++) {
+            ModuleSourceDefinition sourceDefinition = writableSubGroup.getModuleSource(i);
+            ModuleName moduleName = sourceDefinition.getModuleName();
+            moduleTimeStampMap.put(moduleName, Long.valueOf(sourceDefinition.getTimeStamp()));
+            
+            String fingerprint;
+            if (writableModuleFingerprintMap != null) {
+                fingerprint = writableModuleFingerprintMap.get(moduleName);
+            } else {
+                fingerprint = InterfaceChangeFilter.computeFingerprint(programModelManager, moduleName);
+            }
+            if (fingerprint != null) {
+                interfaceFingerprintMap.put(moduleName, fingerprint);
+            }
+        }
+        
+        for (final ModuleName dependeeModuleName : getDependeeModuleNames()) {
+            ModuleTypeInfo moduleTypeInfo = programModelManager.getModuleTypeInfo(dependeeModuleName);
+            if (moduleTypeInfo == null) {
+                continue;
+            }
+            dependeeModuleTypeInfoMap.put(dependeeModuleName, new WeakReference<ModuleTypeInfo>(moduleTypeInfo));
+            
+            // Avoid recomputing the fingerprint if the module hasn't been recompiled.
+            String fingerprint = null;
+            if (previousState != null && previousState.getRecordedDependeeTypeInfo(dependeeModuleName) == moduleTypeInfo) {
+                fingerprint = previousState.getInterfaceFingerprint(dependeeModuleName);
+            }
+            if (fingerprint == null) {
+                fingerprint = InterfaceChangeFilter.computeFingerprint(programModelManager, dependeeModuleName);
+            }
+            if (fingerprint != null) {
+                interfaceFingerprintMap.put(dependeeModuleName, fingerprint);
+            }
+        }
+    }
+    
+    /**
+     * Constructor for a state restored from a snapshot.
+     * @param projectName the name of the project.
+     * @param moduleSourceDefinitionGroup the project's current module source definition group.
+     * @param importGraph the import graph recorded in the snapshot.
+     */
+    private ProjectBuildState(String projectName, EclipseModuleSourceDefinitionGroup moduleSourceDefinitionGroup, ModuleImportGraph importGraph) {
+        this.projectName = projectName;
+        this.moduleSourceDefinitionGroup = moduleSourceDefinitionGroup;
+        this.importGraph = importGraph;
+        this.restored = true;
+    }
+    
+    /**
+     * Write a snapshot of this state.
+     * Only the state for the project's writable modules is written -- the recorded type infos of dependee modules
+     *   only make sense within a session.
+     * 
+     * @param out the output to which to write.
+     * @throws IOException
+     */
+    public void write(DataOutput out) throws IOException {
+        out.writeInt(SNAPSHOT_VERSION);
+        out.writeUTF(projectName);
+        
+        out.writeInt(moduleTimeStampMap.size());
+        for (final Map.Entry<ModuleName, Long> entry : moduleTimeStampMap.entrySet()) {
+            ModuleName moduleName = entry.getKey();
+            out.writeUTF(moduleName.toSourceText());
+            out.writeLong(entry.getValue().longValue());
+            
+            String fingerprint = interfaceFingerprintMap.get(moduleName);
+            out.writeBoolean(fingerprint != null);
+            if (fingerprint != null) {
+                out.writeUTF(fingerprint);
+            }
+            
+            Set<ModuleName> importedModuleNames = (importGraph != null) ? importGraph.getImportedModules(moduleName) : new HashSet<ModuleName>();
+            out.writeInt(importedModuleNames.size());
+            for (final ModuleName importedModuleName : importedModuleNames) {
+                out.writeUTF(importedModuleName.toSourceText());
+            }
+        }
+    }
+    
+    /**
+     * Write a snapshot of this state to a file.
+     * The snapshot is written to a temporary file, which then replaces the given file, so that a failed or
+     *   interrupted write never leaves a truncated snapshot behind.
+     * 
+     * @param file the file to which to write.
+     * @throws IOException if the snapshot could not be written.  The given file is not changed in this case.
+     */
+    public void write(File file) throws IOException {
+        File tempFile = new File(file.getPath() + ".tmp"); //$NON-NLS-1$
+        boolean written = false;
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+            try {
+                write(out);
+            } finally {
+                out.close();
+            }
+            
+            // renameTo() fails on some platforms if the target exists.
+            if (!tempFile.renameTo(file) && !(file.delete() && tempFile.renameTo(file))) {
+                throw new IOException("Unable to rename " + tempFile + " to " + file); //$NON-NLS-1$ //$NON-NLS-2$
+            }
+            written = true;
+        
+        } finally {
+            if (!written) {
+                tempFile.delete();
+            }
+        }
+    }
+    
+    /**
+     * Read a snapshot written by write().
+     * 
+     * @param in the input from which to read.
+     * @param projectName the name of the project whose state is being read.
+     * @param moduleSourceDefinitionGroup the project's current module source definition group.
+     * @return the restored state, or null if the snapshot is from a different version or project.
+     * @throws IOException
+     */
+    public static ProjectBuildState read(DataInput in, String projectName, EclipseModuleSourceDefinitionGroup moduleSourceDefinitionGroup) throws IOException {
+        if (in.readInt() != SNAPSHOT_VERSION || !projectName.equals(in.readUTF())) {
+            return null;
+        }
+        
+        ProjectBuildState restoredState = new ProjectBuildState(projectName, moduleSourceDefinitionGroup, new ModuleImportGraph());
+        
+        for (int i = 0, nModules = in.readInt(); i < nModules; i++) {
+            ModuleName moduleName = ModuleName.make(in.readUTF());
+            long timeStamp = in.readLong();
+            restoredState.moduleTimeStampMap.put(moduleName, Long.valueOf(timeStamp));
+            
+            if (in.readBoolean()) {
+                restoredState.interfaceFingerprintMap.put(moduleName, in.readUTF());
+            }
+            
+            int nImports = in.readInt();
+            List<ModuleName> importedModuleNames = new ArrayList<ModuleName>(nImports);
+            for (int j = 0; j < nImports; j++) {
+                importedModuleNames.add(ModuleName.make(in.readUTF()));
+            }
+            restoredState.importGraph.setImports(moduleName, importedModuleNames, timeStamp);
+        }
+        
+        return restoredState;
+    }
+    
+    /**
+     * @return whether this state was read from a saved snapshot, rather than recorded by a build in this session.
+     *   If so, the modules in the state have not been loaded into the program.
+     */
+    public boolean isRestored() {
+        return restored;
+    }
+    
+    /**
+     * @return the names of modules from dependee projects which are imported by the project's writable modules.
+     */
+    private Set<ModuleName> getDependeeModuleNames() {
+        ModuleSourceDefinitionGroup writableSubGroup = moduleSourceDefinitionGroup.getWritableSubGroup();
+        
+        Set<ModuleName> dependeeModuleNames = new HashSet<ModuleName>();
+        for (int i = 0, nModules = writableSubGroup.getNModules(); i < nModules; i++) {
+            for (final ModuleName importedModuleName : importGraph.getImportedModules(writableSubGroup.getModuleSource(i).getModuleName())) {
+                if (writableSubGroup.getModuleSource(importedModuleName) == null) {
+                    dependeeModuleNames.add(importedModuleName);
+                }
+            }
+        }
+        return dependeeModuleNames;
     }
 
     /**
@@ -51,5 +284,79 @@ public class ProjectBuildState {
     public EclipseModuleSourceDefinitionGroup getModuleSourceDefinitionGroup() {
         return moduleSourceDefinitionGroup;
     }
+    
+    /**
+     * The import graph is updated by the builder between builds, so should only be modified from the builder.
+     * @return the import graph for the modules in the project's module source definition group, or null if not known.
+     */
+    ModuleImportGraph getImportGraph() {
+        return importGraph;
+    }
+    
+    /**
+     * @param writableSubGroup the project's current writable modules.
+     * @return the names of modules which were added, removed, or whose source time stamp changed since the state was recorded.
+     */
+    Set<ModuleName> getChangedModules(ModuleSourceDefinitionGroup writableSubGroup) {
+        Set<ModuleName> changedModuleNames = new HashSet<ModuleName>(moduleTimeStampMap.keySet());
+        for (int i = 0, nModules = writableSubGroup.getNModules(); i < nModules; i++) {
+            ModuleSourceDefinition sourceDefinition = writableSubGroup.getModuleSource(i);
+            ModuleName moduleName = sourceDefinition.getModuleName();
+            
+            Long recordedTimeStamp = moduleTimeStampMap.get(moduleName);
+            if (recordedTimeStamp != null && recordedTimeStamp.longValue() == sourceDefinition.getTimeStamp()) {
+                changedModuleNames.remove(moduleName);
+            } else {
+                changedModuleNames.add(moduleName);
+            }
+        }
+        return changedModuleNames;
+    }
+    
+    /**
+     * @param moduleName the name of a module.
+     * @return the fingerprint of the module's interface when the state was recorded, or null if not known.
+     */
+    String getInterfaceFingerprint(ModuleName moduleName) {
+        return interfaceFingerprintMap.get(moduleName);
+    }
+    
+    /**
+     * @return a copy of the map from module name to interface fingerprint for the modules recorded in this state.
+     */
+    Map<ModuleName, String> getInterfaceFingerprintMap() {
+        return new HashMap<ModuleName, String>(interfaceFingerprintMap);
+    }
+    
+    /**
+     * @param moduleName the name of a module from a dependee project.
+     * @return the module's type info when the state was recorded, or null if not recorded (or no longer available).
+     */
+    private ModuleTypeInfo getRecordedDependeeTypeInfo(ModuleName moduleName) {
+        WeakReference<ModuleTypeInfo> typeInfoRef = dependeeModuleTypeInfoMap.get(moduleName);
+        return (typeInfoRef == null) ? null : typeInfoRef.get();
+    }
+    
+    /**
+     * @param programModelManager the program model manager.
+     * @return the names of modules from dependee projects whose interface has changed (or which have been removed) since the state was recorded.
+     */
+    Set<ModuleName> getChangedDependeeModules(ProgramModelManager programModelManager) {
+        Set<ModuleName> changedModuleNames = new HashSet<ModuleName>();
+        for (final ModuleName moduleName : dependeeModuleTypeInfoMap.keySet()) {
+            ModuleTypeInfo currentTypeInfo = programModelManager.getModuleTypeInfo(moduleName);
+            if (currentTypeInfo != null && currentTypeInfo == getRecordedDependeeTypeInfo(moduleName)) {
+                // Not recompiled.
+                continue;
+            }
+            
+            // Recompiled -- check whether the interface changed.
+            String currentFingerprint = (currentTypeInfo == null) ? null : InterfaceChangeFilter.computeFingerprint(programModelManager, moduleName);
+            if (currentFingerprint == null || !currentFingerprint.equals(interfaceFingerprintMap.get(moduleName))) {
+                changedModuleNames.add(moduleName);
+            }
+        }
+        return changedModuleNames;
+    }
 
 }
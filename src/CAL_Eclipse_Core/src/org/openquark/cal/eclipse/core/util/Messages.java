@@ -98,6 +98,10 @@ public final class Messages extends NLS {
     public static String path_mustBeAbsolute;
     public static String cache_invalidLoadFactor;
     public static String savedState_jobName;
+    public static String prefetch_jobName;
+    public static String metadataWrite_jobName;
+    public static String metadataWrite_failed;
+    public static String metadataWrite_someFailed;
     public static String javamodel_initialization;
     public static String quickFix_importThisModule;
     public static String quickFix_fullyQualifyName;
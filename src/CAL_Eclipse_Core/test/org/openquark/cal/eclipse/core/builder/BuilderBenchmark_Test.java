@@ -0,0 +1,299 @@
+/*******************************************************************************
+ * Copyright (c) 2007 Business Objects Software Limited and others.
+ * All rights reserved.
+ * This file is made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Business Objects Software Limited - initial API and implementation
+ *******************************************************************************/
+
+/*
+ * BuilderBenchmark_Test.java
+ * Created: Oct 17, 2007
+ */
+package org.openquark.cal.eclipse.core.builder;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.eclipse.core.resources.IMarker;
+import org.eclipse.core.resources.IProject;
+import org.eclipse.core.resources.IResource;
+import org.eclipse.core.resources.IWorkspace;
+import org.eclipse.core.resources.IWorkspaceDescription;
+import org.eclipse.core.resources.IncrementalProjectBuilder;
+import org.eclipse.core.resources.ResourcesPlugin;
+import org.eclipse.core.runtime.CoreException;
+import org.eclipse.core.runtime.IStatus;
+import org.openquark.cal.eclipse.core.CALModelMarker;
+import org.openquark.cal.eclipse.core.util.Util;
+
+
+/**
+ * A benchmark for the CAL builder.
+ * <p>
+ * This generates a CAL project with SyntheticWorkspaceGenerator, and times clean, full and incremental builds of the project.
+ * For each build, the wall time, the memory allocated on the build thread, the heap in use after the build,
+ * the number of problem markers and the time spent in each phase of the build are recorded.
+ * The results are written as comma-separated values, one line per build, so that they can be compared between plug-in builds.
+ *   Each line is also logged to the plug-in's log.
+ * Each build (other than a clean) is checked to have run, and, if no modules with errors were asked for, to have
+ *   finished without error markers.
+ * <p>
+ * The benchmark generates and builds a project repeatedly, so it only runs if the file to which to write the results is given.
+ *   Otherwise the test does nothing.
+ * This must be run as a headless JUnit plug-in test, in a workspace containing a project with the CAL standard libraries
+ *   (or with the location of the Quark binaries given so that the project can be created).
+ * The benchmark is configured with system properties:
+ * <ul>
+ *   <li>org.openquark.cal.eclipse.core.benchmark.output - the file to which to write the results.  Required to run the benchmark.
+ *   <li>org.openquark.cal.eclipse.core.benchmark.modules - the number of modules.  Default: 50.
+ *   <li>org.openquark.cal.eclipse.core.benchmark.imports - the number of generated modules imported by each module.  Default: 3.
+ *   <li>org.openquark.cal.eclipse.core.benchmark.hubs - the number of hub modules, imported by many modules.  Default: 5.
+ *   <li>org.openquark.cal.eclipse.core.benchmark.functions - the number of functions in each module.  Default: 10.
+ *   <li>org.openquark.cal.eclipse.core.benchmark.errors - the number of modules containing a compile error.  Default: 0.
+ *   <li>org.openquark.cal.eclipse.core.benchmark.iterations - the number of times to run each build.  Default: 3.
+ *   <li>org.openquark.cal.eclipse.core.benchmark.libraryProject - the name of the project with the CAL standard libraries.  Default: "Quark Binaries".
+ *   <li>org.openquark.cal.eclipse.core.benchmark.quarkBinaries - the location of the Quark binaries.  Optional.
+ * </ul>
+ */
+public class BuilderBenchmark_Test extends TestCase {
+
+    /** The prefix for the system properties which configure the benchmark. */
+    private static final String PROPERTY_PREFIX = "org.openquark.cal.eclipse.core.benchmark.";
+
+    /** The name of the generated project. */
+    private static final String PROJECT_NAME = "CALBuilderBenchmark";
+
+    /** The phases of the build for which times are recorded, in the order in which they appear in the results. */
+    private static final String[] PHASES = {
+        BuildReport.PHASE_PRE_BUILD,
+        BuildReport.PHASE_DELTA_ANALYSIS,
+        BuildReport.PHASE_COMPILE,
+        BuildReport.PHASE_WRITE_FILES,
+        BuildReport.PHASE_PROBLEM_MARKERS,
+        BuildReport.PHASE_REFRESH_OUTPUT,
+        BuildReport.PHASE_POST_BUILD
+    };
+
+    /** The scenario in which the project is cleaned. */
+    private static final String SCENARIO_CLEAN = "clean";
+
+    /** The scenario in which the project is built from scratch. */
+    private static final String SCENARIO_FULL = "full";
+
+    /** The scenario in which a function in a hub module is changed, without changing the module's interface. */
+    private static final String SCENARIO_INCREMENTAL_BODY = "incremental-body";
+
+    /** The scenario in which a function is added to a hub module. */
+    private static final String SCENARIO_INCREMENTAL_INTERFACE = "incremental-interface";
+
+    /** The scenario in which a function in the last module, which no other module imports, is changed. */
+    private static final String SCENARIO_INCREMENTAL_LEAF = "incremental-leaf";
+
+    /** The results recorded so far, one line per build. */
+    private final List<String> results = new ArrayList<String>();
+
+    /**
+     * @param name the name of a system property, without the prefix.
+     * @param defaultValue the value if the property is not set.
+     * @return the value of the property.
+     */
+    private static int getIntProperty(String name, int defaultValue) {
+        String value = System.getProperty(PROPERTY_PREFIX + name);
+        return value == null ? defaultValue : Integer.parseInt(value.trim());
+    }
+
+    /**
+     * Run the benchmark and write the results.
+     * @throws Exception
+     */
+    public void testBuilderPerformance() throws Exception {
+        String outputFileName = System.getProperty(PROPERTY_PREFIX + "output");
+        if (outputFileName == null) {
+            // The benchmark wasn't asked for.
+            return;
+        }
+        File outputFile = new File(outputFileName);
+        int nModules = getIntProperty("modules", 50);
+        int importsPerModule = getIntProperty("imports", 3);
+        int nHubModules = getIntProperty("hubs", 5);
+        int functionsPerModule = getIntProperty("functions", 10);
+        int nErrorModules = getIntProperty("errors", 0);
+        int nIterations = getIntProperty("iterations", 3);
+
+        String libraryProjectName = System.getProperty(PROPERTY_PREFIX + "libraryProject", "Quark Binaries");
+        String quarkBinariesLocation = System.getProperty(PROPERTY_PREFIX + "quarkBinaries");
+
+        IWorkspace workspace = ResourcesPlugin.getWorkspace();
+
+        // Only run the builder when asked to.
+        IWorkspaceDescription workspaceDescription = workspace.getDescription();
+        boolean wasAutoBuilding = workspaceDescription.isAutoBuilding();
+        workspaceDescription.setAutoBuilding(false);
+        workspace.setDescription(workspaceDescription);
+
+        String configuration = nModules + "," + importsPerModule + "," + nHubModules + "," + functionsPerModule + "," + nErrorModules;
+        boolean expectErrors = nErrorModules > 0;
+        IProject project = null;
+        try {
+            IProject libraryProject = SyntheticWorkspaceGenerator.getLibraryProject(libraryProjectName, quarkBinariesLocation, null);
+            libraryProject.build(IncrementalProjectBuilder.FULL_BUILD, null);
+
+            SyntheticWorkspaceGenerator generator =
+                new SyntheticWorkspaceGenerator(nModules, importsPerModule, nHubModules, functionsPerModule, nErrorModules);
+            project = generator.generate(PROJECT_NAME, libraryProject, null);
+
+            int hubModule = 0;
+            int leafModule = nModules - 1;
+
+            for (int i = 0; i < nIterations; i++) {
+                runBuild(project, SCENARIO_CLEAN, IncrementalProjectBuilder.CLEAN_BUILD, i, configuration, expectErrors);
+                runBuild(project, SCENARIO_FULL, IncrementalProjectBuilder.FULL_BUILD, i, configuration, expectErrors);
+
+                generator.touchModule(hubModule, null);
+                runBuild(project, SCENARIO_INCREMENTAL_BODY, IncrementalProjectBuilder.INCREMENTAL_BUILD, i, configuration, expectErrors);
+
+                generator.changeModuleInterface(hubModule, null);
+                runBuild(project, SCENARIO_INCREMENTAL_INTERFACE, IncrementalProjectBuilder.INCREMENTAL_BUILD, i, configuration, expectErrors);
+
+                generator.touchModule(leafModule, null);
+                runBuild(project, SCENARIO_INCREMENTAL_LEAF, IncrementalProjectBuilder.INCREMENTAL_BUILD, i, configuration, expectErrors);
+            }
+
+        } finally {
+            if (project != null && project.exists()) {
+                project.delete(true, true, null);
+            }
+            workspaceDescription.setAutoBuilding(wasAutoBuilding);
+            workspace.setDescription(workspaceDescription);
+        }
+
+        writeResults(outputFile);
+    }
+
+    /**
+     * Run a build of the project and record the results.
+     * @param project the project to build.
+     * @param scenario the name of the scenario.
+     * @param kind the kind of build, as for IncrementalProjectBuilder.
+     * @param iteration the iteration of the benchmark.
+     * @param configuration the comma-separated configuration of the generated project.
+     * @param expectErrors whether the generated project contains modules with compile errors.
+     * @throws CoreException
+     */
+    private void runBuild(IProject project, String scenario, int kind, int iteration, String configuration, boolean expectErrors) throws CoreException {
+        MemoryMXBean memoryMXBean = ManagementFactory.getMemoryMXBean();
+        memoryMXBean.gc();
+
+        BuildReport previousReport = getLatestReport(project);
+        long allocatedBefore = getCurrentThreadAllocatedBytes();
+        long startTime = System.nanoTime();
+
+        project.build(kind, null);
+
+        long wallMillis = (System.nanoTime() - startTime) / 1000000;
+        long allocatedAfter = getCurrentThreadAllocatedBytes();
+        long allocatedBytes = allocatedBefore < 0 || allocatedAfter < 0 ? -1 : allocatedAfter - allocatedBefore;
+
+        memoryMXBean.gc();
+        long retainedHeapBytes = memoryMXBean.getHeapMemoryUsage().getUsed();
+
+        IMarker[] problemMarkers = project.findMarkers(CALModelMarker.CAL_MODEL_PROBLEM_MARKER, true, IResource.DEPTH_INFINITE);
+        int nProblemMarkers = problemMarkers.length;
+        int nErrorMarkers = 0;
+        for (final IMarker marker : problemMarkers) {
+            if (marker.getAttribute(IMarker.SEVERITY, IMarker.SEVERITY_INFO) == IMarker.SEVERITY_ERROR) {
+                nErrorMarkers++;
+            }
+        }
+
+        StringBuilder sb = new StringBuilder();
+        sb.append(scenario).append(',').append(iteration).append(',').append(configuration);
+        sb.append(',').append(wallMillis).append(',').append(allocatedBytes).append(',').append(retainedHeapBytes).append(',').append(nProblemMarkers);
+
+        // Phase times, from the builder's report for this build.  A clean build has no report.
+        BuildReport report = getLatestReport(project);
+        Map<String, Long> phaseTimes = report == null || report == previousReport ? null : report.getPhaseTimes();
+        for (final String phase : PHASES) {
+            Long phaseTime = phaseTimes == null ? null : phaseTimes.get(phase);
+            sb.append(',').append(phaseTime == null ? 0 : phaseTime.longValue());
+        }
+
+        results.add(sb.toString());
+        Util.log(null, "CAL builder benchmark: " + sb, IStatus.INFO);
+
+        if (kind != IncrementalProjectBuilder.CLEAN_BUILD) {
+            assertTrue("The " + scenario + " build did not run", report != null && report != previousReport);
+            if (!expectErrors) {
+                assertEquals("Error markers after the " + scenario + " build", 0, nErrorMarkers);
+            }
+        }
+    }
+
+    /**
+     * @param project a project.
+     * @return the report for the most recent build of the project, or null if there is none.
+     */
+    private static BuildReport getLatestReport(IProject project) {
+        for (final BuildReport report : BuildReportHistory.getReports()) {
+            if (report.getProjectName().equals(project.getName())) {
+                return report;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the number of bytes allocated by the current thread, or -1 if this is not supported by the VM.
+     * Memory allocated by other threads (eg. the job which writes generated files) is not counted.
+     */
+    private static long getCurrentThreadAllocatedBytes() {
+        ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+        try {
+            // Not part of the java.lang.management API, but provided by common VMs as com.sun.management.ThreadMXBean.
+            Method method = threadMXBean.getClass().getMethod("getThreadAllocatedBytes", new Class[] {long.class});
+            method.setAccessible(true);
+            Object result = method.invoke(threadMXBean, new Object[] {Long.valueOf(Thread.currentThread().getId())});
+            return ((Long)result).longValue();
+        } catch (Exception e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Write the results, with a header line.
+     * @param outputFile the file to which to write.
+     * @throws IOException
+     */
+    private void writeResults(File outputFile) throws IOException {
+        PrintWriter writer = new PrintWriter(new FileWriter(outputFile));
+        try {
+            StringBuilder header = new StringBuilder(
+                    "scenario,iteration,modules,imports,hubs,functions,errors,wallMillis,allocatedBytes,retainedHeapBytes,problemMarkers");
+            for (final String phase : PHASES) {
+                header.append(',').append(phase);
+            }
+            writer.println(header);
+
+            for (final String result : results) {
+                writer.println(result);
+            }
+        } finally {
+            writer.close();
+        }
+    }
+}
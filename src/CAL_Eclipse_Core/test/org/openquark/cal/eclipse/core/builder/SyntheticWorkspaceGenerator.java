@@ -0,0 +1,387 @@
+/*******************************************************************************
+ * Copyright (c) 2007 Business Objects Software Limited and others.
+ * All rights reserved.
+ * This file is made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Business Objects Software Limited - initial API and implementation
+ *******************************************************************************/
+
+/*
+ * SyntheticWorkspaceGenerator.java
+ * Created: Oct 17, 2007
+ */
+package org.openquark.cal.eclipse.core.builder;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.eclipse.core.resources.IFile;
+import org.eclipse.core.resources.IFolder;
+import org.eclipse.core.resources.IProject;
+import org.eclipse.core.resources.IProjectDescription;
+import org.eclipse.core.resources.IWorkspace;
+import org.eclipse.core.resources.ResourcesPlugin;
+import org.eclipse.core.runtime.CoreException;
+import org.eclipse.core.runtime.IPath;
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.Path;
+import org.eclipse.jdt.core.IClasspathEntry;
+import org.eclipse.jdt.core.IJavaProject;
+import org.eclipse.jdt.core.JavaCore;
+import org.openquark.cal.eclipse.core.CALEclipseCorePlugin;
+import org.openquark.cal.services.CALSourcePathMapper;
+
+
+/**
+ * Generates a CAL project with synthetic modules in the workspace, for benchmarking the CAL builder.
+ * <p>
+ * The shape of the generated project is controlled by:
+ * <ul>
+ *   <li>the number of modules.
+ *   <li>the number of generated modules imported by each module (fan-out).
+ *   <li>the number of hub modules.  Imports are drawn from the hub modules in preference to other modules,
+ *       so that the hub modules are imported by many modules (fan-in).  With no hub modules, each module imports
+ *       the modules immediately before it, giving a long chain of dependencies.
+ *   <li>the number of functions in each module.  Each function calls the previous function in its module and a function
+ *       in one of the imported modules.
+ *   <li>the number of modules containing a compile error.
+ * </ul>
+ * Modules only import modules generated before them, so that the import graph is acyclic.
+ * The same parameters always generate the same modules.
+ * <p>
+ * The generated project references a project containing the CAL standard libraries, which must already exist in the workspace,
+ * or which is created from a Quark binaries location.
+ */
+public final class SyntheticWorkspaceGenerator {
+
+    /** The name of the module hierarchy under which the modules are generated. */
+    public static final String MODULE_NAME_PREFIX = "Benchmark.Generated";
+
+    /** The name of the Java source folder in the generated project. */
+    private static final String SOURCE_FOLDER_NAME = "src";
+
+    /** The path of the JRE classpath container. */
+    private static final String JRE_CONTAINER = "org.eclipse.jdt.launching.JRE_CONTAINER";
+
+    /** The seed for choosing imports, so that the same parameters always generate the same modules. */
+    private static final long SEED = 20070320L;
+
+    /** The number of modules to generate. */
+    private final int nModules;
+
+    /** The number of generated modules imported by each module. */
+    private final int importsPerModule;
+
+    /** The number of hub modules. */
+    private final int nHubModules;
+
+    /** The number of functions in each module. */
+    private final int functionsPerModule;
+
+    /** The number of modules which contain a compile error. */
+    private final int nErrorModules;
+
+    /** (List of (List of Integer)) for each module, the indices of the generated modules which it imports. */
+    private final List<List<Integer>> moduleImports;
+
+    /** The project which has been generated, or null if generate() has not been called. */
+    private IProject project;
+
+    /** For each module, the number of times the definition of a function in the module has been changed. */
+    private final int[] revisions;
+
+    /** For each module, the number of public functions which have been added to the module. */
+    private final int[] nAddedFunctions;
+
+    /**
+     * Constructor for a SyntheticWorkspaceGenerator.
+     * @param nModules the number of modules to generate.
+     * @param importsPerModule the number of generated modules imported by each module.
+     * @param nHubModules the number of hub modules, from which imports are drawn in preference to other modules.
+     * @param functionsPerModule the number of functions in each module.
+     * @param nErrorModules the number of modules which contain a compile error.
+     */
+    public SyntheticWorkspaceGenerator(int nModules, int importsPerModule, int nHubModules, int functionsPerModule, int nErrorModules) {
+        if (nModules < 1 || importsPerModule < 0 || nHubModules < 0 || functionsPerModule < 1 || nErrorModules < 0) {
+            throw new IllegalArgumentException();
+        }
+        this.nModules = nModules;
+        this.importsPerModule = importsPerModule;
+        this.nHubModules = Math.min(nHubModules, nModules);
+        this.functionsPerModule = functionsPerModule;
+        this.nErrorModules = Math.min(nErrorModules, nModules);
+        this.moduleImports = calculateModuleImports();
+        this.revisions = new int[nModules];
+        this.nAddedFunctions = new int[nModules];
+    }
+
+    /**
+     * @return for each module, the indices of the generated modules which it imports.
+     */
+    private List<List<Integer>> calculateModuleImports() {
+        Random random = new Random(SEED);
+        List<List<Integer>> result = new ArrayList<List<Integer>>();
+
+        for (int i = 0; i < nModules; i++) {
+            Set<Integer> imports = new LinkedHashSet<Integer>();
+            int nImports = Math.min(importsPerModule, i);
+
+            // Draw from the hub modules first.
+            int nHubsAvailable = Math.min(nHubModules, i);
+            while (imports.size() < Math.min(nImports, nHubsAvailable)) {
+                imports.add(Integer.valueOf(random.nextInt(nHubsAvailable)));
+            }
+
+            // Then from the modules immediately before this one.
+            for (int j = i - 1; j >= 0 && imports.size() < nImports; j--) {
+                imports.add(Integer.valueOf(j));
+            }
+            result.add(new ArrayList<Integer>(imports));
+        }
+        return result;
+    }
+
+    /**
+     * @param index the index of a generated module.
+     * @return the name of the module.
+     */
+    public static String getModuleName(int index) {
+        return MODULE_NAME_PREFIX + ".M" + String.valueOf(10000 + index).substring(1);
+    }
+
+    /**
+     * @return the number of generated modules.
+     */
+    public int getNModules() {
+        return nModules;
+    }
+
+    /**
+     * @return the project which has been generated, or null if generate() has not been called.
+     */
+    public IProject getProject() {
+        return project;
+    }
+
+    /**
+     * Create the project in the workspace, replacing any existing project with the same name.
+     * @param projectName the name of the project to create.
+     * @param libraryProject the project containing the CAL standard libraries.
+     * @param monitor the progress monitor, or null.
+     * @return the project.
+     * @throws CoreException
+     */
+    public IProject generate(String projectName, IProject libraryProject, IProgressMonitor monitor) throws CoreException {
+        IWorkspace workspace = ResourcesPlugin.getWorkspace();
+        project = workspace.getRoot().getProject(projectName);
+        if (project.exists()) {
+            project.delete(true, true, monitor);
+        }
+        project.create(monitor);
+        project.open(monitor);
+
+        // Java and CAL natures.  Adding the CAL nature adds the CAL builder.
+        IProjectDescription description = project.getDescription();
+        description.setNatureIds(new String[] {JavaCore.NATURE_ID, CALEclipseCorePlugin.NATURE_ID});
+        description.setReferencedProjects(new IProject[] {libraryProject});
+        project.setDescription(description, monitor);
+
+        // Classpath: a source folder, the JRE, and the library project.
+        IFolder sourceFolder = project.getFolder(SOURCE_FOLDER_NAME);
+        sourceFolder.create(true, true, monitor);
+        IJavaProject javaProject = JavaCore.create(project);
+        IClasspathEntry[] classpath = new IClasspathEntry[] {
+                JavaCore.newSourceEntry(sourceFolder.getFullPath()),
+                JavaCore.newContainerEntry(new Path(JRE_CONTAINER)),
+                JavaCore.newProjectEntry(libraryProject.getFullPath())
+        };
+        javaProject.setRawClasspath(classpath, project.getFullPath().append("bin"), monitor);
+
+        for (int i = 0; i < nModules; i++) {
+            writeModule(i, monitor);
+        }
+        return project;
+    }
+
+    /**
+     * Change the definition of a function in a module, without changing the interface of the module.
+     * @param index the index of the module.
+     * @param monitor the progress monitor, or null.
+     * @throws CoreException
+     */
+    public void touchModule(int index, IProgressMonitor monitor) throws CoreException {
+        revisions[index]++;
+        writeModule(index, monitor);
+    }
+
+    /**
+     * Add a function to a module, changing the interface of the module.
+     * @param index the index of the module.
+     * @param monitor the progress monitor, or null.
+     * @throws CoreException
+     */
+    public void changeModuleInterface(int index, IProgressMonitor monitor) throws CoreException {
+        nAddedFunctions[index]++;
+        writeModule(index, monitor);
+    }
+
+    /**
+     * Write a module to its file.
+     * @param index the index of the module.
+     * @param monitor the progress monitor, or null.
+     * @throws CoreException
+     */
+    private void writeModule(int index, IProgressMonitor monitor) throws CoreException {
+        String moduleName = getModuleName(index);
+
+        // eg. src/CAL/Benchmark/Generated/M0001.cal
+        IPath filePath = new Path(SOURCE_FOLDER_NAME).append(CALSourcePathMapper.SCRIPTS_BASE_FOLDER)
+                .append(moduleName.replace('.', '/')).addFileExtension(CALSourcePathMapper.CAL_FILE_EXTENSION);
+
+        IFile file = project.getFile(filePath);
+        ByteArrayInputStream source;
+        try {
+            source = new ByteArrayInputStream(getModuleSource(index).getBytes("UTF-8"));
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+
+        if (file.exists()) {
+            file.setContents(source, true, false, monitor);
+        } else {
+            createFolders(file.getParent().getProjectRelativePath(), monitor);
+            file.create(source, true, monitor);
+        }
+    }
+
+    /**
+     * Create a folder and its parent folders in the project, if they don't already exist.
+     * @param projectRelativePath the path of the folder.
+     * @param monitor the progress monitor, or null.
+     * @throws CoreException
+     */
+    private void createFolders(IPath projectRelativePath, IProgressMonitor monitor) throws CoreException {
+        IFolder folder = project.getFolder(projectRelativePath);
+        if (!folder.exists()) {
+            createFolders(projectRelativePath.removeLastSegments(1), monitor);
+            folder.create(true, true, monitor);
+        }
+    }
+
+    /**
+     * @param index the index of a module.
+     * @return the source text for the module.
+     */
+    private String getModuleSource(int index) {
+        List<Integer> imports = moduleImports.get(index);
+        int revision = revisions[index];
+
+        StringBuilder sb = new StringBuilder();
+        sb.append("/*\n * Generated for benchmarking the CAL builder.\n */\n");
+        sb.append("module ").append(getModuleName(index)).append(";\n\n");
+        sb.append("import Cal.Core.Prelude using\n    typeConstructor = Int;\n    ;\n");
+        for (final Integer importedModule : imports) {
+            sb.append("import ").append(getModuleName(importedModule.intValue())).append(";\n");
+        }
+        sb.append("\n");
+
+        for (int i = 0; i < functionsPerModule; i++) {
+            sb.append("public f").append(i).append(" :: Int -> Int;\n");
+            sb.append("public f").append(i).append(" x =\n    ");
+            if (i == 0) {
+                sb.append("x + ").append(index + revision);
+            } else {
+                sb.append("f").append(i - 1).append(" x");
+                if (!imports.isEmpty()) {
+                    String importedModuleName = getModuleName(imports.get(i % imports.size()).intValue());
+                    sb.append(" + ").append(importedModuleName).append(".f").append(i).append(" x");
+                }
+            }
+            sb.append(";\n\n");
+        }
+
+        for (int i = 0; i < nAddedFunctions[index]; i++) {
+            sb.append("public added").append(i).append(" :: Int -> Int;\n");
+            sb.append("public added").append(i).append(" x = f0 x;\n\n");
+        }
+
+        // The last modules contain an error: a reference to an undefined function.
+        if (index >= nModules - nErrorModules) {
+            sb.append("broken :: Int -> Int;\n");
+            sb.append("broken x = undefinedFunction x;\n\n");
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Get the project containing the CAL standard libraries, creating it from a Quark binaries location if it doesn't exist.
+     * @param projectName the name of the project.
+     * @param quarkBinariesLocation the location of the Quark binaries, or null if the project must already exist.
+     * @param monitor the progress monitor, or null.
+     * @return the project.
+     * @throws CoreException
+     * @throws IOException if the project files couldn't be copied to the Quark binaries location.
+     */
+    public static IProject getLibraryProject(String projectName, String quarkBinariesLocation, IProgressMonitor monitor) throws CoreException, IOException {
+        IWorkspace workspace = ResourcesPlugin.getWorkspace();
+        IProject libraryProject = workspace.getRoot().getProject(projectName);
+
+        if (!libraryProject.exists()) {
+            if (quarkBinariesLocation == null) {
+                throw new IllegalStateException("Project " + projectName + " does not exist and no Quark binaries location was given.");
+            }
+
+            // As for the "Quark Binaries" project created by the UI: copy the project files from eclipse-support if they don't already exist.
+            File location = new File(quarkBinariesLocation);
+            File eclipseSupportFolder = new File(location, "eclipse-support");
+            for (final String fileName : new String[] {".project", ".classpath"}) {
+                File toFile = new File(location, fileName);
+                if (!toFile.exists()) {
+                    copyFile(new File(eclipseSupportFolder, fileName), toFile);
+                }
+            }
+
+            IProjectDescription description = workspace.newProjectDescription(projectName);
+            description.setLocation(new Path(location.getAbsolutePath()));
+            libraryProject.create(description, monitor);
+        }
+
+        if (!libraryProject.isOpen()) {
+            libraryProject.open(monitor);
+        }
+        return libraryProject;
+    }
+
+    /**
+     * Copy a file.
+     * @param from the file to copy.
+     * @param to the file to which to copy.
+     * @throws IOException
+     */
+    private static void copyFile(File from, File to) throws IOException {
+        FileChannel inputChannel = new FileInputStream(from).getChannel();
+        try {
+            FileChannel outputChannel = new FileOutputStream(to).getChannel();
+            try {
+                outputChannel.transferFrom(inputChannel, 0, inputChannel.size());
+            } finally {
+                outputChannel.close();
+            }
+        } finally {
+            inputChannel.close();
+        }
+    }
+}
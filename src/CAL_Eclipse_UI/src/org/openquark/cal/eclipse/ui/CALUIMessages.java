@@ -265,4 +265,11 @@ public final class CALUIMessages extends NLS {
     public static String DynamicValidationRefactoringChange_fatal_error;
     
     public static String MoveResourceChange_move;
+
+    public static String SemanticHighlighting_jobName;
+
+    public static String BuildReportView_report;
+    public static String BuildReportView_timing;
+    public static String BuildReportView_slowestModules;
+    public static String BuildReportView_clear;
 }
@@ -45,7 +45,6 @@ import org.eclipse.core.runtime.IProgressMonitor;
 import org.eclipse.core.runtime.IStatus;
 import org.eclipse.core.runtime.ListenerList;
 import org.eclipse.core.runtime.Status;
-import org.eclipse.jdt.internal.core.JarEntryFile;
 import org.eclipse.jface.action.Action;
 import org.eclipse.jface.action.GroupMarker;
 import org.eclipse.jface.action.IAction;
@@ -99,6 +98,7 @@ import org.eclipse.jface.text.link.LinkedModeUI.IExitPolicy;
 import org.eclipse.jface.text.reconciler.IReconciler;
 import org.eclipse.jface.text.source.Annotation;
 import org.eclipse.jface.text.source.IAnnotationAccessExtension;
+import org.eclipse.jface.text.source.IAnnotationModel;
 import org.eclipse.jface.text.source.IOverviewRuler;
 import org.eclipse.jface.text.source.ISourceViewer;
 import org.eclipse.jface.text.source.ISourceViewerExtension2;
@@ -219,12 +219,14 @@ import org.openquark.cal.eclipse.ui.preferences.PreferenceConstants;
 import org.openquark.cal.eclipse.ui.text.CALHeuristicScanner;
 import org.openquark.cal.eclipse.ui.text.CALPairMatcher;
 import org.openquark.cal.eclipse.ui.text.CALPartitions;
+import org.openquark.cal.eclipse.ui.text.CALReconcilingStrategy;
 import org.openquark.cal.eclipse.ui.text.CALSourceViewerConfiguration;
 import org.openquark.cal.eclipse.ui.text.CALTextTools;
 import org.openquark.cal.eclipse.ui.text.CALWordIterator;
 import org.openquark.cal.eclipse.ui.text.DocumentCharacterIterator;
 import org.openquark.cal.eclipse.ui.text.HTMLTextPresenter;
 import org.openquark.cal.eclipse.ui.text.PreferencesAdapter;
+import org.openquark.cal.eclipse.ui.text.SemanticHighlightingManager;
 import org.openquark.cal.eclipse.ui.text.SmartBackspaceManager;
 import org.openquark.cal.eclipse.ui.text.Symbols;
 import org.openquark.cal.eclipse.ui.util.CodeFormatterUtil;
@@ -298,6 +300,9 @@ public class CALEditor extends AbstractDecoratedTextEditor {
     
     private static final CALModelManager calModelManager = CALModelManager.getCALModelManager();
 
+    /** The semantic highlighting manager, or null if semantic highlighting isn't installed. */
+    private SemanticHighlightingManager semanticHighlightingManager = null;
+
     /** The standard action groups added to the menu */
     private GenerateActionGroup generateActionGroup;
     private GeneralActionGroup refactorActionGroup;
@@ -405,6 +410,8 @@ public class CALEditor extends AbstractDecoratedTextEditor {
             encodingSupport = null;
         }
         
+        uninstallSemanticHighlighting();
+        
         super.dispose();
         
         if (fProjectionSupport != null) {
@@ -436,6 +443,25 @@ public class CALEditor extends AbstractDecoratedTextEditor {
                 psd.wasSaved();
             }
         }
+        
+        // The problems in the saved text will be shown by the markers from the build.
+        removeTemporaryProblemAnnotations();
+        
+        // The semantic highlighting is found in the saved text.
+        if (semanticHighlightingManager != null) {
+            semanticHighlightingManager.scheduleUpdate();
+        }
+    }
+    
+    /**
+     * Remove the problem annotations added by the reconciler.
+     */
+    private void removeTemporaryProblemAnnotations() {
+        IDocumentProvider documentProvider = getDocumentProvider();
+        IAnnotationModel annotationModel = (documentProvider == null) ? null : documentProvider.getAnnotationModel(getEditorInput());
+        if (annotationModel != null) {
+            CALReconcilingStrategy.removeTemporaryProblemAnnotations(annotationModel);
+        }
     }
     
     /**
@@ -918,6 +944,12 @@ public class CALEditor extends AbstractDecoratedTextEditor {
 
         internalDoSetInput(input);
 
+        // The semantic highlighting repairs the presentation using the new configuration.
+        if (semanticHighlightingManager != null) {
+            uninstallSemanticHighlighting();
+            installSemanticHighlighting();
+        }
+
         configureTabConverter();
         configureToggleCommentAction();
 //        if (fJavaEditorErrorTickUpdater != null)
@@ -1790,6 +1822,13 @@ public class CALEditor extends AbstractDecoratedTextEditor {
                 return;
             }
             
+            if (PreferenceConstants.EDITOR_EVALUTE_TEMPORARY_PROBLEMS.equals(property)) {
+                if (!getPreferenceStore().getBoolean(property)) {
+                    removeTemporaryProblemAnnotations();
+                }
+                return;
+            }
+
             if (PreferenceConstants.EDITOR_CLOSE_BRACES.equals(property)) {
                 fBracketInserter.setCloseBracesEnabled(getPreferenceStore().getBoolean(property));
                 return;
@@ -1898,9 +1937,8 @@ public class CALEditor extends AbstractDecoratedTextEditor {
 
 //        if (fMarkOccurrenceAnnotations)
 //            installOccurrencesFinder();
-//
-//        if (isSemanticHighlightingEnabled())
-//            installSemanticHighlighting();
+
+        installSemanticHighlighting();
 
         PlatformUI.getWorkbench().addWindowListener(fActivationListener);
         
@@ -3073,6 +3111,28 @@ public class CALEditor extends AbstractDecoratedTextEditor {
         return calModelManager.getModuleName(memberFile); 
     }
     
+    /**
+     * Install the semantic highlighting on the editor's viewer, if it isn't installed.
+     */
+    private void installSemanticHighlighting() {
+        if (semanticHighlightingManager == null) {
+            CALTextTools textTools = CALEclipseUIPlugin.getDefault().getCALTextTools();
+            SemanticHighlightingManager manager = new SemanticHighlightingManager(this, getSourceViewer(), getSourceViewerConfiguration(), textTools.getColorManager(), getPreferenceStore());
+            manager.install();
+            semanticHighlightingManager = manager;
+        }
+    }
+    
+    /**
+     * Uninstall the semantic highlighting from the editor's viewer, if it is installed.
+     */
+    private void uninstallSemanticHighlighting() {
+        if (semanticHighlightingManager != null) {
+            semanticHighlightingManager.uninstall();
+            semanticHighlightingManager = null;
+        }
+    }
+    
     public IStorage getStorage() {
         IEditorInput input = getEditorInput();
         if (input instanceof IStorageEditorInput) {
@@ -3128,7 +3188,8 @@ public class CALEditor extends AbstractDecoratedTextEditor {
                 return false;
             }
             
-            if (storage instanceof JarEntryFile) {
+            if (!(storage instanceof IFile)) {
+                // An entry in a jar.
                 return false;
             }
             
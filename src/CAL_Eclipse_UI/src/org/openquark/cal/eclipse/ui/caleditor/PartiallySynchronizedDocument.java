@@ -18,7 +18,6 @@
  */
 package org.openquark.cal.eclipse.ui.caleditor;
 
-import java.util.ArrayList;
 import org.eclipse.jface.text.BadLocationException;
 import org.eclipse.jface.text.BadPositionCategoryException;
 import org.eclipse.jface.text.Document;
@@ -39,36 +38,219 @@ public class PartiallySynchronizedDocument extends Document implements ISynchron
 
     private Document originalDocument = new Document();
     private boolean wasInitialized = false;
-    private ArrayList<Change> changes = new ArrayList<Change>();
+    
+    /** Map from offsets in the current document to offsets in the original document. */
+    private final OffsetMap currentToOriginalMap = new OffsetMap();
+    
+    /** Map from offsets in the original document to offsets in the current document. */
+    private final OffsetMap originalToCurrentMap = new OffsetMap();
     {
         this.addPositionUpdater(this);
     }
     
     /**
-     * Keeps track of an individual changes to the text in the editor.
-     * @author Greg McClement
+     * A map from the offsets in one version of the document to the offsets in another, built up from the changes between the versions.
+     * <p>
+     * The map is a list of segments, sorted by the offset at which they start.  Each segment either shifts the offsets in it
+     *   by a fixed amount, or is a hole -- a run of offsets which don't correspond to any offset in the other version.
+     *   Each hole also records the offset to which its offsets are estimated to correspond.
+     * A lookup is a binary search for the segment containing an offset.  Adding a change splits at most one segment, and
+     *   adjacent segments which map the same way are merged, so a run of typing adds a single hole.
+     * The map is synchronized, since it is read by background threads (eg. hovers) while the document is being edited.
      */
-    private class Change{
-        private final int offset;
-        private final int oldLength;
-        private final int newLength;
-
-        public Change(int offset, int oldLength, int newLength){
-            this.offset = offset;
-            this.oldLength = oldLength;
-            this.newLength = newLength;            
+    private static final class OffsetMap {
+        
+        /** The offsets at which the segments start, in increasing order.  The first segment starts at Integer.MIN_VALUE. */
+        private int[] starts = {Integer.MIN_VALUE};
+        
+        /** Whether each segment is a hole. */
+        private boolean[] holes = {false};
+        
+        /** For a hole, the estimated offset for the segment; otherwise the amount by which the segment's offsets are shifted. */
+        private int[] values = {0};
+        
+        /** The number of segments. */
+        private int size = 1;
+        
+        /** The segments being built by a change, which replace the current segments when the change has been added. */
+        private int[] newStarts = new int[4];
+        private boolean[] newHoles = new boolean[4];
+        private int[] newValues = new int[4];
+        private int newSize = 0;
+        
+        /**
+         * @param offset an offset.
+         * @return the mapped offset, or -1 if the offset is in a hole.
+         */
+        synchronized int map(int offset) {
+            int i = findSegment(offset);
+            return holes[i] ? -1 : offset + values[i];
+        }
+        
+        /**
+         * @param offset an offset.
+         * @return the mapped offset, or if the offset is in a hole, the estimated offset for the hole.
+         */
+        synchronized int estimate(int offset) {
+            int i = findSegment(offset);
+            return holes[i] ? values[i] : offset + values[i];
+        }
+        
+        /**
+         * Remove all segments, so that every offset maps to itself.
+         */
+        synchronized void clear() {
+            starts = new int[] {Integer.MIN_VALUE};
+            holes = new boolean[] {false};
+            values = new int[] {0};
+            size = 1;
+        }
+        
+        /**
+         * Add a change made to the version of the document whose offsets are the keys of this map,
+         *   so that the map goes from the offsets in the changed version instead.
+         * Offsets in the new text of a change are holes, estimated to map to the estimate for the start of the change.
+         * 
+         * @param offset the offset of the change.
+         * @param oldLength the length of the text replaced by the change.
+         * @param newLength the length of the new text.
+         */
+        synchronized void addChangeToKeys(int offset, int oldLength, int newLength) {
+            int delta = newLength - oldLength;
+            newSize = 0;
+            
+            // Offsets before the change are unaffected.
+            for (int i = 0; i < size && starts[i] < offset; i++) {
+                append(starts[i], holes[i], values[i]);
+            }
+            
+            // Offsets in the new text, other than those which line up with the replaced text, are a hole.
+            if (delta > 0) {
+                append(offset, true, estimate(offset));
+            }
+            
+            // Offsets after the change map as the corresponding offsets did before the change.
+            // If text was removed, the removed offsets are dropped.
+            int firstOldOffset = offset + Math.max(-delta, 0);
+            int i = findSegment(firstOldOffset);
+            append(firstOldOffset + delta, holes[i], holes[i] ? values[i] : values[i] - delta);
+            for (i++; i < size; i++) {
+                append(starts[i] + delta, holes[i], holes[i] ? values[i] : values[i] - delta);
+            }
+            
+            swap();
+        }
+        
+        /**
+         * Add a change made to the version of the document whose offsets are the values of this map,
+         *   so that the map goes to the offsets in the changed version instead.
+         * Offsets which mapped into the replaced text, other than those which line up with the new text, become holes.
+         * 
+         * @param offset the offset of the change.
+         * @param oldLength the length of the text replaced by the change.
+         * @param newLength the length of the new text.
+         */
+        synchronized void addChangeToValues(int offset, int oldLength, int newLength) {
+            long delta = oldLength - newLength;
+            newSize = 0;
+            
+            for (int i = 0; i < size; i++) {
+                if (holes[i]) {
+                    append(starts[i], true, -1);
+                    continue;
+                }
+                long start = starts[i];
+                long end = (i + 1 < size) ? starts[i + 1] : Long.MAX_VALUE;
+                long shift = values[i];
+                
+                // The keys at which the mapped offsets reach the change, and the end of the hole.
+                long changeKey = offset - shift;
+                long holeEndKey = offset + Math.max(delta, 0) - shift;
+                
+                if (start < Math.min(end, changeKey)) {
+                    append((int)start, false, (int)shift);
+                }
+                if (delta > 0 && Math.max(start, changeKey) < Math.min(end, holeEndKey)) {
+                    append((int)Math.max(start, changeKey), true, -1);
+                }
+                if (Math.max(start, holeEndKey) < end) {
+                    append((int)Math.max(start, holeEndKey), false, (int)(shift - delta));
+                }
+            }
+            
+            swap();
         }
         
-        public int getOffset(){
-            return offset;
+        /**
+         * @param offset an offset.
+         * @return the index of the segment containing the offset.
+         */
+        private int findSegment(int offset) {
+            int low = 0;
+            int high = size - 1;
+            while (low < high) {
+                int mid = (low + high + 1) >>> 1;
+                if (starts[mid] <= offset) {
+                    low = mid;
+                } else {
+                    high = mid - 1;
+                }
+            }
+            return low;
         }
         
-        public int getOldLength(){
-            return oldLength;
+        /**
+         * Append a segment to the segments being built, merging it with the last segment if they map the same way.
+         * @param start the offset at which the segment starts.  This must not be less than the start of the last segment.
+         * @param hole whether the segment is a hole.
+         * @param value the estimated offset for a hole, or the shift for other segments.
+         */
+        private void append(int start, boolean hole, int value) {
+            if (newSize > 0) {
+                int last = newSize - 1;
+                if (newHoles[last] == hole && newValues[last] == value) {
+                    return;
+                }
+                if (newStarts[last] == start) {
+                    // The last segment is empty.
+                    newSize--;
+                    append(start, hole, value);
+                    return;
+                }
+            }
+            if (newSize == newStarts.length) {
+                int capacity = newSize * 2;
+                int[] grownStarts = new int[capacity];
+                boolean[] grownHoles = new boolean[capacity];
+                int[] grownValues = new int[capacity];
+                System.arraycopy(newStarts, 0, grownStarts, 0, newSize);
+                System.arraycopy(newHoles, 0, grownHoles, 0, newSize);
+                System.arraycopy(newValues, 0, grownValues, 0, newSize);
+                newStarts = grownStarts;
+                newHoles = grownHoles;
+                newValues = grownValues;
+            }
+            newStarts[newSize] = start;
+            newHoles[newSize] = hole;
+            newValues[newSize] = value;
+            newSize++;
         }
         
-        public int getNewLength(){
-            return newLength;
+        /**
+         * Replace the segments with the segments which were built.
+         */
+        private void swap() {
+            int[] oldStarts = starts;
+            boolean[] oldHoles = holes;
+            int[] oldValues = values;
+            starts = newStarts;
+            holes = newHoles;
+            values = newValues;
+            size = newSize;
+            newStarts = oldStarts;
+            newHoles = oldHoles;
+            newValues = oldValues;
+            newSize = 0;
         }
     }
 
@@ -80,7 +262,8 @@ public class PartiallySynchronizedDocument extends Document implements ISynchron
             if (newText != null){
                 newLength = newText.length();
             }
-            changes.add(new Change(event.getOffset(), event.getLength(), newLength));
+            currentToOriginalMap.addChangeToKeys(event.getOffset(), event.getLength(), newLength);
+            originalToCurrentMap.addChangeToValues(event.getOffset(), event.getLength(), newLength);
         }
         else{
             wasInitialized = true;
@@ -95,7 +278,8 @@ public class PartiallySynchronizedDocument extends Document implements ISynchron
      */
     public void wasSaved(){
         originalDocument.set(get());
-        changes.clear();
+        currentToOriginalMap.clear();
+        originalToCurrentMap.clear();
     }
     
     public IDocument getOriginalDocument(){
@@ -107,22 +291,7 @@ public class PartiallySynchronizedDocument extends Document implements ISynchron
      * then the offset returned is -1 since that would not apply to the original text.
      */
     public int getOriginalOffset(int offset){
-        for(int i = changes.size() - 1; i >= 0; --i){
-            Change change = changes.get(i);
-            if (change.getOffset() > offset){
-                continue;
-            }
-
-            offset = offset - change.getNewLength() + change.getOldLength();
-            
-            if (change.getOffset() > offset) {
-                // if after the calculation the offset is on the other side of the change, then the given offset
-                // is actually *in* the change, so return -1 as per spec
-                return -1;
-            }
-        }
-        
-        return offset;
+        return currentToOriginalMap.map(offset);
     }
 
     /**
@@ -130,21 +299,7 @@ public class PartiallySynchronizedDocument extends Document implements ISynchron
      * then the offset returned is the start of the block that the next text is inserted in.
      */
     public int estimateOriginalOffset(int offset){
-        for(int i = changes.size() - 1; i >= 0; --i){
-            Change change = changes.get(i);
-            if (change.getOffset() > offset){
-                continue;
-            }
-            
-            offset = offset - change.getNewLength() + change.getOldLength();
-            
-            if (change.getOffset() > offset) {
-                // The character before the change.
-                offset = change.getOffset();
-            }
-        }
-        
-        return offset;
+        return currentToOriginalMap.estimate(offset);
     }
     
     /**
@@ -154,19 +309,7 @@ public class PartiallySynchronizedDocument extends Document implements ISynchron
      * @return the offset in the current version of the document
      */
     public int fromOriginalOffset(int offset){        
-        for(Change change : changes){
-            if (change.getOffset() > offset){
-                continue;
-            }
-            offset = offset - change.getOldLength() + change.getNewLength();
-            
-            if (change.getOffset() > offset) {
-                // if after the calculation the offset is on the other side of the change, then the given offset
-                // is actually *in* the change, so return -1 as per spec
-                return -1;
-            }
-        }
-        return offset;
+        return originalToCurrentMap.map(offset);
     }
     
     /*
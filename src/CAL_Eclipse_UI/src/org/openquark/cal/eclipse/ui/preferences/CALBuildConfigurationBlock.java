@@ -50,6 +50,8 @@ public class CALBuildConfigurationBlock extends OptionsConfigurationBlock {
     private static final String SETTINGS_SECTION_NAME = "CALBuildConfigurationBlock"; //$NON-NLS-1$
 
     private static final Key PREF_ENABLE_BUILDER = getJDTCoreKey(CoreOptionIDs.CORE_CAL_BUILD_ENABLE);
+    private static final Key PREF_DIRECT_OUTPUT = getJDTCoreKey(CoreOptionIDs.CORE_CAL_BUILD_DIRECT_OUTPUT);
+    private static final Key PREF_ARCHIVED_OUTPUT = getJDTCoreKey(CoreOptionIDs.CORE_CAL_BUILD_ARCHIVED_OUTPUT);
     
     private static final Key PREF_PB_MAX_PER_UNIT = getJDTCoreKey(CoreOptionIDs.COMPILER_PB_MAX_PER_UNIT);
 
@@ -89,7 +91,7 @@ public class CALBuildConfigurationBlock extends OptionsConfigurationBlock {
     
     private static Key[] getKeys() {
         Key[] keys = new Key[] {
-                PREF_ENABLE_BUILDER,
+                PREF_ENABLE_BUILDER, PREF_DIRECT_OUTPUT, PREF_ARCHIVED_OUTPUT,
                 PREF_PB_MAX_PER_UNIT, PREF_RESOURCE_FILTER, PREF_BUILD_INVALID_CLASSPATH, PREF_PB_INCOMPLETE_BUILDPATH, PREF_PB_CIRCULAR_BUILDPATH,
                 PREF_BUILD_CLEAN_OUTPUT_FOLDER, PREF_PB_DUPLICATE_RESOURCE,
                 PREF_PB_INCOMPATIBLE_JDK_LEVEL, PREF_ENABLE_EXCLUSION_PATTERNS, PREF_ENABLE_MULTIPLE_OUTPUT_LOCATIONS,
@@ -165,6 +167,12 @@ public class CALBuildConfigurationBlock extends OptionsConfigurationBlock {
         String label = PreferencesMessages.CALBuildConfigurationBlock_enable_cal_builder_label;
         this.enableBuilderCheckBox = addCheckBox(composite, label, PREF_ENABLE_BUILDER, enableDisableValues, 0);
         
+        label = PreferencesMessages.CALBuildConfigurationBlock_enable_direct_output_label;
+        addCheckBox(composite, label, PREF_DIRECT_OUTPUT, enableDisableValues, 0);
+        
+        label = PreferencesMessages.CALBuildConfigurationBlock_enable_archived_output_label;
+        addCheckBox(composite, label, PREF_ARCHIVED_OUTPUT, enableDisableValues, 0);
+        
 //        label = PreferencesMessages.JavaBuildConfigurationBlock_pb_max_per_unit_label;
 //        Text text = addTextField(othersComposite, label, PREF_PB_MAX_PER_UNIT, 0, 0);
 //        GridData gd = (GridData)text.getLayoutData();
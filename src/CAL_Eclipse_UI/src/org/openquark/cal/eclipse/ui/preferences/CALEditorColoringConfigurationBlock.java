@@ -74,6 +74,8 @@ import org.openquark.cal.eclipse.ui.preferences.OverlayPreferenceStore.OverlayKe
 import org.openquark.cal.eclipse.ui.text.CALPartitions;
 import org.openquark.cal.eclipse.ui.text.ColorManager;
 import org.openquark.cal.eclipse.ui.text.PreferencesAdapter;
+import org.openquark.cal.eclipse.ui.text.SemanticHighlightings;
+import org.openquark.cal.eclipse.ui.text.SemanticHighlightings.SemanticHighlighting;
 import org.openquark.cal.eclipse.ui.text.SimpleCALSourceViewerConfiguration;
 import org.openquark.cal.eclipse.ui.util.PixelConverter;
 
@@ -359,18 +361,18 @@ class CALEditorColoringConfigurationBlock extends AbstractConfigurationBlock {
             fListModel.add(new HighlightingColorListItem (listModelElement[0], listModelElement[1], listModelElement[1] + BOLD, listModelElement[1] + ITALIC, listModelElement[1] + STRIKETHROUGH, listModelElement[1] + UNDERLINE));
         }
         
-//        SemanticHighlighting[] semanticHighlightings= SemanticHighlightings.getSemanticHighlightings();
-//        for (int i= 0, n= semanticHighlightings.length; i < n; i++)
-//            fListModel.add(
-//                    new SemanticHighlightingColorListItem(
-//                            semanticHighlightings[i].getDisplayName(), 
-//                            SemanticHighlightings.getColorPreferenceKey(semanticHighlightings[i]),
-//                            SemanticHighlightings.getBoldPreferenceKey(semanticHighlightings[i]),
-//                            SemanticHighlightings.getItalicPreferenceKey(semanticHighlightings[i]),
-//                            SemanticHighlightings.getStrikethroughPreferenceKey(semanticHighlightings[i]),
-//                            SemanticHighlightings.getUnderlinePreferenceKey(semanticHighlightings[i]),
-//                            SemanticHighlightings.getEnabledPreferenceKey(semanticHighlightings[i])
-//                    ));
+        for (final SemanticHighlighting semanticHighlighting : SemanticHighlightings.getSemanticHighlightings()) {
+            fListModel.add(
+                    new SemanticHighlightingColorListItem(
+                            semanticHighlighting.getDisplayName(), 
+                            SemanticHighlightings.getColorPreferenceKey(semanticHighlighting),
+                            SemanticHighlightings.getBoldPreferenceKey(semanticHighlighting),
+                            SemanticHighlightings.getItalicPreferenceKey(semanticHighlighting),
+                            SemanticHighlightings.getStrikethroughPreferenceKey(semanticHighlighting),
+                            SemanticHighlightings.getUnderlinePreferenceKey(semanticHighlighting),
+                            SemanticHighlightings.getEnabledPreferenceKey(semanticHighlighting)
+                    ));
+        }
         
         store.addKeys(createOverlayStoreKeys());
     }
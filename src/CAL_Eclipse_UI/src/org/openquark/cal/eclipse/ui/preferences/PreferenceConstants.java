@@ -34,6 +34,7 @@ import org.openquark.cal.eclipse.core.CoreOptionIDs;
 import org.openquark.cal.eclipse.core.formatter.DefaultCodeFormatterConstants;
 import org.openquark.cal.eclipse.ui.CALEclipseUIPlugin;
 import org.openquark.cal.eclipse.ui.text.CALColorConstants;
+import org.openquark.cal.eclipse.ui.text.SemanticHighlightings;
 
 
 /**
@@ -3634,8 +3635,8 @@ public final class PreferenceConstants {
 //        store.setDefault(PreferenceConstants.PROPERTIES_FILE_COLORING_COMMENT_BOLD, false);
 //        store.setDefault(PreferenceConstants.PROPERTIES_FILE_COLORING_COMMENT_ITALIC, false);
         
-//      // semantic highlighting
-//      SemanticHighlightings.initDefaults(store);
+        // semantic highlighting
+        SemanticHighlightings.initDefaults(store);
 //      
 //      // do more complicated stuff
 //      NewJavaProjectPreferencePage.initDefaults(store);
@@ -124,6 +124,10 @@ public final class PreferencesMessages extends NLS {
     public static String JavaEditorPreferencePage_others;
     public static String JavaEditorPreferencePage_operators;
     public static String JavaEditorPreferencePage_consNames;
+    public static String SemanticHighlighting_localVariable;
+    public static String SemanticHighlighting_function;
+    public static String SemanticHighlighting_foreignFunction;
+    public static String SemanticHighlighting_classMethod;
     public static String JavaEditorPreferencePage_javaCommentTaskTags;
     public static String JavaEditorPreferencePage_javaDocKeywords;
     public static String JavaEditorPreferencePage_javaDocHtmlTags;
@@ -337,6 +341,8 @@ public final class PreferencesMessages extends NLS {
     public static String JavaBuildConfigurationBlock_build_invalid_classpath_label;
     public static String JavaBuildConfigurationBlock_build_clean_outputfolder_label;
     public static String CALBuildConfigurationBlock_enable_cal_builder_label;
+    public static String CALBuildConfigurationBlock_enable_direct_output_label;
+    public static String CALBuildConfigurationBlock_enable_archived_output_label;
     public static String JavaBuildConfigurationBlock_enable_exclusion_patterns_label;
     public static String JavaBuildConfigurationBlock_enable_multiple_outputlocations_label;
     public static String JavaBuildConfigurationBlock_pb_incomplete_build_path_label;
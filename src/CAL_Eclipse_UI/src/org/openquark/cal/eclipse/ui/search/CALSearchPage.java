@@ -44,7 +44,6 @@ import org.eclipse.core.runtime.IProgressMonitor;
 import org.eclipse.core.runtime.IStatus;
 import org.eclipse.core.runtime.OperationCanceledException;
 import org.eclipse.core.runtime.SubProgressMonitor;
-import org.eclipse.jdt.internal.core.JarEntryFile;
 import org.eclipse.jdt.internal.ui.javaeditor.JarEntryEditorInput;
 import org.eclipse.jface.dialogs.Dialog;
 import org.eclipse.jface.dialogs.DialogPage;
@@ -270,7 +269,8 @@ public class CALSearchPage extends DialogPage implements ISearchPage {
                     IResource toSearch = null;
                     if (storage instanceof IFile) {
                         toSearch = (IFile) storage;
-                    } else if (storage instanceof JarEntryFile) {
+                    } else if (storage != null) {
+                        // An entry in a jar.
                         ICALResourceContainer container = CALModelManager.getCALModelManager()
                             .getInputSourceFileContainer(moduleTypeInfo.getModuleName());
                         
@@ -394,9 +394,9 @@ public class CALSearchPage extends DialogPage implements ISearchPage {
                 return null;
             }
         }
-        public JarEntryFile getJarEntry(Object element) {
-            if (element instanceof JarEntryFile){
-                return (JarEntryFile) element;
+        public IStorage getJarEntry(Object element) {
+            if (element instanceof IStorage && !(element instanceof IFile)){
+                return (IStorage) element;
             }
             else{
                 return null;
@@ -415,7 +415,7 @@ public class CALSearchPage extends DialogPage implements ISearchPage {
         }
         if (adapter instanceof CALSearchResults) {
             CALSearchResults calAdapter = (CALSearchResults) adapter;
-            JarEntryFile jarEntry = calAdapter.getJarEntry(element);
+            IStorage jarEntry = calAdapter.getJarEntry(element);
             if (jarEntry != null) {
 //                return FileBuffers.getTextFileBufferManager().
                 // can't really do anything here... jar entries do not have text file buffers.
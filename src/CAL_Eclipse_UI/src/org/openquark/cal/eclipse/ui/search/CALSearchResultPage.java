@@ -27,7 +27,6 @@ import org.eclipse.core.resources.IResource;
 import org.eclipse.core.resources.IStorage;
 import org.eclipse.core.runtime.IStatus;
 import org.eclipse.core.runtime.Status;
-import org.eclipse.jdt.internal.core.JarEntryFile;
 import org.eclipse.jface.text.BadLocationException;
 import org.eclipse.jface.text.IDocument;
 import org.eclipse.jface.viewers.ILabelProviderListener;
@@ -180,9 +179,9 @@ public class CALSearchResultPage extends AbstractTextSearchViewPage {
                     return text;
                 String format = SearchMessages.CALSearchLabelProvider_count_format;
                 return MessageFormat.format(format, new Object[] { text, Integer.valueOf(matchCount) });
-            } else if (element instanceof JarEntryFile) {
+            } else if (element instanceof IStorage) {
                 // for jar entries
-                return ((JarEntryFile) element).getName(); 
+                return ((IStorage) element).getName(); 
             } else {
                 return null;
             }
@@ -192,7 +191,7 @@ public class CALSearchResultPage extends AbstractTextSearchViewPage {
         public Image getImage(Object element) {
             if (element instanceof IResource) {
                 return imageProvider.getImage(element);
-            } else if (element instanceof JarEntryFile) {
+            } else if (element instanceof IStorage) {
                 return image_cal_file;
             } else {
                 return null;
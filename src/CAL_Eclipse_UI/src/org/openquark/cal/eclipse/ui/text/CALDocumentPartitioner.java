@@ -0,0 +1,550 @@
+/*******************************************************************************
+ * Copyright (c) 2007 Business Objects Software Limited and others.
+ * All rights reserved.
+ * This file is made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Business Objects Software Limited - initial API and implementation based on Eclipse 3.1.2 code for
+ *                             /org.eclipse.jface.text/src/org/eclipse/jface/text/rules/FastPartitioner.java
+ *                           Eclipse source is available at: http://www.eclipse.org/downloads/
+ *******************************************************************************/
+
+/*
+ * CALDocumentPartitioner.java
+ * Created: Oct 17, 2007
+ */
+package org.openquark.cal.eclipse.ui.text;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.eclipse.jface.text.BadLocationException;
+import org.eclipse.jface.text.DocumentEvent;
+import org.eclipse.jface.text.DocumentRewriteSession;
+import org.eclipse.jface.text.IDocument;
+import org.eclipse.jface.text.IDocumentPartitioner;
+import org.eclipse.jface.text.IDocumentPartitionerExtension;
+import org.eclipse.jface.text.IDocumentPartitionerExtension2;
+import org.eclipse.jface.text.IDocumentPartitionerExtension3;
+import org.eclipse.jface.text.IRegion;
+import org.eclipse.jface.text.ITypedRegion;
+import org.eclipse.jface.text.Position;
+import org.eclipse.jface.text.Region;
+import org.eclipse.jface.text.TypedPosition;
+import org.eclipse.jface.text.TypedRegion;
+import org.eclipse.jface.text.rules.IToken;
+
+
+/**
+ * The document partitioner for CAL documents.
+ * <p>
+ * This computes the same partitioning as a FastPartitioner with a FastCALPartitionScanner, but updates it incrementally.
+ * When the document changes, the scan restarts at the start of the changed line, in the partition which the line started in.
+ * Once the scan is past the change, at the start of each line the state of the scanner is compared with the previous partitioning,
+ *   and the scan stops as soon as they are the same, since the rest of the partitioning can't have changed.
+ * So an edit which opens a comment or a string only rescans up to where the new partition ends, rather than to the end of the document.
+ * <p>
+ * The partitions are kept in a list rather than as positions in the document, so that many partitions can be replaced at once.
+ */
+public final class CALDocumentPartitioner implements IDocumentPartitioner, IDocumentPartitionerExtension, IDocumentPartitionerExtension2, IDocumentPartitionerExtension3 {
+
+    /** The scanner. */
+    private final FastCALPartitionScanner fScanner;
+    /** The legal content types. */
+    private final String[] fLegalContentTypes;
+
+    /** The partitioner's document. */
+    private IDocument fDocument;
+    /** Whether the document has been partitioned. */
+    private boolean fIsInitialized = false;
+    /** The active document rewrite session, or null if there isn't one. */
+    private DocumentRewriteSession fActiveRewriteSession = null;
+
+    /** The partitions other than the default partitions, in order. */
+    private final List<TypedPosition> fPartitions = new ArrayList<TypedPosition>();
+
+    /** While rescanning after a change, the end of the changed text.  The scan can only stop at lines which start after this. */
+    private int fChangeEndOffset;
+
+    /** Compares the state of the scanner with the previous partitioning while rescanning after a change. */
+    private final FastCALPartitionScanner.IResynchronizer fResynchronizer = new FastCALPartitionScanner.IResynchronizer() {
+        public boolean isSynchronized(int lineOffset, String contentType) {
+            if (lineOffset <= fChangeEndOffset) {
+                return false;
+            }
+            String previousContentType = getPartitionTypeAtLineStart(lineOffset);
+            String newContentType = isSupportedContentType(contentType) ? contentType : null;
+            return (previousContentType == null) ? newContentType == null : previousContentType.equals(newContentType);
+        }
+    };
+
+    /**
+     * Constructor for a CALDocumentPartitioner.
+     * @param scanner the scanner used to partition the document.  This should not be shared with other partitioners.
+     * @param legalContentTypes the legal content types of the partitions.
+     */
+    public CALDocumentPartitioner(FastCALPartitionScanner scanner, String[] legalContentTypes) {
+        fScanner = scanner;
+        fLegalContentTypes = legalContentTypes.clone();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void connect(IDocument document) {
+        connect(document, false);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void connect(IDocument document, boolean delayInitialization) {
+        fDocument = document;
+        fPartitions.clear();
+        fIsInitialized = false;
+        if (!delayInitialization) {
+            checkInitialization();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void disconnect() {
+        fPartitions.clear();
+        fIsInitialized = false;
+    }
+
+    /**
+     * Partition the document if this hasn't been done.
+     */
+    private void checkInitialization() {
+        if (!fIsInitialized) {
+            initialize();
+        }
+    }
+
+    /**
+     * Partition the whole document.
+     */
+    private void initialize() {
+        fIsInitialized = true;
+        fPartitions.clear();
+        fScanner.setRange(fDocument, 0, fDocument.getLength());
+        for (IToken token = fScanner.nextToken(); !token.isEOF(); token = fScanner.nextToken()) {
+            String contentType = getTokenContentType(token);
+            if (isSupportedContentType(contentType)) {
+                fPartitions.add(new TypedPosition(fScanner.getTokenOffset(), fScanner.getTokenLength(), contentType));
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void documentAboutToBeChanged(DocumentEvent e) {
+        // The partitions are updated when the change has been made.
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public boolean documentChanged(DocumentEvent e) {
+        return documentChanged2(e) != null;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public IRegion documentChanged2(DocumentEvent e) {
+        if (!fIsInitialized) {
+            return null;
+        }
+        if (fActiveRewriteSession != null) {
+            // The document is repartitioned when it's next needed.
+            fPartitions.clear();
+            fIsInitialized = false;
+            return null;
+        }
+
+        int changeOffset = e.getOffset();
+        int insertedLength = (e.getText() == null) ? 0 : e.getText().length();
+
+        // The scan restarts at the start of the line containing the character before the change, which is a line start in the
+        //   previous document too.  (The start of the line containing the change may not be, if it follows a carriage return.)
+        // This also rescans a comment which wasn't closed before the end of the document, when text is added after it.
+        int scanStart;
+        try {
+            scanStart = fDocument.getLineOffset(fDocument.getLineOfOffset(Math.max(changeOffset - 1, 0)));
+        } catch (BadLocationException x) {
+            scanStart = 0;
+        }
+
+        // If the line started inside a partition, the scan restarts in that partition.
+        int firstIndex = getFirstIndexEndingAfterOffset(scanStart);
+        String contentType = null;
+        int partitionStart = scanStart;
+        if (firstIndex < fPartitions.size() && fPartitions.get(firstIndex).getOffset() < scanStart) {
+            TypedPosition partition = fPartitions.get(firstIndex);
+            contentType = partition.getType();
+            partitionStart = partition.getOffset();
+        }
+
+        updatePartitions(firstIndex, changeOffset, e.getLength(), insertedLength);
+
+        List<TypedPosition> newPartitions = new ArrayList<TypedPosition>();
+        fChangeEndOffset = changeOffset + insertedLength;
+        fScanner.setResynchronizer(fResynchronizer);
+        try {
+            fScanner.setPartialRange(fDocument, scanStart, fDocument.getLength() - scanStart, contentType, partitionStart);
+            for (IToken token = fScanner.nextToken(); !token.isEOF(); token = fScanner.nextToken()) {
+                String tokenContentType = getTokenContentType(token);
+                if (isSupportedContentType(tokenContentType)) {
+                    newPartitions.add(new TypedPosition(fScanner.getTokenOffset(), fScanner.getTokenLength(), tokenContentType));
+                }
+            }
+        } finally {
+            fScanner.setResynchronizer(null);
+        }
+
+        // The previous partitions which were rescanned.
+        int endIndex;
+        int synchronizedOffset = fScanner.getSynchronizedOffset();
+        if (synchronizedOffset < 0) {
+            endIndex = fPartitions.size();
+
+        } else {
+            endIndex = getFirstIndexEndingAfterOffset(synchronizedOffset);
+            if (endIndex < fPartitions.size() && fPartitions.get(endIndex).getOffset() < synchronizedOffset) {
+                // The scan stopped inside this partition.  The last new partition, which ends at the line where the scan stopped,
+                //   is the same partition type, and continues to the end of this partition.
+                TypedPosition partition = fPartitions.get(endIndex);
+                TypedPosition lastNewPartition = newPartitions.get(newPartitions.size() - 1);
+                lastNewPartition.setLength(getEndOffset(partition) - lastNewPartition.getOffset());
+                endIndex++;
+            }
+        }
+
+        List<TypedPosition> rescannedPartitions = fPartitions.subList(firstIndex, endIndex);
+        IRegion changedRegion = getChangedRegion(rescannedPartitions, newPartitions);
+        rescannedPartitions.clear();
+        fPartitions.addAll(firstIndex, newPartitions);
+
+        return changedRegion;
+    }
+
+    /**
+     * Update the partitions for a change to the document.
+     * Partitions after the change are moved.  Partitions which overlap the changed text will be rescanned,
+     *   and are clipped to the unchanged text around it.
+     *
+     * @param firstIndex the index of the first partition which may be affected by the change.
+     * @param changeOffset the offset of the change.
+     * @param replacedLength the length of the replaced text.
+     * @param insertedLength the length of the inserted text.
+     */
+    private void updatePartitions(int firstIndex, int changeOffset, int replacedLength, int insertedLength) {
+        int replacedEndOffset = changeOffset + replacedLength;
+        int delta = insertedLength - replacedLength;
+
+        for (int i = firstIndex, nPartitions = fPartitions.size(); i < nPartitions; i++) {
+            TypedPosition partition = fPartitions.get(i);
+            int start = partition.getOffset();
+            int end = getEndOffset(partition);
+
+            if (start >= replacedEndOffset) {
+                partition.setOffset(start + delta);
+
+            } else {
+                int newStart = Math.min(start, changeOffset);
+                int newEnd;
+                if (end <= changeOffset) {
+                    newEnd = end;
+                } else if (end >= replacedEndOffset) {
+                    newEnd = end + delta;
+                } else {
+                    newEnd = changeOffset;
+                }
+                partition.setOffset(newStart);
+                partition.setLength(newEnd - newStart);
+            }
+        }
+    }
+
+    /**
+     * @param lineOffset the offset of the start of a line.
+     * @return the content type of the partition containing the start of the line, or null if the line starts in a default partition
+     *   or at the start of a partition.
+     */
+    private String getPartitionTypeAtLineStart(int lineOffset) {
+        int index = getFirstIndexEndingAfterOffset(lineOffset);
+        if (index < fPartitions.size()) {
+            TypedPosition partition = fPartitions.get(index);
+            if (partition.getOffset() < lineOffset) {
+                return partition.getType();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param previousPartitions the partitions before a rescan.
+     * @param newPartitions the partitions found by the rescan.
+     * @return the smallest region containing the partitions which were added or removed, or null if the partitioning didn't change.
+     */
+    private static IRegion getChangedRegion(List<TypedPosition> previousPartitions, List<TypedPosition> newPartitions) {
+        int changedStart = -1;
+        int changedEnd = -1;
+
+        int previousIndex = 0;
+        int newIndex = 0;
+        while (previousIndex < previousPartitions.size() || newIndex < newPartitions.size()) {
+            TypedPosition previousPartition = (previousIndex < previousPartitions.size()) ? previousPartitions.get(previousIndex) : null;
+            TypedPosition newPartition = (newIndex < newPartitions.size()) ? newPartitions.get(newIndex) : null;
+
+            TypedPosition changedPartition;
+            if (previousPartition != null && previousPartition.equals(newPartition)) {
+                previousIndex++;
+                newIndex++;
+                continue;
+
+            } else if (newPartition == null || (previousPartition != null && previousPartition.getOffset() <= newPartition.getOffset())) {
+                changedPartition = previousPartition;
+                previousIndex++;
+
+            } else {
+                changedPartition = newPartition;
+                newIndex++;
+            }
+
+            changedStart = (changedStart < 0) ? changedPartition.getOffset() : Math.min(changedStart, changedPartition.getOffset());
+            changedEnd = Math.max(changedEnd, getEndOffset(changedPartition));
+        }
+
+        return (changedStart < 0) ? null : new Region(changedStart, changedEnd - changedStart);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public String[] getLegalContentTypes() {
+        return fLegalContentTypes.clone();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public String getContentType(int offset) {
+        return getPartition(offset).getType();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public String getContentType(int offset, boolean preferOpenPartitions) {
+        return getPartition(offset, preferOpenPartitions).getType();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public ITypedRegion getPartition(int offset) {
+        checkInitialization();
+
+        int index = getFirstIndexEndingAfterOffset(offset);
+        int gapOffset = (index == 0) ? 0 : getEndOffset(fPartitions.get(index - 1));
+
+        if (index < fPartitions.size()) {
+            TypedPosition partition = fPartitions.get(index);
+            if (partition.getOffset() <= offset) {
+                return new TypedRegion(partition.getOffset(), partition.getLength(), partition.getType());
+            }
+            return new TypedRegion(gapOffset, partition.getOffset() - gapOffset, IDocument.DEFAULT_CONTENT_TYPE);
+        }
+        return new TypedRegion(gapOffset, fDocument.getLength() - gapOffset, IDocument.DEFAULT_CONTENT_TYPE);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public ITypedRegion getPartition(int offset, boolean preferOpenPartitions) {
+        ITypedRegion region = getPartition(offset);
+        if (preferOpenPartitions) {
+            if (region.getOffset() == offset && !region.getType().equals(IDocument.DEFAULT_CONTENT_TYPE)) {
+                if (offset > 0) {
+                    region = getPartition(offset - 1);
+                    if (region.getType().equals(IDocument.DEFAULT_CONTENT_TYPE)) {
+                        return region;
+                    }
+                }
+                return new TypedRegion(offset, 0, IDocument.DEFAULT_CONTENT_TYPE);
+            }
+        }
+        return region;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public ITypedRegion[] computePartitioning(int offset, int length) {
+        return computePartitioning(offset, length, false);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public ITypedRegion[] computePartitioning(int offset, int length, boolean includeZeroLengthPartitions) {
+        checkInitialization();
+
+        List<ITypedRegion> regions = new ArrayList<ITypedRegion>();
+        int endOffset = offset + length;
+
+        int startIndex = getFirstIndexEndingAfterOffset(offset);
+        int endIndex = getFirstIndexStartingAfterOffset(endOffset);
+        int gapOffset = (startIndex == 0) ? 0 : getEndOffset(fPartitions.get(startIndex - 1));
+
+        for (int i = startIndex; i < endIndex; i++) {
+            TypedPosition partition = fPartitions.get(i);
+            addGap(regions, gapOffset, partition.getOffset(), offset, length, includeZeroLengthPartitions);
+
+            if (partition.overlapsWith(offset, length)) {
+                int start = Math.max(offset, partition.getOffset());
+                int end = Math.min(endOffset, getEndOffset(partition));
+                regions.add(new TypedRegion(start, end - start, partition.getType()));
+            }
+            gapOffset = getEndOffset(partition);
+        }
+        addGap(regions, gapOffset, fDocument.getLength(), offset, length, includeZeroLengthPartitions);
+
+        if (regions.isEmpty()) {
+            regions.add(new TypedRegion(offset, length, IDocument.DEFAULT_CONTENT_TYPE));
+        }
+        return regions.toArray(new ITypedRegion[regions.size()]);
+    }
+
+    /**
+     * Add the part of a default partition which is in a range to a list of regions.
+     * @param regions the list of regions to which to add the region.
+     * @param gapOffset the start of the default partition.
+     * @param gapEndOffset the end of the default partition.
+     * @param offset the start of the range.
+     * @param length the length of the range.
+     * @param includeZeroLengthPartitions whether to add the partition if it is empty, or only touches the range.
+     */
+    private static void addGap(List<ITypedRegion> regions, int gapOffset, int gapEndOffset, int offset, int length, boolean includeZeroLengthPartitions) {
+        int endOffset = offset + length;
+        Position gap = new Position(gapOffset, gapEndOffset - gapOffset);
+        if ((includeZeroLengthPartitions && gapOffset <= endOffset && offset <= gapEndOffset) ||
+                (gap.getLength() > 0 && gap.overlapsWith(offset, length))) {
+            int start = Math.max(offset, gapOffset);
+            int end = Math.min(endOffset, gapEndOffset);
+            regions.add(new TypedRegion(start, end - start, IDocument.DEFAULT_CONTENT_TYPE));
+        }
+    }
+
+    /**
+     * @param offset an offset in the document.
+     * @return the index of the first partition which ends after the offset, or the number of partitions if there isn't one.
+     */
+    private int getFirstIndexEndingAfterOffset(int offset) {
+        int low = 0;
+        int high = fPartitions.size();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (getEndOffset(fPartitions.get(mid)) > offset) {
+                high = mid;
+            } else {
+                low = mid + 1;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * @param offset an offset in the document.
+     * @return the index of the first partition which starts after the offset, or the number of partitions if there isn't one.
+     */
+    private int getFirstIndexStartingAfterOffset(int offset) {
+        int low = 0;
+        int high = fPartitions.size();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (fPartitions.get(mid).getOffset() > offset) {
+                high = mid;
+            } else {
+                low = mid + 1;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * @param partition a partition.
+     * @return the offset of the end of the partition.
+     */
+    private static int getEndOffset(Position partition) {
+        return partition.getOffset() + partition.getLength();
+    }
+
+    /**
+     * @param token a token returned by the scanner.
+     * @return the content type of the token.
+     */
+    private static String getTokenContentType(IToken token) {
+        Object data = token.getData();
+        return (data instanceof String) ? (String)data : null;
+    }
+
+    /**
+     * @param contentType a content type, or null.
+     * @return whether the content type is one of the legal content types.
+     */
+    private boolean isSupportedContentType(String contentType) {
+        if (contentType != null) {
+            for (final String legalContentType : fLegalContentTypes) {
+                if (legalContentType.equals(contentType)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public String[] getManagingPositionCategories() {
+        // The partitions aren't kept as positions in the document.
+        return null;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void startRewriteSession(DocumentRewriteSession session) throws IllegalStateException {
+        if (fActiveRewriteSession != null) {
+            throw new IllegalStateException();
+        }
+        fActiveRewriteSession = session;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void stopRewriteSession(DocumentRewriteSession session) {
+        if (fActiveRewriteSession == session) {
+            fActiveRewriteSession = null;
+            fPartitions.clear();
+            fIsInitialized = false;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public DocumentRewriteSession getActiveRewriteSession() {
+        return fActiveRewriteSession;
+    }
+}
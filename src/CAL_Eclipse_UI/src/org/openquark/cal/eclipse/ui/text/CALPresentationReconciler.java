@@ -49,6 +49,7 @@ public class CALPresentationReconciler extends PresentationReconciler {
         if (document != fLastDocument) {
             setDocumentToDamagers(document);
             setDocumentToRepairers(document);
+            fLastDocument = document;
         }
         return createPresentation(damage, document);
     }
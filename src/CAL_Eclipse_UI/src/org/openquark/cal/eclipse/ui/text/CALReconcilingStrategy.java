@@ -0,0 +1,309 @@
+/*******************************************************************************
+ * Copyright (c) 2007 Business Objects Software Limited and others.
+ * All rights reserved.
+ * This file is made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Business Objects Software Limited - initial API and implementation
+ *******************************************************************************/
+
+/*
+ * CALReconcilingStrategy.java
+ * Created: Oct 17, 2007
+ */
+package org.openquark.cal.eclipse.ui.text;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.NullProgressMonitor;
+import org.eclipse.jface.text.IDocument;
+import org.eclipse.jface.text.IRegion;
+import org.eclipse.jface.text.Position;
+import org.eclipse.jface.text.reconciler.DirtyRegion;
+import org.eclipse.jface.text.reconciler.IReconcilingStrategy;
+import org.eclipse.jface.text.reconciler.IReconcilingStrategyExtension;
+import org.eclipse.jface.text.source.Annotation;
+import org.eclipse.jface.text.source.IAnnotationModel;
+import org.eclipse.jface.text.source.IAnnotationModelExtension;
+import org.eclipse.ui.texteditor.IDocumentProvider;
+import org.eclipse.ui.texteditor.MarkerAnnotation;
+import org.openquark.cal.compiler.CompilerMessage;
+import org.openquark.cal.compiler.MessageLogger;
+import org.openquark.cal.compiler.ModuleName;
+import org.openquark.cal.compiler.SourceModel;
+import org.openquark.cal.compiler.SourceModelUtilities;
+import org.openquark.cal.compiler.SourcePosition;
+import org.openquark.cal.compiler.SourceRange;
+import org.openquark.cal.eclipse.core.CALModelManager;
+import org.openquark.cal.eclipse.ui.CALEclipseUIPlugin;
+import org.openquark.cal.eclipse.ui.caleditor.CALEditor;
+import org.openquark.cal.eclipse.ui.preferences.PreferenceConstants;
+
+
+/**
+ * The reconciling strategy for the CAL editor.
+ * <p>
+ * After a pause in typing, the editor's text is parsed in the background.  The resulting source model is passed to the editor,
+ *   and the parse errors and warnings are shown as temporary problem annotations, without waiting for the file to be saved and built.
+ * The problem markers from the last build are still shown while the text is being edited, so a temporary problem is not shown if
+ *   there is already a marker with the same message at the same position.  When the text is saved, the build's markers take over
+ *   and the temporary problems are removed by the editor.
+ * If the text is the same as the saved source, the source model is also given to the CAL model manager, so that features
+ *   which work on the saved source (hover, hyperlinks, completion etc.) don't have to parse it again.
+ * <p>
+ * The CAL parser works on whole modules, so each reconcile parses the whole text.  A reconcile whose text is the same as the
+ *   last text parsed (eg. after an edit is undone) is skipped.
+ */
+public final class CALReconcilingStrategy implements IReconcilingStrategy, IReconcilingStrategyExtension {
+
+    /** The annotation type for errors found while reconciling. */
+    private static final String ERROR_ANNOTATION_TYPE = "org.eclipse.ui.workbench.texteditor.error"; //$NON-NLS-1$
+
+    /** The annotation type for warnings found while reconciling. */
+    private static final String WARNING_ANNOTATION_TYPE = "org.eclipse.ui.workbench.texteditor.warning"; //$NON-NLS-1$
+
+    /**
+     * An annotation for a problem found while reconciling.
+     * These have the same types as the annotations for problem markers, so that they are shown the same way,
+     *   but they can be told apart from the markers' annotations, which are MarkerAnnotations.
+     */
+    private static final class TemporaryProblemAnnotation extends Annotation {
+        /**
+         * Constructor for a TemporaryProblemAnnotation.
+         * @param type the annotation type.
+         * @param text the problem's message.
+         */
+        TemporaryProblemAnnotation(String type, String text) {
+            super(type, false, text);
+        }
+    }
+
+    /** The editor whose text is reconciled. */
+    private final CALEditor editor;
+
+    /** The document being reconciled. */
+    private IDocument document;
+
+    /** The progress monitor, which is cancelled by the reconciler when the document changes. */
+    private IProgressMonitor monitor = new NullProgressMonitor();
+
+    /** The text which was last parsed, or null if none. */
+    private String lastParsedText = null;
+
+    /** The problem annotations added by the last reconcile. */
+    private Annotation[] problemAnnotations = new Annotation[0];
+
+    /**
+     * Constructor for a CALReconcilingStrategy.
+     * @param editor the editor whose text is reconciled.
+     */
+    CALReconcilingStrategy(CALEditor editor) {
+        this.editor = editor;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void setDocument(IDocument document) {
+        this.document = document;
+        this.lastParsedText = null;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void setProgressMonitor(IProgressMonitor monitor) {
+        this.monitor = monitor;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void initialReconcile() {
+        reconcile();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void reconcile(DirtyRegion dirtyRegion, IRegion subRegion) {
+        reconcile();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void reconcile(IRegion partition) {
+        reconcile();
+    }
+
+    /**
+     * Parse the document, and publish the resulting source model and problems.
+     */
+    private void reconcile() {
+        if (document == null) {
+            return;
+        }
+        String text = document.get();
+        if (text.equals(lastParsedText)) {
+            return;
+        }
+
+        MessageLogger logger = new MessageLogger();
+        SourceModel.ModuleDefn sourceModel = SourceModelUtilities.TextParsing.parseModuleDefnIntoSourceModel(text, true, logger);
+
+        if (monitor.isCanceled()) {
+            // The document changed while it was being parsed.  It will be reconciled again.
+            return;
+        }
+        lastParsedText = text;
+
+        if (sourceModel != null && logger.getNErrors() == 0) {
+            ModuleName moduleName = editor.getModuleName();
+            if (moduleName != null) {
+                CALModelManager.getCALModelManager().putModuleSourceModel(moduleName, text, sourceModel);
+            }
+        }
+
+        updateProblemAnnotations(text, logger);
+    }
+
+    /**
+     * Replace the problem annotations from the last reconcile with annotations for the given messages.
+     * @param text the text which was parsed.
+     * @param logger the logger with the messages from the parse.
+     */
+    private void updateProblemAnnotations(String text, MessageLogger logger) {
+        IDocumentProvider documentProvider = editor.getDocumentProvider();
+        IAnnotationModel annotationModel = (documentProvider == null) ? null : documentProvider.getAnnotationModel(editor.getEditorInput());
+        if (annotationModel == null) {
+            return;
+        }
+
+        // If the text is the same as the saved text, the problems are shown by the markers from the build.
+        Map<Annotation, Position> annotationToPositionMap = new HashMap<Annotation, Position>();
+        if (editor.isDirty() && CALEclipseUIPlugin.getDefault().getPreferenceStore().getBoolean(PreferenceConstants.EDITOR_EVALUTE_TEMPORARY_PROBLEMS)) {
+            Set<String> markerProblemKeys = getMarkerProblemKeys(annotationModel);
+            for (final CompilerMessage message : logger.getCompilerMessages(CompilerMessage.Severity.WARNING)) {
+                Position position = getPosition(message.getSourceRange(), text);
+                if (markerProblemKeys.contains(getProblemKey(position, message.getMessage()))) {
+                    continue;
+                }
+                String type = (message.getSeverity() == CompilerMessage.Severity.WARNING) ? WARNING_ANNOTATION_TYPE : ERROR_ANNOTATION_TYPE;
+                annotationToPositionMap.put(new TemporaryProblemAnnotation(type, message.getMessage()), position);
+            }
+        }
+
+        Annotation[] newProblemAnnotations = annotationToPositionMap.keySet().toArray(new Annotation[annotationToPositionMap.size()]);
+        if (annotationModel instanceof IAnnotationModelExtension) {
+            ((IAnnotationModelExtension)annotationModel).replaceAnnotations(problemAnnotations, annotationToPositionMap);
+        } else {
+            for (final Annotation annotation : problemAnnotations) {
+                annotationModel.removeAnnotation(annotation);
+            }
+            for (final Map.Entry<Annotation, Position> entry : annotationToPositionMap.entrySet()) {
+                annotationModel.addAnnotation(entry.getKey(), entry.getValue());
+            }
+        }
+        problemAnnotations = newProblemAnnotations;
+    }
+
+    /**
+     * Remove the temporary problem annotations from an annotation model.
+     * This is called when the editor's text is saved, since the problems will then be shown by the markers from the build,
+     *   and when temporary problems are turned off.
+     * @param annotationModel the annotation model of a CAL editor.
+     */
+    public static void removeTemporaryProblemAnnotations(IAnnotationModel annotationModel) {
+        Annotation[] temporaryProblemAnnotations = getAnnotations(annotationModel, TemporaryProblemAnnotation.class);
+        if (temporaryProblemAnnotations.length == 0) {
+            return;
+        }
+        if (annotationModel instanceof IAnnotationModelExtension) {
+            ((IAnnotationModelExtension)annotationModel).replaceAnnotations(temporaryProblemAnnotations, new HashMap<Annotation, Position>());
+        } else {
+            for (final Annotation annotation : temporaryProblemAnnotations) {
+                annotationModel.removeAnnotation(annotation);
+            }
+        }
+    }
+
+    /**
+     * @param annotationModel an annotation model.
+     * @param annotationClass the class of the annotations to return.
+     * @return the annotations in the model which are instances of the class.
+     */
+    private static Annotation[] getAnnotations(IAnnotationModel annotationModel, Class<? extends Annotation> annotationClass) {
+        Set<Annotation> annotations = new HashSet<Annotation>();
+        for (Iterator<?> it = annotationModel.getAnnotationIterator(); it.hasNext(); ) {
+            Object annotation = it.next();
+            if (annotationClass.isInstance(annotation)) {
+                annotations.add((Annotation)annotation);
+            }
+        }
+        return annotations.toArray(new Annotation[annotations.size()]);
+    }
+
+    /**
+     * @param annotationModel an annotation model.
+     * @return the keys of the problems shown by the markers in the annotation model, as returned by getProblemKey().
+     */
+    private static Set<String> getMarkerProblemKeys(IAnnotationModel annotationModel) {
+        Set<String> problemKeys = new HashSet<String>();
+        for (final Annotation annotation : getAnnotations(annotationModel, MarkerAnnotation.class)) {
+            String type = annotation.getType();
+            if (ERROR_ANNOTATION_TYPE.equals(type) || WARNING_ANNOTATION_TYPE.equals(type)) {
+                Position position = annotationModel.getPosition(annotation);
+                if (position != null && !position.isDeleted()) {
+                    problemKeys.add(getProblemKey(position, annotation.getText()));
+                }
+            }
+        }
+        return problemKeys;
+    }
+
+    /**
+     * @param position the position of a problem.
+     * @param message the problem's message.
+     * @return a key identifying the problem, for comparing temporary problems to markers.
+     */
+    private static String getProblemKey(Position position, String message) {
+        return position.getOffset() + ":" + position.getLength() + ":" + message; //$NON-NLS-1$ //$NON-NLS-2$
+    }
+
+    /**
+     * @param sourceRange the source range of a message, or null if the message has no source range.
+     * @param text the text to which the source range refers.
+     * @return the position in the text corresponding to the source range.
+     *   Messages without a source range are positioned at the start of the text.
+     */
+    private static Position getPosition(SourceRange sourceRange, String text) {
+        if (sourceRange == null || sourceRange.getStartLine() == 0) {
+            return new Position(0, 0);
+        }
+        int start = getOffset(sourceRange.getStartSourcePosition(), text);
+        int end = getOffset(sourceRange.getEndSourcePosition(), text);
+        return new Position(start, Math.max(end - start, 0));
+    }
+
+    /**
+     * @param sourcePosition a source position.
+     * @param text the text to which the source position refers.
+     * @return the offset in the text corresponding to the source position.
+     *   If the position is past the end of the text (eg. an error at the end of the file), the length of the text.
+     */
+    private static int getOffset(SourcePosition sourcePosition, String text) {
+        try {
+            return Math.min(sourcePosition.getPosition(text), text.length());
+        } catch (IllegalArgumentException e) {
+            return text.length();
+        }
+    }
+}
@@ -64,6 +64,7 @@ import org.eclipse.jface.text.quickassist.IQuickAssistInvocationContext;
 import org.eclipse.jface.text.quickassist.IQuickAssistProcessor;
 import org.eclipse.jface.text.quickassist.QuickAssistAssistant;
 import org.eclipse.jface.text.reconciler.IReconciler;
+import org.eclipse.jface.text.reconciler.MonoReconciler;
 import org.eclipse.jface.text.rules.DefaultDamagerRepairer;
 import org.eclipse.jface.text.rules.RuleBasedScanner;
 import org.eclipse.jface.text.source.Annotation;
@@ -122,6 +123,9 @@ import org.openquark.util.UnsafeCast;
  */
 public class CALSourceViewerConfiguration extends TextSourceViewerConfiguration {
     
+    /** The time, in milliseconds, to wait after the text stops changing before reconciling it. */
+    private static final int RECONCILE_DELAY = 500;
+    
     private CALTextTools fCALTextTools;
     ITextEditor fTextEditor;
     /**
@@ -480,7 +484,13 @@ public class CALSourceViewerConfiguration extends TextSourceViewerConfiguration
      */
     @Override
     public IReconciler getReconciler(ISourceViewer sourceViewer) {
-        return null;
+        ITextEditor editor = getEditor();
+        if (!(editor instanceof CALEditor)) {
+            return null;
+        }
+        MonoReconciler reconciler = new MonoReconciler(new CALReconcilingStrategy((CALEditor)editor), false);
+        reconciler.setDelay(RECONCILE_DELAY);
+        return reconciler;
     }
     
     /*
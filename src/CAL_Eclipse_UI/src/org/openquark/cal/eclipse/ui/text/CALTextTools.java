@@ -23,7 +23,6 @@ import org.eclipse.jface.preference.IPreferenceStore;
 import org.eclipse.jface.text.IDocument;
 import org.eclipse.jface.text.IDocumentExtension3;
 import org.eclipse.jface.text.IDocumentPartitioner;
-import org.eclipse.jface.text.rules.FastPartitioner;
 import org.eclipse.jface.text.rules.IPartitionTokenScanner;
 
 
@@ -179,14 +178,13 @@ public class CALTextTools {
     }
     
     /**
-     * Factory method for creating a Java-specific document partitioner
-     * using this object's partitions scanner. This method is a
-     * convenience method.
+     * Factory method for creating a CAL-specific document partitioner.
+     * Each partitioner has its own partition scanner, since the scanner holds the state of the partitioner's scans.
      *
-     * @return a newly created Java document partitioner
+     * @return a newly created CAL document partitioner
      */
     public IDocumentPartitioner createDocumentPartitioner() {
-        return new FastPartitioner(getPartitionScanner(), LEGAL_CONTENT_TYPES);
+        return new CALDocumentPartitioner(new FastCALPartitionScanner(), LEGAL_CONTENT_TYPES);
     }
     
     /**
@@ -28,6 +28,10 @@ import org.eclipse.jface.text.rules.Token;
 /**
  * This scanner recognizes the CALDoc comments, CAL multi line comments, CAL single line comments,
  * CAL strings and CAL characters.
+ * <p>
+ * At the start of each line, the scanner's state is just the type of partition it is in.  If a resynchronizer is set,
+ *   it is asked at the start of each line whether this state is the same as in a previous scan, in which case the rest
+ *   of the scan would be the same, and the scan stops.
  * 
  * @author Edward Lam
  */
@@ -73,6 +77,26 @@ public class FastCALPartitionScanner implements IPartitionTokenScanner {
     private int fJavaOffset;
     private int fJavaLength;
     
+    /** The resynchronizer asked at the start of each line whether the scan can stop, or null to scan to the end of the range. */
+    private IResynchronizer fResynchronizer = null;
+    /** Whether the last character read was a line feed. */
+    private boolean fAtLineStart;
+    /** The offset of the start of the line at which the scan stopped, or -1 if it hasn't stopped. */
+    private int fSynchronizedOffset = -1;
+    
+    /**
+     * Decides whether a scan has re-synchronized with a previous scan of the document.
+     */
+    public interface IResynchronizer {
+        /**
+         * @param lineOffset the offset of the start of a line.
+         * @param contentType the content type of the partition which the scanner is in at the start of the line,
+         *   or null if it is in CAL code.
+         * @return true if the previous scan was in the same partition type at the start of the line, so that the scan can stop.
+         */
+        boolean isSynchronized(int lineOffset, String contentType);
+    }
+    
     private final IToken[] fTokens = new IToken[]{
             new Token(null),
             new Token(CALPartitions.CAL_SINGLE_LINE_COMMENT),
@@ -95,6 +119,13 @@ public class FastCALPartitionScanner implements IPartitionTokenScanner {
      */
     public IToken nextToken() {
         
+        if (fSynchronizedOffset >= 0) {
+            // the scan stopped at the start of a line
+            fTokenOffset += fTokenLength;
+            fTokenLength = 0;
+            return Token.EOF;
+        }
+        
         // emulate CALPartitionScanner
         if (fEmulate) {
             if (fJavaOffset != -1 && fTokenOffset + fTokenLength != fJavaOffset + fJavaLength) {
@@ -110,6 +141,21 @@ public class FastCALPartitionScanner implements IPartitionTokenScanner {
         fTokenLength = fPrefixLength;
         
         while (true) {
+            if (fAtLineStart) {
+                fAtLineStart = false;
+                
+                // after a line feed, the last character is ignored and the read offset is the end of the token
+                int lineOffset = fTokenOffset + fTokenLength;
+                if (fResynchronizer.isSynchronized(lineOffset, (String)fTokens[fState].getData())) {
+                    fSynchronizedOffset = lineOffset;
+                    if (fTokenLength > 0) {
+                        return fTokens[fState];
+                    } else {
+                        return Token.EOF;
+                    }
+                }
+            }
+            
             final int ch = fScanner.read();
             
             // characters
@@ -166,6 +212,7 @@ public class FastCALPartitionScanner implements IPartitionTokenScanner {
                     }
                     
                 case '\n':
+                    fAtLineStart = !fEmulate && fResynchronizer != null;
                     switch (fState) {
                         case SINGLE_LINE_COMMENT:
                         case CHARACTER:
@@ -489,6 +536,8 @@ public class FastCALPartitionScanner implements IPartitionTokenScanner {
         fTokenLength = 0;
         fPrefixLength = offset - partitionOffset;
         fLast = NONE;
+        fAtLineStart = false;
+        fSynchronizedOffset = -1;
 
         if (offset == partitionOffset) {
             // restart at beginning of partition
@@ -515,6 +564,8 @@ public class FastCALPartitionScanner implements IPartitionTokenScanner {
         fPrefixLength = 0;
         fLast = NONE;
         fState = CAL;
+        fAtLineStart = false;
+        fSynchronizedOffset = -1;
 
         // emulate CALPartitionScanner
         if (fEmulate) {
@@ -523,6 +574,25 @@ public class FastCALPartitionScanner implements IPartitionTokenScanner {
         }
     }
     
+    /**
+     * Set the resynchronizer for subsequent scans.
+     * The resynchronizer is not asked about the line at which a scan starts.
+     * 
+     * @param resynchronizer the resynchronizer asked at the start of each line whether the scan can stop,
+     *   or null to scan to the end of the range.
+     */
+    public void setResynchronizer(IResynchronizer resynchronizer) {
+        fResynchronizer = resynchronizer;
+    }
+    
+    /**
+     * @return the offset of the start of the line at which the last scan stopped because it re-synchronized,
+     *   or -1 if it hasn't stopped.
+     */
+    public int getSynchronizedOffset() {
+        return fSynchronizedOffset;
+    }
+    
     /*
      * @see ITokenScanner#getTokenLength()
      */
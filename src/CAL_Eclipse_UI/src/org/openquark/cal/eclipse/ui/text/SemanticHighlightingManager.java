@@ -0,0 +1,717 @@
+/*******************************************************************************
+ * Copyright (c) 2007 Business Objects Software Limited and others.
+ * All rights reserved.
+ * This file is made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Business Objects Software Limited - initial API and implementation
+ *******************************************************************************/
+
+/*
+ * SemanticHighlightingManager.java
+ * Created: Oct 17, 2007
+ */
+package org.openquark.cal.eclipse.ui.text;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.eclipse.core.resources.IResourceChangeEvent;
+import org.eclipse.core.resources.IResourceChangeListener;
+import org.eclipse.core.resources.ResourcesPlugin;
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.IStatus;
+import org.eclipse.core.runtime.Status;
+import org.eclipse.core.runtime.jobs.Job;
+import org.eclipse.jface.preference.IPreferenceStore;
+import org.eclipse.jface.preference.PreferenceConverter;
+import org.eclipse.jface.text.BadLocationException;
+import org.eclipse.jface.text.BadPositionCategoryException;
+import org.eclipse.jface.text.DefaultPositionUpdater;
+import org.eclipse.jface.text.IDocument;
+import org.eclipse.jface.text.IDocumentExtension4;
+import org.eclipse.jface.text.IRegion;
+import org.eclipse.jface.text.ITextPresentationListener;
+import org.eclipse.jface.text.ITextViewerExtension4;
+import org.eclipse.jface.text.Position;
+import org.eclipse.jface.text.Region;
+import org.eclipse.jface.text.TextAttribute;
+import org.eclipse.jface.text.TextPresentation;
+import org.eclipse.jface.text.presentation.IPresentationReconciler;
+import org.eclipse.jface.text.source.ISourceViewer;
+import org.eclipse.jface.text.source.SourceViewerConfiguration;
+import org.eclipse.jface.util.IPropertyChangeListener;
+import org.eclipse.jface.util.PropertyChangeEvent;
+import org.eclipse.swt.SWT;
+import org.eclipse.swt.custom.StyleRange;
+import org.eclipse.swt.widgets.Display;
+import org.eclipse.ui.PlatformUI;
+import org.openquark.cal.compiler.ClassMethod;
+import org.openquark.cal.compiler.Function;
+import org.openquark.cal.compiler.FunctionalAgent;
+import org.openquark.cal.compiler.IdentifierInfo;
+import org.openquark.cal.compiler.IdentifierOccurrence;
+import org.openquark.cal.compiler.MessageLogger;
+import org.openquark.cal.compiler.ModuleName;
+import org.openquark.cal.compiler.ModuleTypeInfo;
+import org.openquark.cal.compiler.QualifiedName;
+import org.openquark.cal.compiler.SourceRange;
+import org.openquark.cal.eclipse.core.CALModelManager;
+import org.openquark.cal.eclipse.ui.CALEclipseUIPlugin;
+import org.openquark.cal.eclipse.ui.CALUIMessages;
+import org.openquark.cal.eclipse.ui.caleditor.CALEditor;
+import org.openquark.cal.eclipse.ui.caleditor.PartiallySynchronizedDocument;
+import org.openquark.cal.eclipse.ui.preferences.PreferenceConstants;
+import org.openquark.cal.eclipse.ui.text.SemanticHighlightings.SemanticHighlighting;
+import org.openquark.cal.eclipse.ui.util.CoreUtility;
+
+
+/**
+ * Applies the semantic highlightings to the CAL editor.
+ * <p>
+ * The identifiers to highlight are found by a background job, which resolves the identifiers of the module and classifies them
+ *   using the module type info of the modules which define them.  The job runs when the editor's text is saved, and when
+ *   a build completes.  When it finishes, only the part of the document whose highlighting changed is repaired,
+ *   using a CALPresentationReconciler, so the display thread never resolves identifiers and never repaints the whole module.
+ * <p>
+ * The identifiers are resolved in the saved source of the module, so the job finds their positions in the coordinates of the
+ *   original document of the editor's PartiallySynchronizedDocument.  When they are shown, they are mapped to the current document
+ *   and added to it as positions, so that they move with later edits and saves.  The region to repair is found by comparing
+ *   the shown positions with the new ones, both in the coordinates of the current document.
+ * Identifiers which have been edited since they were shown are not highlighted until the highlighting is updated.
+ *
+ * @see SemanticHighlightings
+ */
+public final class SemanticHighlightingManager implements ITextPresentationListener, IPropertyChangeListener {
+
+    /** The delay before the highlighting is updated after a build, in milliseconds. */
+    private static final long BUILD_UPDATE_DELAY = 200;
+
+    /**
+     * A highlighted identifier, in the coordinates of the original document.
+     */
+    private static final class HighlightedPosition {
+        final int offset;
+        final int length;
+        final SemanticHighlighting highlighting;
+
+        HighlightedPosition(int offset, int length, SemanticHighlighting highlighting) {
+            this.offset = offset;
+            this.length = length;
+            this.highlighting = highlighting;
+        }
+
+        int getEnd() {
+            return offset + length;
+        }
+    }
+
+    /**
+     * The highlighted identifiers of the original document, sorted by offset and not overlapping.  Immutable.
+     */
+    private static final class HighlightedPositions {
+
+        /** The modification stamp of the original document for which the positions were found. */
+        final long originalStamp;
+
+        /** The positions. */
+        final List<HighlightedPosition> positions;
+
+        HighlightedPositions(long originalStamp, List<HighlightedPosition> positions) {
+            this.originalStamp = originalStamp;
+            this.positions = positions;
+        }
+    }
+
+    /**
+     * A highlighted identifier shown in the viewer, in the coordinates of the current document.
+     * These are added to the document, so that they are moved by edits.
+     */
+    private static final class ShownPosition extends Position {
+        final SemanticHighlighting highlighting;
+
+        /** The length of the identifier when it was shown.  If the length has changed, the identifier has been edited. */
+        final int identifierLength;
+
+        ShownPosition(int offset, int length, SemanticHighlighting highlighting) {
+            super(offset, length);
+            this.identifierLength = length;
+            this.highlighting = highlighting;
+        }
+
+        /**
+         * @return whether the identifier has been deleted or edited since it was shown.
+         */
+        boolean isEdited() {
+            return isDeleted() || length != identifierLength;
+        }
+
+        /**
+         * @param other another shown position.
+         * @return whether the two positions highlight the same text in the same way.
+         */
+        boolean isSameAs(ShownPosition other) {
+            return offset == other.offset && length == other.length && highlighting == other.highlighting;
+        }
+    }
+
+    /**
+     * Moves the shown positions as the document is edited, and notes when any of them are deleted.
+     * Deleted positions keep their old offsets, so they must be removed from the list of shown positions to keep it sorted.
+     */
+    private final class ShownPositionUpdater extends DefaultPositionUpdater {
+
+        ShownPositionUpdater() {
+            super(positionCategory);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        protected boolean notDeleted() {
+            if (super.notDeleted()) {
+                return true;
+            }
+            hasDeletedPositions = true;
+            return false;
+        }
+    }
+
+    /**
+     * The job which finds the highlighted identifiers.
+     */
+    private final class HighlightingJob extends Job {
+
+        HighlightingJob() {
+            super(CALUIMessages.SemanticHighlighting_jobName);
+            setSystem(true);
+            setPriority(Job.DECORATE);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        protected IStatus run(IProgressMonitor monitor) {
+            final HighlightedPositions newPositions = findHighlightedPositions(monitor);
+            if (newPositions == null || monitor.isCanceled()) {
+                return Status.CANCEL_STATUS;
+            }
+
+            Display display = PlatformUI.getWorkbench().getDisplay();
+            if (!display.isDisposed()) {
+                display.asyncExec(new Runnable() {
+                    public void run() {
+                        updatePresentation(newPositions);
+                    }
+                });
+            }
+            return Status.OK_STATUS;
+        }
+    }
+
+    /** The editor whose text is highlighted. */
+    private final CALEditor editor;
+
+    /** The editor's viewer. */
+    private final ISourceViewer viewer;
+
+    /** The configuration of the viewer, which provides the presentation reconciler used to repair changed regions. */
+    private final SourceViewerConfiguration configuration;
+
+    /** The color manager. */
+    private final ColorManager colorManager;
+
+    /** The preference store holding the semantic highlighting preferences. */
+    private final IPreferenceStore preferenceStore;
+
+    /** Map from each enabled highlighting to its text attribute.  Only accessed on the display thread. */
+    private final Map<SemanticHighlighting, TextAttribute> highlightingToAttributeMap = new HashMap<SemanticHighlighting, TextAttribute>();
+
+    /** The position category of the shown positions in the document.  Unique to this manager, since editors may share a document. */
+    private final String positionCategory = toString();
+
+    /** The updater of the shown positions. */
+    private final ShownPositionUpdater positionUpdater = new ShownPositionUpdater();
+
+    /** The document to which the shown positions are added, or null if the manager isn't installed on a document. */
+    private IDocument trackedDocument = null;
+
+    /**
+     * The highlighted identifiers shown in the viewer, sorted by offset and not overlapping, except for deleted positions.
+     * Only accessed on the display thread.
+     */
+    private List<ShownPosition> shownPositions = Collections.emptyList();
+
+    /** Whether any of the shown positions have been deleted since they were last removed from the list. */
+    private boolean hasDeletedPositions = false;
+
+    /** The presentation reconciler used to repair changed regions, or null if it hasn't been created. */
+    private CALPresentationReconciler presentationReconciler = null;
+
+    /** Whether the manager is installed. */
+    private volatile boolean installed = false;
+
+    /** The job which finds the highlighted identifiers. */
+    private final Job highlightingJob = new HighlightingJob();
+
+    /** Listener which updates the highlighting when a build completes, since the type info of the module may have changed. */
+    private final IResourceChangeListener buildListener = new IResourceChangeListener() {
+        public void resourceChanged(IResourceChangeEvent event) {
+            scheduleUpdate(BUILD_UPDATE_DELAY);
+        }
+    };
+
+    /**
+     * Constructor for a SemanticHighlightingManager.
+     * @param editor the editor whose text is highlighted.
+     * @param viewer the editor's viewer.
+     * @param configuration the configuration of the viewer.
+     * @param colorManager the color manager.
+     * @param preferenceStore the preference store holding the semantic highlighting preferences.
+     */
+    public SemanticHighlightingManager(CALEditor editor, ISourceViewer viewer, SourceViewerConfiguration configuration, ColorManager colorManager, IPreferenceStore preferenceStore) {
+        this.editor = editor;
+        this.viewer = viewer;
+        this.configuration = configuration;
+        this.colorManager = colorManager;
+        this.preferenceStore = preferenceStore;
+    }
+
+    /**
+     * Install the manager on the viewer, and start finding the highlighted identifiers.
+     * Must be called on the display thread.
+     */
+    public void install() {
+        updateTextAttributes();
+        IDocument document = viewer.getDocument();
+        if (document != null) {
+            document.addPositionCategory(positionCategory);
+            document.addPositionUpdater(positionUpdater);
+            trackedDocument = document;
+        }
+        ((ITextViewerExtension4)viewer).addTextPresentationListener(this);
+        preferenceStore.addPropertyChangeListener(this);
+        ResourcesPlugin.getWorkspace().addResourceChangeListener(buildListener, IResourceChangeEvent.POST_BUILD);
+        installed = true;
+        scheduleUpdate(0);
+    }
+
+    /**
+     * Uninstall the manager from the viewer.
+     * Must be called on the display thread.
+     */
+    public void uninstall() {
+        installed = false;
+        highlightingJob.cancel();
+        ResourcesPlugin.getWorkspace().removeResourceChangeListener(buildListener);
+        preferenceStore.removePropertyChangeListener(this);
+        ((ITextViewerExtension4)viewer).removeTextPresentationListener(this);
+        if (trackedDocument != null) {
+            trackedDocument.removePositionUpdater(positionUpdater);
+            try {
+                trackedDocument.removePositionCategory(positionCategory);
+            } catch (BadPositionCategoryException e) {
+                // The category has already been removed.
+            }
+            trackedDocument = null;
+        }
+        shownPositions = Collections.emptyList();
+        hasDeletedPositions = false;
+    }
+
+    /**
+     * Find the highlighted identifiers again.  Called when the editor's text has been saved.
+     */
+    public void scheduleUpdate() {
+        scheduleUpdate(0);
+    }
+
+    /**
+     * Find the highlighted identifiers again, after the given delay.
+     * Any update in progress is cancelled.
+     * @param delay the delay in milliseconds.
+     */
+    private void scheduleUpdate(long delay) {
+        if (installed) {
+            highlightingJob.cancel();
+            highlightingJob.schedule(delay);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void propertyChange(PropertyChangeEvent event) {
+        String property = event.getProperty();
+        if (!SemanticHighlightings.isSemanticHighlightingPreference(property)) {
+            return;
+        }
+        updateTextAttributes();
+        if (property.endsWith(PreferenceConstants.EDITOR_SEMANTIC_HIGHLIGHTING_ENABLED_SUFFIX)) {
+            // The identifiers to highlight have changed.
+            scheduleUpdate(0);
+        } else {
+            viewer.invalidateTextPresentation();
+        }
+    }
+
+    /**
+     * Create the text attributes of the enabled highlightings from the preferences.
+     */
+    private void updateTextAttributes() {
+        highlightingToAttributeMap.clear();
+        for (final SemanticHighlighting highlighting : SemanticHighlightings.getSemanticHighlightings()) {
+            if (!preferenceStore.getBoolean(SemanticHighlightings.getEnabledPreferenceKey(highlighting))) {
+                continue;
+            }
+            int style = preferenceStore.getBoolean(SemanticHighlightings.getBoldPreferenceKey(highlighting)) ? SWT.BOLD : SWT.NORMAL;
+            if (preferenceStore.getBoolean(SemanticHighlightings.getItalicPreferenceKey(highlighting))) {
+                style |= SWT.ITALIC;
+            }
+            if (preferenceStore.getBoolean(SemanticHighlightings.getStrikethroughPreferenceKey(highlighting))) {
+                style |= TextAttribute.STRIKETHROUGH;
+            }
+            if (preferenceStore.getBoolean(SemanticHighlightings.getUnderlinePreferenceKey(highlighting))) {
+                style |= TextAttribute.UNDERLINE;
+            }
+            TextAttribute attribute = new TextAttribute(
+                    colorManager.getColor(PreferenceConverter.getColor(preferenceStore, SemanticHighlightings.getColorPreferenceKey(highlighting))), null, style);
+            highlightingToAttributeMap.put(highlighting, attribute);
+        }
+    }
+
+    /**
+     * Find the highlighted identifiers in the original document of the editor.  Called by the highlighting job.
+     * @param monitor the progress monitor of the job.
+     * @return the highlighted identifiers, or null if they couldn't be found or the job was cancelled.
+     */
+    private HighlightedPositions findHighlightedPositions(IProgressMonitor monitor) {
+        IDocument document = viewer.getDocument();
+        ModuleName moduleName = editor.getModuleName();
+        if (!(document instanceof PartiallySynchronizedDocument) || moduleName == null) {
+            return null;
+        }
+        IDocument originalDocument = ((PartiallySynchronizedDocument)document).getOriginalDocument();
+        long originalStamp = getModificationStamp(originalDocument);
+
+        Set<SemanticHighlighting> enabledHighlightings = new HashSet<SemanticHighlighting>();
+        for (final SemanticHighlighting highlighting : SemanticHighlightings.getSemanticHighlightings()) {
+            if (preferenceStore.getBoolean(SemanticHighlightings.getEnabledPreferenceKey(highlighting))) {
+                enabledHighlightings.add(highlighting);
+            }
+        }
+        if (enabledHighlightings.isEmpty()) {
+            return new HighlightedPositions(originalStamp, Collections.<HighlightedPosition>emptyList());
+        }
+
+        CALModelManager cmm = CALModelManager.getCALModelManager();
+        if (cmm.getModuleTypeInfo(moduleName) == null) {
+            // The module hasn't been compiled.
+            return null;
+        }
+        List<IdentifierOccurrence<?>> occurrences = cmm.getSearchManager().findSymbolsAfter(moduleName, 1, 1, new MessageLogger());
+
+        Map<ModuleName, ModuleTypeInfo> moduleTypeInfoCache = new HashMap<ModuleName, ModuleTypeInfo>();
+        List<HighlightedPosition> positions = new ArrayList<HighlightedPosition>();
+        try {
+            for (final IdentifierOccurrence<?> occurrence : occurrences) {
+                if (monitor.isCanceled()) {
+                    return null;
+                }
+                if (occurrence instanceof IdentifierOccurrence.Reference.Operator<?>) {
+                    // eg. "+" resolves to a function, but operators are colored lexically.
+                    continue;
+                }
+                SemanticHighlighting highlighting = getHighlighting(occurrence.getIdentifierInfo(), cmm, moduleTypeInfoCache);
+                SourceRange sourceRange = occurrence.getSourceRange();
+                if (highlighting == null || !enabledHighlightings.contains(highlighting) || sourceRange == null) {
+                    continue;
+                }
+                int start = CoreUtility.toOffset(sourceRange.getStartSourcePosition(), originalDocument);
+                int end = CoreUtility.toOffset(sourceRange.getEndSourcePosition(), originalDocument);
+                if (end > start) {
+                    positions.add(new HighlightedPosition(start, end - start, highlighting));
+                }
+            }
+        } catch (BadLocationException e) {
+            // The document was saved while the positions were being found.
+            return null;
+        }
+        if (getModificationStamp(originalDocument) != originalStamp) {
+            return null;
+        }
+
+        // Sort the positions, and drop any which overlap the previous one.
+        Collections.sort(positions, new Comparator<HighlightedPosition>() {
+            public int compare(HighlightedPosition position1, HighlightedPosition position2) {
+                return position1.offset - position2.offset;
+            }
+        });
+        List<HighlightedPosition> sortedPositions = new ArrayList<HighlightedPosition>(positions.size());
+        int lastEnd = -1;
+        for (final HighlightedPosition position : positions) {
+            if (position.offset >= lastEnd) {
+                sortedPositions.add(position);
+                lastEnd = position.getEnd();
+            }
+        }
+        return new HighlightedPositions(originalStamp, sortedPositions);
+    }
+
+    /**
+     * @param identifierInfo the info for a resolved identifier.
+     * @param cmm the CAL model manager.
+     * @param moduleTypeInfoCache map from module name to the module's type info (or null), for the modules looked up so far.
+     * @return the highlighting for the identifier, or null if the identifier isn't highlighted.
+     */
+    private static SemanticHighlighting getHighlighting(IdentifierInfo identifierInfo, CALModelManager cmm, Map<ModuleName, ModuleTypeInfo> moduleTypeInfoCache) {
+        if (identifierInfo instanceof IdentifierInfo.Local) {
+            return SemanticHighlightings.LOCAL_VARIABLE;
+        }
+        if (identifierInfo instanceof IdentifierInfo.TopLevel.FunctionOrClassMethod) {
+            QualifiedName name = ((IdentifierInfo.TopLevel)identifierInfo).getResolvedName();
+            ModuleName moduleName = name.getModuleName();
+            ModuleTypeInfo moduleTypeInfo;
+            if (moduleTypeInfoCache.containsKey(moduleName)) {
+                moduleTypeInfo = moduleTypeInfoCache.get(moduleName);
+            } else {
+                moduleTypeInfo = cmm.getModuleTypeInfo(moduleName);
+                moduleTypeInfoCache.put(moduleName, moduleTypeInfo);
+            }
+
+            FunctionalAgent entity = (moduleTypeInfo == null) ? null : moduleTypeInfo.getFunctionOrClassMethod(name.getUnqualifiedName());
+            if (entity instanceof ClassMethod) {
+                return SemanticHighlightings.CLASS_METHOD;
+            }
+            if (entity instanceof Function && ((Function)entity).getForeignFunctionInfo() != null) {
+                return SemanticHighlightings.FOREIGN_FUNCTION;
+            }
+            return SemanticHighlightings.FUNCTION;
+        }
+        return null;
+    }
+
+    /**
+     * Show new highlighted identifiers, repairing the part of the presentation whose highlighting changed.
+     * Called on the display thread when the highlighting job finishes.
+     * @param newPositions the highlighted identifiers.
+     */
+    private void updatePresentation(HighlightedPositions newPositions) {
+        IDocument document = viewer.getDocument();
+        if (!installed || document != trackedDocument || !(document instanceof PartiallySynchronizedDocument)) {
+            return;
+        }
+        PartiallySynchronizedDocument psd = (PartiallySynchronizedDocument)document;
+        if (newPositions.originalStamp != getModificationStamp(psd.getOriginalDocument())) {
+            // Saved since the positions were found.  They will be found again.
+            return;
+        }
+
+        List<ShownPosition> newShownPositions = toShownPositions(newPositions, psd);
+        IRegion damage = getChangedRegion(getShownPositions(), newShownPositions);
+        setShownPositions(newShownPositions);
+        if (damage == null) {
+            return;
+        }
+        if (presentationReconciler == null) {
+            IPresentationReconciler reconciler = configuration.getPresentationReconciler(viewer);
+            if (!(reconciler instanceof CALPresentationReconciler)) {
+                viewer.invalidateTextPresentation();
+                return;
+            }
+            presentationReconciler = (CALPresentationReconciler)reconciler;
+        }
+        TextPresentation presentation = presentationReconciler.createRepairDescription(damage, document);
+        if (presentation != null) {
+            // The semantic highlighting is merged in by applyTextPresentation().
+            viewer.changeTextPresentation(presentation, false);
+        }
+    }
+
+    /**
+     * @param positions highlighted identifiers in the coordinates of the original document.
+     * @param psd the editor's document.
+     * @return the identifiers in the coordinates of the current document, leaving out the ones which have been edited.
+     */
+    private static List<ShownPosition> toShownPositions(HighlightedPositions positions, PartiallySynchronizedDocument psd) {
+        int documentLength = psd.getLength();
+        List<ShownPosition> shownPositions = new ArrayList<ShownPosition>(positions.positions.size());
+        for (final HighlightedPosition position : positions.positions) {
+            int start = psd.fromOriginalOffset(position.offset);
+            int end = psd.fromOriginalOffset(position.getEnd());
+            if (start < 0 || end - start != position.length || end > documentLength) {
+                // The identifier has been edited.
+                continue;
+            }
+            shownPositions.add(new ShownPosition(start, position.length, position.highlighting));
+        }
+        return shownPositions;
+    }
+
+    /**
+     * @return the shown positions, without the ones which have been deleted.
+     */
+    private List<ShownPosition> getShownPositions() {
+        if (hasDeletedPositions) {
+            List<ShownPosition> remainingPositions = new ArrayList<ShownPosition>(shownPositions.size());
+            for (final ShownPosition position : shownPositions) {
+                if (!position.isDeleted()) {
+                    remainingPositions.add(position);
+                }
+            }
+            shownPositions = remainingPositions;
+            hasDeletedPositions = false;
+        }
+        return shownPositions;
+    }
+
+    /**
+     * Replace the shown positions, in the list and in the document.
+     * @param newShownPositions the new shown positions.
+     */
+    private void setShownPositions(List<ShownPosition> newShownPositions) {
+        try {
+            trackedDocument.removePositionCategory(positionCategory);
+            trackedDocument.addPositionCategory(positionCategory);
+            for (final ShownPosition position : newShownPositions) {
+                trackedDocument.addPosition(positionCategory, position);
+            }
+        } catch (BadLocationException e) {
+            CALEclipseUIPlugin.log(e);
+        } catch (BadPositionCategoryException e) {
+            CALEclipseUIPlugin.log(e);
+        }
+        shownPositions = newShownPositions;
+        hasDeletedPositions = false;
+    }
+
+    /**
+     * @param oldPositions the highlighted identifiers being shown, in the coordinates of the current document.
+     * @param newPositions the new highlighted identifiers, in the coordinates of the current document.
+     * @return the region of the current document whose highlighting changed, or null if nothing changed.
+     */
+    private static IRegion getChangedRegion(List<ShownPosition> oldPositions, List<ShownPosition> newPositions) {
+        // Edited identifiers aren't highlighted.
+        List<ShownPosition> oldList = new ArrayList<ShownPosition>(oldPositions.size());
+        for (final ShownPosition position : oldPositions) {
+            if (!position.isEdited()) {
+                oldList.add(position);
+            }
+        }
+        List<ShownPosition> newList = newPositions;
+
+        // Skip the positions which are the same at the start and end of both lists.
+        int nCommonPrefix = 0;
+        int maxCommon = Math.min(oldList.size(), newList.size());
+        while (nCommonPrefix < maxCommon && oldList.get(nCommonPrefix).isSameAs(newList.get(nCommonPrefix))) {
+            nCommonPrefix++;
+        }
+        int nCommonSuffix = 0;
+        while (nCommonSuffix < maxCommon - nCommonPrefix &&
+                oldList.get(oldList.size() - 1 - nCommonSuffix).isSameAs(newList.get(newList.size() - 1 - nCommonSuffix))) {
+            nCommonSuffix++;
+        }
+        int oldLastChanged = oldList.size() - 1 - nCommonSuffix;
+        int newLastChanged = newList.size() - 1 - nCommonSuffix;
+        if (oldLastChanged < nCommonPrefix && newLastChanged < nCommonPrefix) {
+            return null;
+        }
+
+        int start = Integer.MAX_VALUE;
+        int end = Integer.MIN_VALUE;
+        if (oldLastChanged >= nCommonPrefix) {
+            start = oldList.get(nCommonPrefix).offset;
+            ShownPosition last = oldList.get(oldLastChanged);
+            end = last.offset + last.length;
+        }
+        if (newLastChanged >= nCommonPrefix) {
+            start = Math.min(start, newList.get(nCommonPrefix).offset);
+            ShownPosition last = newList.get(newLastChanged);
+            end = Math.max(end, last.offset + last.length);
+        }
+        return new Region(start, end - start);
+    }
+
+    /**
+     * @param positions shown positions, sorted by offset and not overlapping.
+     * @param offset an offset in the current document.
+     * @return the index of the first position which ends after the offset, or the number of positions if there is none.
+     */
+    private static int findFirstEndingAfter(List<ShownPosition> positions, int offset) {
+        int low = 0;
+        int high = positions.size();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            ShownPosition position = positions.get(mid);
+            if (position.offset + position.length <= offset) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void applyTextPresentation(TextPresentation textPresentation) {
+        List<ShownPosition> positions = getShownPositions();
+        if (positions.isEmpty()) {
+            return;
+        }
+
+        IRegion extent = textPresentation.getExtent();
+        int extentStart = extent.getOffset();
+        int extentEnd = extentStart + extent.getLength();
+
+        List<StyleRange> styleRanges = new ArrayList<StyleRange>();
+        for (int i = findFirstEndingAfter(positions, extentStart), n = positions.size(); i < n; i++) {
+            ShownPosition position = positions.get(i);
+            int start = position.offset;
+            int end = start + position.length;
+            if (start >= extentEnd) {
+                break;
+            }
+            if (position.isEdited() || end <= extentStart) {
+                continue;
+            }
+            TextAttribute attribute = highlightingToAttributeMap.get(position.highlighting);
+            if (attribute == null) {
+                continue;
+            }
+            start = Math.max(start, extentStart);
+            end = Math.min(end, extentEnd);
+
+            StyleRange styleRange = new StyleRange(start, end - start, attribute.getForeground(), attribute.getBackground(), attribute.getStyle() & (SWT.BOLD | SWT.ITALIC));
+            styleRange.strikeout = (attribute.getStyle() & TextAttribute.STRIKETHROUGH) != 0;
+            styleRange.underline = (attribute.getStyle() & TextAttribute.UNDERLINE) != 0;
+            styleRanges.add(styleRange);
+        }
+
+        if (!styleRanges.isEmpty()) {
+            textPresentation.replaceStyleRanges(styleRanges.toArray(new StyleRange[styleRanges.size()]));
+        }
+    }
+
+    /**
+     * @param document a document.
+     * @return the modification stamp of the document, or UNKNOWN_MODIFICATION_STAMP if the document doesn't have one.
+     */
+    private static long getModificationStamp(IDocument document) {
+        if (document instanceof IDocumentExtension4) {
+            return ((IDocumentExtension4)document).getModificationStamp();
+        }
+        return IDocumentExtension4.UNKNOWN_MODIFICATION_STAMP;
+    }
+}
@@ -0,0 +1,198 @@
+/*******************************************************************************
+ * Copyright (c) 2007 Business Objects Software Limited and others.
+ * All rights reserved.
+ * This file is made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Business Objects Software Limited - initial API and implementation
+ *******************************************************************************/
+
+/*
+ * SemanticHighlightings.java
+ * Created: Oct 17, 2007
+ */
+package org.openquark.cal.eclipse.ui.text;
+
+import org.eclipse.jface.preference.IPreferenceStore;
+import org.eclipse.jface.preference.PreferenceConverter;
+import org.eclipse.swt.graphics.RGB;
+import org.openquark.cal.eclipse.ui.preferences.PreferenceConstants;
+import org.openquark.cal.eclipse.ui.preferences.PreferencesMessages;
+
+
+/**
+ * The semantic highlightings of the CAL editor.
+ * <p>
+ * The CAL code scanner colors the text lexically, so it can't tell (for instance) a local variable from a top-level function.
+ * A semantic highlighting colors the identifiers which resolve to a particular kind of entity.  Each highlighting has
+ *   its own color, style and enablement preferences, which are shown on the syntax coloring preference page.
+ *
+ * @see SemanticHighlightingManager
+ */
+public final class SemanticHighlightings {
+
+    /**
+     * A semantic highlighting.
+     */
+    public static final class SemanticHighlighting {
+
+        /** The key of the highlighting, from which its preference keys are formed. */
+        private final String preferenceKey;
+
+        /** The name of the highlighting shown on the preference page. */
+        private final String displayName;
+
+        /** The default color. */
+        private final RGB defaultColor;
+
+        /** Whether the highlighting is bold by default. */
+        private final boolean defaultBold;
+
+        /** Whether the highlighting is italic by default. */
+        private final boolean defaultItalic;
+
+        /** Whether the highlighting is enabled by default. */
+        private final boolean defaultEnabled;
+
+        private SemanticHighlighting(String preferenceKey, String displayName, RGB defaultColor, boolean defaultBold, boolean defaultItalic, boolean defaultEnabled) {
+            this.preferenceKey = preferenceKey;
+            this.displayName = displayName;
+            this.defaultColor = defaultColor;
+            this.defaultBold = defaultBold;
+            this.defaultItalic = defaultItalic;
+            this.defaultEnabled = defaultEnabled;
+        }
+
+        /**
+         * @return the key of the highlighting, from which its preference keys are formed.
+         */
+        public String getPreferenceKey() {
+            return preferenceKey;
+        }
+
+        /**
+         * @return the name of the highlighting shown on the preference page.
+         */
+        public String getDisplayName() {
+            return displayName;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public String toString() {
+            return preferenceKey;
+        }
+    }
+
+    /** Local variables, including function parameters and locally-defined functions. */
+    public static final SemanticHighlighting LOCAL_VARIABLE =
+        new SemanticHighlighting("localVariable", PreferencesMessages.SemanticHighlighting_localVariable, new RGB(106, 62, 62), false, false, true); //$NON-NLS-1$
+
+    /** Top-level functions defined in CAL. */
+    public static final SemanticHighlighting FUNCTION =
+        new SemanticHighlighting("function", PreferencesMessages.SemanticHighlighting_function, new RGB(0, 0, 0), false, false, false); //$NON-NLS-1$
+
+    /** Foreign functions. */
+    public static final SemanticHighlighting FOREIGN_FUNCTION =
+        new SemanticHighlighting("foreignFunction", PreferencesMessages.SemanticHighlighting_foreignFunction, new RGB(0, 0, 0), false, true, true); //$NON-NLS-1$
+
+    /** Class methods. */
+    public static final SemanticHighlighting CLASS_METHOD =
+        new SemanticHighlighting("classMethod", PreferencesMessages.SemanticHighlighting_classMethod, new RGB(0, 0, 192), false, false, true); //$NON-NLS-1$
+
+    /** The semantic highlightings, in the order in which they are shown on the preference page. */
+    private static final SemanticHighlighting[] SEMANTIC_HIGHLIGHTINGS = {
+        LOCAL_VARIABLE,
+        FUNCTION,
+        FOREIGN_FUNCTION,
+        CLASS_METHOD
+    };
+
+    /*
+     * Not intended to be instantiated.
+     */
+    private SemanticHighlightings() {
+    }
+
+    /**
+     * @return the semantic highlightings.
+     */
+    public static SemanticHighlighting[] getSemanticHighlightings() {
+        return SEMANTIC_HIGHLIGHTINGS.clone();
+    }
+
+    /**
+     * @param highlighting a semantic highlighting.
+     * @return the preference key of the highlighting's color.
+     */
+    public static String getColorPreferenceKey(SemanticHighlighting highlighting) {
+        return PreferenceConstants.EDITOR_SEMANTIC_HIGHLIGHTING_PREFIX + highlighting.getPreferenceKey() + PreferenceConstants.EDITOR_SEMANTIC_HIGHLIGHTING_COLOR_SUFFIX;
+    }
+
+    /**
+     * @param highlighting a semantic highlighting.
+     * @return the preference key of whether the highlighting is bold.
+     */
+    public static String getBoldPreferenceKey(SemanticHighlighting highlighting) {
+        return PreferenceConstants.EDITOR_SEMANTIC_HIGHLIGHTING_PREFIX + highlighting.getPreferenceKey() + PreferenceConstants.EDITOR_SEMANTIC_HIGHLIGHTING_BOLD_SUFFIX;
+    }
+
+    /**
+     * @param highlighting a semantic highlighting.
+     * @return the preference key of whether the highlighting is italic.
+     */
+    public static String getItalicPreferenceKey(SemanticHighlighting highlighting) {
+        return PreferenceConstants.EDITOR_SEMANTIC_HIGHLIGHTING_PREFIX + highlighting.getPreferenceKey() + PreferenceConstants.EDITOR_SEMANTIC_HIGHLIGHTING_ITALIC_SUFFIX;
+    }
+
+    /**
+     * @param highlighting a semantic highlighting.
+     * @return the preference key of whether the highlighting is strikethrough.
+     */
+    public static String getStrikethroughPreferenceKey(SemanticHighlighting highlighting) {
+        return PreferenceConstants.EDITOR_SEMANTIC_HIGHLIGHTING_PREFIX + highlighting.getPreferenceKey() + PreferenceConstants.EDITOR_SEMANTIC_HIGHLIGHTING_STRIKETHROUGH_SUFFIX;
+    }
+
+    /**
+     * @param highlighting a semantic highlighting.
+     * @return the preference key of whether the highlighting is underlined.
+     */
+    public static String getUnderlinePreferenceKey(SemanticHighlighting highlighting) {
+        return PreferenceConstants.EDITOR_SEMANTIC_HIGHLIGHTING_PREFIX + highlighting.getPreferenceKey() + PreferenceConstants.EDITOR_SEMANTIC_HIGHLIGHTING_UNDERLINE_SUFFIX;
+    }
+
+    /**
+     * @param highlighting a semantic highlighting.
+     * @return the preference key of whether the highlighting is enabled.
+     */
+    public static String getEnabledPreferenceKey(SemanticHighlighting highlighting) {
+        return PreferenceConstants.EDITOR_SEMANTIC_HIGHLIGHTING_PREFIX + highlighting.getPreferenceKey() + PreferenceConstants.EDITOR_SEMANTIC_HIGHLIGHTING_ENABLED_SUFFIX;
+    }
+
+    /**
+     * @param property the name of a preference.
+     * @return true if the preference is one of the preferences of a semantic highlighting.
+     */
+    public static boolean isSemanticHighlightingPreference(String property) {
+        return property.startsWith(PreferenceConstants.EDITOR_SEMANTIC_HIGHLIGHTING_PREFIX);
+    }
+
+    /**
+     * Initialize the default values of the semantic highlighting preferences.
+     * @param store the preference store.
+     */
+    public static void initDefaults(IPreferenceStore store) {
+        for (final SemanticHighlighting highlighting : SEMANTIC_HIGHLIGHTINGS) {
+            PreferenceConverter.setDefault(store, getColorPreferenceKey(highlighting), highlighting.defaultColor);
+            store.setDefault(getBoldPreferenceKey(highlighting), highlighting.defaultBold);
+            store.setDefault(getItalicPreferenceKey(highlighting), highlighting.defaultItalic);
+            store.setDefault(getStrikethroughPreferenceKey(highlighting), false);
+            store.setDefault(getUnderlinePreferenceKey(highlighting), false);
+            store.setDefault(getEnabledPreferenceKey(highlighting), highlighting.defaultEnabled);
+        }
+    }
+}
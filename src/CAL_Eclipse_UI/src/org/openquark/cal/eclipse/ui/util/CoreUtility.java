@@ -62,7 +62,6 @@ import org.eclipse.jdt.core.ISourceRange;
 import org.eclipse.jdt.core.JavaCore;
 import org.eclipse.jdt.core.JavaModelException;
 import org.eclipse.jdt.core.formatter.DefaultCodeFormatterConstants;
-import org.eclipse.jdt.internal.core.JarEntryFile;
 import org.eclipse.jdt.internal.ui.javaeditor.JarEntryEditorInput;
 import org.eclipse.jface.action.IAction;
 import org.eclipse.jface.dialogs.ErrorDialog;
@@ -291,7 +290,10 @@ public final class CoreUtility {
                                 }
 
                                 // full build for cal.
-                                project.deleteMarkers(CALModelMarker.CAL_MODEL_PROBLEM_MARKER, true, IResource.DEPTH_INFINITE);
+                                // If the builder can resume from the last session, the saved markers are still valid.
+                                if (!CALBuilder.willResumeFromSavedState(project)) {
+                                    project.deleteMarkers(CALModelMarker.CAL_MODEL_PROBLEM_MARKER, true, IResource.DEPTH_INFINITE);
+                                }
                                 project.build(IncrementalProjectBuilder.FULL_BUILD, CALEclipseCorePlugin.BUILDER_ID, null, new SubProgressMonitor(monitor, 1));
                             }
                         }
@@ -509,28 +511,33 @@ public final class CoreUtility {
         // Cur suffix means that the co-ordinates are in the current document's space 
         final int startInOrg = toOffset(sourceRangeInOrg.getStartSourcePosition(), psd.getOriginalDocument());
         final int startInCur = psd.fromOriginalOffset(startInOrg);
-        int lineOffsetInOrg = psd.getOriginalDocument().getLineOffset(sourceRangeInOrg.getEndLine() - 1);
+        final IDocument orgDocument = psd.getOriginalDocument();
 
         final int tabSize = getTabSize();
-        int columnInEditor = 1;
         // source range goes one column past the end. The last position may be on 
         // a non-existant space character on the end of the line
         final int columnToFind = sourceRangeInOrg.getEndColumn() - 1;
-        int i = 0;
-        final int currentLength = psd.getLength();
-        while (columnInEditor < columnToFind){
-            final int pos = i + lineOffsetInOrg;
-            final char ch = (pos >= currentLength) ? ' ' : psd.getChar(pos);
-            if (ch != '\t') {
-                columnInEditor++;
-            } else { 
-                //tabs can consume from 1 to tabSize columns (a tab character moves the column to the next tab stop)
-                final int jump = (((columnInEditor-1)/tabSize) + 1) * tabSize + 1 - columnInEditor;
-                columnInEditor += jump;
+        int endInOrg = DocumentColumnIndex.getIndex(orgDocument).getOffset(orgDocument, sourceRangeInOrg.getEndLine() - 1, columnToFind, tabSize);
+        if (endInOrg < 0) {
+            // The column is past the end of the line.
+            int lineOffsetInOrg = orgDocument.getLineOffset(sourceRangeInOrg.getEndLine() - 1);
+            int columnInEditor = 1;
+            int i = 0;
+            final int orgLength = orgDocument.getLength();
+            while (columnInEditor < columnToFind){
+                final int pos = i + lineOffsetInOrg;
+                final char ch = (pos >= orgLength) ? ' ' : orgDocument.getChar(pos);
+                if (ch != '\t') {
+                    columnInEditor++;
+                } else { 
+                    //tabs can consume from 1 to tabSize columns (a tab character moves the column to the next tab stop)
+                    final int jump = (((columnInEditor-1)/tabSize) + 1) * tabSize + 1 - columnInEditor;
+                    columnInEditor += jump;
+                }
+                ++i;
             }
-            ++i;
+            endInOrg = i + lineOffsetInOrg;
         }
-        final int endInOrg = i + lineOffsetInOrg;        
         final int endInCur = psd.fromOriginalOffset(endInOrg);
         
         final int length = endInCur - startInCur + 1;
@@ -610,9 +617,9 @@ public final class CoreUtility {
                     editorPart = IDE.openEditor(ap, file, activate);
                     initializeHighlightRange(editorPart);
                     
-                } else if (storage instanceof JarEntryFile) {
-                    JarEntryFile jarEntry = (JarEntryFile) storage;
-                    editorPart = IDE.openEditor(ap, new JarEntryEditorInput(jarEntry), 
+                } else {
+                    // An entry in a jar.
+                    editorPart = IDE.openEditor(ap, new JarEntryEditorInput(storage), 
                             CALEclipseUIPlugin.EDITOR_ID);
                 }
             }
@@ -732,9 +739,15 @@ public final class CoreUtility {
      * @throws BadLocationException
      */
     public static int convertToCharacterPosition(int line, int columnToFind, IDocument document) throws BadLocationException {
+        final int tabSize = getTabSize();
+        final int offset = DocumentColumnIndex.getIndex(document).getOffset(document, line - 1, columnToFind, tabSize);
+        if (offset >= 0) {
+            return offset;
+        }
+
+        // The column is past the end of the line.
         int lineOffsetInDocument = document.getLineOffset(line - 1);
 
-        final int tabSize = getTabSize();
         // Start the columns from zero instead of one so the jump math works properly
         int currentColumn = 1;
         int i = 0;
@@ -760,10 +773,16 @@ public final class CoreUtility {
      * @throws BadLocationException
      */
     public static int getColumn(int line, int offsetInDocument, IDocument document) throws BadLocationException{
+        int tabSize = getTabSize();
+        int column = DocumentColumnIndex.getIndex(document).getColumn(document, line, offsetInDocument, tabSize);
+        if (column >= 0) {
+            return column;
+        }
+
+        // The offset is past the end of the line.
         int lineOffsetInDocument = document.getLineOffset(line);
         int characterInDocument = offsetInDocument - lineOffsetInDocument;
 
-        int tabSize = getTabSize();
         int columnInEditor = 0;
         for (int i = 0; i < characterInDocument; i ++) {
             char ch = document.getChar(i + lineOffsetInDocument);
@@ -0,0 +1,308 @@
+/*******************************************************************************
+ * Copyright (c) 2007 Business Objects Software Limited and others.
+ * All rights reserved.
+ * This file is made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Business Objects Software Limited - initial API and implementation
+ *******************************************************************************/
+
+/*
+ * DocumentColumnIndex.java
+ * Created: Oct 17, 2007
+ */
+package org.openquark.cal.eclipse.ui.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import org.eclipse.jface.text.BadLocationException;
+import org.eclipse.jface.text.DocumentEvent;
+import org.eclipse.jface.text.IDocument;
+import org.eclipse.jface.text.IDocumentListener;
+
+
+/**
+ * An index of the tabs on each line of a document, used to convert between offsets and editor columns
+ *   without scanning the line.
+ * <p>
+ * A tab moves the column to the next tab stop, so the column of an offset depends on the tabs before it on the line.
+ * The index records the positions of the tabs on each line, and the column after each tab, so that a conversion is a
+ *   binary search of the tabs on the line.
+ * Lines are indexed when they are first converted.  When the document changes, only the entries for the changed lines are discarded.
+ * <p>
+ * Conversions which would go past the end of the line return -1, and the caller should fall back to scanning the document.
+ *
+ * @see CoreUtility#convertToCharacterPosition(int, int, IDocument)
+ * @see CoreUtility#getColumn(int, int, IDocument)
+ */
+public final class DocumentColumnIndex implements IDocumentListener {
+
+    /** Map from document to its index.  Guarded by itself. */
+    private static final Map<IDocument, DocumentColumnIndex> documentToIndexMap = new WeakHashMap<IDocument, DocumentColumnIndex>();
+
+    /**
+     * The tabs on a line.
+     */
+    private static final class LineInfo {
+
+        /** The length of the line, including its delimiter. */
+        private final int length;
+
+        /** The positions of the tabs, relative to the start of the line, in increasing order. */
+        private final int[] tabPositions;
+
+        /** The tab size for which columnsAfterTabs was computed, or 0 if it hasn't been computed.  Guarded by this. */
+        private int tabSize = 0;
+
+        /** The (one-based) column after each tab.  Guarded by this. */
+        private int[] columnsAfterTabs;
+
+        LineInfo(String lineText) {
+            this.length = lineText.length();
+
+            int nTabs = 0;
+            int[] positions = new int[4];
+            for (int tabPosition = lineText.indexOf('\t'); tabPosition >= 0; tabPosition = lineText.indexOf('\t', tabPosition + 1)) {
+                if (nTabs == positions.length) {
+                    int[] grownPositions = new int[nTabs * 2];
+                    System.arraycopy(positions, 0, grownPositions, 0, nTabs);
+                    positions = grownPositions;
+                }
+                positions[nTabs++] = tabPosition;
+            }
+            int[] trimmedPositions = new int[nTabs];
+            System.arraycopy(positions, 0, trimmedPositions, 0, nTabs);
+            this.tabPositions = trimmedPositions;
+        }
+
+        /**
+         * @param tabSize the tab size.
+         * @return the (one-based) column after each tab.
+         */
+        private synchronized int[] getColumnsAfterTabs(int tabSize) {
+            if (this.tabSize != tabSize) {
+                columnsAfterTabs = new int[tabPositions.length];
+                int previousPosition = -1;
+                int column = 1;
+                for (int i = 0; i < tabPositions.length; i++) {
+                    // The column of the tab, then the next tab stop.
+                    column += tabPositions[i] - previousPosition - 1;
+                    column = (((column - 1) / tabSize) + 1) * tabSize + 1;
+                    columnsAfterTabs[i] = column;
+                    previousPosition = tabPositions[i];
+                }
+                this.tabSize = tabSize;
+            }
+            return columnsAfterTabs;
+        }
+
+        /**
+         * @param column a one-based column.
+         * @param tabSize the tab size.
+         * @return the position, relative to the start of the line, of the first character at or after the column,
+         *   or -1 if this is past the end of the line.
+         */
+        int getPosition(int column, int tabSize) {
+            if (column <= 1) {
+                return 0;
+            }
+            int[] columnsAfter = getColumnsAfterTabs(tabSize);
+
+            // The first tab which reaches the column.
+            int tabIndex = Arrays.binarySearch(columnsAfter, column);
+            if (tabIndex < 0) {
+                tabIndex = -(tabIndex + 1);
+            }
+
+            // The position and column after the previous tab.
+            int startPosition = (tabIndex == 0) ? 0 : tabPositions[tabIndex - 1] + 1;
+            int startColumn = (tabIndex == 0) ? 1 : columnsAfter[tabIndex - 1];
+
+            int position;
+            if (tabIndex < tabPositions.length && startColumn + (tabPositions[tabIndex] - startPosition) < column) {
+                // The column is within the tab.
+                position = tabPositions[tabIndex] + 1;
+            } else {
+                position = startPosition + (column - startColumn);
+            }
+            return (position <= length) ? position : -1;
+        }
+
+        /**
+         * @param position a position relative to the start of the line.
+         * @param tabSize the tab size.
+         * @return the zero-based column of the position, or -1 if the position is past the end of the line.
+         */
+        int getColumn(int position, int tabSize) {
+            if (position <= 0) {
+                return 0;
+            }
+            if (position > length) {
+                return -1;
+            }
+            int[] columnsAfter = getColumnsAfterTabs(tabSize);
+
+            // The number of tabs before the position.
+            int nTabsBefore = Arrays.binarySearch(tabPositions, position);
+            if (nTabsBefore < 0) {
+                nTabsBefore = -(nTabsBefore + 1);
+            }
+            if (nTabsBefore == 0) {
+                return position;
+            }
+            return (columnsAfter[nTabsBefore - 1] - 1) + (position - tabPositions[nTabsBefore - 1] - 1);
+        }
+    }
+
+    /** The info for each line of the document, or null for lines which haven't been indexed.  Guarded by this. */
+    private final List<LineInfo> lineInfos = new ArrayList<LineInfo>();
+
+    /** Whether lineInfos has an entry for each line of the document.  Guarded by this. */
+    private boolean hasLineEntries = false;
+
+    /** Incremented whenever the document changes, so that info read from an older version is not recorded.  Guarded by this. */
+    private int generation = 0;
+
+    /** The first and last lines replaced by the change in progress, or -1 if not known.  Guarded by this. */
+    private int changeStartLine = -1;
+    private int changeEndLine = -1;
+
+    /**
+     * Private constructor.  Use getIndex().
+     */
+    private DocumentColumnIndex() {
+    }
+
+    /**
+     * @param document a document.
+     * @return the index for the document, which is created and attached to the document if it doesn't exist.
+     */
+    public static DocumentColumnIndex getIndex(IDocument document) {
+        synchronized (documentToIndexMap) {
+            DocumentColumnIndex index = documentToIndexMap.get(document);
+            if (index == null) {
+                index = new DocumentColumnIndex();
+                document.addDocumentListener(index);
+                documentToIndexMap.put(document, index);
+            }
+            return index;
+        }
+    }
+
+    /**
+     * @param document the indexed document.
+     * @param line a zero-based line number.
+     * @param column a one-based column.
+     * @param tabSize the tab size.
+     * @return the offset in the document of the first character at or after the column on the line,
+     *   or -1 if this is past the end of the line.
+     * @throws BadLocationException if the line doesn't exist.
+     */
+    public int getOffset(IDocument document, int line, int column, int tabSize) throws BadLocationException {
+        int lineOffset = document.getLineOffset(line);
+        int position = getLineInfo(document, line).getPosition(column, tabSize);
+        return (position < 0) ? -1 : lineOffset + position;
+    }
+
+    /**
+     * @param document the indexed document.
+     * @param line a zero-based line number.
+     * @param offset an offset in the document.
+     * @param tabSize the tab size.
+     * @return the zero-based column of the offset on the line, or -1 if the offset is past the end of the line.
+     * @throws BadLocationException if the line doesn't exist.
+     */
+    public int getColumn(IDocument document, int line, int offset, int tabSize) throws BadLocationException {
+        int lineOffset = document.getLineOffset(line);
+        return getLineInfo(document, line).getColumn(offset - lineOffset, tabSize);
+    }
+
+    /**
+     * @param document the indexed document.
+     * @param line a zero-based line number.
+     * @return the info for the line, which is indexed if necessary.
+     * @throws BadLocationException if the line doesn't exist.
+     */
+    private LineInfo getLineInfo(IDocument document, int line) throws BadLocationException {
+        int startGeneration;
+        synchronized (this) {
+            if (hasLineEntries && line < lineInfos.size()) {
+                LineInfo lineInfo = lineInfos.get(line);
+                if (lineInfo != null) {
+                    return lineInfo;
+                }
+            }
+            startGeneration = generation;
+        }
+
+        // The document is read without holding the lock on this index, since a thread changing the document
+        //   may hold the document's lock while it waits to notify this index.
+        int nLines = document.getNumberOfLines();
+        LineInfo lineInfo = new LineInfo(document.get(document.getLineOffset(line), document.getLineLength(line)));
+
+        synchronized (this) {
+            if (generation == startGeneration) {
+                if (!hasLineEntries) {
+                    lineInfos.clear();
+                    lineInfos.addAll(Collections.<LineInfo>nCopies(nLines, null));
+                    hasLineEntries = true;
+                }
+                if (line < lineInfos.size()) {
+                    lineInfos.set(line, lineInfo);
+                }
+            }
+        }
+        return lineInfo;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public synchronized void documentAboutToBeChanged(DocumentEvent event) {
+        generation++;
+        changeStartLine = -1;
+        changeEndLine = -1;
+        if (hasLineEntries) {
+            try {
+                IDocument document = event.getDocument();
+                changeStartLine = document.getLineOfOffset(event.getOffset());
+                changeEndLine = document.getLineOfOffset(event.getOffset() + event.getLength());
+            } catch (BadLocationException e) {
+                hasLineEntries = false;
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public synchronized void documentChanged(DocumentEvent event) {
+        generation++;
+        if (!hasLineEntries) {
+            return;
+        }
+        if (changeStartLine < 0 || changeEndLine >= lineInfos.size()) {
+            hasLineEntries = false;
+            return;
+        }
+        try {
+            String text = event.getText();
+            int newEndLine = event.getDocument().getLineOfOffset(event.getOffset() + (text == null ? 0 : text.length()));
+
+            // Replace the entries for the changed lines with empty entries for the new lines.
+            List<LineInfo> changedLineInfos = lineInfos.subList(changeStartLine, changeEndLine + 1);
+            changedLineInfos.clear();
+            changedLineInfos.addAll(Collections.<LineInfo>nCopies(newEndLine - changeStartLine + 1, null));
+
+        } catch (BadLocationException e) {
+            hasLineEntries = false;
+        }
+    }
+}
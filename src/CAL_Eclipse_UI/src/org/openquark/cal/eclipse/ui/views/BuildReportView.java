@@ -0,0 +1,237 @@
+/*******************************************************************************
+ * Copyright (c) 2007 Business Objects Software Limited and others.
+ * All rights reserved.
+ * This file is made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Business Objects Software Limited - initial API and implementation
+ *******************************************************************************/
+
+/*
+ * BuildReportView.java
+ * Created: Oct 17, 2007
+ */
+
+package org.openquark.cal.eclipse.ui.views;
+
+import java.text.DateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import org.eclipse.jface.action.Action;
+import org.eclipse.jface.action.IMenuManager;
+import org.eclipse.jface.viewers.ITreeContentProvider;
+import org.eclipse.jface.viewers.LabelProvider;
+import org.eclipse.jface.viewers.TreeViewer;
+import org.eclipse.jface.viewers.Viewer;
+import org.eclipse.swt.SWT;
+import org.eclipse.swt.widgets.Composite;
+import org.eclipse.swt.widgets.Control;
+import org.eclipse.ui.part.ViewPart;
+import org.openquark.cal.compiler.ModuleName;
+import org.openquark.cal.eclipse.core.builder.BuildReport;
+import org.openquark.cal.eclipse.core.builder.BuildReportHistory;
+import org.openquark.cal.eclipse.ui.CALUIMessages;
+import org.openquark.cal.eclipse.ui.util.Messages;
+
+
+/**
+ * A view which shows the timings for the most recent runs of the CAL builder.
+ * <p>
+ * For each build, the time spent in each phase is shown, slowest first, along with the modules which took longest to compile.
+ * This makes it possible to tell whether a slow build is spending its time in the compiler, writing files, or updating markers.
+ */
+public class BuildReportView extends ViewPart {
+
+    /** The maximum number of modules to show for each build. */
+    private static final int N_SLOWEST_MODULES = 10;
+
+    private TreeViewer viewer;
+
+    /** Refreshes the view when a build finishes. */
+    private final BuildReportHistory.Listener buildReportListener = new BuildReportHistory.Listener() {
+        public void buildReportAdded(BuildReport report) {
+            refreshAsync();
+        }
+    };
+
+    /**
+     * A node in the tree below a build report: a label, a time, and child nodes.
+     */
+    private static class TimingNode {
+        private final String label;
+        private final long millis;
+        private final List<TimingNode> children = new ArrayList<TimingNode>();
+
+        TimingNode(String label, long millis) {
+            this.label = label;
+            this.millis = millis;
+        }
+
+        @Override
+        public String toString() {
+            return millis < 0 ? label : Messages.format(CALUIMessages.BuildReportView_timing, new Object[] {label, String.valueOf(millis)});
+        }
+    }
+
+    /**
+     * Content provider for the view.  The input is ignored; the top level elements are the reports in the build report history.
+     */
+    private static class BuildReportContentProvider implements ITreeContentProvider {
+
+        /** Map from report to the nodes for the report, so that the same nodes are returned each time the tree is refreshed. */
+        private final Map<BuildReport, List<TimingNode>> reportToTimingNodesMap = new WeakHashMap<BuildReport, List<TimingNode>>();
+
+        public Object[] getElements(Object inputElement) {
+            return BuildReportHistory.getReports().toArray();
+        }
+
+        public Object[] getChildren(Object parentElement) {
+            if (parentElement instanceof BuildReport) {
+                BuildReport report = (BuildReport)parentElement;
+                List<TimingNode> timingNodes = reportToTimingNodesMap.get(report);
+                if (timingNodes == null) {
+                    timingNodes = getTimingNodes(report);
+                    reportToTimingNodesMap.put(report, timingNodes);
+                }
+                return timingNodes.toArray();
+            }
+            if (parentElement instanceof TimingNode) {
+                return ((TimingNode)parentElement).children.toArray();
+            }
+            return new Object[0];
+        }
+
+        public Object getParent(Object element) {
+            return null;
+        }
+
+        public boolean hasChildren(Object element) {
+            return getChildren(element).length > 0;
+        }
+
+        public void inputChanged(Viewer viewer, Object oldInput, Object newInput) {
+        }
+
+        public void dispose() {
+        }
+
+        /**
+         * @param report a build report.
+         * @return the nodes to show for the report: its phases, slowest first, then its slowest modules.
+         */
+        private static List<TimingNode> getTimingNodes(BuildReport report) {
+            List<TimingNode> nodes = getSortedTimingNodes(report.getPhaseTimes());
+
+            List<ModuleName> slowestModules = report.getSlowestModules(N_SLOWEST_MODULES);
+            if (!slowestModules.isEmpty()) {
+                TimingNode modulesNode = new TimingNode(CALUIMessages.BuildReportView_slowestModules, -1);
+                Map<ModuleName, Long> moduleTimes = report.getModuleTimes();
+                for (final ModuleName moduleName : slowestModules) {
+                    TimingNode moduleNode = new TimingNode(moduleName.toSourceText(), moduleTimes.get(moduleName).longValue());
+                    moduleNode.children.addAll(getSortedTimingNodes(report.getModulePhaseTimes(moduleName)));
+                    modulesNode.children.add(moduleNode);
+                }
+                nodes.add(modulesNode);
+            }
+            return nodes;
+        }
+
+        /**
+         * @param timeMap map from label to time in milliseconds.
+         * @return nodes for the entries in the map, slowest first.
+         */
+        private static List<TimingNode> getSortedTimingNodes(Map<String, Long> timeMap) {
+            List<TimingNode> nodes = new ArrayList<TimingNode>();
+            for (final Map.Entry<String, Long> entry : timeMap.entrySet()) {
+                nodes.add(new TimingNode(entry.getKey(), entry.getValue().longValue()));
+            }
+            Collections.sort(nodes, new Comparator<TimingNode>() {
+                public int compare(TimingNode node1, TimingNode node2) {
+                    return node1.millis < node2.millis ? 1 : (node1.millis == node2.millis ? 0 : -1);
+                }
+            });
+            return nodes;
+        }
+    }
+
+    /**
+     * Label provider for the view.
+     */
+    private static class BuildReportLabelProvider extends LabelProvider {
+        private final DateFormat timeFormat = DateFormat.getTimeInstance();
+
+        @Override
+        public String getText(Object element) {
+            if (element instanceof BuildReport) {
+                BuildReport report = (BuildReport)element;
+                return Messages.format(CALUIMessages.BuildReportView_report, new Object[] {
+                        report.getProjectName(), report.getBuildKind(), timeFormat.format(new Date(report.getStartTime())), String.valueOf(report.getTotalTime())});
+            }
+            return element.toString();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void createPartControl(Composite parent) {
+        viewer = new TreeViewer(parent, SWT.SINGLE | SWT.H_SCROLL | SWT.V_SCROLL);
+        viewer.setContentProvider(new BuildReportContentProvider());
+        viewer.setLabelProvider(new BuildReportLabelProvider());
+        viewer.setInput(this);
+
+        IMenuManager menuManager = getViewSite().getActionBars().getMenuManager();
+        menuManager.add(new Action(CALUIMessages.BuildReportView_clear) {
+            @Override
+            public void run() {
+                BuildReportHistory.clear();
+                viewer.refresh();
+            }
+        });
+
+        BuildReportHistory.addListener(buildReportListener);
+    }
+
+    /**
+     * Refresh the viewer on the UI thread.
+     */
+    private void refreshAsync() {
+        final Control control = viewer.getControl();
+        if (control.isDisposed()) {
+            return;
+        }
+        control.getDisplay().asyncExec(new Runnable() {
+            public void run() {
+                if (!control.isDisposed()) {
+                    viewer.refresh();
+                }
+            }
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void dispose() {
+        BuildReportHistory.removeListener(buildReportListener);
+        super.dispose();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setFocus() {
+        viewer.getControl().setFocus();
+    }
+}
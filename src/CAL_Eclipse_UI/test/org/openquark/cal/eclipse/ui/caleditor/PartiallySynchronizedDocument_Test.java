@@ -0,0 +1,292 @@
+/*******************************************************************************
+ * Copyright (c) 2007 Business Objects Software Limited and others.
+ * All rights reserved.
+ * This file is made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Business Objects Software Limited - initial API and implementation
+ *******************************************************************************/
+
+/*
+ * PartiallySynchronizedDocument_Test.java
+ * Created: Oct 17, 2007
+ */
+package org.openquark.cal.eclipse.ui.caleditor;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.eclipse.jface.text.BadLocationException;
+
+
+/**
+ * Tests for the mapping of offsets between the current and the original (ie. last saved) versions of a
+ *   PartiallySynchronizedDocument.
+ * <p>
+ * Each edit is made to a PartiallySynchronizedDocument, and recorded in a list of changes which is mapped through by
+ *   the linear search which the document used before its offsets were mapped by binary search.  After each edit,
+ *   every offset in the current and the original versions of the document is checked to map the same way.
+ * The edits include typing, deletions and replacements, edits which overlap earlier edits, saves, and a fixed sequence
+ *   of random edits.
+ * <p>
+ * This doesn't need a workbench, and can be run as a plain JUnit test with the plug-in's dependencies on the class path.
+ */
+public class PartiallySynchronizedDocument_Test extends TestCase {
+
+    /** The length of the text of the document before it is edited. */
+    private static final int INITIAL_LENGTH = 500;
+
+    /** The number of random edits. */
+    private static final int N_RANDOM_EDITS = 500;
+
+    /**
+     * The mapping of offsets by the list of changes made since the document was saved, as the document did it
+     *   before it used binary search.
+     */
+    private static final class LinearOffsetMapping {
+
+        /** A change to the text of the document. */
+        private static final class Change {
+            final int offset;
+            final int oldLength;
+            final int newLength;
+
+            Change(int offset, int oldLength, int newLength) {
+                this.offset = offset;
+                this.oldLength = oldLength;
+                this.newLength = newLength;
+            }
+        }
+
+        /** The changes made since the document was saved, in the order made. */
+        private final List<Change> changes = new ArrayList<Change>();
+
+        void addChange(int offset, int oldLength, int newLength) {
+            changes.add(new Change(offset, oldLength, newLength));
+        }
+
+        void clear() {
+            changes.clear();
+        }
+
+        int getOriginalOffset(int offset) {
+            for (int i = changes.size() - 1; i >= 0; --i) {
+                Change change = changes.get(i);
+                if (change.offset > offset) {
+                    continue;
+                }
+                offset = offset - change.newLength + change.oldLength;
+                if (change.offset > offset) {
+                    return -1;
+                }
+            }
+            return offset;
+        }
+
+        int estimateOriginalOffset(int offset) {
+            for (int i = changes.size() - 1; i >= 0; --i) {
+                Change change = changes.get(i);
+                if (change.offset > offset) {
+                    continue;
+                }
+                offset = offset - change.newLength + change.oldLength;
+                if (change.offset > offset) {
+                    offset = change.offset;
+                }
+            }
+            return offset;
+        }
+
+        int fromOriginalOffset(int offset) {
+            for (final Change change : changes) {
+                if (change.offset > offset) {
+                    continue;
+                }
+                offset = offset - change.oldLength + change.newLength;
+                if (change.offset > offset) {
+                    return -1;
+                }
+            }
+            return offset;
+        }
+    }
+
+    /** The document being edited. */
+    private PartiallySynchronizedDocument document;
+
+    /** The expected mapping of the document's offsets. */
+    private LinearOffsetMapping expectedMapping;
+
+    /** The length of the original version of the document. */
+    private int originalLength;
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        StringBuilder text = new StringBuilder(INITIAL_LENGTH);
+        for (int i = 0; i < INITIAL_LENGTH; i++) {
+            text.append((char)('a' + i % 26));
+        }
+
+        // The document doesn't map the change which sets its initial text.
+        document = new PartiallySynchronizedDocument();
+        document.set(text.toString());
+        document.wasSaved();
+        expectedMapping = new LinearOffsetMapping();
+        originalLength = document.getLength();
+    }
+
+    /**
+     * Make an edit to the document, and check that its offsets map as expected afterwards.
+     * @param offset the offset of the edit.
+     * @param length the length of the replaced text.
+     * @param text the new text.
+     * @throws BadLocationException
+     */
+    private void replace(int offset, int length, String text) throws BadLocationException {
+        document.replace(offset, length, text);
+        expectedMapping.addChange(offset, length, text.length());
+        assertSameMapping("replace(" + offset + ", " + length + ", \"" + text + "\")");
+    }
+
+    /**
+     * Save the document, and check that every offset maps to itself afterwards.
+     */
+    private void save() {
+        document.wasSaved();
+        expectedMapping.clear();
+        originalLength = document.getLength();
+        assertSameMapping("save");
+        for (int offset = 0; offset <= originalLength; offset++) {
+            assertEquals(offset, document.getOriginalOffset(offset));
+            assertEquals(offset, document.fromOriginalOffset(offset));
+        }
+    }
+
+    /**
+     * Check that every offset in the current and the original versions of the document maps as expected.
+     * @param message a description of the last edit to the document.
+     */
+    private void assertSameMapping(String message) {
+        for (int offset = 0, length = document.getLength(); offset <= length; offset++) {
+            assertEquals(message + ": getOriginalOffset(" + offset + ")",
+                    expectedMapping.getOriginalOffset(offset), document.getOriginalOffset(offset));
+            assertEquals(message + ": estimateOriginalOffset(" + offset + ")",
+                    expectedMapping.estimateOriginalOffset(offset), document.estimateOriginalOffset(offset));
+        }
+        for (int offset = 0; offset <= originalLength; offset++) {
+            assertEquals(message + ": fromOriginalOffset(" + offset + ")",
+                    expectedMapping.fromOriginalOffset(offset), document.fromOriginalOffset(offset));
+        }
+    }
+
+    /**
+     * Check that the offsets of an unedited document map to themselves.
+     */
+    public void testUnedited() {
+        assertSameMapping("unedited");
+        assertEquals(100, document.getOriginalOffset(100));
+        assertEquals(100, document.estimateOriginalOffset(100));
+        assertEquals(100, document.fromOriginalOffset(100));
+    }
+
+    /**
+     * Type text one character at a time, and then delete it one character at a time.
+     * @throws Exception
+     */
+    public void testTyping() throws Exception {
+        String typedText = "typed text";
+        for (int i = 0; i < typedText.length(); i++) {
+            replace(200 + i, 0, typedText.substring(i, i + 1));
+        }
+        assertEquals(-1, document.getOriginalOffset(205));
+        assertEquals(200, document.estimateOriginalOffset(205));
+        assertEquals(200 + typedText.length(), document.fromOriginalOffset(200));
+
+        for (int i = typedText.length() - 1; i >= 0; i--) {
+            replace(200 + i, 1, "");
+        }
+        assertEquals(205, document.getOriginalOffset(205));
+    }
+
+    /**
+     * Delete text, and replace text with shorter and longer text.
+     * @throws Exception
+     */
+    public void testDeleteAndReplace() throws Exception {
+        replace(100, 50, "");
+        assertEquals(-1, document.fromOriginalOffset(120));
+        assertEquals(150, document.getOriginalOffset(100));
+
+        replace(300, 10, "replaced");
+        replace(50, 5, "replaced with longer text");
+        replace(0, 0, "at the start");
+        replace(document.getLength(), 0, "at the end");
+        replace(document.getLength() - 20, 20, "");
+    }
+
+    /**
+     * Make edits which overlap, or are next to, earlier edits.
+     * @throws Exception
+     */
+    public void testOverlappingEdits() throws Exception {
+        replace(100, 0, "inserted");
+        replace(95, 10, "over the start");
+        replace(110, 10, "over the end");
+        replace(90, 50, "");
+        replace(90, 0, "x");
+        replace(91, 0, "y");
+        replace(89, 3, "z");
+    }
+
+    /**
+     * Check that saving the document resets the mapping of its offsets.
+     * @throws Exception
+     */
+    public void testSave() throws Exception {
+        replace(100, 20, "edited before the save");
+        save();
+        replace(100, 0, "edited after the save");
+        replace(10, 30, "");
+    }
+
+    /**
+     * Make random edits, with a fixed seed so that failures can be reproduced.
+     * @throws Exception
+     */
+    public void testRandomEdits() throws Exception {
+        Random random = new Random(20071017);
+
+        int lastEditEnd = 0;
+        for (int i = 0; i < N_RANDOM_EDITS; i++) {
+            int documentLength = document.getLength();
+            int offset;
+            int length;
+            String text;
+            if (random.nextInt(3) == 0 && lastEditEnd <= documentLength) {
+                // Continue typing after the last edit.
+                offset = lastEditEnd;
+                length = 0;
+                text = "t";
+            } else {
+                offset = random.nextInt(documentLength + 1);
+                length = random.nextBoolean() ? 0 : random.nextInt(Math.min(20, documentLength - offset) + 1);
+                text = "random".substring(0, random.nextInt(7));
+            }
+            replace(offset, length, text);
+            lastEditEnd = offset + text.length();
+
+            if (random.nextInt(100) == 0) {
+                save();
+            }
+        }
+    }
+}
@@ -0,0 +1,320 @@
+/*******************************************************************************
+ * Copyright (c) 2007 Business Objects Software Limited and others.
+ * All rights reserved.
+ * This file is made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Business Objects Software Limited - initial API and implementation
+ *******************************************************************************/
+
+/*
+ * CALDocumentPartitioner_Test.java
+ * Created: Oct 17, 2007
+ */
+package org.openquark.cal.eclipse.ui.text;
+
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.eclipse.jface.text.BadLocationException;
+import org.eclipse.jface.text.BadPartitioningException;
+import org.eclipse.jface.text.Document;
+import org.eclipse.jface.text.IDocumentPartitioner;
+import org.eclipse.jface.text.ITypedRegion;
+import org.eclipse.jface.text.rules.FastPartitioner;
+
+
+/**
+ * Tests for CALDocumentPartitioner.
+ * <p>
+ * Each edit is made to a document partitioned by a CALDocumentPartitioner, and to one partitioned by the platform's
+ *   FastPartitioner with the same scanner, and the partitionings are checked to be the same after each edit.
+ * The edits include typing, multi-character replacements and deletions spanning several partitions, in documents with
+ *   LF and CRLF line delimiters, and a fixed sequence of random edits.
+ * <p>
+ * This doesn't need a workbench, and can be run as a plain JUnit test with the plug-in's dependencies on the class path.
+ *
+ * @see PartitionerBenchmark_Test
+ */
+public class CALDocumentPartitioner_Test extends TestCase {
+
+    /** The content types of the partitions of a CAL document. */
+    private static final String[] LEGAL_CONTENT_TYPES = new String[]{
+        CALPartitions.CAL_DOC,
+        CALPartitions.CAL_MULTI_LINE_COMMENT,
+        CALPartitions.CAL_SINGLE_LINE_COMMENT,
+        CALPartitions.CAL_STRING,
+        CALPartitions.CAL_CHARACTER
+    };
+
+    /** The approximate number of lines in the generated module. */
+    private static final int N_LINES = 3000;
+
+    /** The fragments of text inserted by the random edits, chosen to open and close partitions. */
+    private static final String[] RANDOM_FRAGMENTS = {
+        "/*", "*/", "/**", "//", "\"", "'", "\\", "\n", "\r\n", "\r", "x", " ", "{@code \"", "/* \"a\" */"
+    };
+
+    /** The number of random edits. */
+    private static final int N_RANDOM_EDITS = 300;
+
+    /** The document partitioned by a CALDocumentPartitioner. */
+    private Document calDocument;
+
+    /** The document partitioned by a FastPartitioner. */
+    private Document fastDocument;
+
+    /**
+     * Create the documents.
+     * @param lineDelimiter the line delimiter of the generated module.
+     */
+    private void createDocuments(String lineDelimiter) {
+        String text = generateModule(N_LINES, lineDelimiter);
+        calDocument = createDocument(text, false);
+        fastDocument = createDocument(text, true);
+    }
+
+    /**
+     * Make an edit to both documents, and check that they have the same partitioning afterwards.
+     * @param offset the offset of the edit.
+     * @param length the length of the replaced text.
+     * @param text the new text.
+     * @throws BadLocationException
+     * @throws BadPartitioningException
+     */
+    private void replace(int offset, int length, String text) throws BadLocationException, BadPartitioningException {
+        calDocument.replace(offset, length, text);
+        fastDocument.replace(offset, length, text);
+        assertSamePartitioning("replace(" + offset + ", " + length + ", \"" + text + "\")", fastDocument, calDocument);
+    }
+
+    /**
+     * Type text one character at a time, and then delete it one character at a time.
+     * @param offset the offset at which to type.
+     * @param typedText the text to type.
+     * @throws BadLocationException
+     * @throws BadPartitioningException
+     */
+    private void typeAndDelete(int offset, String typedText) throws BadLocationException, BadPartitioningException {
+        for (int i = 0; i < typedText.length(); i++) {
+            replace(offset + i, 0, typedText.substring(i, i + 1));
+        }
+        for (int i = typedText.length() - 1; i >= 0; i--) {
+            replace(offset + i, 1, "");
+        }
+    }
+
+    /**
+     * @param text the text to find.
+     * @return the offset of the text after the middle of the document.
+     */
+    private int findAfterMiddle(String text) {
+        String documentText = calDocument.get();
+        int offset = documentText.indexOf(text, documentText.length() / 2);
+        assertTrue(offset >= 0);
+        return offset;
+    }
+
+    /**
+     * Check that the initial partitionings are the same.
+     * @throws Exception
+     */
+    public void testInitialPartitioning() throws Exception {
+        createDocuments("\n");
+        assertSamePartitioning("initial", fastDocument, calDocument);
+        createDocuments("\r\n");
+        assertSamePartitioning("initial", fastDocument, calDocument);
+    }
+
+    /**
+     * Type, and then delete, text which opens partitions.
+     * @throws Exception
+     */
+    public void testTyping() throws Exception {
+        createDocuments("\n");
+        checkTyping("\n");
+    }
+
+    /**
+     * Type, and then delete, text which opens partitions, in a document with CRLF line delimiters.
+     * @throws Exception
+     */
+    public void testTypingWithCRLF() throws Exception {
+        createDocuments("\r\n");
+        checkTyping("\r\n");
+    }
+
+    /**
+     * @param lineDelimiter the line delimiter of the documents.
+     * @throws Exception
+     */
+    private void checkTyping(String lineDelimiter) throws Exception {
+        int codeOffset = findAfterMiddle(lineDelimiter + "public ") + lineDelimiter.length();
+        int commentOffset = findAfterMiddle("/**") + 3;
+        int lineCommentOffset = findAfterMiddle("// the separator") + 2;
+
+        typeAndDelete(0, "/**");
+        typeAndDelete(codeOffset, "/*");
+        typeAndDelete(codeOffset, "\"");
+        typeAndDelete(codeOffset, "'");
+        typeAndDelete(commentOffset, " abc */");
+        typeAndDelete(lineCommentOffset, lineDelimiter + "\"");
+
+        // Split, and then join, the CR and LF of a line delimiter.
+        int delimiterOffset = findAfterMiddle(lineDelimiter);
+        typeAndDelete(delimiterOffset + 1, "\"");
+    }
+
+    /**
+     * Replace several characters at once, with text which opens or closes partitions.
+     * @throws Exception
+     */
+    public void testMultiCharacterReplace() throws Exception {
+        createDocuments("\r\n");
+
+        int letOffset = findAfterMiddle("let");
+        replace(letOffset, 3, "/* let");
+        replace(letOffset, 6, "let");
+
+        int stringOffset = findAfterMiddle("\"none ");
+        replace(stringOffset, 6, "'\"' /* ");
+        replace(stringOffset, 7, "\"none ");
+
+        int codeOffset = findAfterMiddle("public ");
+        replace(codeOffset, 0, "/**\r\n * A pasted comment, with a \"string\".\r\n */\r\n");
+        replace(codeOffset, 0, "\"unterminated\r\n");
+        replace(codeOffset, "\"unterminated\r\n".length(), "x = \"\\\"\";\r\n");
+
+        // Replace the whole document.
+        String text = calDocument.get();
+        replace(0, calDocument.getLength(), generateModule(N_LINES / 10, "\n"));
+        replace(0, calDocument.getLength(), text);
+    }
+
+    /**
+     * Delete text which spans several partitions.
+     * @throws Exception
+     */
+    public void testDeletionAcrossPartitions() throws Exception {
+        createDocuments("\r\n");
+
+        // From the middle of a CALDoc comment to the middle of a string in the function it documents.
+        int commentOffset = findAfterMiddle("/**") + 5;
+        int stringOffset = calDocument.get().indexOf("\"value", commentOffset) + 3;
+        replace(commentOffset, stringOffset - commentOffset, "");
+
+        // From the middle of one function to the middle of another, several functions later.
+        int startOffset = findAfterMiddle("// the separator") + 5;
+        int endOffset = startOffset;
+        for (int i = 0; i < 5; i++) {
+            endOffset = calDocument.get().indexOf("/* the name */", endOffset) + 4;
+        }
+        replace(startOffset, endOffset - startOffset, "");
+
+        // Up to the end of the document, and then everything.
+        replace(startOffset, calDocument.getLength() - startOffset, "");
+        replace(0, calDocument.getLength(), "");
+    }
+
+    /**
+     * Make random edits, with a fixed seed so that failures can be reproduced.
+     * @throws Exception
+     */
+    public void testRandomEdits() throws Exception {
+        createDocuments("\r\n");
+        Random random = new Random(20071017);
+
+        for (int i = 0; i < N_RANDOM_EDITS; i++) {
+            int documentLength = calDocument.getLength();
+            int offset = random.nextInt(documentLength + 1);
+            int length = random.nextBoolean() ? 0 : random.nextInt(Math.min(200, documentLength - offset) + 1);
+            String text = random.nextInt(4) == 0 ? "" : RANDOM_FRAGMENTS[random.nextInt(RANDOM_FRAGMENTS.length)];
+            replace(offset, length, text);
+        }
+    }
+
+    /**
+     * @param text the text of the document.
+     * @param useFastPartitioner whether to partition the document with a FastPartitioner, rather than a CALDocumentPartitioner.
+     * @return a document with the text, partitioned for the CAL partitioning.
+     */
+    static Document createDocument(String text, boolean useFastPartitioner) {
+        IDocumentPartitioner partitioner;
+        if (useFastPartitioner) {
+            partitioner = new FastPartitioner(new FastCALPartitionScanner(), LEGAL_CONTENT_TYPES);
+        } else {
+            partitioner = new CALDocumentPartitioner(new FastCALPartitionScanner(), LEGAL_CONTENT_TYPES);
+        }
+
+        Document document = new Document(text);
+        partitioner.connect(document);
+        document.setDocumentPartitioner(CALPartitions.CAL_PARTITIONING, partitioner);
+        return document;
+    }
+
+    /**
+     * Check that two documents with the same text have the same partitioning.
+     * @param message a description of the last edit to the documents.
+     * @param expectedDocument the document with the expected partitioning.
+     * @param document the document to check.
+     * @throws BadLocationException
+     * @throws BadPartitioningException
+     */
+    static void assertSamePartitioning(String message, Document expectedDocument, Document document) throws BadLocationException, BadPartitioningException {
+        ITypedRegion[] expectedPartitions = expectedDocument.computePartitioning(CALPartitions.CAL_PARTITIONING, 0, expectedDocument.getLength(), false);
+        ITypedRegion[] partitions = document.computePartitioning(CALPartitions.CAL_PARTITIONING, 0, document.getLength(), false);
+        assertEquals(message, expectedPartitions.length, partitions.length);
+        for (int i = 0; i < partitions.length; i++) {
+            assertEquals(message, expectedPartitions[i].getOffset(), partitions[i].getOffset());
+            assertEquals(message, expectedPartitions[i].getLength(), partitions[i].getLength());
+            assertEquals(message, expectedPartitions[i].getType(), partitions[i].getType());
+        }
+    }
+
+    /**
+     * Generate the text of a CAL module with functions documented by CALDoc comments, and containing
+     *   comments, strings and characters.
+     * @param nLines the approximate number of lines in the module.
+     * @param lineDelimiter the line delimiter.
+     * @return the text of the module.
+     */
+    static String generateModule(int nLines, String lineDelimiter) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("/*\n");
+        sb.append(" * Generated by CALDocumentPartitioner_Test.\n");
+        sb.append(" */\n");
+        sb.append("\n");
+        sb.append("/**\n");
+        sb.append(" * A generated module, for testing the partitioning of CAL documents.\n");
+        sb.append(" */\n");
+        sb.append("module Test.Partitioning;\n");
+        sb.append("\n");
+        sb.append("import Cal.Core.Prelude using\n");
+        sb.append("    typeConstructor = Char, Int, String;\n");
+        sb.append("    function = intToString;\n");
+        sb.append("    ;\n");
+        sb.append("\n");
+
+        int lineCount = 14;
+        for (int i = 0; lineCount < nLines; i++) {
+            sb.append("/**\n");
+            sb.append(" * Returns the name of value number " + i + ", or {@code \"none\"} if there isn't one.\n");
+            sb.append(" * @arg x the number of the value.\n");
+            sb.append(" * @return the name of the value.\n");
+            sb.append(" */\n");
+            sb.append("valueName" + i + " :: Int -> String;\n");
+            sb.append("public valueName" + i + " x =\n");
+            sb.append("    let\n");
+            sb.append("        // the separator between the prefix and the number\n");
+            sb.append("        separator = '-';\n");
+            sb.append("    in\n");
+            sb.append("        if x > " + i + " then \"value\" ++ intToString x /* the name */ else \"none \\\"" + i + "\\\"\";\n");
+            sb.append("\n");
+            lineCount += 13;
+        }
+        return lineDelimiter.equals("\n") ? sb.toString() : sb.toString().replace("\n", lineDelimiter);
+    }
+}
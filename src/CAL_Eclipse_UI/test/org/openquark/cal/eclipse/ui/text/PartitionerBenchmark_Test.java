@@ -0,0 +1,222 @@
+/*******************************************************************************
+ * Copyright (c) 2007 Business Objects Software Limited and others.
+ * All rights reserved.
+ * This file is made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Business Objects Software Limited - initial API and implementation
+ *******************************************************************************/
+
+/*
+ * PartitionerBenchmark_Test.java
+ * Created: Oct 17, 2007
+ */
+package org.openquark.cal.eclipse.ui.text;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.eclipse.jface.text.BadLocationException;
+import org.eclipse.jface.text.BadPartitioningException;
+import org.eclipse.jface.text.Document;
+
+
+/**
+ * A benchmark for the partitioning of CAL documents.
+ * <p>
+ * This generates a large CAL module, and times typing (and then deleting) text which changes the partitioning, such as the start
+ *   of a comment or a string.  Each edit is made to a document partitioned by a CALDocumentPartitioner, and to one partitioned
+ *   by a FastPartitioner with the same scanner, and the partitionings are checked to be the same after each keystroke.
+ * The results are written as comma-separated values, one line per partitioner and scenario, so that they can be compared between plug-in builds.
+ * <p>
+ * The benchmark takes a while, so it only runs if the file to which to write the results is given.  Otherwise the test does nothing.
+ *   The correctness of the partitioner is tested by CALDocumentPartitioner_Test.
+ * This doesn't need a workbench, and can be run as a plain JUnit test with the plug-in's dependencies on the class path.
+ * The benchmark is configured with system properties:
+ * <ul>
+ *   <li>org.openquark.cal.eclipse.ui.benchmark.output - the file to which to write the results.  Required to run the benchmark.
+ *   <li>org.openquark.cal.eclipse.ui.benchmark.lines - the approximate number of lines in the generated module.  Default: 100000 (about 3 MB).
+ *   <li>org.openquark.cal.eclipse.ui.benchmark.iterations - the number of times to run each scenario.  Default: 3.
+ * </ul>
+ */
+public class PartitionerBenchmark_Test extends TestCase {
+
+    /** The prefix for the system properties which configure the benchmark. */
+    private static final String PROPERTY_PREFIX = "org.openquark.cal.eclipse.ui.benchmark.";
+
+    /** The name of the incremental CAL partitioner. */
+    private static final String PARTITIONER_CAL = "CALDocumentPartitioner";
+
+    /** The name of the platform partitioner, which the CAL editor used before. */
+    private static final String PARTITIONER_FAST = "FastPartitioner";
+
+    /** The partitioners which are timed. */
+    private static final String[] PARTITIONERS = {PARTITIONER_CAL, PARTITIONER_FAST};
+
+    /** The results recorded so far, one line per partitioner and scenario. */
+    private final List<String> results = new ArrayList<String>();
+
+    /**
+     * @param name the name of a system property, without the prefix.
+     * @param defaultValue the value if the property is not set.
+     * @return the value of the property.
+     */
+    private static int getIntProperty(String name, int defaultValue) {
+        String value = System.getProperty(PROPERTY_PREFIX + name);
+        return value == null ? defaultValue : Integer.parseInt(value.trim());
+    }
+
+    /**
+     * Run the benchmark and write the results.
+     * @throws Exception
+     */
+    public void testPartitionerPerformance() throws Exception {
+        String outputFileName = System.getProperty(PROPERTY_PREFIX + "output");
+        if (outputFileName == null) {
+            // The benchmark wasn't asked for.
+            return;
+        }
+        File outputFile = new File(outputFileName);
+        int nLines = getIntProperty("lines", 100000);
+        int nIterations = getIntProperty("iterations", 3);
+
+        String text = CALDocumentPartitioner_Test.generateModule(nLines, "\n");
+        String configuration = new Document(text).getNumberOfLines() + "," + text.length();
+
+        // A function definition, and a CALDoc comment, half way through the module.
+        int codeOffset = text.indexOf("\npublic ", text.length() / 2) + 1;
+        int commentOffset = text.indexOf("/**", text.length() / 2) + 3;
+
+        for (int i = 0; i < nIterations; i++) {
+            runInitialPartitioning(text, i, configuration);
+            runScenario("caldoc-top", text, 0, "/**", i, configuration);
+            runScenario("comment-middle", text, codeOffset, "/*", i, configuration);
+            runScenario("string-middle", text, codeOffset, "\"", i, configuration);
+            runScenario("type-in-comment", text, commentOffset, " abc", i, configuration);
+        }
+
+        writeResults(outputFile);
+    }
+
+    /**
+     * Time the partitioning of the whole module by each partitioner, and record the results.
+     * @param text the text of the module.
+     * @param iteration the iteration of the benchmark.
+     * @param configuration the comma-separated description of the module.
+     */
+    private void runInitialPartitioning(String text, int iteration, String configuration) {
+        for (final String partitioner : PARTITIONERS) {
+            long startTime = System.nanoTime();
+            createDocument(text, partitioner);
+            long micros = (System.nanoTime() - startTime) / 1000;
+            recordResult(partitioner, "initial", iteration, configuration, 0, micros, micros);
+        }
+    }
+
+    /**
+     * Time typing text into the module one character at a time, and then deleting it one character at a time,
+     *   and record the results.
+     * @param scenario the name of the scenario.
+     * @param text the text of the module.
+     * @param offset the offset at which to type.
+     * @param typedText the text to type.
+     * @param iteration the iteration of the benchmark.
+     * @param configuration the comma-separated description of the module.
+     * @throws BadLocationException
+     * @throws BadPartitioningException
+     */
+    private void runScenario(String scenario, String text, int offset, String typedText, int iteration, String configuration)
+            throws BadLocationException, BadPartitioningException {
+
+        Document[] documents = new Document[PARTITIONERS.length];
+        long[] totalNanos = new long[PARTITIONERS.length];
+        long[] maxNanos = new long[PARTITIONERS.length];
+        for (int i = 0; i < PARTITIONERS.length; i++) {
+            documents[i] = createDocument(text, PARTITIONERS[i]);
+        }
+
+        int nKeystrokes = 2 * typedText.length();
+        for (int keystroke = 0; keystroke < nKeystrokes; keystroke++) {
+            int editOffset;
+            int replacedLength;
+            String insertedText;
+            if (keystroke < typedText.length()) {
+                editOffset = offset + keystroke;
+                replacedLength = 0;
+                insertedText = typedText.substring(keystroke, keystroke + 1);
+            } else {
+                editOffset = offset + nKeystrokes - keystroke - 1;
+                replacedLength = 1;
+                insertedText = "";
+            }
+
+            for (int i = 0; i < PARTITIONERS.length; i++) {
+                long startTime = System.nanoTime();
+                documents[i].replace(editOffset, replacedLength, insertedText);
+                long nanos = System.nanoTime() - startTime;
+                totalNanos[i] += nanos;
+                maxNanos[i] = Math.max(maxNanos[i], nanos);
+            }
+
+            for (int i = 1; i < PARTITIONERS.length; i++) {
+                CALDocumentPartitioner_Test.assertSamePartitioning(scenario, documents[0], documents[i]);
+            }
+        }
+
+        for (int i = 0; i < PARTITIONERS.length; i++) {
+            recordResult(PARTITIONERS[i], scenario, iteration, configuration, nKeystrokes, totalNanos[i] / 1000, maxNanos[i] / 1000);
+        }
+    }
+
+    /**
+     * @param text the text of the document.
+     * @param partitionerName the name of the partitioner with which to partition the document.
+     * @return a document with the text, partitioned for the CAL partitioning.
+     */
+    private static Document createDocument(String text, String partitionerName) {
+        return CALDocumentPartitioner_Test.createDocument(text, partitionerName.equals(PARTITIONER_FAST));
+    }
+
+    /**
+     * Record the results of a scenario.
+     * @param partitioner the name of the partitioner.
+     * @param scenario the name of the scenario.
+     * @param iteration the iteration of the benchmark.
+     * @param configuration the comma-separated description of the module.
+     * @param nKeystrokes the number of keystrokes in the scenario.
+     * @param totalMicros the total time taken to update the document, in microseconds.
+     * @param maxMicros the longest time taken for a keystroke, in microseconds.
+     */
+    private void recordResult(String partitioner, String scenario, int iteration, String configuration, int nKeystrokes, long totalMicros, long maxMicros) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(partitioner).append(',').append(scenario).append(',').append(iteration).append(',').append(configuration);
+        sb.append(',').append(nKeystrokes).append(',').append(totalMicros).append(',').append(maxMicros);
+
+        results.add(sb.toString());
+    }
+
+    /**
+     * Write the results, with a header line.
+     * @param outputFile the file to which to write.
+     * @throws IOException
+     */
+    private void writeResults(File outputFile) throws IOException {
+        PrintWriter writer = new PrintWriter(new FileWriter(outputFile));
+        try {
+            writer.println("partitioner,scenario,iteration,lines,characters,keystrokes,totalMicros,maxMicros");
+            for (final String result : results) {
+                writer.println(result);
+            }
+        } finally {
+            writer.close();
+        }
+    }
+}